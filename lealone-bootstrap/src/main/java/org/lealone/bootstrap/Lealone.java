@@ -106,6 +106,18 @@ public class Lealone {
         if (config.tcp_daemon)
             list.add("-tcpDaemon");
 
+        if (config.tcp_nio) {
+            list.add("-tcpNio");
+            if (config.tcp_worker_threads > 0) {
+                list.add("-tcpWorkerThreads");
+                list.add(Integer.toString(config.tcp_worker_threads));
+            }
+            if (config.tcp_read_timeout > 0) {
+                list.add("-tcpReadTimeout");
+                list.add(Integer.toString(config.tcp_read_timeout));
+            }
+        }
+
         TcpServer server = new TcpServer();
 
         server.init(list.toArray(new String[list.size()]));
@@ -23,6 +23,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 
 import org.lealone.api.ParameterInterface;
+import org.lealone.engine.AsyncCallback;
 import org.lealone.engine.FrontendSession;
 import org.lealone.message.DbException;
 import org.lealone.result.ResultInterface;
@@ -78,41 +79,48 @@ public class FrontendBatchCommand implements CommandInterface {
         if (id == -1)
             id = session.getNextId();
 
-        try {
-            if (batchCommands != null) {
-                session.traceOperation("COMMAND_EXECUTE_BATCH_UPDATE_STATEMENT", id);
-                transfer.writeInt(FrontendSession.COMMAND_EXECUTE_BATCH_UPDATE_STATEMENT);
-                int size = batchCommands.size();
-                result = new int[size];
-                transfer.writeInt(size);
-                for (int j = 0; j < size; j++)
-                    transfer.writeString(batchCommands.get(j));
-                session.done(transfer);
-
+        final int size = batchCommands != null ? batchCommands.size() : batchParameters.size();
+        result = new int[size];
+        AsyncCallback<Void> ac = new AsyncCallback<Void>() {
+            @Override
+            protected Void readResponse(Transfer transfer) throws IOException {
                 for (int j = 0; j < size; j++)
                     result[j] = transfer.readInt();
-            } else {
-                session.traceOperation("COMMAND_EXECUTE_BATCH_UPDATE_PREPAREDSTATEMENT", id);
-                transfer.writeInt(FrontendSession.COMMAND_EXECUTE_BATCH_UPDATE_PREPAREDSTATEMENT).writeInt(id);
-                int size = batchParameters.size();
-                result = new int[size];
-                transfer.writeInt(size);
-                Value[] values;
-                int len;
-                for (int j = 0; j < size; j++) {
-                    values = batchParameters.get(j);
-                    len = values.length;
-                    for (int m = 0; m < len; m++)
-                        transfer.writeValue(values[m]);
+                return null;
+            }
+        };
+        try {
+            synchronized (transfer) {
+                int requestId;
+                if (batchCommands != null) {
+                    session.traceOperation("COMMAND_EXECUTE_BATCH_UPDATE_STATEMENT", id);
+                    requestId = session.writeRequestHeader(transfer,
+                            FrontendSession.COMMAND_EXECUTE_BATCH_UPDATE_STATEMENT);
+                    transfer.writeInt(size);
+                    for (int j = 0; j < size; j++)
+                        transfer.writeString(batchCommands.get(j));
+                } else {
+                    session.traceOperation("COMMAND_EXECUTE_BATCH_UPDATE_PREPAREDSTATEMENT", id);
+                    requestId = session.writeRequestHeader(transfer,
+                            FrontendSession.COMMAND_EXECUTE_BATCH_UPDATE_PREPAREDSTATEMENT);
+                    transfer.writeInt(id);
+                    transfer.writeInt(size);
+                    Value[] values;
+                    int len;
+                    for (int j = 0; j < size; j++) {
+                        values = batchParameters.get(j);
+                        len = values.length;
+                        for (int m = 0; m < len; m++)
+                            transfer.writeValue(values[m]);
+                    }
                 }
-                session.done(transfer);
-
-                for (int j = 0; j < size; j++)
-                    result[j] = transfer.readInt();
+                session.sendRequest(transfer, requestId, ac);
             }
         } catch (IOException e) {
             session.handleException(e);
+            return 0;
         }
+        ac.get();
 
         return 0;
     }
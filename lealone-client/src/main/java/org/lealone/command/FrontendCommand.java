@@ -12,6 +12,8 @@ import java.util.ArrayList;
 
 import org.lealone.api.ErrorCode;
 import org.lealone.api.ParameterInterface;
+import org.lealone.engine.AsyncCallback;
+import org.lealone.engine.Constants;
 import org.lealone.engine.FrontendSession;
 import org.lealone.engine.SysProperties;
 import org.lealone.message.DbException;
@@ -37,7 +39,8 @@ public class FrontendCommand implements CommandInterface {
     private final int fetchSize;
     private FrontendSession session;
     private int id;
-    private boolean isQuery;
+    private volatile boolean isQuery;
+    private String partitionRanges;
     //private boolean readonly;
     private final int created;
 
@@ -55,31 +58,47 @@ public class FrontendCommand implements CommandInterface {
     }
 
     private void prepare(FrontendSession s, boolean createParams) {
-        id = s.getNextId();
+        AsyncCallback<Void> ac;
         try {
-            if (createParams) {
-                s.traceOperation("SESSION_PREPARE_READ_PARAMS", id);
-                transfer.writeInt(FrontendSession.SESSION_PREPARE_READ_PARAMS).writeInt(id).writeString(sql);
-            } else {
-                s.traceOperation("SESSION_PREPARE", id);
-                transfer.writeInt(FrontendSession.SESSION_PREPARE).writeInt(id).writeString(sql);
-            }
-            s.done(transfer);
-            isQuery = transfer.readBoolean();
-            //readonly = transfer.readBoolean();
-            transfer.readBoolean();
-            int paramCount = transfer.readInt();
-            if (createParams) {
-                parameters.clear();
-                for (int j = 0; j < paramCount; j++) {
-                    Parameter p = new Parameter(j);
-                    p.readMetaData(transfer);
-                    parameters.add(p);
-                }
+            synchronized (transfer) {
+                ac = sendPrepare(s, createParams);
             }
         } catch (IOException e) {
             s.handleException(e);
+            return;
+        }
+        ac.get();
+    }
+
+    private AsyncCallback<Void> sendPrepare(FrontendSession s, final boolean createParams) throws IOException {
+        id = s.getNextId();
+        int requestId;
+        if (createParams) {
+            s.traceOperation("SESSION_PREPARE_READ_PARAMS", id);
+            requestId = s.writeRequestHeader(transfer, FrontendSession.SESSION_PREPARE_READ_PARAMS);
+        } else {
+            s.traceOperation("SESSION_PREPARE", id);
+            requestId = s.writeRequestHeader(transfer, FrontendSession.SESSION_PREPARE);
         }
+        transfer.writeInt(id).writeString(sql);
+        return s.sendRequest(transfer, requestId, new AsyncCallback<Void>() {
+            @Override
+            protected Void readResponse(Transfer transfer) throws IOException {
+                isQuery = transfer.readBoolean();
+                //readonly = transfer.readBoolean();
+                transfer.readBoolean();
+                int paramCount = transfer.readInt();
+                if (createParams) {
+                    parameters.clear();
+                    for (int j = 0; j < paramCount; j++) {
+                        Parameter p = new Parameter(j);
+                        p.readMetaData(transfer);
+                        parameters.add(p);
+                    }
+                }
+                return null;
+            }
+        });
     }
 
     @Override
@@ -92,7 +111,13 @@ public class FrontendCommand implements CommandInterface {
         return parameters;
     }
 
-    private void prepareIfRequired() {
+    /**
+     * Prepare the statement again if the server might have removed it.
+     *
+     * @return the callback of the prepare, or null if not required; it must be
+     *         set as the prerequisite of the next request
+     */
+    private AsyncCallback<Void> prepareIfRequired() throws IOException {
         if (session.getLastReconnect() != created) {
             // in this case we need to prepare again in every case
             id = Integer.MIN_VALUE;
@@ -100,118 +125,177 @@ public class FrontendCommand implements CommandInterface {
         session.checkClosed();
         if (id <= session.getCurrentId() - SysProperties.SERVER_CACHED_OBJECTS) {
             // object is too old - we need to prepare again
-            prepare(session, false);
+            // 不需要等待响应，服务器端会按请求的顺序处理，prepare失败时由后面的请求抛出它的异常
+            return sendPrepare(session, false);
         }
+        return null;
     }
 
     @Override
     public ResultInterface getMetaData() {
-        synchronized (session) {
-            if (!isQuery) {
-                return null;
-            }
-            int objectId = session.getNextId();
-            ResultRemote result = null;
-            prepareIfRequired();
-            try {
+        if (!isQuery) {
+            return null;
+        }
+        final FrontendSession session = this.session;
+        AsyncCallback<ResultInterface> ac;
+        try {
+            synchronized (transfer) {
+                final int objectId = session.getNextId();
+                AsyncCallback<Void> prepare = prepareIfRequired();
                 session.traceOperation("COMMAND_GET_META_DATA", id);
-                transfer.writeInt(FrontendSession.COMMAND_GET_META_DATA).writeInt(id).writeInt(objectId);
-                session.done(transfer);
-                int columnCount = transfer.readInt();
-                int rowCount = transfer.readInt();
-                result = new ResultRemoteInMemory(session, transfer, objectId, columnCount, rowCount, Integer.MAX_VALUE);
-            } catch (IOException e) {
-                session.handleException(e);
+                int requestId = session.writeRequestHeader(transfer, FrontendSession.COMMAND_GET_META_DATA);
+                transfer.writeInt(id).writeInt(objectId);
+                ac = new AsyncCallback<ResultInterface>() {
+                    @Override
+                    protected ResultInterface readResponse(Transfer transfer) throws IOException {
+                        int columnCount = transfer.readInt();
+                        int rowCount = transfer.readInt();
+                        return new ResultRemoteInMemory(session, transfer, objectId, columnCount, rowCount,
+                                Integer.MAX_VALUE);
+                    }
+                };
+                ac.setPrerequisite(prepare);
+                session.sendRequest(transfer, requestId, ac);
             }
-            return result;
+        } catch (IOException e) {
+            session.handleException(e);
+            return null;
         }
+        return ac.get();
     }
 
     @Override
     public ResultInterface executeQuery(int maxRows, boolean scrollable) {
+        ResultInterface result = executeQueryAsync(maxRows, scrollable).get();
+        session.readSessionState();
+        return result;
+    }
+
+    /**
+     * Set the partition ranges the server has to return, only used by queries.
+     * The ranges are ignored by servers that do not support TCP_PROTOCOL_VERSION_3,
+     * then all rows are returned.
+     *
+     * @param partitionRanges the encoded partition ranges, or null to return all rows
+     */
+    public void setPartitionRanges(String partitionRanges) {
+        this.partitionRanges = partitionRanges;
+    }
+
+    /**
+     * Send the query without waiting for the result.
+     * Many queries can be in flight on the same session, the results are matched by the request id.
+     *
+     * @param maxRows the maximum number of rows to return
+     * @param scrollable if the result set must be scrollable
+     * @return the callback, call get() to wait for the result
+     */
+    public AsyncCallback<ResultInterface> executeQueryAsync(int maxRows, boolean scrollable) {
         checkParameters();
-        synchronized (session) {
-            int objectId = session.getNextId();
-            ResultRemote result = null;
-            prepareIfRequired();
-            try {
-                boolean isDistributedQuery = session.getTransaction() != null
+        final FrontendSession session = this.session;
+        AsyncCallback<ResultInterface> ac;
+        try {
+            synchronized (transfer) {
+                final int objectId = session.getNextId();
+                AsyncCallback<Void> prepare = prepareIfRequired();
+                final boolean isDistributedQuery = session.getTransaction() != null
                         && !session.getTransaction().isAutoCommit();
+                int requestId;
                 if (isDistributedQuery) {
                     session.traceOperation("COMMAND_EXECUTE_DISTRIBUTED_QUERY", id);
-                    transfer.writeInt(FrontendSession.COMMAND_EXECUTE_DISTRIBUTED_QUERY).writeInt(id)
-                            .writeInt(objectId).writeInt(maxRows);
+                    requestId = session.writeRequestHeader(transfer, FrontendSession.COMMAND_EXECUTE_DISTRIBUTED_QUERY);
                 } else {
                     session.traceOperation("COMMAND_EXECUTE_QUERY", id);
-                    transfer.writeInt(FrontendSession.COMMAND_EXECUTE_QUERY) //
-                            .writeInt(id).writeInt(objectId).writeInt(maxRows);
+                    requestId = session.writeRequestHeader(transfer, FrontendSession.COMMAND_EXECUTE_QUERY);
                 }
-                int fetch;
+                transfer.writeInt(id).writeInt(objectId).writeInt(maxRows);
+                final int fetch;
                 if (scrollable) {
                     fetch = Integer.MAX_VALUE;
                 } else {
                     fetch = fetchSize;
                 }
                 transfer.writeInt(fetch);
+                if (session.getClientVersion() >= Constants.TCP_PROTOCOL_VERSION_3)
+                    transfer.writeString(partitionRanges);
                 sendParameters(transfer);
-                session.done(transfer);
-
-                if (isDistributedQuery)
-                    session.getTransaction().addLocalTransactionNames(transfer.readString());
-
-                int columnCount = transfer.readInt();
-                int rowCount = transfer.readInt();
-
-                if (rowCount < 0)
-                    result = new ResultRemoteCursor(session, transfer, objectId, columnCount, fetch);
-                else
-                    result = new ResultRemoteInMemory(session, transfer, objectId, columnCount, rowCount, fetch);
-
-            } catch (IOException e) {
-                session.handleException(e);
-            } catch (Exception e) {
-                e.printStackTrace();
+                ac = new AsyncCallback<ResultInterface>() {
+                    @Override
+                    protected ResultInterface readResponse(Transfer transfer) throws IOException {
+                        if (isDistributedQuery)
+                            session.getTransaction().addLocalTransactionNames(transfer.readString());
+
+                        int columnCount = transfer.readInt();
+                        int rowCount = transfer.readInt();
+
+                        if (rowCount < 0)
+                            return new ResultRemoteCursor(session, transfer, objectId, columnCount, fetch);
+                        else
+                            return new ResultRemoteInMemory(session, transfer, objectId, columnCount, rowCount, fetch);
+                    }
+                };
+                ac.setPrerequisite(prepare);
+                session.sendRequest(transfer, requestId, ac);
             }
-            session.readSessionState();
-            return result;
+        } catch (IOException e) {
+            session.handleException(e);
+            throw DbException.convertIOException(e, sql);
         }
+        return ac;
     }
 
     @Override
     public int executeUpdate() {
+        int updateCount = executeUpdateAsync().get();
+        session.readSessionState();
+        return updateCount;
+    }
+
+    /**
+     * Send the update without waiting for the update count.
+     *
+     * @return the callback, call get() to wait for the update count
+     */
+    public AsyncCallback<Integer> executeUpdateAsync() {
         checkParameters();
-        synchronized (session) {
-            int updateCount = 0;
-            //boolean autoCommit = false;
-            prepareIfRequired();
-            try {
-                boolean isDistributedUpdate = session.getTransaction() != null
+        final FrontendSession session = this.session;
+        AsyncCallback<Integer> ac;
+        try {
+            synchronized (transfer) {
+                AsyncCallback<Void> prepare = prepareIfRequired();
+                final boolean isDistributedUpdate = session.getTransaction() != null
                         && !session.getTransaction().isAutoCommit();
+                int requestId;
                 if (isDistributedUpdate) {
                     session.traceOperation("COMMAND_EXECUTE_DISTRIBUTED_UPDATE", id);
-                    transfer.writeInt(FrontendSession.COMMAND_EXECUTE_DISTRIBUTED_UPDATE).writeInt(id);
+                    requestId = session
+                            .writeRequestHeader(transfer, FrontendSession.COMMAND_EXECUTE_DISTRIBUTED_UPDATE);
                 } else {
                     session.traceOperation("COMMAND_EXECUTE_UPDATE", id);
-                    transfer.writeInt(FrontendSession.COMMAND_EXECUTE_UPDATE).writeInt(id);
+                    requestId = session.writeRequestHeader(transfer, FrontendSession.COMMAND_EXECUTE_UPDATE);
                 }
+                transfer.writeInt(id);
                 sendParameters(transfer);
-                session.done(transfer);
-
-                if (isDistributedUpdate)
-                    session.getTransaction().addLocalTransactionNames(transfer.readString());
-
-                updateCount = transfer.readInt();
-                transfer.readBoolean();
-                //autoCommit = transfer.readBoolean();
-            } catch (IOException e) {
-                session.handleException(e);
-            } catch (Exception e) {
-                //e.printStackTrace();
-                throw e;
+                ac = new AsyncCallback<Integer>() {
+                    @Override
+                    protected Integer readResponse(Transfer transfer) throws IOException {
+                        if (isDistributedUpdate)
+                            session.getTransaction().addLocalTransactionNames(transfer.readString());
+
+                        int updateCount = transfer.readInt();
+                        //autoCommit = transfer.readBoolean();
+                        transfer.readBoolean();
+                        return updateCount;
+                    }
+                };
+                ac.setPrerequisite(prepare);
+                session.sendRequest(transfer, requestId, ac);
             }
-            session.readSessionState();
-            return updateCount;
+        } catch (IOException e) {
+            session.handleException(e);
+            throw DbException.convertIOException(e, sql);
         }
+        return ac;
     }
 
     private void checkParameters() {
@@ -233,10 +317,11 @@ public class FrontendCommand implements CommandInterface {
         if (session == null || session.isClosed()) {
             return;
         }
-        synchronized (session) {
+        synchronized (transfer) {
             session.traceOperation("COMMAND_CLOSE", id);
             try {
-                transfer.writeInt(FrontendSession.COMMAND_CLOSE).writeInt(id);
+                session.writeRequestHeader(transfer, FrontendSession.COMMAND_CLOSE);
+                transfer.writeInt(id);
             } catch (IOException e) {
                 trace.error(e, "close");
             }
@@ -0,0 +1,216 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.engine;
+
+import java.io.IOException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.lealone.api.AsyncHandler;
+import org.lealone.api.ErrorCode;
+import org.lealone.message.DbException;
+import org.lealone.value.Transfer;
+
+/**
+ * 一个已经发出去的请求，在收到对应请求id的响应后由读响应的线程调用readResponse读取响应包的剩余部分。
+ *
+ * readResponse不能去获取session的锁，也不能等待其他请求的响应。
+ *
+ * 如果session启动了I/O线程，响应由I/O线程读取，get()只需等待结果；否则由调用get()的线程负责读取响应。
+ *
+ * @param <T> the result type
+ */
+public class AsyncCallback<T> implements Future<T> {
+
+    private FrontendSession session;
+    private volatile boolean done;
+    private T result;
+    private DbException exception;
+    private AsyncHandler<T> handler;
+    private AsyncCallback<?> prerequisite;
+
+    /**
+     * Read the response after the status was read successfully.
+     * The default implementation is used by requests that only return a status.
+     *
+     * @param transfer the transfer object
+     * @return the result
+     */
+    protected T readResponse(Transfer transfer) throws IOException {
+        return null;
+    }
+
+    void setSession(FrontendSession session) {
+        this.session = session;
+    }
+
+    /**
+     * Called by the thread that reads the responses of the session.
+     *
+     * @param transfer the transfer object
+     */
+    void run(Transfer transfer) throws IOException {
+        try {
+            session.readStatus(transfer);
+            T result = readResponse(transfer);
+            if (prerequisite != null && prerequisite.exception != null)
+                setException(prerequisite.exception);
+            else
+                setResult(result);
+        } catch (DbException e) {
+            //前面那个请求失败时，它的异常才是真正的原因
+            if (prerequisite != null && prerequisite.exception != null)
+                e = prerequisite.exception;
+            setException(e);
+        }
+    }
+
+    /**
+     * Set a request that was sent in front of this request without waiting for its response,
+     * for example a prepare that is pipelined in front of an execute.
+     * If it failed, its exception is the result of this request.
+     * Must be called before the request is sent.
+     *
+     * @param prerequisite the request, or null
+     */
+    public void setPrerequisite(AsyncCallback<?> prerequisite) {
+        this.prerequisite = prerequisite;
+    }
+
+    void setResult(T result) {
+        AsyncHandler<T> h;
+        synchronized (this) {
+            if (done)
+                return;
+            this.result = result;
+            done = true;
+            notifyAll();
+            h = handler;
+        }
+        if (h != null)
+            h.onSuccess(result);
+    }
+
+    void setException(DbException exception) {
+        AsyncHandler<T> h;
+        synchronized (this) {
+            if (done)
+                return;
+            this.exception = exception;
+            done = true;
+            notifyAll();
+            h = handler;
+        }
+        if (h != null)
+            h.onFailure(exception);
+    }
+
+    /**
+     * Set the handler that is called when the response arrived.
+     * If the response already arrived, the handler is called immediately by the current thread.
+     *
+     * @param handler the handler
+     */
+    public void setHandler(AsyncHandler<T> handler) {
+        synchronized (this) {
+            if (!done) {
+                this.handler = handler;
+                return;
+            }
+        }
+        if (exception != null)
+            handler.onFailure(exception);
+        else
+            handler.onSuccess(result);
+    }
+
+    /**
+     * Wait until another thread set the result.
+     *
+     * @param millis the maximum time to wait, 0 means forever
+     * @return true if done
+     */
+    synchronized boolean waitUntilDone(long millis) throws InterruptedException {
+        if (millis <= 0) {
+            while (!done)
+                wait();
+        } else {
+            long end = System.currentTimeMillis() + millis;
+            while (!done) {
+                long remaining = end - System.currentTimeMillis();
+                if (remaining <= 0)
+                    break;
+                wait(remaining);
+            }
+        }
+        return done;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * The request was already sent to the server and can not be cancelled.
+     *
+     * @return false
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    /**
+     * Wait for the response and return the result.
+     *
+     * @return the result
+     * @throws DbException if the server sent an exception or the connection is broken
+     */
+    @Override
+    public T get() {
+        if (!done)
+            session.await(this);
+        if (exception != null)
+            throw exception;
+        return result;
+    }
+
+    /**
+     * Wait for the response at most the given time and return the result.
+     * Only supported if the session reads the responses with its I/O thread.
+     *
+     * @throws DbException if the server sent an exception or the connection is broken
+     */
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        if (!done) {
+            if (!session.isIoThreadStarted())
+                throw DbException.get(ErrorCode.FEATURE_NOT_SUPPORTED_1, "get with timeout without I/O thread");
+            if (!waitUntilDone(Math.max(1, unit.toMillis(timeout))))
+                throw new TimeoutException();
+        }
+        return get();
+    }
+}
@@ -11,6 +11,7 @@ import java.net.Socket;
 import java.sql.Connection;
 import java.util.ArrayList;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.lealone.api.ErrorCode;
 import org.lealone.command.CommandInterface;
@@ -64,6 +65,8 @@ public class FrontendSession extends SessionWithState implements DataHandler {
     public static final int COMMAND_EXECUTE_DISTRIBUTED_SAVEPOINT_ROLLBACK = 105;
 
     public static final int COMMAND_EXECUTE_TRANSACTION_VALIDATE = 106;
+    public static final int COMMAND_LEASE_TIMESTAMPS = 107;
+    public static final int COMMAND_EXECUTE_TRANSACTION_VALIDATE_BATCH = 108;
 
     public static final int COMMAND_EXECUTE_BATCH_UPDATE_STATEMENT = 120;
     public static final int COMMAND_EXECUTE_BATCH_UPDATE_PREPAREDSTATEMENT = 121;
@@ -96,6 +99,18 @@ public class FrontendSession extends SessionWithState implements DataHandler {
     private LobStorageInterface lobStorage;
     private TransactionInterface transaction;
 
+    //写请求时在transfer上同步，读响应时在responseLock上同步，
+    //等待响应时不能持有transfer的锁，这样在等待响应的同时其他线程还可以继续发送请求
+    private final Object responseLock = new Object();
+    private final ConcurrentHashMap<Integer, AsyncCallback<?>> callbacks = new ConcurrentHashMap<>();
+    private int nextRequestId;
+    //协议版本1的响应不带请求id，同一时间只有这个请求在等待响应
+    private volatile int pendingRequestId;
+
+    //启动I/O线程后所有响应都由它读取，等待结果的线程只在AsyncCallback上等待
+    private final Object ioThreadSync = new Object();
+    private volatile Thread ioThread;
+
     public FrontendSession(ConnectionInfo ci) {
         this.connectionInfo = ci;
     }
@@ -105,8 +120,9 @@ public class FrontendSession extends SessionWithState implements DataHandler {
         Transfer trans = new Transfer(this, socket);
         trans.setSSL(ci.isSSL());
         trans.init();
+        // 服务器只支持TCP_PROTOCOL_VERSION_1时请求和响应都不带请求id，不使用流水线
         trans.writeInt(Constants.TCP_PROTOCOL_VERSION_1);
-        trans.writeInt(Constants.TCP_PROTOCOL_VERSION_1);
+        trans.writeInt(Constants.TCP_PROTOCOL_VERSION_3);
         trans.writeString(db);
         trans.writeString(ci.getURL());
         trans.writeString(ci.getUserName());
@@ -119,12 +135,17 @@ public class FrontendSession extends SessionWithState implements DataHandler {
             trans.writeString(key).writeString(ci.getProperty(key));
         }
         try {
-            done(trans);
+            trans.flush();
+            readStatus(trans);
             clientVersion = trans.readInt();
             trans.setVersion(clientVersion);
-            trans.writeInt(FrontendSession.SESSION_SET_ID);
+            int requestId = writeRequestHeader(trans, FrontendSession.SESSION_SET_ID);
             trans.writeString(sessionId);
-            done(trans);
+            trans.flush();
+            if (clientVersion >= Constants.TCP_PROTOCOL_VERSION_2 && trans.readInt() != requestId) {
+                throw DbException.get(ErrorCode.CONNECTION_BROKEN_1, "unexpected request id");
+            }
+            readStatus(trans);
         } catch (DbException e) {
             trans.close();
             throw e;
@@ -135,15 +156,23 @@ public class FrontendSession extends SessionWithState implements DataHandler {
 
     @Override
     public int getUndoLogPos() {
+        AsyncCallback<Integer> ac = new AsyncCallback<Integer>() {
+            @Override
+            protected Integer readResponse(Transfer transfer) throws IOException {
+                return transfer.readInt();
+            }
+        };
         try {
             traceOperation("SESSION_UNDO_LOG_POS", 0);
-            transfer.writeInt(FrontendSession.SESSION_UNDO_LOG_POS);
-            done(transfer);
-            return transfer.readInt();
+            synchronized (transfer) {
+                int requestId = writeRequestHeader(transfer, FrontendSession.SESSION_UNDO_LOG_POS);
+                sendRequest(transfer, requestId, ac);
+            }
         } catch (IOException e) {
             handleException(e);
+            return 1;
         }
-        return 1;
+        return ac.get();
     }
 
     @Override
@@ -191,13 +220,19 @@ public class FrontendSession extends SessionWithState implements DataHandler {
     }
 
     private void setAutoCommitSend(boolean autoCommit) {
+        AsyncCallback<Void> ac = new AsyncCallback<>();
         try {
             traceOperation("SESSION_SET_AUTOCOMMIT", autoCommit ? 1 : 0);
-            transfer.writeInt(FrontendSession.SESSION_SET_AUTOCOMMIT).writeBoolean(autoCommit);
-            done(transfer);
+            synchronized (transfer) {
+                int requestId = writeRequestHeader(transfer, FrontendSession.SESSION_SET_AUTOCOMMIT);
+                transfer.writeBoolean(autoCommit);
+                sendRequest(transfer, requestId, ac);
+            }
         } catch (IOException e) {
             handleException(e);
+            return;
         }
+        ac.get();
     }
 
     private String getFilePrefix(String dir) {
@@ -415,8 +450,12 @@ public class FrontendSession extends SessionWithState implements DataHandler {
             synchronized (this) {
                 try {
                     traceOperation("SESSION_CLOSE", 0);
-                    transfer.writeInt(FrontendSession.SESSION_CLOSE);
-                    done(transfer);
+                    AsyncCallback<Void> ac = new AsyncCallback<>();
+                    synchronized (transfer) {
+                        int requestId = writeRequestHeader(transfer, FrontendSession.SESSION_CLOSE);
+                        sendRequest(transfer, requestId, ac);
+                    }
+                    ac.get();
                     transfer.close();
                 } catch (RuntimeException e) {
                     trace.error(e, "close");
@@ -427,6 +466,7 @@ public class FrontendSession extends SessionWithState implements DataHandler {
             }
             transfer = null;
         }
+        stopIoThread();
         traceSystem.close();
         if (embedded != null) {
             embedded.close();
@@ -451,23 +491,194 @@ public class FrontendSession extends SessionWithState implements DataHandler {
     }
 
     /**
-     * Called to flush the output after data has been sent to the server and
-     * just before receiving data. This method also reads the status code from
-     * the server and throws any exception the server sent.
+     * Write the operation and a new request id. The caller must hold the lock of the transfer object.
+     * The request id is not sent if the server only supports TCP_PROTOCOL_VERSION_1.
+     *
+     * @param transfer the transfer object
+     * @param operation the operation
+     * @return the request id
+     */
+    public int writeRequestHeader(Transfer transfer, int operation) throws IOException {
+        int requestId = nextRequestId++;
+        transfer.writeInt(operation);
+        if (clientVersion >= Constants.TCP_PROTOCOL_VERSION_2)
+            transfer.writeInt(requestId);
+        return requestId;
+    }
+
+    /**
+     * Register the callback of the request and flush the output.
+     * The caller must hold the lock of the transfer object.
+     * If the server only supports TCP_PROTOCOL_VERSION_1, the responses can not be matched by request id,
+     * so this method also waits for the response while holding the lock, and requests are not pipelined.
+     *
+     * @param transfer the transfer object
+     * @param requestId the request id returned by writeRequestHeader
+     * @param ac the callback that reads the response
+     * @return the callback
+     */
+    public <T> AsyncCallback<T> sendRequest(Transfer transfer, int requestId, AsyncCallback<T> ac) throws IOException {
+        ac.setSession(this);
+        if (clientVersion < Constants.TCP_PROTOCOL_VERSION_2)
+            pendingRequestId = requestId;
+        callbacks.put(requestId, ac);
+        transfer.flush();
+        if (ioThread != null) {
+            synchronized (ioThreadSync) {
+                ioThreadSync.notify();
+            }
+        }
+        if (clientVersion < Constants.TCP_PROTOCOL_VERSION_2)
+            awaitResponse(ac);
+        return ac;
+    }
+
+    /**
+     * Start the I/O thread that reads the responses of this session,
+     * so that the callbacks are completed without a thread waiting for them.
+     * Does nothing if the thread is already running.
+     * Also does nothing if the server only supports TCP_PROTOCOL_VERSION_1,
+     * the thread that sends a request reads its response in this case.
+     */
+    public void startIoThread() {
+        synchronized (ioThreadSync) {
+            if (ioThread != null || isClosed() || clientVersion < Constants.TCP_PROTOCOL_VERSION_2)
+                return;
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    readResponses();
+                }
+            }, "Lealone client I/O " + sessionId);
+            t.setDaemon(true);
+            ioThread = t;
+            t.start();
+        }
+    }
+
+    public boolean isIoThreadStarted() {
+        return ioThread != null;
+    }
+
+    /**
+     * Get the protocol version negotiated with the server.
+     *
+     * @return the protocol version
+     */
+    public int getClientVersion() {
+        return clientVersion;
+    }
+
+    private void stopIoThread() {
+        synchronized (ioThreadSync) {
+            ioThread = null;
+            ioThreadSync.notify();
+        }
+    }
+
+    private void readResponses() {
+        try {
+            while (ioThread != null) {
+                synchronized (ioThreadSync) {
+                    while (callbacks.isEmpty() && ioThread != null && !isClosed())
+                        ioThreadSync.wait();
+                }
+                if (isClosed()) {
+                    failCallbacks(DbException.get(ErrorCode.CONNECTION_BROKEN_1, "session closed"));
+                    break;
+                }
+                synchronized (responseLock) {
+                    while (!callbacks.isEmpty() && !isClosed()) {
+                        if (readResponse() != null)
+                            break;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        } catch (Throwable e) {
+            trace.error(e, "readResponses");
+            failCallbacks(DbException.convert(e));
+        }
+    }
+
+    /**
+     * Read responses until the response of the given request arrived.
+     * The responses of other requests are dispatched to their callbacks.
+     *
+     * @param ac the callback of the request
+     */
+    void await(AsyncCallback<?> ac) {
+        if (Thread.holdsLock(transfer)) {
+            throw DbException.throwInternalError("waiting for a response while holding the transfer lock");
+        }
+        awaitResponse(ac);
+    }
+
+    private void awaitResponse(AsyncCallback<?> ac) {
+        if (ioThread != null && Thread.currentThread() != ioThread) {
+            try {
+                ac.waitUntilDone(0);
+            } catch (InterruptedException e) {
+                throw DbException.convert(e);
+            }
+            return;
+        }
+        synchronized (responseLock) {
+            while (!ac.isDone()) {
+                DbException e = readResponse();
+                if (e != null)
+                    ac.setException(e);
+            }
+        }
+    }
+
+    /**
+     * Read one response and dispatch it to its callback. The caller must hold the responseLock.
+     *
+     * @return null or the exception if the connection is broken, all callbacks are failed in this case
+     */
+    private DbException readResponse() {
+        Transfer transfer = this.transfer;
+        try {
+            if (transfer == null) {
+                throw new IOException("session closed");
+            }
+            int requestId;
+            if (clientVersion >= Constants.TCP_PROTOCOL_VERSION_2)
+                requestId = transfer.readInt();
+            else
+                requestId = pendingRequestId;
+            AsyncCallback<?> callback = callbacks.remove(requestId);
+            if (callback == null) {
+                throw new IOException("unexpected request id " + requestId);
+            }
+            callback.run(transfer);
+            return null;
+        } catch (IOException e) {
+            DbException dbe = DbException.get(ErrorCode.CONNECTION_BROKEN_1, e, e.toString());
+            failCallbacks(dbe);
+            handleException(e);
+            return dbe;
+        }
+    }
+
+    private void failCallbacks(DbException e) {
+        for (AsyncCallback<?> callback : callbacks.values()) {
+            callback.setException(e);
+        }
+        callbacks.clear();
+    }
+
+    /**
+     * Read the status code of a response and throws any exception the server sent.
      *
      * @param transfer the transfer object
      * @throws DbException if the server sent an exception
      * @throws IOException if there is a communication problem between client
      *             and server
      */
-    public void done(Transfer transfer) throws IOException {
-        //正常来讲不会出现这种情况，如果出现了，说明存在bug，找出为什么transfer的输入流没正常读完的原因
-        if (transfer.available() > 0) {
-            throw DbException.throwInternalError("before transfer flush, the available bytes was "
-                    + transfer.available());
-        }
-
-        transfer.flush();
+    void readStatus(Transfer transfer) throws IOException {
         int status = transfer.readInt();
         if (status == STATUS_ERROR) {
             parseError(transfer);
@@ -614,78 +825,149 @@ public class FrontendSession extends SessionWithState implements DataHandler {
     }
 
     @Override
-    public synchronized int readLob(long lobId, byte[] hmac, long offset, byte[] buff, int off, int length) {
-
+    public synchronized int readLob(long lobId, byte[] hmac, long offset, final byte[] buff, final int off,
+            int length) {
+        AsyncCallback<Integer> ac = new AsyncCallback<Integer>() {
+            @Override
+            protected Integer readResponse(Transfer transfer) throws IOException {
+                int length = transfer.readInt();
+                if (length > 0) {
+                    transfer.readBytes(buff, off, length);
+                }
+                return length;
+            }
+        };
         try {
             traceOperation("LOB_READ", (int) lobId);
-            transfer.writeInt(FrontendSession.LOB_READ);
-            transfer.writeLong(lobId);
-            transfer.writeBytes(hmac);
-            transfer.writeLong(offset);
-            transfer.writeInt(length);
-            done(transfer);
-            length = transfer.readInt();
-            if (length <= 0) {
-                return length;
+            synchronized (transfer) {
+                int requestId = writeRequestHeader(transfer, FrontendSession.LOB_READ);
+                transfer.writeLong(lobId);
+                transfer.writeBytes(hmac);
+                transfer.writeLong(offset);
+                transfer.writeInt(length);
+                sendRequest(transfer, requestId, ac);
             }
-            transfer.readBytes(buff, off, length);
-            return length;
         } catch (IOException e) {
             handleException(e);
+            return 1;
         }
-        return 1;
+        return ac.get();
     }
 
     public synchronized void commitTransaction(String allLocalTransactionNames) {
-        checkClosed();
-        try {
-            transfer.writeInt(FrontendSession.COMMAND_EXECUTE_DISTRIBUTED_COMMIT).writeString(allLocalTransactionNames);
-            done(transfer);
-        } catch (IOException e) {
-            handleException(e);
-        }
+        executeSessionCommand(FrontendSession.COMMAND_EXECUTE_DISTRIBUTED_COMMIT, allLocalTransactionNames);
     }
 
     public synchronized void rollbackTransaction() {
+        executeSessionCommand(FrontendSession.COMMAND_EXECUTE_DISTRIBUTED_ROLLBACK, null);
+    }
+
+    public synchronized void addSavepoint(String name) {
+        executeSessionCommand(FrontendSession.COMMAND_EXECUTE_DISTRIBUTED_SAVEPOINT_ADD, name);
+    }
+
+    public synchronized void rollbackToSavepoint(String name) {
+        executeSessionCommand(FrontendSession.COMMAND_EXECUTE_DISTRIBUTED_SAVEPOINT_ROLLBACK, name);
+    }
+
+    private void executeSessionCommand(int operation, String arg) {
         checkClosed();
+        AsyncCallback<Void> ac = new AsyncCallback<>();
         try {
-            transfer.writeInt(FrontendSession.COMMAND_EXECUTE_DISTRIBUTED_ROLLBACK);
-            done(transfer);
+            synchronized (transfer) {
+                int requestId = writeRequestHeader(transfer, operation);
+                if (operation != FrontendSession.COMMAND_EXECUTE_DISTRIBUTED_ROLLBACK)
+                    transfer.writeString(arg);
+                sendRequest(transfer, requestId, ac);
+            }
         } catch (IOException e) {
             handleException(e);
+            return;
         }
+        ac.get();
     }
 
-    public synchronized void addSavepoint(String name) {
+    public synchronized boolean validateTransaction(String localTransactionName) {
         checkClosed();
+        AsyncCallback<Boolean> ac = new AsyncCallback<Boolean>() {
+            @Override
+            protected Boolean readResponse(Transfer transfer) throws IOException {
+                return transfer.readBoolean();
+            }
+        };
         try {
-            transfer.writeInt(FrontendSession.COMMAND_EXECUTE_DISTRIBUTED_SAVEPOINT_ADD).writeString(name);
-            done(transfer);
-        } catch (IOException e) {
+            synchronized (transfer) {
+                int requestId = writeRequestHeader(transfer, FrontendSession.COMMAND_EXECUTE_TRANSACTION_VALIDATE);
+                transfer.writeString(localTransactionName);
+                sendRequest(transfer, requestId, ac);
+            }
+            return ac.get();
+        } catch (Exception e) {
             handleException(e);
+            return false;
         }
     }
 
-    public synchronized void rollbackToSavepoint(String name) {
+    /**
+     * Validate several local transactions of the server with one request.
+     * The request is sent immediately, the caller waits for the result with get().
+     *
+     * @param localTransactionNames the local transaction names
+     * @return the result, the element i is true if the local transaction i is committed
+     */
+    public AsyncCallback<boolean[]> validateTransactionsAsync(final String[] localTransactionNames) {
         checkClosed();
+        AsyncCallback<boolean[]> ac = new AsyncCallback<boolean[]>() {
+            @Override
+            protected boolean[] readResponse(Transfer transfer) throws IOException {
+                int size = transfer.readInt();
+                boolean[] result = new boolean[size];
+                for (int i = 0; i < size; i++)
+                    result[i] = transfer.readBoolean();
+                return result;
+            }
+        };
         try {
-            transfer.writeInt(FrontendSession.COMMAND_EXECUTE_DISTRIBUTED_SAVEPOINT_ROLLBACK).writeString(name);
-            done(transfer);
+            synchronized (transfer) {
+                int requestId = writeRequestHeader(transfer,
+                        FrontendSession.COMMAND_EXECUTE_TRANSACTION_VALIDATE_BATCH);
+                transfer.writeInt(localTransactionNames.length);
+                for (String name : localTransactionNames)
+                    transfer.writeString(name);
+                sendRequest(transfer, requestId, ac);
+            }
         } catch (IOException e) {
             handleException(e);
+            throw DbException.convertIOException(e, null);
         }
+        return ac;
     }
 
-    public synchronized boolean validateTransaction(String localTransactionName) {
+    /**
+     * Get a block of consecutive timestamps from the timestamp oracle node.
+     *
+     * @param count the number of timestamps
+     * @return the first timestamp of the block
+     */
+    public long leaseTimestamps(int count) {
         checkClosed();
+        AsyncCallback<Long> ac = new AsyncCallback<Long>() {
+            @Override
+            protected Long readResponse(Transfer transfer) throws IOException {
+                return transfer.readLong();
+            }
+        };
         try {
-            transfer.writeInt(FrontendSession.COMMAND_EXECUTE_TRANSACTION_VALIDATE).writeString(localTransactionName);
-            done(transfer);
-            return transfer.readBoolean();
-        } catch (Exception e) {
+            synchronized (transfer) {
+                int requestId = writeRequestHeader(transfer, FrontendSession.COMMAND_LEASE_TIMESTAMPS);
+                transfer.writeInt(count);
+                sendRequest(transfer, requestId, ac);
+            }
+        } catch (IOException e) {
             handleException(e);
-            return false;
+            throw DbException.convertIOException(e, null);
         }
+        return ac.get();
     }
 
     public void setTransaction(TransactionInterface transaction) {
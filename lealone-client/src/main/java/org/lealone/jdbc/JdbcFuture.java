@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.jdbc;
+
+import java.sql.SQLException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.lealone.api.AsyncHandler;
+import org.lealone.engine.AsyncCallback;
+import org.lealone.message.DbException;
+
+/**
+ * 异步JDBC操作的结果，由客户端的I/O线程在收到响应后完成。
+ *
+ * get()按Future的约定把SQLException包装成ExecutionException抛出。
+ *
+ * @param <T> the result type
+ */
+class JdbcFuture<T> implements Future<T> {
+
+    private final AsyncHandler<T> handler;
+    private AsyncCallback<?> source;
+    private boolean done;
+    private T result;
+    private SQLException exception;
+
+    JdbcFuture(AsyncHandler<T> handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Set the request this future depends on.
+     * If get() is called by the I/O thread itself (from a handler), it has to read the response by itself.
+     *
+     * @param source the request
+     */
+    void setSource(AsyncCallback<?> source) {
+        this.source = source;
+    }
+
+    void setResult(T result) {
+        synchronized (this) {
+            this.result = result;
+            done = true;
+            notifyAll();
+        }
+        if (handler != null)
+            handler.onSuccess(result);
+    }
+
+    void setException(SQLException exception) {
+        synchronized (this) {
+            this.exception = exception;
+            done = true;
+            notifyAll();
+        }
+        if (handler != null)
+            handler.onFailure(exception);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        awaitSource();
+        synchronized (this) {
+            while (!done)
+                wait();
+        }
+        return getResult();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long end = System.currentTimeMillis() + unit.toMillis(timeout);
+        synchronized (this) {
+            while (!done) {
+                long remaining = end - System.currentTimeMillis();
+                if (remaining <= 0)
+                    throw new TimeoutException();
+                wait(remaining);
+            }
+        }
+        return getResult();
+    }
+
+    private void awaitSource() {
+        AsyncCallback<?> source = this.source;
+        if (source != null && !source.isDone()) {
+            try {
+                source.get();
+            } catch (DbException e) {
+                // the exception is set by the handler of the source
+            }
+        }
+    }
+
+    private synchronized T getResult() throws ExecutionException {
+        if (exception != null)
+            throw new ExecutionException(exception);
+        return result;
+    }
+}
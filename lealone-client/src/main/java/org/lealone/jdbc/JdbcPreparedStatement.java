@@ -23,16 +23,20 @@ import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashMap;
+import java.util.concurrent.Future;
 
 //## Java 1.6 ##
 import java.sql.RowId;
 import java.sql.NClob;
 import java.sql.SQLXML;
 
+import org.lealone.api.AsyncHandler;
 import org.lealone.api.ErrorCode;
 import org.lealone.api.ParameterInterface;
 import org.lealone.command.CommandInterface;
 import org.lealone.command.FrontendBatchCommand;
+import org.lealone.command.FrontendCommand;
+import org.lealone.engine.AsyncCallback;
 import org.lealone.engine.FrontendSession;
 import org.lealone.message.DbException;
 import org.lealone.message.TraceObject;
@@ -165,6 +169,141 @@ public class JdbcPreparedStatement extends JdbcStatement implements PreparedStat
         return updateCount;
     }
 
+    /**
+     * Executes a query (select statement) without waiting for the result.
+     * The result set of the current query is not closed and the returned
+     * result set is not the current result set of this statement.
+     *
+     * In client/server mode many queries can be in flight on the same
+     * connection, the future is completed by the I/O thread of the
+     * connection. In embedded mode the query is executed immediately.
+     *
+     * @return the future of the result set
+     * @throws SQLException if this object is closed or invalid
+     */
+    public Future<ResultSet> executeQueryAsync() throws SQLException {
+        return executeQueryAsync(null);
+    }
+
+    /**
+     * Executes a query (select statement) without waiting for the result.
+     * The handler is called by the I/O thread of the connection and must not
+     * block or execute other statements synchronously on this connection.
+     *
+     * @param handler the handler that is called when the result arrived, or null
+     * @return the future of the result set
+     * @throws SQLException if this object is closed or invalid
+     */
+    public Future<ResultSet> executeQueryAsync(AsyncHandler<ResultSet> handler) throws SQLException {
+        try {
+            final int id = getNextId(TraceObject.RESULT_SET);
+            if (isDebugEnabled()) {
+                debugCodeAssign("Future", TraceObject.RESULT_SET, id, "executeQueryAsync()");
+            }
+            synchronized (session) {
+                checkClosed();
+                final boolean scrollable = resultSetType != ResultSet.TYPE_FORWARD_ONLY;
+                final boolean updatable = resultSetConcurrency == ResultSet.CONCUR_UPDATABLE;
+                final JdbcFuture<ResultSet> future = new JdbcFuture<>(handler);
+                if (command instanceof FrontendCommand && session instanceof FrontendSession) {
+                    ((FrontendSession) session).startIoThread();
+                    AsyncCallback<ResultInterface> ac = ((FrontendCommand) command).executeQueryAsync(maxRows,
+                            scrollable);
+                    future.setSource(ac);
+                    ac.setHandler(new AsyncHandler<ResultInterface>() {
+                        @Override
+                        public void onSuccess(ResultInterface result) {
+                            future.setResult(new JdbcResultSet(conn, JdbcPreparedStatement.this, result, id,
+                                    closedByResultSet, scrollable, updatable, cachedColumnLabelMap));
+                        }
+
+                        @Override
+                        public void onFailure(Throwable cause) {
+                            future.setException(logAndConvert(DbException.convert(cause)));
+                        }
+                    });
+                } else {
+                    ResultInterface result;
+                    try {
+                        result = command.executeQuery(maxRows, scrollable);
+                    } catch (DbException e) {
+                        future.setException(logAndConvert(e));
+                        return future;
+                    }
+                    future.setResult(new JdbcResultSet(conn, this, result, id, closedByResultSet, scrollable,
+                            updatable, cachedColumnLabelMap));
+                }
+                return future;
+            }
+        } catch (Exception e) {
+            throw logAndConvert(e);
+        }
+    }
+
+    /**
+     * Executes a statement (insert, update, delete, create, drop) without
+     * waiting for the update count. The current result set and update count
+     * of this statement are not changed.
+     *
+     * @return the future of the update count
+     * @throws SQLException if this object is closed or invalid
+     */
+    public Future<Integer> executeUpdateAsync() throws SQLException {
+        return executeUpdateAsync(null);
+    }
+
+    /**
+     * Executes a statement (insert, update, delete, create, drop) without
+     * waiting for the update count. The handler is called by the I/O thread of
+     * the connection and must not block or execute other statements
+     * synchronously on this connection.
+     *
+     * @param handler the handler that is called when the update count arrived, or null
+     * @return the future of the update count
+     * @throws SQLException if this object is closed or invalid
+     */
+    public Future<Integer> executeUpdateAsync(AsyncHandler<Integer> handler) throws SQLException {
+        try {
+            debugCodeCall("executeUpdateAsync");
+            checkClosedForWrite();
+            try {
+                synchronized (session) {
+                    final JdbcFuture<Integer> future = new JdbcFuture<>(handler);
+                    if (command instanceof FrontendCommand && session instanceof FrontendSession) {
+                        ((FrontendSession) session).startIoThread();
+                        AsyncCallback<Integer> ac = ((FrontendCommand) command).executeUpdateAsync();
+                        future.setSource(ac);
+                        ac.setHandler(new AsyncHandler<Integer>() {
+                            @Override
+                            public void onSuccess(Integer updateCount) {
+                                future.setResult(updateCount);
+                            }
+
+                            @Override
+                            public void onFailure(Throwable cause) {
+                                future.setException(logAndConvert(DbException.convert(cause)));
+                            }
+                        });
+                    } else {
+                        int updateCount;
+                        try {
+                            updateCount = command.executeUpdate();
+                        } catch (DbException e) {
+                            future.setException(logAndConvert(e));
+                            return future;
+                        }
+                        future.setResult(updateCount);
+                    }
+                    return future;
+                }
+            } finally {
+                afterWriting();
+            }
+        } catch (Exception e) {
+            throw logAndConvert(e);
+        }
+    }
+
     /**
      * Executes an arbitrary statement. If another result set exists for this
      * statement, this will be closed (even if this statement fails). If auto
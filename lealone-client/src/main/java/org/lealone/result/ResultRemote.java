@@ -9,6 +9,8 @@ package org.lealone.result;
 import java.io.IOException;
 import java.util.ArrayList;
 
+import org.lealone.engine.AsyncCallback;
+import org.lealone.engine.Constants;
 import org.lealone.engine.FrontendSession;
 import org.lealone.engine.SysProperties;
 import org.lealone.message.DbException;
@@ -49,7 +51,77 @@ public abstract class ResultRemote implements ResultInterface {
 
     public abstract boolean next();
 
-    protected abstract void fetchRows(boolean sendFetch);
+    /**
+     * Get the number of rows to fetch next, called after rowOffset was moved.
+     *
+     * @return the number of rows
+     */
+    protected abstract int getFetchCount();
+
+    /**
+     * Read the rows from the transfer object.
+     *
+     * @param fetch the number of rows the server was asked to send
+     */
+    protected abstract void readRows(int fetch) throws IOException;
+
+    protected void fetchRows(boolean sendFetch) {
+        session.checkClosed();
+        rowOffset += result.size();
+        result.clear();
+        final int fetch = getFetchCount();
+        try {
+            if (sendFetch) {
+                AsyncCallback<Void> ac = new AsyncCallback<Void>() {
+                    @Override
+                    protected Void readResponse(Transfer transfer) throws IOException {
+                        readRows(fetch);
+                        return null;
+                    }
+                };
+                synchronized (transfer) {
+                    session.traceOperation("RESULT_FETCH_ROWS", id);
+                    int requestId = session.writeRequestHeader(transfer, FrontendSession.RESULT_FETCH_ROWS);
+                    transfer.writeInt(id).writeInt(fetch);
+                    session.sendRequest(transfer, requestId, ac);
+                }
+                ac.get();
+            } else {
+                readRows(fetch);
+            }
+        } catch (IOException e) {
+            throw DbException.convertIOException(e, null);
+        }
+    }
+
+    /**
+     * Read one row, or the end of the rows.
+     *
+     * @return the row, or null if there are no more rows
+     */
+    protected Value[] readRow() throws IOException {
+        boolean row = transfer.readBoolean();
+        if (!row) {
+            //结果集包的结束标记后面跟着一个boolean，为true时表示后面还有一个异常包，
+            //协议版本1没有这个boolean，因为不使用流水线，还有可读的字节时就是异常包
+            boolean hasError;
+            if (session.getClientVersion() >= Constants.TCP_PROTOCOL_VERSION_2)
+                hasError = transfer.readBoolean();
+            else
+                hasError = transfer.available() > 0;
+            if (hasError) {
+                fetchRowsThrowException();
+            }
+            return null;
+        }
+        int len = columns.length;
+        Value[] values = new Value[len];
+        for (int i = 0; i < len; i++) {
+            Value v = transfer.readValue();
+            values[i] = v;
+        }
+        return values;
+    }
 
     public String getAlias(int i) {
         return columns[i].alias;
@@ -97,11 +169,12 @@ public abstract class ResultRemote implements ResultInterface {
         if (session == null) {
             return;
         }
-        synchronized (session) {
-            session.checkClosed();
+        session.checkClosed();
+        synchronized (transfer) {
             try {
                 session.traceOperation("RESULT_RESET", id);
-                transfer.writeInt(FrontendSession.RESULT_RESET).writeInt(id).flush();
+                session.writeRequestHeader(transfer, FrontendSession.RESULT_RESET);
+                transfer.writeInt(id).flush();
             } catch (IOException e) {
                 throw DbException.convertIOException(e, null);
             }
@@ -130,9 +203,10 @@ public abstract class ResultRemote implements ResultInterface {
         }
         // TODO result sets: no reset possible for larger remote result sets
         try {
-            synchronized (session) {
+            synchronized (transfer) {
                 session.traceOperation("RESULT_CLOSE", id);
-                transfer.writeInt(FrontendSession.RESULT_CLOSE).writeInt(id);
+                session.writeRequestHeader(transfer, FrontendSession.RESULT_CLOSE);
+                transfer.writeInt(id);
             }
         } catch (IOException e) {
             trace.error(e, "close");
@@ -142,12 +216,6 @@ public abstract class ResultRemote implements ResultInterface {
         }
     }
 
-    protected void sendFetch(int fetchSize) throws IOException {
-        session.traceOperation("RESULT_FETCH_ROWS", id);
-        transfer.writeInt(FrontendSession.RESULT_FETCH_ROWS).writeInt(id).writeInt(fetchSize);
-        session.done(transfer);
-    }
-
     public void close() {
         result = null;
         sendClose();
@@ -160,10 +228,13 @@ public abstract class ResultRemote implements ResultInterface {
         try {
             if (id <= session.getCurrentId() - SysProperties.SERVER_CACHED_OBJECTS / 2) {
                 // object is too old - we need to map it to a new id
-                int newId = session.getNextId();
-                session.traceOperation("CHANGE_ID", id);
-                transfer.writeInt(FrontendSession.CHANGE_ID).writeInt(id).writeInt(newId);
-                id = newId;
+                synchronized (transfer) {
+                    int newId = session.getNextId();
+                    session.traceOperation("CHANGE_ID", id);
+                    session.writeRequestHeader(transfer, FrontendSession.CHANGE_ID);
+                    transfer.writeInt(id).writeInt(newId);
+                    id = newId;
+                }
                 // TODO remote result set: very old result sets may be
                 // already removed on the server (theoretically) - how to
                 // solve this?
@@ -190,10 +261,12 @@ public abstract class ResultRemote implements ResultInterface {
     }
 
     protected void fetchRowsThrowException() throws IOException {
-        int available = transfer.available();
+        int requestId = -1;
+        if (session.getClientVersion() >= Constants.TCP_PROTOCOL_VERSION_2)
+            requestId = transfer.readInt();
         if (transfer.readInt() == FrontendSession.STATUS_ERROR)
             session.parseError(transfer);
 
-        throw DbException.throwInternalError("fetchRows: the available bytes was " + available);
+        throw DbException.throwInternalError("fetchRows: no error was sent for request " + requestId);
     }
 }
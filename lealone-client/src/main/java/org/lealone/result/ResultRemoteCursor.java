@@ -7,9 +7,12 @@
 package org.lealone.result;
 
 import java.io.IOException;
+import java.util.ArrayList;
 
+import org.lealone.engine.AsyncCallback;
 import org.lealone.engine.FrontendSession;
 import org.lealone.message.DbException;
+import org.lealone.util.New;
 import org.lealone.value.Transfer;
 import org.lealone.value.Value;
 
@@ -18,6 +21,11 @@ public class ResultRemoteCursor extends ResultRemote {
     //如果初始化为false，相当于在调用完super(...)后再执行isEnd = false，这时前面的值就被覆盖了。
     private boolean isEnd;
 
+    //预取下一批记录，读响应的线程把记录读到一个新的列表中，当前这一批读完后再切换过去
+    private boolean prefetch;
+    private AsyncCallback<ArrayList<Value[]>> prefetchCallback;
+    private boolean prefetchEnd;
+
     public ResultRemoteCursor(FrontendSession session, Transfer transfer, int id, int columnCount, int fetchSize)
             throws IOException {
         super(session, transfer, id, columnCount, -1, fetchSize);
@@ -34,11 +42,16 @@ public class ResultRemoteCursor extends ResultRemote {
         if (!isEnd) {
             remapIfOld();
             if (rowId - rowOffset >= result.size()) {
-                fetchRows(true);
+                if (prefetchCallback != null)
+                    takePrefetchedRows();
+                else
+                    fetchRows(true);
                 if (isEnd && result.size() == 0) {
                     currentRow = null;
                     return false;
                 }
+                if (prefetch)
+                    sendPrefetch();
             }
         }
         currentRow = result.get(rowId - rowOffset);
@@ -46,45 +59,99 @@ public class ResultRemoteCursor extends ResultRemote {
 
     }
 
+    /**
+     * If enabled, the next batch of rows is requested as soon as the current batch is used,
+     * so that the rows are already there when the current batch is consumed.
+     *
+     * @param prefetch whether to prefetch the next batch
+     */
+    public void setPrefetch(boolean prefetch) {
+        this.prefetch = prefetch;
+        if (prefetch)
+            sendPrefetch();
+    }
+
+    private void sendPrefetch() {
+        if (isEnd || prefetchCallback != null || session == null)
+            return;
+        final int fetch = getFetchCount();
+        AsyncCallback<ArrayList<Value[]>> ac = new AsyncCallback<ArrayList<Value[]>>() {
+            @Override
+            protected ArrayList<Value[]> readResponse(Transfer transfer) throws IOException {
+                ArrayList<Value[]> rows = New.arrayList();
+                for (int r = 0; r < fetch; r++) {
+                    Value[] values = readRow();
+                    if (values == null) {
+                        prefetchEnd = true;
+                        break;
+                    }
+                    rows.add(values);
+                }
+                return rows;
+            }
+        };
+        try {
+            synchronized (transfer) {
+                session.traceOperation("RESULT_FETCH_ROWS", id);
+                int requestId = session.writeRequestHeader(transfer, FrontendSession.RESULT_FETCH_ROWS);
+                transfer.writeInt(id).writeInt(fetch);
+                session.sendRequest(transfer, requestId, ac);
+            }
+        } catch (IOException e) {
+            throw DbException.convertIOException(e, null);
+        }
+        prefetchCallback = ac;
+    }
+
+    private void takePrefetchedRows() {
+        AsyncCallback<ArrayList<Value[]>> ac = prefetchCallback;
+        prefetchCallback = null;
+        ArrayList<Value[]> rows = ac.get();
+        rowOffset += result.size();
+        result = rows;
+        if (prefetchEnd) {
+            isEnd = true;
+            sendClose();
+        }
+    }
+
+    @Override
+    public void close() {
+        //预取的响应还没读完时不能关闭，否则读响应的线程会用到已经关闭的transfer
+        if (prefetchCallback != null) {
+            try {
+                prefetchCallback.get();
+            } catch (DbException e) {
+                // ignore
+            }
+            prefetchCallback = null;
+        }
+        super.close();
+    }
+
     @Override
     public int getRowCount() {
         return Integer.MAX_VALUE; //不能返回-1，JdbcResultSet那边会抛异常
     }
 
     @Override
-    protected void fetchRows(boolean sendFetch) {
-        synchronized (session) {
-            session.checkClosed();
-            try {
-                rowOffset += result.size();
-                result.clear();
-                if (sendFetch) {
-                    sendFetch(fetchSize);
-                }
-                for (int r = 0; r < fetchSize; r++) {
-                    boolean row = transfer.readBoolean();
-                    if (!row) {
-                        isEnd = true;
-                        if (transfer.available() > 0) {
-                            fetchRowsThrowException();
-                        }
-                        break;
-                    }
-                    int len = columns.length;
-                    Value[] values = new Value[len];
-                    for (int i = 0; i < len; i++) {
-                        Value v = transfer.readValue();
-                        values[i] = v;
-                    }
-                    result.add(values);
-                }
+    protected int getFetchCount() {
+        return fetchSize;
+    }
 
-                if (isEnd)
-                    sendClose();
-            } catch (IOException e) {
-                throw DbException.convertIOException(e, null);
+    @Override
+    protected void readRows(int fetch) throws IOException {
+        for (int r = 0; r < fetch; r++) {
+            Value[] values = readRow();
+            if (values == null) {
+                isEnd = true;
+                break;
             }
+            result.add(values);
         }
+
+        if (isEnd)
+            sendClose();
     }
 
 }
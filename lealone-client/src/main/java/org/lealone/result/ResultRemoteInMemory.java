@@ -9,7 +9,6 @@ package org.lealone.result;
 import java.io.IOException;
 
 import org.lealone.engine.FrontendSession;
-import org.lealone.message.DbException;
 import org.lealone.value.Transfer;
 import org.lealone.value.Value;
 
@@ -42,38 +41,21 @@ public class ResultRemoteInMemory extends ResultRemote {
     }
 
     @Override
-    protected void fetchRows(boolean sendFetch) {
-        synchronized (session) {
-            session.checkClosed();
-            try {
-                rowOffset += result.size();
-                result.clear();
-                int fetch = Math.min(fetchSize, rowCount - rowOffset);
-                if (sendFetch) {
-                    sendFetch(fetch);
-                }
-                for (int r = 0; r < fetch; r++) {
-                    boolean row = transfer.readBoolean();
-                    if (!row) {
-                        if (transfer.available() > 0) {
-                            fetchRowsThrowException();
-                        }
-                        break;
-                    }
-                    int len = columns.length;
-                    Value[] values = new Value[len];
-                    for (int i = 0; i < len; i++) {
-                        Value v = transfer.readValue();
-                        values[i] = v;
-                    }
-                    result.add(values);
-                }
-                if (rowOffset + result.size() >= rowCount) {
-                    sendClose();
-                }
-            } catch (IOException e) {
-                throw DbException.convertIOException(e, null);
+    protected int getFetchCount() {
+        return Math.min(fetchSize, rowCount - rowOffset);
+    }
+
+    @Override
+    protected void readRows(int fetch) throws IOException {
+        for (int r = 0; r < fetch; r++) {
+            Value[] values = readRow();
+            if (values == null) {
+                break;
             }
+            result.add(values);
+        }
+        if (rowOffset + result.size() >= rowCount) {
+            sendClose();
         }
     }
 }
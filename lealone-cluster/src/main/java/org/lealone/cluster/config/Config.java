@@ -75,6 +75,9 @@ public class Config {
     public Integer tcp_port = 0;
     public boolean tcp_daemon = false;
     public boolean tcp_allow_others = true;
+    public boolean tcp_nio = false; //使用NIO Selector和有界的工作线程池代替每个连接一个线程
+    public Integer tcp_worker_threads = 0; //tcp_nio为true时使用，0表示使用默认值(cpu核数的4倍)
+    public Integer tcp_read_timeout = 0; //tcp_nio为true时使用，读一个请求的剩余部分的超时毫秒数，0表示使用默认值(10秒)
 
     //PG Server
     public boolean pg_server_enabled = false;
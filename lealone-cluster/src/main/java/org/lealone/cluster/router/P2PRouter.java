@@ -19,17 +19,26 @@ package org.lealone.cluster.router;
 
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
+import org.lealone.api.AsyncHandler;
 import org.lealone.cluster.config.DatabaseDescriptor;
+import org.lealone.cluster.dht.Bounds;
+import org.lealone.cluster.dht.IPartitioner;
+import org.lealone.cluster.dht.Range;
 import org.lealone.cluster.dht.Token;
 import org.lealone.cluster.gms.FailureDetector;
 import org.lealone.cluster.gms.Gossiper;
+import org.lealone.cluster.locator.DynamicEndpointSnitch;
+import org.lealone.cluster.locator.IEndpointSnitch;
+import org.lealone.cluster.locator.TokenMetaData;
+import org.lealone.cluster.net.MessagingService;
 import org.lealone.cluster.service.StorageService;
 import org.lealone.cluster.utils.Utils;
 import org.lealone.command.CommandInterface;
@@ -46,22 +55,27 @@ import org.lealone.command.router.CommandParallel;
 import org.lealone.command.router.CommandWrapper;
 import org.lealone.command.router.FrontendSessionPool;
 import org.lealone.command.router.MergedResult;
+import org.lealone.command.router.PartitionFilter;
 import org.lealone.command.router.Router;
 import org.lealone.command.router.SerializedResult;
 import org.lealone.command.router.SortedResult;
+import org.lealone.dbobject.table.Column;
+import org.lealone.dbobject.table.Table;
 import org.lealone.dbobject.table.TableFilter;
+import org.lealone.engine.AsyncCallback;
+import org.lealone.expression.Parameter;
 import org.lealone.message.DbException;
 import org.lealone.result.ResultInterface;
 import org.lealone.result.Row;
 import org.lealone.result.SearchRow;
 import org.lealone.util.New;
 import org.lealone.value.Value;
+import org.lealone.value.ValueNull;
 import org.lealone.value.ValueUuid;
 
 import com.google.common.collect.Iterables;
 
 public class P2PRouter implements Router {
-    private static final Random random = new Random(System.currentTimeMillis());
     private static final P2PRouter INSTANCE = new P2PRouter();
 
     public static P2PRouter getInstance() {
@@ -226,7 +240,7 @@ public class P2PRouter implements Router {
                 throw DbException.convert(e);
             }
         } else {
-            Set<InetAddress> liveMembers = Gossiper.instance.getLiveMembers();
+            Set<InetAddress> liveMembers = getWriteTargets(tableFilter);
             List<Callable<Integer>> commands = New.arrayList(liveMembers.size());
             try {
                 for (InetAddress endpoint : liveMembers) {
@@ -248,58 +262,73 @@ public class P2PRouter implements Router {
         if (select.isLocal())
             return select.queryLocal(maxRows);
 
-        List<InetAddress> targetEndpoints = getTargetEndpointsIfEqual(select.getTopTableFilter());
-        if (targetEndpoints != null) {
-            boolean isLocal = targetEndpoints.contains(Utils.getBroadcastAddress());
-            if (isLocal)
+        Token tk = getPartitionTokenIfEqual(select.getTopTableFilter());
+        if (tk != null) {
+            String keyspaceName = select.getTopTableFilter().getTable().getSchema().getName();
+            List<InetAddress> naturalEndpoints = StorageService.instance.getNaturalEndpoints(keyspaceName, tk);
+            InetAddress endpoint = getReadEndpoint(naturalEndpoints);
+            if (endpoint.equals(Utils.getBroadcastAddress()))
                 return select.call();
 
-            int size = targetEndpoints.size();
-            InetAddress endpoint;
-            if (size == 1)
-                endpoint = targetEndpoints.get(0);
-            else
-                endpoint = targetEndpoints.get(random.nextInt(size));
-
             try {
-                return createFrontendCommand(endpoint, select).executeQuery(maxRows, scrollable);
+                long start = System.nanoTime();
+                ResultInterface result = createFrontendCommand(endpoint, select).executeQuery(maxRows, scrollable);
+                addLatency(endpoint, start);
+                return result;
             } catch (Exception e) {
                 throw DbException.convert(e);
             }
         } else {
-            //TODO 处理有多副本的情况
-            Set<InetAddress> liveMembers = Gossiper.instance.getLiveMembers();
+            //有多个副本时每个token range只由一个副本节点返回
+            Map<InetAddress, String> targets = getScanTargets(select.getTopTableFilter());
+            InetAddress localEndpoint = Utils.getBroadcastAddress();
+            boolean isLocal = targets.containsKey(localEndpoint);
+            String localRanges = targets.remove(localEndpoint);
 
             try {
                 if (!select.isGroupQuery() && select.getSortOrder() == null) {
-                    List<CommandInterface> commands = New.arrayList(liveMembers.size());
+                    List<CommandInterface> commands = New.arrayList(targets.size() + 1);
 
                     //在本地节点执行
-                    liveMembers.remove(Utils.getBroadcastAddress());
                     String sql = getSelectPlanSQL(select);
-                    Prepared p = select.getSession().prepare(sql, true);
-                    p.setLocal(true);
-                    p.setFetchSize(select.getFetchSize());
-                    commands.add(new CommandWrapper(p));
+                    if (isLocal) {
+                        Prepared p = prepareLocal(select, sql, localRanges);
+                        commands.add(new CommandWrapper(p));
+                    }
 
-                    for (InetAddress endpoint : liveMembers) {
-                        commands.add(createFrontendCommand(endpoint, select, sql));
+                    for (Map.Entry<InetAddress, String> e : targets.entrySet()) {
+                        FrontendCommand c = createFrontendCommand(e.getKey(), select, sql);
+                        c.setPartitionRanges(e.getValue());
+                        commands.add(c);
                     }
 
                     return new SerializedResult(commands, maxRows, scrollable, select);
                 } else {
-                    List<Callable<ResultInterface>> commands = New.arrayList(liveMembers.size());
-                    for (InetAddress endpoint : liveMembers) {
-                        if (endpoint.equals(Utils.getBroadcastAddress())) {
-                            commands.add(select);
-                        } else {
-                            commands.add(createSelectCallable(endpoint, select, maxRows, scrollable));
-                        }
+                    //先把所有远程节点的查询发出去，不需要为每个子查询占用一个线程等待结果
+                    String sql = getSelectPlanSQL(select);
+                    boolean isSorted = !select.isGroupQuery();
+                    //排序查询每个节点最多只需要返回limit + offset行，分组查询每个节点返回的是部分分组，不能截断
+                    int subQueryMaxRows = isSorted ? SortedResult.getSubQueryMaxRows(maxRows, select.getSession(),
+                            select) : 0;
+                    List<AsyncCallback<ResultInterface>> remoteResults = New.arrayList(targets.size());
+                    for (Map.Entry<InetAddress, String> e : targets.entrySet()) {
+                        FrontendCommand c = createFrontendCommand(e.getKey(), select, sql);
+                        c.setPartitionRanges(e.getValue());
+                        AsyncCallback<ResultInterface> ac = c.executeQueryAsync(subQueryMaxRows, scrollable);
+                        ac.setHandler(new LatencyHandler(e.getKey()));
+                        remoteResults.add(ac);
                     }
 
-                    List<ResultInterface> results = CommandParallel.executeSelectCallable(commands);
+                    List<ResultInterface> results = New.arrayList(targets.size() + 1);
+                    if (isLocal) {
+                        //本地节点执行与远程节点相同的子查询
+                        Prepared p = prepareLocal(select, sql, localRanges);
+                        results.add(p.query(subQueryMaxRows));
+                    }
+                    for (AsyncCallback<ResultInterface> ac : remoteResults)
+                        results.add(ac.get());
 
-                    if (!select.isGroupQuery() && select.getSortOrder() != null)
+                    if (isSorted)
                         return new SortedResult(maxRows, select.getSession(), select, results);
 
                     String newSQL = select.getPlanSQL(true);
@@ -315,25 +344,297 @@ public class P2PRouter implements Router {
         }
     }
 
-    private static String getSelectPlanSQL(Select select) {
-        if (select.isGroupQuery() || select.getLimit() != null)
-            return select.getPlanSQL(true);
-        else
-            return select.getSQL();
+    @Override
+    public PartitionFilter createPartitionFilter(String partitionRanges) {
+        return TokenRangePartitionFilter.decode(partitionRanges);
+    }
+
+    private static Prepared prepareLocal(Select select, String sql, String partitionRanges) {
+        Prepared p = select.getSession().prepare(sql, true);
+        p.setLocal(true);
+        p.setFetchSize(select.getFetchSize());
+        List<Parameter> params = select.getParameters();
+        List<Parameter> newParams = p.getParameters();
+        for (int i = 0, size = Math.min(params.size(), newParams.size()); i < size; i++)
+            newParams.get(i).setValue(params.get(i).getParamValue(), false);
+        if (partitionRanges != null && p instanceof Select)
+            ((Select) p).setPartitionFilter(TokenRangePartitionFilter.decode(partitionRanges));
+        return p;
     }
 
-    private static Callable<ResultInterface> createSelectCallable(InetAddress endpoint, Select select,
-            final int maxRows, final boolean scrollable) throws Exception {
-        final FrontendCommand c = createFrontendCommand(endpoint, select, getSelectPlanSQL(select));
+    /**
+     * 从多个副本中选一个节点读取一条记录。
+     * 优先在本地节点读，否则按snitch的排序选择最近、延迟最低的存活副本。
+     */
+    private static InetAddress getReadEndpoint(List<InetAddress> naturalEndpoints) {
+        InetAddress localEndpoint = Utils.getBroadcastAddress();
+        if (naturalEndpoints.contains(localEndpoint))
+            return localEndpoint;
+
+        List<InetAddress> liveEndpoints = New.arrayList(naturalEndpoints.size());
+        for (InetAddress endpoint : naturalEndpoints) {
+            if (FailureDetector.instance.isAlive(endpoint))
+                liveEndpoints.add(endpoint);
+        }
+        //所有副本都不可用时还是发给第一个副本，由它报告错误
+        if (liveEndpoints.isEmpty())
+            return naturalEndpoints.get(0);
 
-        Callable<ResultInterface> call = new Callable<ResultInterface>() {
-            @Override
-            public ResultInterface call() throws Exception {
-                return c.executeQuery(maxRows, scrollable);
+        DatabaseDescriptor.getEndpointSnitch().sortByProximity(localEndpoint, liveEndpoints);
+        return liveEndpoints.get(0);
+    }
+
+    /**
+     * 为全表扫描选择要访问的节点。
+     *
+     * 每个token range只分配给它的一个存活副本，选择副本时按snitch排序，
+     * 延迟在dynamic_snitch_badness_threshold以内的副本看成一样好，从中选已经分配的range最少的那个，
+     * 这样既避开了慢节点，又能让多个副本分担扫描的工作。
+     *
+     * @return 每个节点和它需要返回的token range，值为null时表示返回这个节点上的所有记录
+     */
+    private static Map<InetAddress, String> getScanTargets(TableFilter tableFilter) {
+        Map<InetAddress, String> targets = New.hashMap();
+        List<Range<Token>> ranges = getTargetRanges(tableFilter);
+
+        //没有PRIMARY KEY时记录是按随机生成的key分布的，无法按token range过滤
+        if (ranges == null) {
+            for (InetAddress endpoint : Gossiper.instance.getLiveMembers())
+                targets.put(endpoint, null);
+            return targets;
+        }
+
+        String keyspaceName = tableFilter.getTable().getSchema().getName();
+        IEndpointSnitch snitch = DatabaseDescriptor.getEndpointSnitch();
+        Map<InetAddress, List<Range<Token>>> assignedRanges = New.hashMap();
+        Map<InetAddress, Integer> ownedRangeCounts = New.hashMap();
+        for (Range<Token> range : ranges) {
+            List<InetAddress> naturalEndpoints = StorageService.instance.getNaturalEndpoints(keyspaceName, range.right);
+            List<InetAddress> liveEndpoints = New.arrayList(naturalEndpoints.size());
+            for (InetAddress endpoint : naturalEndpoints) {
+                Integer count = ownedRangeCounts.get(endpoint);
+                ownedRangeCounts.put(endpoint, count == null ? 1 : count + 1);
+                if (FailureDetector.instance.isAlive(endpoint))
+                    liveEndpoints.add(endpoint);
             }
-        };
+            if (liveEndpoints.isEmpty())
+                continue;
+
+            InetAddress endpoint = selectReplica(snitch, liveEndpoints, assignedRanges);
+            List<Range<Token>> list = assignedRanges.get(endpoint);
+            if (list == null) {
+                list = New.arrayList();
+                assignedRanges.put(endpoint, list);
+            }
+            list.add(range);
+        }
 
-        return call;
+        for (Map.Entry<InetAddress, List<Range<Token>>> e : assignedRanges.entrySet()) {
+            InetAddress endpoint = e.getKey();
+            List<Range<Token>> list = e.getValue();
+            //分配到了这个节点上的所有range时不需要过滤，比如只有一个副本时
+            if (list.size() == ownedRangeCounts.get(endpoint))
+                targets.put(endpoint, null);
+            else
+                targets.put(endpoint, TokenRangePartitionFilter.encode(list));
+        }
+        //所有相关的副本都不可用时只在本地节点执行，返回一个空结果
+        if (targets.isEmpty())
+            targets.put(Utils.getBroadcastAddress(), TokenRangePartitionFilter.encode(ranges));
+        return targets;
+    }
+
+    /**
+     * 找出update和delete需要访问的节点，也就是可能包含匹配记录的token range的所有副本(包括pending副本)。
+     */
+    private static Set<InetAddress> getWriteTargets(TableFilter tableFilter) {
+        List<Range<Token>> ranges = getTargetRanges(tableFilter);
+        if (ranges == null)
+            return Gossiper.instance.getLiveMembers();
+
+        String keyspaceName = tableFilter.getTable().getSchema().getName();
+        Set<InetAddress> targets = New.hashSet();
+        for (Range<Token> range : ranges) {
+            List<InetAddress> naturalEndpoints = StorageService.instance.getNaturalEndpoints(keyspaceName, range.right);
+            Collection<InetAddress> pendingEndpoints = StorageService.instance.getTokenMetaData().pendingEndpointsFor(
+                    range.right, keyspaceName);
+            for (InetAddress endpoint : Iterables.concat(naturalEndpoints, pendingEndpoints)) {
+                if (FailureDetector.instance.isAlive(endpoint))
+                    targets.add(endpoint);
+            }
+        }
+        return targets;
+    }
+
+    /**
+     * 找出可能包含匹配记录的token range。
+     *
+     * 分区键上有IN(..)条件时只需要访问每个key所在的token range，这对所有的分区器都适用；
+     * 使用保持顺序的分区器(比如ByteOrderedPartitioner)时，分区键上的范围条件(BETWEEN、<、>)也可以转换成token的范围。
+     *
+     * @return 按环上的顺序排列的token range，返回null时表示不能按token range访问，需要访问所有的存活节点
+     */
+    private static List<Range<Token>> getTargetRanges(TableFilter tableFilter) {
+        if (getPartitionKeyColumn(tableFilter.getTable()) == null)
+            return null;
+        ArrayList<Token> sortedTokens = StorageService.instance.getTokenMetaData().sortedTokens();
+        return getTargetRanges(tableFilter, StorageService.getPartitioner(), sortedTokens,
+                StorageService.instance.getAllRanges(sortedTokens));
+    }
+
+    //不依赖StorageService的部分，sortedTokens和ranges是环上的所有token和由它们得到的所有token range
+    static List<Range<Token>> getTargetRanges(TableFilter tableFilter, IPartitioner partitioner,
+            ArrayList<Token> sortedTokens, List<Range<Token>> ranges) {
+        Column partitionKeyColumn = getPartitionKeyColumn(tableFilter.getTable());
+        if (partitionKeyColumn == null || ranges.isEmpty())
+            return null;
+
+        int type = partitionKeyColumn.getType();
+        Set<Range<Token>> targetRanges = null;
+
+        Value[] inList = tableFilter.getInList();
+        if (inList != null && tableFilter.getInColumn() == partitionKeyColumn) {
+            //getAllRanges返回的第i个range的右端点是sortedTokens中的第i + 1个token，最后一个range的右端点是第一个token
+            Map<Token, Range<Token>> rangesByRight = New.hashMap(ranges.size());
+            for (Range<Token> range : ranges)
+                rangesByRight.put(range.right, range);
+            targetRanges = New.hashSet();
+            for (Value v : inList) {
+                if (v == ValueNull.INSTANCE)
+                    continue;
+                Token tk = getToken(partitioner, v.convertTo(type));
+                targetRanges.add(rangesByRight.get(TokenMetaData.firstToken(sortedTokens, tk)));
+            }
+        } else if (partitioner.preservesOrder() && isOrderPreserving(type)) {
+            Value start = getPartitionKey(tableFilter.getStartSearchRow());
+            Value end = getPartitionKey(tableFilter.getEndSearchRow());
+            //负数的字节表示排在正数之后，所以只有下界不是负数时key的顺序才和token的顺序一致
+            if (start != null && start != ValueNull.INSTANCE && end != ValueNull.INSTANCE) {
+                start = start.convertTo(type);
+                if (start.getSignum() >= 0) {
+                    Token left = getToken(partitioner, start);
+                    Token right = end == null ? partitioner.getMinimumToken() //
+                            : getToken(partitioner, end.convertTo(type));
+                    if (right.isMinimum() || left.compareTo(right) <= 0) {
+                        Bounds<Token> bounds = new Bounds<>(left, right);
+                        targetRanges = New.hashSet();
+                        for (Range<Token> range : ranges) {
+                            if (range.intersects(bounds))
+                                targetRanges.add(range);
+                        }
+                    }
+                }
+            }
+        }
+
+        if (targetRanges == null || targetRanges.isEmpty())
+            return ranges;
+
+        List<Range<Token>> list = New.arrayList(targetRanges.size());
+        for (Range<Token> range : ranges) {
+            if (targetRanges.contains(range))
+                list.add(range);
+        }
+        return list;
+    }
+
+    //整数的字节表示按大端排列，非负数的字节顺序和数值顺序一致
+    private static boolean isOrderPreserving(int type) {
+        switch (type) {
+        case Value.BYTE:
+        case Value.SHORT:
+        case Value.INT:
+        case Value.LONG:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    private static Token getToken(IPartitioner partitioner, Value partitionKey) {
+        return partitioner.getToken(ByteBuffer.wrap(partitionKey.getBytesNoCopy()));
+    }
+
+    private static InetAddress selectReplica(IEndpointSnitch snitch, List<InetAddress> liveEndpoints,
+            Map<InetAddress, List<Range<Token>>> assignedRanges) {
+        if (liveEndpoints.size() == 1)
+            return liveEndpoints.get(0);
+
+        InetAddress localEndpoint = Utils.getBroadcastAddress();
+        snitch.sortByProximity(localEndpoint, liveEndpoints);
+        InetAddress best = liveEndpoints.get(0);
+        InetAddress selected = best;
+        int min = getAssignedCount(assignedRanges, best);
+        for (int i = 1, size = liveEndpoints.size(); i < size; i++) {
+            InetAddress endpoint = liveEndpoints.get(i);
+            if (!isAsGoodAs(snitch, localEndpoint, best, endpoint))
+                continue;
+            int count = getAssignedCount(assignedRanges, endpoint);
+            if (count < min) {
+                selected = endpoint;
+                min = count;
+            }
+        }
+        return selected;
+    }
+
+    private static int getAssignedCount(Map<InetAddress, List<Range<Token>>> assignedRanges, InetAddress endpoint) {
+        List<Range<Token>> list = assignedRanges.get(endpoint);
+        return list == null ? 0 : list.size();
+    }
+
+    private static boolean isAsGoodAs(IEndpointSnitch snitch, InetAddress localEndpoint, InetAddress best,
+            InetAddress endpoint) {
+        if (snitch instanceof DynamicEndpointSnitch) {
+            Map<InetAddress, Double> scores = ((DynamicEndpointSnitch) snitch).getScores();
+            Double bestScore = scores.get(best);
+            Double score = scores.get(endpoint);
+            //还没有延迟数据的节点(包括本地节点)不比其他节点差
+            if (bestScore == null || score == null)
+                return true;
+            return score <= bestScore * (1.0 + DatabaseDescriptor.getDynamicBadnessThreshold());
+        }
+        return snitch.compareEndpoints(localEndpoint, best, endpoint) == 0;
+    }
+
+    private static Column getPartitionKeyColumn(Table table) {
+        for (Column c : table.getColumns()) {
+            if (c.isRowKeyColumn())
+                return c;
+        }
+        return null;
+    }
+
+    //把远程子查询的响应时间报告给DynamicEndpointSnitch
+    private static void addLatency(InetAddress endpoint, long startNanos) {
+        MessagingService.instance().addLatency(endpoint,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    }
+
+    private static class LatencyHandler implements AsyncHandler<ResultInterface> {
+        private final InetAddress endpoint;
+        private final long startNanos = System.nanoTime();
+
+        LatencyHandler(InetAddress endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        @Override
+        public void onSuccess(ResultInterface result) {
+            addLatency(endpoint, startNanos);
+        }
+
+        @Override
+        public void onFailure(Throwable cause) {
+        }
+    }
+
+    private static String getSelectPlanSQL(Select select) {
+        //getPlanSQL(true)把limit和offset合并成limit + offset，offset只能在合并结果时处理
+        if (select.isGroupQuery() || select.getLimit() != null || select.getOffset() != null)
+            return select.getPlanSQL(true);
+        else
+            return select.getSQL();
     }
 
     private static Value getPartitionKey(SearchRow row) {
@@ -342,16 +643,23 @@ public class P2PRouter implements Router {
         return row.getRowKey();
     }
 
-    private static List<InetAddress> getTargetEndpointsIfEqual(TableFilter tableFilter) {
+    private static Token getPartitionTokenIfEqual(TableFilter tableFilter) {
         SearchRow startRow = tableFilter.getStartSearchRow();
         SearchRow endRow = tableFilter.getEndSearchRow();
 
         Value startPK = getPartitionKey(startRow);
         Value endPK = getPartitionKey(endRow);
 
-        if (startPK != null && endPK != null && startPK == endPK) {
+        if (startPK != null && endPK != null && startPK == endPK)
+            return StorageService.getPartitioner().getToken(ByteBuffer.wrap(startPK.getBytesNoCopy()));
+
+        return null;
+    }
+
+    private static List<InetAddress> getTargetEndpointsIfEqual(TableFilter tableFilter) {
+        Token tk = getPartitionTokenIfEqual(tableFilter);
+        if (tk != null) {
             String keyspaceName = tableFilter.getTable().getSchema().getName();
-            Token tk = StorageService.getPartitioner().getToken(ByteBuffer.wrap(startPK.getBytesNoCopy()));
             List<InetAddress> naturalEndpoints = StorageService.instance.getNaturalEndpoints(keyspaceName, tk);
             Collection<InetAddress> pendingEndpoints = StorageService.instance.getTokenMetaData().pendingEndpointsFor(
                     tk, keyspaceName);
@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.cluster.router;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.List;
+
+import org.lealone.cluster.dht.IPartitioner;
+import org.lealone.cluster.dht.Range;
+import org.lealone.cluster.dht.Token;
+import org.lealone.cluster.dht.TokenFactory;
+import org.lealone.cluster.service.StorageService;
+import org.lealone.command.router.PartitionFilter;
+import org.lealone.util.New;
+import org.lealone.util.StringUtils;
+import org.lealone.value.Value;
+
+/**
+ * 只接受token落在指定的token range中的记录。
+ *
+ * token range按(left, right]的格式编码成"left,right,left,right,..."，
+ * token用TokenFactory转换成字符串。
+ * 所有的range先展开并合并成按left排序、互不重叠的range，然后用二分查找判断一个token落在哪个range中。
+ */
+class TokenRangePartitionFilter implements PartitionFilter {
+    private final IPartitioner partitioner;
+    private final Token[] lefts;
+    private final Token[] rights;
+
+    TokenRangePartitionFilter(Collection<Range<Token>> ranges) {
+        partitioner = StorageService.getPartitioner();
+        List<Range<Token>> normalized = Range.normalize(ranges);
+        int size = normalized.size();
+        lefts = new Token[size];
+        rights = new Token[size];
+        for (int i = 0; i < size; i++) {
+            lefts[i] = normalized.get(i).left;
+            rights[i] = normalized.get(i).right;
+        }
+    }
+
+    @Override
+    public boolean accept(Value partitionKey) {
+        if (partitionKey == null)
+            return true;
+        Token token = partitioner.getToken(ByteBuffer.wrap(partitionKey.getBytesNoCopy()));
+        // 找到最后一个left < token的range
+        int low = 0, high = lefts.length - 1, index = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (lefts[mid].compareTo(token) < 0) {
+                index = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return index >= 0 && Range.contains(lefts[index], rights[index], token);
+    }
+
+    static String encode(Collection<Range<Token>> ranges) {
+        TokenFactory tf = StorageService.getPartitioner().getTokenFactory();
+        String[] list = new String[ranges.size() * 2];
+        int i = 0;
+        for (Range<Token> r : ranges) {
+            list[i++] = tf.toString(r.left);
+            list[i++] = tf.toString(r.right);
+        }
+        return StringUtils.arrayCombine(list, ',');
+    }
+
+    static TokenRangePartitionFilter decode(String partitionRanges) {
+        TokenFactory tf = StorageService.getPartitioner().getTokenFactory();
+        String[] list = StringUtils.arraySplit(partitionRanges, ',', false);
+        List<Range<Token>> ranges = New.arrayList(list.length / 2);
+        for (int i = 0; i + 1 < list.length; i += 2) {
+            ranges.add(new Range<Token>(tf.fromString(list[i]), tf.fromString(list[i + 1])));
+        }
+        return new TokenRangePartitionFilter(ranges);
+    }
+}
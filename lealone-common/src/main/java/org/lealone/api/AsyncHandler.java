@@ -0,0 +1,43 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.api;
+
+/**
+ * 异步操作完成时的回调。
+ *
+ * 客户端的回调由读取响应的I/O线程调用，所以回调中不能做长时间阻塞的操作，
+ * 也不能在同一个连接上同步等待其他请求的结果。
+ *
+ * @param <T> the result type
+ */
+public interface AsyncHandler<T> {
+
+    /**
+     * Called when the operation completed successfully.
+     *
+     * @param result the result
+     */
+    void onSuccess(T result);
+
+    /**
+     * Called when the operation failed.
+     *
+     * @param cause the exception
+     */
+    void onFailure(Throwable cause);
+}
@@ -60,6 +60,20 @@ public class Constants {
      */
     public static final int TCP_PROTOCOL_VERSION_1 = 1;
 
+    /**
+     * The TCP protocol version number 2.
+     * Each request carries a request id and each response starts with the id of its request,
+     * so a client can have many requests in flight on one connection.
+     * If the server only supports version 1, the client does not pipeline requests.
+     */
+    public static final int TCP_PROTOCOL_VERSION_2 = 2;
+
+    /**
+     * The TCP protocol version number 3.
+     * A query request can carry the partition ranges the node has to return.
+     */
+    public static final int TCP_PROTOCOL_VERSION_3 = 3;
+
     /**
      * The major version of this database.
      */
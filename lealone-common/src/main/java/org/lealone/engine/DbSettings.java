@@ -369,6 +369,99 @@ public class DbSettings extends SettingsBase {
      */
     public final boolean compressData = get("COMPRESS", false);
 
+    /**
+     * Database setting <code>MMAP_READ</code>
+     * (default: false).<br />
+     * Read pages from memory mapped regions of the database file.
+     */
+    public final boolean mmapRead = get("MMAP_READ", false);
+
+    /**
+     * Database setting <code>OFF_HEAP_CACHE_SIZE</code>
+     * (default: 0).<br />
+     * The size of the second level page cache in direct memory, in MB.
+     * 0 disables it.
+     */
+    public final int offHeapCacheSize = get("OFF_HEAP_CACHE_SIZE", 0);
+
+    /**
+     * Database setting <code>SYNC_COMMIT</code>
+     * (default: false).<br />
+     * A commit returns only after the changes are synced to disk. Concurrent
+     * commits share one write and one sync.
+     */
+    public final boolean syncCommit = get("SYNC_COMMIT", false);
+
+    /**
+     * Database setting <code>LONG_KEY_PAGES</code>
+     * (default: false).<br />
+     * The pages of the primary index keep the row keys in a long array and
+     * store them delta encoded. Pages in either layout can be read, but older
+     * versions can not read the files once such pages are written.
+     */
+    public final boolean longKeyPages = get("LONG_KEY_PAGES", false);
+
+    /**
+     * Database setting <code>COLUMNAR_PAGES</code>
+     * (default: false).<br />
+     * The leaf pages of the primary index store the rows column by column,
+     * each column with its own encoding. Pages in either layout can be read.
+     */
+    public final boolean columnarPages = get("COLUMNAR_PAGES", false);
+
+    /**
+     * Database setting <code>HASH_JOIN</code>
+     * (default: true).<br />
+     * Join a table without a usable index on the join columns by building a
+     * hash table of its rows once, instead of scanning it for each outer row.
+     * If the table has more than <code>MAX_MEMORY_ROWS</code> rows with
+     * non-null join values, the query falls back to scanning it for each
+     * outer row.
+     */
+    public final boolean hashJoin = get("HASH_JOIN", true);
+
+    /**
+     * Database setting <code>MERGE_JOIN</code>
+     * (default: true).<br />
+     * If the indexes of two joined tables are both ordered by the join column,
+     * read the index of the inner table forward instead of searching it for
+     * each outer row.
+     */
+    public final boolean mergeJoin = get("MERGE_JOIN", true);
+
+    /**
+     * Database setting <code>VECTOR_EXECUTION</code>
+     * (default: true).<br />
+     * Evaluate the condition and the aggregates of simple single table
+     * queries on batches of rows, using arrays of primitive values.
+     */
+    public final boolean vectorExecution = get("VECTOR_EXECUTION", true);
+
+    /**
+     * Database setting <code>PARALLEL_QUERY_THREADS</code>
+     * (default: 1).<br />
+     * The maximum number of threads used to scan a large table for a grouped
+     * or aggregate query that is evaluated on batches of rows. If set to 1,
+     * queries are not run in parallel. If set to 0, the number of available
+     * processors is used. All parallel queries share one pool with one thread
+     * per available processor. The result of SUM and AVG over DOUBLE values
+     * can differ in the last digits from a serial scan, because the partial
+     * sums of the ranges are added together.
+     */
+    public final int parallelQueryThreads = get("PARALLEL_QUERY_THREADS", 1);
+
+    /**
+     * Database setting <code>COMPILE_EXPRESSIONS</code>
+     * (default: 0).<br />
+     * The number of times a prepared query is run before its condition and
+     * its select list are compiled to a Java class. The source code is
+     * compiled with javac, and if that fails the expressions are interpreted
+     * as before. Compiling is disabled if set to 0. A value of 1000 is
+     * a reasonable start for applications that run the same prepared
+     * queries very often.
+     */
+    public final int compileExpressions = get("COMPILE_EXPRESSIONS", 0);
+
     /**
      * Get the setting for the given key.
      *
@@ -7,9 +7,11 @@
 package org.lealone.server;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
@@ -75,6 +77,10 @@ public class TcpServer implements Server {
     private int nextThreadId;
     private String key;
     private String keyDatabase;
+    private boolean nio;
+    private int workerThreads = Runtime.getRuntime().availableProcessors() * 4;
+    private int readTimeout = 10000;
+    private TcpServerEventLoop eventLoop;
 
     /**
      * Check if the argument matches the option.
@@ -202,6 +208,12 @@ public class TcpServer implements Server {
                 isDaemon = true;
             } else if (isOption(a, "-ifExists")) {
                 ifExists = true;
+            } else if (isOption(a, "-tcpNio")) {
+                nio = true;
+            } else if (isOption(a, "-tcpWorkerThreads")) {
+                workerThreads = Integer.decode(args[++i]);
+            } else if (isOption(a, "-tcpReadTimeout")) {
+                readTimeout = Integer.decode(args[++i]);
             }
         }
         Driver.load();
@@ -247,31 +259,77 @@ public class TcpServer implements Server {
     @Override
     public synchronized void start() throws SQLException {
         stop = false;
-        try {
-            serverSocket = NetUtils.createServerSocket(listenAddress, port, ssl);
-        } catch (DbException e) {
-            if (!portIsSet) {
-                serverSocket = NetUtils.createServerSocket(0, ssl);
-            } else {
-                throw e;
+        // SSL连接仍然使用每个连接一个线程的模式
+        if (nio && !ssl) {
+            bindServerChannel();
+        } else {
+            try {
+                serverSocket = NetUtils.createServerSocket(listenAddress, port, ssl);
+            } catch (DbException e) {
+                if (!portIsSet) {
+                    serverSocket = NetUtils.createServerSocket(0, ssl);
+                } else {
+                    throw e;
+                }
             }
         }
         port = serverSocket.getLocalPort();
         initManagementDb();
 
         String name = getName() + " (" + getURL() + ")";
+        if (serverSocket.getChannel() != null) {
+            try {
+                eventLoop = new TcpServerEventLoop(this, serverSocket.getChannel(), name, workerThreads,
+                        readTimeout);
+            } catch (IOException e) {
+                throw DbException.convertIOException(e, name);
+            }
+        }
         Thread t = new Thread(this, name);
         t.setDaemon(isDaemon());
         t.start();
     }
 
+    private void bindServerChannel() {
+        ServerSocketChannel channel = null;
+        try {
+            channel = ServerSocketChannel.open();
+            channel.socket().setReuseAddress(true);
+            try {
+                channel.socket().bind(new InetSocketAddress(listenAddress, port));
+            } catch (IOException e) {
+                if (!portIsSet) {
+                    channel.socket().bind(new InetSocketAddress(listenAddress, 0));
+                } else {
+                    throw e;
+                }
+            }
+        } catch (IOException e) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e2) {
+                    // ignore
+                }
+            }
+            throw DbException.get(ErrorCode.EXCEPTION_OPENING_PORT_2, e, "" + port, e.toString());
+        }
+        serverSocket = channel.socket();
+    }
+
     private void listen() {
         listenerThread = Thread.currentThread();
+        if (eventLoop != null) {
+            eventLoop.run();
+            serverSocket = null;
+            stopManagementDb();
+            return;
+        }
         String threadName = listenerThread.getName();
         try {
             while (!stop) {
                 Socket s = serverSocket.accept();
-                TcpServerThread c = createTcpServerThread(s, nextThreadId++);
+                TcpServerThread c = createTcpServerThread(s, nextThreadId());
                 running.add(c);
                 Thread thread = new Thread(c, threadName + " thread");
                 thread.setDaemon(isDaemon);
@@ -291,6 +349,19 @@ public class TcpServer implements Server {
         return new TcpServerThread(socket, this, threadId);
     }
 
+    synchronized int nextThreadId() {
+        return nextThreadId++;
+    }
+
+    /**
+     * Add a connection that is served by the event loop.
+     *
+     * @param c the connection
+     */
+    void addRunning(TcpServerThread c) {
+        running.add(c);
+    }
+
     @Override
     public synchronized boolean isRunning(boolean traceError) {
         if (serverSocket == null) {
@@ -317,6 +388,9 @@ public class TcpServer implements Server {
         if (!stop) {
             stopManagementDb();
             stop = true;
+            if (eventLoop != null) {
+                eventLoop.stop();
+            }
             if (serverSocket != null) {
                 try {
                     serverSocket.close();
@@ -339,6 +413,9 @@ public class TcpServer implements Server {
         for (TcpServerThread c : New.arrayList(running)) {
             if (c != null) {
                 c.close();
+                if (c.getThread() == null) {
+                    continue;
+                }
                 try {
                     c.getThread().join(100);
                 } catch (Exception e) {
@@ -375,6 +452,9 @@ public class TcpServer implements Server {
         if (shutdownMode == SHUTDOWN_NORMAL) {
             server.stopManagementDb();
             server.stop = true;
+            if (server.eventLoop != null) {
+                server.eventLoop.stop();
+            }
             try {
                 Socket s = NetUtils.createLoopbackSocket(port, false);
                 s.close();
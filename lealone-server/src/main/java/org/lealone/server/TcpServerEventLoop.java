@@ -0,0 +1,226 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.server;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.lealone.message.TraceSystem;
+
+/**
+ * 基于NIO Selector的TcpServer运行模式。
+ *
+ * 空闲连接只注册在一个Selector上，不占用线程；
+ * 当连接上有数据可读时，把它从Selector上注销并切换成阻塞模式，然后交给一个有界的工作线程池，
+ * 由工作线程用原有的Transfer协议解码并执行请求，处理完已缓冲的所有请求后再切回非阻塞模式重新注册到Selector。
+ *
+ * 因为FrontendSession协议的包没有长度前缀，无法在Selector线程中判断一个请求是否完整，
+ * 所以请求的剩余部分由工作线程按阻塞方式读取，客户端发送一个请求时总是一次性写完整个请求包，通常不会长时间占用工作线程。
+ * 为了不让只发送了部分请求的客户端一直占用工作线程，读请求时有超时(readTimeout毫秒)，
+ * 超时后无法再从请求的中间继续解码，所以关闭这个连接并释放工作线程。
+ */
+class TcpServerEventLoop implements Runnable {
+
+    private final TcpServer server;
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final ExecutorService workers;
+    private final int readTimeout;
+    private final ConcurrentLinkedQueue<Connection> pendingRegistrations = new ConcurrentLinkedQueue<>();
+    private volatile boolean stop;
+
+    TcpServerEventLoop(TcpServer server, ServerSocketChannel serverChannel, String name, int workerThreads,
+            int readTimeout) throws IOException {
+        this.server = server;
+        this.readTimeout = readTimeout;
+        this.serverChannel = serverChannel;
+        this.selector = Selector.open();
+        this.workers = new ThreadPoolExecutor(workerThreads, workerThreads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new WorkerThreadFactory(name + " worker", server.isDaemon()));
+
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    @Override
+    public void run() {
+        ArrayList<Connection> readyConnections = new ArrayList<>();
+        try {
+            while (!stop) {
+                selector.select(1000);
+                registerPendingConnections();
+                dispatch(readyConnections);
+            }
+        } catch (ClosedSelectorException e) {
+            // stopped
+        } catch (Exception e) {
+            if (!stop) {
+                TraceSystem.traceThrowable(e);
+            }
+        } finally {
+            close();
+        }
+    }
+
+    private void dispatch(ArrayList<Connection> readyConnections) throws IOException {
+        while (!selector.selectedKeys().isEmpty()) {
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid())
+                    continue;
+                if (key.isAcceptable()) {
+                    accept();
+                } else if (key.isReadable()) {
+                    // 必须先从Selector上注销才能切换成阻塞模式
+                    key.cancel();
+                    readyConnections.add((Connection) key.attachment());
+                }
+            }
+            if (readyConnections.isEmpty())
+                break;
+            // 让cancel掉的key真正注销，这里可能又会选中其他的key，所以要循环处理
+            selector.selectNow();
+            for (Connection c : readyConnections)
+                workers.execute(c);
+            readyConnections.clear();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null)
+            return;
+        channel.socket().setTcpNoDelay(true);
+        // 只对阻塞模式下通过socket的输入流读取有效
+        channel.socket().setSoTimeout(readTimeout);
+        TcpServerThread c = server.createTcpServerThread(channel.socket(), server.nextThreadId());
+        server.addRunning(c);
+        register(new Connection(channel, c));
+    }
+
+    private void register(Connection c) throws IOException {
+        c.channel.configureBlocking(false);
+        c.channel.register(selector, SelectionKey.OP_READ, c);
+    }
+
+    private void registerPendingConnections() {
+        Connection c;
+        while ((c = pendingRegistrations.poll()) != null) {
+            try {
+                register(c);
+            } catch (Exception e) {
+                server.traceError(e);
+                c.thread.close();
+            }
+        }
+    }
+
+    /**
+     * Stop the event loop, idle connections are closed by the server.
+     */
+    void stop() {
+        stop = true;
+        selector.wakeup();
+    }
+
+    private void close() {
+        workers.shutdown();
+        try {
+            selector.close();
+        } catch (IOException e) {
+            TraceSystem.traceThrowable(e);
+        }
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            TraceSystem.traceThrowable(e);
+        }
+    }
+
+    private class Connection implements Runnable {
+
+        private final SocketChannel channel;
+        private final TcpServerThread thread;
+        private boolean connected;
+
+        Connection(SocketChannel channel, TcpServerThread thread) {
+            this.channel = channel;
+            this.thread = thread;
+        }
+
+        @Override
+        public void run() {
+            try {
+                channel.configureBlocking(true);
+                if (!connected) {
+                    connected = true;
+                    thread.connect();
+                }
+                // 处理完已经缓冲的请求，避免它们在Selector上等不到可读事件
+                while (!thread.isStopped()) {
+                    thread.processRequest();
+                    if (thread.getTransfer().available() <= 0)
+                        break;
+                }
+                if (thread.isStopped() || stop) {
+                    thread.close();
+                } else {
+                    pendingRegistrations.add(this);
+                    selector.wakeup();
+                }
+            } catch (Throwable e) {
+                server.traceError(e);
+                thread.close();
+            }
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+        private final String namePrefix;
+        private final boolean daemon;
+
+        WorkerThreadFactory(String namePrefix, boolean daemon) {
+            this.namePrefix = namePrefix;
+            this.daemon = daemon;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, namePrefix + "-" + threadNumber.getAndIncrement());
+            t.setDaemon(daemon);
+            return t;
+        }
+    }
+}
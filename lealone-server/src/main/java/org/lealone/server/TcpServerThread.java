@@ -13,6 +13,7 @@ import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Properties;
@@ -21,6 +22,9 @@ import org.lealone.api.ErrorCode;
 import org.lealone.api.ParameterInterface;
 import org.lealone.command.BackendBatchCommand;
 import org.lealone.command.Command;
+import org.lealone.command.Prepared;
+import org.lealone.command.dml.Select;
+import org.lealone.command.router.PartitionFilter;
 import org.lealone.engine.ConnectionInfo;
 import org.lealone.engine.Constants;
 import org.lealone.engine.FrontendSession;
@@ -32,6 +36,7 @@ import org.lealone.message.DbException;
 import org.lealone.message.JdbcSQLException;
 import org.lealone.result.ResultColumn;
 import org.lealone.result.ResultInterface;
+import org.lealone.transaction.TimestampServiceTable;
 import org.lealone.transaction.TransactionStatusTable;
 import org.lealone.util.IOUtils;
 import org.lealone.util.New;
@@ -61,6 +66,7 @@ public class TcpServerThread implements Runnable {
     //private Command commit;
     private int clientVersion;
     private String sessionId;
+    private int requestId;
 
     protected TcpServerThread(Socket socket, TcpServer server, int threadId) {
         this.server = server;
@@ -75,73 +81,9 @@ public class TcpServerThread implements Runnable {
     @Override
     public void run() {
         try {
-            transfer.init();
-            if (server.isTraceEnabled())
-                trace("Connect");
-            // TODO server: should support a list of allowed databases
-            // and a list of allowed clients
-            try {
-                if (!server.allow(transfer.getSocket())) {
-                    throw DbException.get(ErrorCode.REMOTE_CONNECTION_NOT_ALLOWED);
-                }
-                int minClientVersion = transfer.readInt();
-                if (minClientVersion < Constants.TCP_PROTOCOL_VERSION_1) {
-                    throw DbException.get(ErrorCode.DRIVER_VERSION_ERROR_2, "" + clientVersion, ""
-                            + Constants.TCP_PROTOCOL_VERSION_1);
-                } else if (minClientVersion > Constants.TCP_PROTOCOL_VERSION_1) {
-                    throw DbException.get(ErrorCode.DRIVER_VERSION_ERROR_2, "" + clientVersion, ""
-                            + Constants.TCP_PROTOCOL_VERSION_1);
-                }
-                int maxClientVersion = transfer.readInt();
-                if (maxClientVersion >= Constants.TCP_PROTOCOL_VERSION_1) {
-                    clientVersion = Constants.TCP_PROTOCOL_VERSION_1;
-                } else {
-                    clientVersion = minClientVersion;
-                }
-                transfer.setVersion(clientVersion);
-                String db = transfer.readString();
-                String originalURL = transfer.readString();
-                if (db == null && originalURL == null) {
-                    String targetSessionId = transfer.readString();
-                    int command = transfer.readInt();
-                    stop = true;
-                    if (command == FrontendSession.SESSION_CANCEL_STATEMENT) {
-                        // cancel a running statement
-                        int statementId = transfer.readInt();
-                        server.cancelStatement(targetSessionId, statementId);
-                    } else if (command == FrontendSession.SESSION_CHECK_KEY) {
-                        // check if this is the correct server
-                        db = server.checkKeyAndGetDatabaseName(targetSessionId);
-                        if (!targetSessionId.equals(db)) {
-                            transfer.writeInt(FrontendSession.STATUS_OK);
-                        } else {
-                            transfer.writeInt(FrontendSession.STATUS_ERROR);
-                        }
-                    }
-                }
-
-                String userName = transfer.readString();
-                userName = StringUtils.toUpperEnglish(userName);
-                session = createSession(db, originalURL, userName, transfer);
-                transfer.setSession(session);
-                transfer.writeInt(FrontendSession.STATUS_OK);
-                transfer.writeInt(clientVersion);
-                transfer.flush();
-                server.addConnection(threadId, originalURL, userName);
-                if (server.isTraceEnabled())
-                    trace("Connected");
-            } catch (Throwable e) {
-                sendError(e);
-                stop = true;
-            }
+            connect();
             while (!stop) {
-                try {
-                    process();
-                } catch (Throwable e) {
-                    if (server.isTraceEnabled())
-                        server.traceError(e);
-                    sendError(e);
-                }
+                processRequest();
             }
             if (server.isTraceEnabled())
                 trace("Disconnect");
@@ -152,6 +94,103 @@ public class TcpServerThread implements Runnable {
         }
     }
 
+    /**
+     * Initialize the transfer object and read the connection handshake.
+     * If the handshake fails, the error is sent to the client and this thread is stopped.
+     */
+    void connect() throws IOException {
+        transfer.init();
+        if (server.isTraceEnabled())
+            trace("Connect");
+        // TODO server: should support a list of allowed databases
+        // and a list of allowed clients
+        try {
+            if (!server.allow(transfer.getSocket())) {
+                throw DbException.get(ErrorCode.REMOTE_CONNECTION_NOT_ALLOWED);
+            }
+            int minClientVersion = transfer.readInt();
+            if (minClientVersion < Constants.TCP_PROTOCOL_VERSION_1) {
+                throw DbException.get(ErrorCode.DRIVER_VERSION_ERROR_2, "" + minClientVersion, ""
+                        + Constants.TCP_PROTOCOL_VERSION_1);
+            } else if (minClientVersion > Constants.TCP_PROTOCOL_VERSION_3) {
+                throw DbException.get(ErrorCode.DRIVER_VERSION_ERROR_2, "" + minClientVersion, ""
+                        + Constants.TCP_PROTOCOL_VERSION_3);
+            }
+            int maxClientVersion = transfer.readInt();
+            int version;
+            if (maxClientVersion >= Constants.TCP_PROTOCOL_VERSION_3) {
+                version = Constants.TCP_PROTOCOL_VERSION_3;
+            } else if (maxClientVersion >= Constants.TCP_PROTOCOL_VERSION_2) {
+                version = Constants.TCP_PROTOCOL_VERSION_2;
+            } else {
+                version = minClientVersion;
+            }
+            transfer.setVersion(version);
+            String db = transfer.readString();
+            String originalURL = transfer.readString();
+            if (db == null && originalURL == null) {
+                String targetSessionId = transfer.readString();
+                int command = transfer.readInt();
+                stop = true;
+                if (command == FrontendSession.SESSION_CANCEL_STATEMENT) {
+                    // cancel a running statement
+                    int statementId = transfer.readInt();
+                    server.cancelStatement(targetSessionId, statementId);
+                } else if (command == FrontendSession.SESSION_CHECK_KEY) {
+                    // check if this is the correct server
+                    db = server.checkKeyAndGetDatabaseName(targetSessionId);
+                    if (!targetSessionId.equals(db)) {
+                        transfer.writeInt(FrontendSession.STATUS_OK);
+                    } else {
+                        transfer.writeInt(FrontendSession.STATUS_ERROR);
+                    }
+                }
+            }
+
+            String userName = transfer.readString();
+            userName = StringUtils.toUpperEnglish(userName);
+            session = createSession(db, originalURL, userName, transfer);
+            transfer.setSession(session);
+            transfer.writeInt(FrontendSession.STATUS_OK);
+            transfer.writeInt(version);
+            transfer.flush();
+            // 握手包的响应不带请求id，握手成功后才切换到协商好的协议版本
+            clientVersion = version;
+            server.addConnection(threadId, originalURL, userName);
+            if (server.isTraceEnabled())
+                trace("Connected");
+        } catch (Throwable e) {
+            sendError(e);
+            stop = true;
+        }
+    }
+
+    /**
+     * Read and process one request, errors are sent back to the client.
+     */
+    void processRequest() {
+        try {
+            process();
+        } catch (SocketTimeoutException e) {
+            // 只有NIO模式读请求时有超时，已读到的部分请求无法再继续解码，只能关闭连接
+            if (server.isTraceEnabled())
+                server.traceError(e);
+            stop = true;
+        } catch (Throwable e) {
+            if (server.isTraceEnabled())
+                server.traceError(e);
+            sendError(e);
+        }
+    }
+
+    boolean isStopped() {
+        return stop;
+    }
+
+    Transfer getTransfer() {
+        return transfer;
+    }
+
     protected ConnectionInfo createConnectionInfo(String originalURL, String dbName) {
         return new ConnectionInfo(originalURL, dbName);
     }
@@ -273,7 +312,7 @@ public class TcpServerThread implements Runnable {
                 message = e.getMessage();
                 sql = null;
             }
-            transfer.writeInt(FrontendSession.STATUS_ERROR).writeString(e.getSQLState()).writeString(message)
+            writeResponseHeader(FrontendSession.STATUS_ERROR).writeString(e.getSQLState()).writeString(message)
                     .writeString(sql).writeInt(e.getErrorCode()).writeString(trace).flush();
         } catch (Exception e2) {
             if (!transfer.isClosed()) {
@@ -284,12 +323,32 @@ public class TcpServerThread implements Runnable {
         }
     }
 
-    private void setParameters(Command command) throws IOException {
+    //先读完整个请求再查找命令，客户端流水线发出的prepare失败时命令不存在，
+    //请求的剩余部分也要读掉，否则后面的请求都读不对了
+    private Value[] readParameters() throws IOException {
         int len = transfer.readInt();
-        ArrayList<? extends ParameterInterface> params = command.getParameters();
+        Value[] values = new Value[len];
         for (int i = 0; i < len; i++) {
+            values[i] = transfer.readValue();
+        }
+        return values;
+    }
+
+    private static void setParameters(Command command, Value[] values) {
+        ArrayList<? extends ParameterInterface> params = command.getParameters();
+        for (int i = 0; i < values.length; i++) {
             Parameter p = (Parameter) params.get(i);
-            p.setValue(transfer.readValue());
+            p.setValue(values[i]);
+        }
+    }
+
+    private static void setPartitionRanges(Command command, String partitionRanges) {
+        Prepared p = command.getPrepared();
+        if (p instanceof Select) {
+            PartitionFilter filter = null;
+            if (partitionRanges != null)
+                filter = Session.getRouter().createPartitionFilter(partitionRanges);
+            ((Select) p).setPartitionFilter(filter);
         }
     }
 
@@ -305,7 +364,7 @@ public class TcpServerThread implements Runnable {
         } else {
             status = getState(old);
         }
-        transfer.writeInt(status);
+        writeResponseHeader(status);
         int[] result = command.getResult();
         command.close();
         for (int i = 0; i < size; i++)
@@ -313,8 +372,22 @@ public class TcpServerThread implements Runnable {
         transfer.flush();
     }
 
+    /**
+     * Write the status of the current request, since protocol version 2 the request id is written first.
+     *
+     * @param status the status
+     * @return the transfer object
+     */
+    private Transfer writeResponseHeader(int status) throws IOException {
+        if (clientVersion >= Constants.TCP_PROTOCOL_VERSION_2)
+            transfer.writeInt(requestId);
+        return transfer.writeInt(status);
+    }
+
     private void process() throws IOException {
         int operation = transfer.readInt();
+        if (clientVersion >= Constants.TCP_PROTOCOL_VERSION_2)
+            requestId = transfer.readInt();
         switch (operation) {
         case FrontendSession.SESSION_PREPARE_READ_PARAMS:
         case FrontendSession.SESSION_PREPARE: {
@@ -326,7 +399,7 @@ public class TcpServerThread implements Runnable {
             cache.addObject(id, command);
             boolean isQuery = command.isQuery();
             ArrayList<? extends ParameterInterface> params = command.getParameters();
-            transfer.writeInt(getState(old)).writeBoolean(isQuery).writeBoolean(readonly).writeInt(params.size());
+            writeResponseHeader(getState(old)).writeBoolean(isQuery).writeBoolean(readonly).writeInt(params.size());
             if (operation == FrontendSession.SESSION_PREPARE_READ_PARAMS) {
                 for (ParameterInterface p : params) {
                     writeMetaData(transfer, p);
@@ -338,7 +411,7 @@ public class TcpServerThread implements Runnable {
         case FrontendSession.SESSION_CLOSE: {
             stop = true;
             closeSession();
-            transfer.writeInt(FrontendSession.STATUS_OK).flush();
+            writeResponseHeader(FrontendSession.STATUS_OK).flush();
             close();
             break;
         }
@@ -358,7 +431,7 @@ public class TcpServerThread implements Runnable {
             ResultInterface result = command.getMetaData();
             cache.addObject(objectId, result);
             int columnCount = result.getVisibleColumnCount();
-            transfer.writeInt(FrontendSession.STATUS_OK).writeInt(columnCount).writeInt(0);
+            writeResponseHeader(FrontendSession.STATUS_OK).writeInt(columnCount).writeInt(0);
             for (int i = 0; i < columnCount; i++) {
                 ResultColumn.writeColumn(transfer, result, i);
             }
@@ -374,9 +447,15 @@ public class TcpServerThread implements Runnable {
             int objectId = transfer.readInt();
             int maxRows = transfer.readInt();
             int fetchSize = transfer.readInt();
+            String partitionRanges = null;
+            if (clientVersion >= Constants.TCP_PROTOCOL_VERSION_3)
+                partitionRanges = transfer.readString();
+            Value[] values = readParameters();
             Command command = (Command) cache.getObject(id, false);
             command.getPrepared().setFetchSize(fetchSize);
-            setParameters(command);
+            if (clientVersion >= Constants.TCP_PROTOCOL_VERSION_3)
+                setPartitionRanges(command, partitionRanges);
+            setParameters(command, values);
             int old = session.getModificationId();
             ResultInterface result;
             synchronized (session) {
@@ -385,7 +464,7 @@ public class TcpServerThread implements Runnable {
             cache.addObject(objectId, result);
             int columnCount = result.getVisibleColumnCount();
             int state = getState(old);
-            transfer.writeInt(state);
+            writeResponseHeader(state);
 
             if (operation == FrontendSession.COMMAND_EXECUTE_DISTRIBUTED_QUERY)
                 transfer.writeString(session.getTransaction().getLocalTransactionNames());
@@ -409,8 +488,9 @@ public class TcpServerThread implements Runnable {
         }
         case FrontendSession.COMMAND_EXECUTE_UPDATE: {
             int id = transfer.readInt();
+            Value[] values = readParameters();
             Command command = (Command) cache.getObject(id, false);
-            setParameters(command);
+            setParameters(command, values);
             int old = session.getModificationId();
             int updateCount;
             synchronized (session) {
@@ -422,7 +502,7 @@ public class TcpServerThread implements Runnable {
             } else {
                 status = getState(old);
             }
-            transfer.writeInt(status);
+            writeResponseHeader(status);
             if (operation == FrontendSession.COMMAND_EXECUTE_DISTRIBUTED_UPDATE)
                 transfer.writeString(session.getTransaction().getLocalTransactionNames());
 
@@ -441,7 +521,7 @@ public class TcpServerThread implements Runnable {
             } else {
                 status = getState(old);
             }
-            transfer.writeInt(status);
+            writeResponseHeader(status);
             transfer.flush();
             break;
         }
@@ -456,7 +536,7 @@ public class TcpServerThread implements Runnable {
             } else {
                 status = getState(old);
             }
-            transfer.writeInt(status);
+            writeResponseHeader(status);
             transfer.flush();
             break;
         }
@@ -476,7 +556,15 @@ public class TcpServerThread implements Runnable {
             } else {
                 status = getState(old);
             }
-            transfer.writeInt(status);
+            writeResponseHeader(status);
+            transfer.flush();
+            break;
+        }
+        case FrontendSession.COMMAND_LEASE_TIMESTAMPS: {
+            int count = transfer.readInt();
+            long first = TimestampServiceTable.allocate(count);
+            writeResponseHeader(FrontendSession.STATUS_OK);
+            transfer.writeLong(first);
             transfer.flush();
             break;
         }
@@ -489,11 +577,23 @@ public class TcpServerThread implements Runnable {
             } else {
                 status = getState(old);
             }
-            transfer.writeInt(status);
+            writeResponseHeader(status);
             transfer.writeBoolean(isValid);
             transfer.flush();
             break;
         }
+        case FrontendSession.COMMAND_EXECUTE_TRANSACTION_VALIDATE_BATCH: {
+            int size = transfer.readInt();
+            boolean[] result = new boolean[size];
+            for (int i = 0; i < size; i++)
+                result[i] = TransactionStatusTable.isValid(transfer.readString());
+            writeResponseHeader(FrontendSession.STATUS_OK);
+            transfer.writeInt(size);
+            for (int i = 0; i < size; i++)
+                transfer.writeBoolean(result[i]);
+            transfer.flush();
+            break;
+        }
         case FrontendSession.COMMAND_EXECUTE_BATCH_UPDATE_STATEMENT: {
             int size = transfer.readInt();
             ArrayList<String> batchCommands = New.arrayList(size);
@@ -535,7 +635,7 @@ public class TcpServerThread implements Runnable {
             int id = transfer.readInt();
             int count = transfer.readInt();
             ResultInterface result = (ResultInterface) cache.getObject(id, false);
-            transfer.writeInt(FrontendSession.STATUS_OK);
+            writeResponseHeader(FrontendSession.STATUS_OK);
             sendRow(result, count);
             transfer.flush();
             break;
@@ -565,17 +665,17 @@ public class TcpServerThread implements Runnable {
         }
         case FrontendSession.SESSION_SET_ID: {
             sessionId = transfer.readString();
-            transfer.writeInt(FrontendSession.STATUS_OK).flush();
+            writeResponseHeader(FrontendSession.STATUS_OK).flush();
             break;
         }
         case FrontendSession.SESSION_SET_AUTOCOMMIT: {
             boolean autoCommit = transfer.readBoolean();
             session.setAutoCommit(autoCommit);
-            transfer.writeInt(FrontendSession.STATUS_OK).flush();
+            writeResponseHeader(FrontendSession.STATUS_OK).flush();
             break;
         }
         case FrontendSession.SESSION_UNDO_LOG_POS: {
-            transfer.writeInt(FrontendSession.STATUS_OK).writeInt(session.getUndoLogPos()).flush();
+            writeResponseHeader(FrontendSession.STATUS_OK).writeInt(session.getUndoLogPos()).flush();
             break;
         }
         case FrontendSession.LOB_READ: {
@@ -602,7 +702,7 @@ public class TcpServerThread implements Runnable {
             length = Math.min(16 * Constants.IO_BUFFER_SIZE, length);
             byte[] buff = new byte[length];
             length = IOUtils.readFully(in, buff, length);
-            transfer.writeInt(FrontendSession.STATUS_OK);
+            writeResponseHeader(FrontendSession.STATUS_OK);
             transfer.writeInt(length);
             transfer.writeBytes(buff, 0, length);
             transfer.flush();
@@ -635,6 +735,8 @@ public class TcpServerThread implements Runnable {
                     }
                 } else {
                     transfer.writeBoolean(false);
+                    if (clientVersion >= Constants.TCP_PROTOCOL_VERSION_2)
+                        transfer.writeBoolean(false);
                     break;
                 }
             }
@@ -642,7 +744,10 @@ public class TcpServerThread implements Runnable {
             //如果取结果集的下一行记录时发生了异常，
             //比如在HBase环境一个结果集可能涉及多个region，当切换到下一个region时此region有可能在进行split，
             //此时就会抛异常，所以结果集包必须加一个结束标记，结果集包后面跟一个异常包。
+            //因为客户端可能有多个请求在传输中，不能通过可读字节数判断后面是否有异常包，所以协议版本2在结束标记后多加一个boolean
             transfer.writeBoolean(false);
+            if (clientVersion >= Constants.TCP_PROTOCOL_VERSION_2)
+                transfer.writeBoolean(true);
             throw DbException.convert(e);
         }
     }
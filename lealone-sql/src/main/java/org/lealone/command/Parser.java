@@ -5367,6 +5367,9 @@ public class Parser {
         } else if (database.getSettings().defaultStorageEngine != null) {
             command.setStorageEngine(database.getSettings().defaultStorageEngine);
         }
+        if (readIf("COMPRESSION")) {
+            command.setCompression(readUniqueIdentifier());
+        }
         if (readIf("CHARSET")) {
             read("=");
             read("UTF8");
@@ -301,6 +301,10 @@ public class CreateTable extends SchemaCommand {
         data.storageEngine = storageEngine;
     }
 
+    public void setCompression(String compression) {
+        data.compression = compression;
+    }
+
     public void setHidden(boolean isHidden) {
         data.isHidden = isHidden;
     }
@@ -73,6 +73,11 @@ public class CreateTableData {
      */
     public String storageEngine;
 
+    /**
+     * The compression algorithm of the table data and indexes (null for the database default).
+     */
+    public String compression;
+
     /**
      * The table is hidden.
      */
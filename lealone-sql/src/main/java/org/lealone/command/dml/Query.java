@@ -243,6 +243,14 @@ public abstract class Query extends Prepared {
         this.noCache = true;
     }
 
+    boolean isCacheDisabled() {
+        return noCache;
+    }
+
+    void setCacheDisabled(boolean noCache) {
+        this.noCache = noCache;
+    }
+
     private boolean sameResultAsLast(Session s, Value[] params, Value[] lastParams, long lastEval) {
         if (!cacheableChecked) {
             long max = getMaxDataModificationId();
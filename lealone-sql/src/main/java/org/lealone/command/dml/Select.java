@@ -10,12 +10,19 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.lealone.api.ErrorCode;
 import org.lealone.api.Trigger;
 import org.lealone.command.CommandInterface;
+import org.lealone.command.router.PartitionFilter;
 import org.lealone.dbobject.index.Cursor;
 import org.lealone.dbobject.index.Index;
 import org.lealone.dbobject.index.IndexType;
@@ -28,13 +35,19 @@ import org.lealone.engine.Constants;
 import org.lealone.engine.Database;
 import org.lealone.engine.Session;
 import org.lealone.engine.SysProperties;
+import org.lealone.expression.Aggregate;
 import org.lealone.expression.Calculator;
 import org.lealone.expression.Comparison;
 import org.lealone.expression.ConditionAndOr;
+import org.lealone.expression.CompiledExpression;
 import org.lealone.expression.Expression;
 import org.lealone.expression.ExpressionColumn;
+import org.lealone.expression.ExpressionCompiler;
 import org.lealone.expression.ExpressionVisitor;
 import org.lealone.expression.Parameter;
+import org.lealone.expression.VectorAggregate;
+import org.lealone.expression.VectorBatch;
+import org.lealone.expression.VectorExpression;
 import org.lealone.expression.Wildcard;
 import org.lealone.message.DbException;
 import org.lealone.result.LocalResult;
@@ -87,6 +100,12 @@ public class Select extends Query implements Callable<ResultInterface> {
     private boolean sortUsingIndex;
     private SortOrder sort;
     private int currentGroupRowId;
+    private int flatQueryCount;
+    private CompiledExpression compiledExpression;
+    private ExpressionCompiler expressionCompiler;
+    private PartitionFilter partitionFilter;
+    //设置分区过滤器前优化器得出的值，清除过滤器时恢复
+    private boolean savedQuickAggregateQuery, savedDistinctQuery, savedNoCache;
 
     private final Map<String, ArrayList<Column>> columnsMap = New.hashMap();
 
@@ -335,85 +354,107 @@ public class Select extends Query implements Callable<ResultInterface> {
         return count;
     }
 
-    public ResultInterface calculate(ResultInterface result, Select select) {
+    /**
+     * 用合并后的值算出当前select的一行，
+     * 例如当前select="select avg"时，在分布式环境要转成mergeSelect="select count, sum"，此时就由count, sum来算出avg。
+     */
+    private Value[] calculate(Value[] row, Select mergeSelect) {
         int columnCount = expressions.size();
-        if (select.expressions.size() == columnCount)
-            return result;
-        LocalResult lr = new LocalResult(session, expressionArray, columnCount);
+        if (mergeSelect.expressions.size() == columnCount)
+            return row;
 
-        Calculator calculator;
+        Calculator calculator = new Calculator(row);
         int index = 0;
-        while (result.next()) {
-            calculator = new Calculator(result.currentRow());
-            for (int i = 0; i < columnCount; i++) {
-                Expression expr = expressions.get(i);
-                index = calculator.getIndex();
-                expr.calculate(calculator);
-                if (calculator.getIndex() == index) {
-                    calculator.addResultValue(calculator.getValue(index));
-                    calculator.addIndex();
-                }
+        for (int i = 0; i < columnCount; i++) {
+            Expression expr = expressions.get(i);
+            index = calculator.getIndex();
+            expr.calculate(calculator);
+            if (calculator.getIndex() == index) {
+                calculator.addResultValue(calculator.getValue(index));
+                calculator.addIndex();
             }
-
-            lr.addRow(calculator.getResult().toArray(new Value[0]));
         }
-
-        return lr;
+        return calculator.getResult().toArray(new Value[0]);
     }
 
-    public ResultInterface queryGroupMerge() {
-        //columnCount = visibleColumnCount;
+    /**
+     * 合并各节点返回的部分聚合结果，当前select是用getPlanSQL(true)在各节点上执行的select。
+     *
+     * 每读到一行就把它合并到对应分组的聚合状态中(count、sum、min、max等)，读完一个结果集就关闭它，
+     * 不需要把结果集串行化，也不会生成中间结果集。
+     * 所有行合并完后，每个分组直接按finalSelect算出最终的行，并按finalSelect的ORDER BY、LIMIT、OFFSET输出，
+     * 没有ORDER BY时得到足够的行就不再计算剩下的分组。
+     *
+     * @param results 各节点返回的结果集
+     * @param finalSelect 原始的select
+     * @return 最终结果集
+     */
+    public ResultInterface queryGroupMerge(List<ResultInterface> results, Select finalSelect) {
         int columnCount = expressions.size();
-        LocalResult result = new LocalResult(session, expressionArray, visibleColumnCount);
         ValueHashMap<HashMap<Expression, Object>> groups = ValueHashMap.newInstance();
         int rowNumber = 0;
         setCurrentRowNumber(0);
         ValueArray defaultGroup = ValueArray.get(new Value[0]);
-        topTableFilter.reset();
-        while (topTableFilter.next()) {
-            setCurrentRowNumber(rowNumber + 1);
-            //if (condition == null || Boolean.TRUE.equals(condition.getBooleanValue(session))) {
-            Value key;
-            rowNumber++;
-            if (groupIndex == null) {
-                key = defaultGroup;
-            } else {
-                Value[] keyValues = new Value[groupIndex.length];
-                // update group
-                for (int i = 0; i < groupIndex.length; i++) {
-                    int idx = groupIndex[i];
-                    //Expression expr = expressions.get(idx);
-                    keyValues[i] = topTableFilter.getValue(idx);//expr.getValue(session);
-                }
-                key = ValueArray.get(keyValues);
-            }
-            HashMap<Expression, Object> values = groups.get(key);
-            if (values == null) {
-                values = new HashMap<Expression, Object>();
-                groups.put(key, values);
-            }
-            currentGroup = values;
-            currentGroupRowId++;
-            int len = columnCount;
-            if (topTableFilter.getCurrentSearchRowLength() < len)
-                len = topTableFilter.getCurrentSearchRowLength();
-            for (int i = 0; i < len; i++) {
-                if (groupByExpression == null || !groupByExpression[i]) {
-                    Expression expr = expressions.get(i);
-                    expr.mergeAggregate(session, topTableFilter.getValue(i));
+        for (ResultInterface r : results) {
+            try {
+                while (r.next()) {
+                    Value[] values = r.currentRow();
+                    //GROUP_CONCAT的ORDER BY这类表达式要从topTableFilter读当前行
+                    topTableFilter.set(new Row(values, -1));
+                    setCurrentRowNumber(++rowNumber);
+                    Value key;
+                    if (groupIndex == null) {
+                        key = defaultGroup;
+                    } else {
+                        Value[] keyValues = new Value[groupIndex.length];
+                        for (int i = 0; i < groupIndex.length; i++) {
+                            keyValues[i] = values[groupIndex[i]];
+                        }
+                        key = ValueArray.get(keyValues);
+                    }
+                    HashMap<Expression, Object> group = groups.get(key);
+                    if (group == null) {
+                        group = new HashMap<Expression, Object>();
+                        groups.put(key, group);
+                    }
+                    currentGroup = group;
+                    currentGroupRowId++;
+                    int len = Math.min(columnCount, values.length);
+                    for (int i = 0; i < len; i++) {
+                        if (groupByExpression == null || !groupByExpression[i]) {
+                            expressions.get(i).mergeAggregate(session, values[i]);
+                        }
+                    }
                 }
-            }
-            if (sampleSize > 0 && rowNumber >= sampleSize) {
-                break;
+            } finally {
+                r.close();
             }
         }
-        //}
         if (groupIndex == null && groups.size() == 0) {
             groups.put(defaultGroup, new HashMap<Expression, Object>());
         }
-        columnCount = expressions.size();
-        ArrayList<Value> keys = groups.keys();
-        for (Value v : keys) {
+
+        LocalResult result = new LocalResult(session, finalSelect.expressionArray, finalSelect.visibleColumnCount);
+        if (finalSelect.sort != null)
+            result.setSortOrder(finalSelect.sort);
+        if (finalSelect.distinct)
+            result.setDistinct();
+        int limitRows = finalSelect.getLimitRows();
+        int offset = 0;
+        if (finalSelect.offsetExpr != null) {
+            offset = finalSelect.offsetExpr.getValue(session).getInt();
+            result.setOffset(offset);
+        }
+        if (limitRows >= 0)
+            result.setLimit(limitRows);
+        //只有不需要排序和去重时才能提前结束
+        long maxRows = Long.MAX_VALUE;
+        if (limitRows >= 0 && finalSelect.sort == null && !finalSelect.distinct)
+            maxRows = (long) limitRows + Math.max(offset, 0);
+
+        for (Value v : groups.keys()) {
+            if (result.getRowCount() >= maxRows)
+                break;
             ValueArray key = (ValueArray) v;
             currentGroup = groups.get(key);
             Value[] keyValues = key.getList();
@@ -428,13 +469,11 @@ public class Select extends Query implements Callable<ResultInterface> {
                 Expression expr = expressions.get(j);
                 row[j] = expr.getMergedValue(session);
             }
-            //if (isHavingNullOrFalse(row)) {
-            //    continue;
-            //}
-            row = keepOnlyDistinct(row, columnCount);
-            result.addRow(row);
+            Value[] finalRow = finalSelect.calculate(row, this);
+            result.addRow(finalSelect.keepOnlyDistinct(finalRow, finalRow.length));
         }
-
+        currentGroup = null;
+        result.done();
         return result;
     }
 
@@ -443,40 +482,20 @@ public class Select extends Query implements Callable<ResultInterface> {
         int rowNumber = 0;
         setCurrentRowNumber(0);
         ValueArray defaultGroup = ValueArray.get(new Value[0]);
-        while (topTableFilter.next()) {
-            setCurrentRowNumber(rowNumber + 1);
-            if (condition == null || Boolean.TRUE.equals(condition.getBooleanValue(session))) {
-                Value key;
-                rowNumber++;
-                if (groupIndex == null) {
-                    key = defaultGroup;
-                } else {
-                    Value[] keyValues = new Value[groupIndex.length];
-                    // update group
-                    for (int i = 0; i < groupIndex.length; i++) {
-                        int idx = groupIndex[i];
-                        Expression expr = expressions.get(idx);
-                        keyValues[i] = expr.getValue(session);
-                    }
-                    key = ValueArray.get(keyValues);
-                }
-                HashMap<Expression, Object> values = groups.get(key);
-                if (values == null) {
-                    values = new HashMap<Expression, Object>();
-                    groups.put(key, values);
-                }
-                currentGroup = values;
-                currentGroupRowId++;
-                int len = columnCount;
-                for (int i = 0; i < len; i++) {
-                    if (groupByExpression == null || !groupByExpression[i]) {
-                        Expression expr = expressions.get(i);
-                        expr.updateAggregate(session);
+        VectorAggregate[] vectorAggregates = getVectorAggregates(columnCount);
+        if (vectorAggregates == null || !queryGroupParallel(columnCount, groups, defaultGroup)) {
+            if (vectorAggregates != null) {
+                rowNumber = queryGroupVector(columnCount, groups, defaultGroup, vectorAggregates);
+            }
+            while (topTableFilter.next()) {
+                setCurrentRowNumber(rowNumber + 1);
+                if (condition == null || Boolean.TRUE.equals(condition.getBooleanValue(session))) {
+                    rowNumber++;
+                    updateGroup(columnCount, groups, defaultGroup);
+                    if (sampleSize > 0 && rowNumber >= sampleSize) {
+                        break;
                     }
                 }
-                if (sampleSize > 0 && rowNumber >= sampleSize) {
-                    break;
-                }
             }
         }
         if (groupIndex == null && groups.size() == 0) {
@@ -506,6 +525,229 @@ public class Select extends Query implements Callable<ResultInterface> {
         }
     }
 
+    private void updateGroup(int columnCount, ValueHashMap<HashMap<Expression, Object>> groups, ValueArray defaultGroup) {
+        Value key;
+        if (groupIndex == null) {
+            key = defaultGroup;
+        } else {
+            Value[] keyValues = new Value[groupIndex.length];
+            // update group
+            for (int i = 0; i < groupIndex.length; i++) {
+                int idx = groupIndex[i];
+                Expression expr = expressions.get(idx);
+                keyValues[i] = expr.getValue(session);
+            }
+            key = ValueArray.get(keyValues);
+        }
+        HashMap<Expression, Object> values = groups.get(key);
+        if (values == null) {
+            values = new HashMap<Expression, Object>();
+            groups.put(key, values);
+        }
+        currentGroup = values;
+        currentGroupRowId++;
+        int len = columnCount;
+        for (int i = 0; i < len; i++) {
+            if (groupByExpression == null || !groupByExpression[i]) {
+                Expression expr = expressions.get(i);
+                expr.updateAggregate(session);
+            }
+        }
+    }
+
+    private boolean isVectorQuery() {
+        return session.getDatabase().getSettings().vectorExecution && topTableFilter.getJoin() == null
+                && topTableFilter.getNestedJoin() == null && sampleSize <= 0;
+    }
+
+    /**
+     * 分组查询的每个非分组表达式都是能在一批行上计算的聚合函数(或常量)，
+     * 并且分组表达式都是topTableFilter的列时，返回这些聚合函数，否则返回null。
+     */
+    VectorAggregate[] getVectorAggregates(int columnCount) {
+        if (!isVectorQuery() || havingIndex >= 0) {
+            return null;
+        }
+        for (int i = 0; groupIndex != null && i < groupIndex.length; i++) {
+            Expression expr = expressions.get(groupIndex[i]).getNonAliasExpression();
+            if (!(expr instanceof ExpressionColumn) || ((ExpressionColumn) expr).getTableFilter() != topTableFilter
+                    || ((ExpressionColumn) expr).getColumn().getColumnId() < 0) {
+                return null;
+            }
+        }
+        ArrayList<VectorAggregate> list = New.arrayList();
+        for (int i = 0; i < columnCount; i++) {
+            if (groupByExpression != null && groupByExpression[i]) {
+                continue;
+            }
+            Expression expr = expressions.get(i).getNonAliasExpression();
+            if (expr instanceof Aggregate) {
+                VectorAggregate a = ((Aggregate) expr).getVectorAggregate(session, topTableFilter);
+                if (a == null) {
+                    return null;
+                }
+                list.add(a);
+            } else if (!expr.isConstant()) {
+                return null;
+            }
+        }
+        return list.toArray(new VectorAggregate[list.size()]);
+    }
+
+    VectorExpression getVectorCondition() {
+        VectorExpression c = condition.getVectorExpression(session, topTableFilter);
+        return c == null || c.getType() != Value.BOOLEAN ? null : c;
+    }
+
+    private int[] getVectorGroupColumns() {
+        if (groupIndex == null) {
+            return null;
+        }
+        int[] columnIds = new int[groupIndex.length];
+        for (int i = 0; i < groupIndex.length; i++) {
+            Expression expr = expressions.get(groupIndex[i]).getNonAliasExpression();
+            columnIds[i] = ((ExpressionColumn) expr).getColumn().getColumnId();
+        }
+        return columnIds;
+    }
+
+    /**
+     * 按批读取行，在long、double数组上计算条件和聚合函数。
+     * 如果某一批行不能这样计算(比如整数溢出)，已经算出的聚合结果转成AggregateData放到groups中，
+     * 这一批行逐行处理，之后的行由queryGroup逐行处理。
+     *
+     * @return the number of rows that were processed
+     */
+    private int queryGroupVector(int columnCount, ValueHashMap<HashMap<Expression, Object>> groups,
+            ValueArray defaultGroup, VectorAggregate[] aggregates) {
+        VectorExpression vectorCondition = null;
+        if (condition != null) {
+            vectorCondition = getVectorCondition();
+            if (vectorCondition == null) {
+                return 0;
+            }
+        }
+        VectorBatch batch = new VectorBatch(topTableFilter);
+        VectorGroups vectorGroups = new VectorGroups(getVectorGroupColumns(), aggregates, defaultGroup);
+        int[] sel = VectorGroups.newSelection();
+        while (batch.next()) {
+            int n = vectorCondition == null ? batch.size() : vectorCondition.select(batch, sel);
+            if (n < 0 || !vectorGroups.evaluate(batch, sel, n)) {
+                vectorGroups.setGroups(groups);
+                int rowNumber = vectorGroups.getRowCount();
+                for (int i = 0, size = batch.size(); i < size; i++) {
+                    topTableFilter.set(batch.getRow(i));
+                    setCurrentRowNumber(rowNumber + 1);
+                    if (condition == null || Boolean.TRUE.equals(condition.getBooleanValue(session))) {
+                        rowNumber++;
+                        updateGroup(columnCount, groups, defaultGroup);
+                    }
+                }
+                return rowNumber;
+            }
+            vectorGroups.update(batch, sel, n);
+        }
+        vectorGroups.setGroups(groups);
+        setCurrentRowNumber(vectorGroups.getRowCount());
+        return vectorGroups.getRowCount();
+    }
+
+    /**
+     * 所有并行查询共用的线程池，线程数是可用处理器的个数，
+     * 同时执行的并行查询再多，用来扫描的线程也不会超过这个数。
+     */
+    private static class ParallelQueryPool {
+        static final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+                new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                    @Override
+                    public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                        ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                        t.setName("ParallelQuery:" + t.getPoolIndex());
+                        return t;
+                    }
+                }, null, false);
+    }
+
+    /**
+     * 把表的主索引分成几个范围，每个范围由一个线程按批计算条件和聚合函数，最后按范围的顺序合并各线程的分组。
+     * 有一个线程不能按批计算时(比如整数溢出)放弃所有线程的结果，返回false，
+     * 这时topTableFilter还没有读过，由queryGroup按单线程的方式重新计算。
+     */
+    private boolean queryGroupParallel(int columnCount, ValueHashMap<HashMap<Expression, Object>> groups,
+            ValueArray defaultGroup) {
+        int threads = session.getDatabase().getSettings().parallelQueryThreads;
+        if (threads == 1) {
+            return false;
+        }
+        // 范围的个数由这个参数决定，实际同时扫描的线程数受共用的线程池限制
+        ForkJoinPool pool = ParallelQueryPool.pool;
+        if (threads <= 0) {
+            threads = pool.getParallelism();
+        }
+        Table table = topTableFilter.getTable();
+        // 每个线程至少读8批行，行数太少时启动线程的开销比省下的时间多
+        int count = (int) Math.min(threads, table.getRowCountApproximation() / (8 * VectorBatch.SIZE));
+        if (count < 2 || topTableFilter.hasIndexConditions() || condition != null && getVectorCondition() == null) {
+            return false;
+        }
+        //各线程直接读游标，不经过TableFilter.next()，所以不能按分区过滤
+        if (topTableFilter.getPartitionFilter() != null) {
+            return false;
+        }
+        Cursor[] cursors = topTableFilter.getIndex().findParallel(session, count);
+        if (cursors == null) {
+            return false;
+        }
+        int[] columnIds = getVectorGroupColumns();
+        final AtomicBoolean stop = new AtomicBoolean();
+        ArrayList<Future<VectorGroups>> futures = New.arrayList(cursors.length);
+        for (Cursor cursor : cursors) {
+            final VectorExpression vectorCondition = condition == null ? null : getVectorCondition();
+            final VectorGroups vectorGroups = new VectorGroups(columnIds, getVectorAggregates(columnCount),
+                    defaultGroup);
+            final VectorBatch batch = new VectorBatch(table, cursor);
+            futures.add(pool.submit(new Callable<VectorGroups>() {
+                @Override
+                public VectorGroups call() {
+                    return vectorGroups.scan(session, batch, vectorCondition, stop) ? vectorGroups : null;
+                }
+            }));
+        }
+        // 出错时也要等所有线程结束，之后不会再有线程读这个事务的数据
+        VectorGroups result = null;
+        boolean failed = false;
+        DbException error = null;
+        for (Future<VectorGroups> f : futures) {
+            VectorGroups g = null;
+            try {
+                g = f.get();
+            } catch (Exception e) {
+                if (error == null) {
+                    error = DbException.convert(e instanceof ExecutionException ? e.getCause() : e);
+                }
+            }
+            if (g == null) {
+                failed = true;
+                stop.set(true);
+            } else if (!failed) {
+                if (result == null) {
+                    result = g;
+                } else {
+                    result.merge(g);
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+        if (failed) {
+            return false;
+        }
+        result.setGroups(groups);
+        setCurrentRowNumber(result.getRowCount());
+        return true;
+    }
+
     /**
      * Get the index that matches the ORDER BY list, if one exists. This is to
      * avoid running a separate ORDER BY if an index can be used. This is
@@ -641,17 +883,27 @@ public class Select extends Query implements Callable<ResultInterface> {
         }
         int rowNumber = 0;
         setCurrentRowNumber(0);
+        if (condition != null && !isForUpdateMvcc && isVectorQuery()
+                && (limitRows <= 0 || limitRows >= VectorBatch.SIZE || sort != null && !sortUsingIndex)) {
+            VectorExpression vectorCondition = getVectorCondition();
+            if (vectorCondition != null) {
+                queryFlatVector(columnCount, result, limitRows, vectorCondition);
+                return;
+            }
+        }
         ArrayList<Row> forUpdateRows = null;
         if (isForUpdateMvcc) {
             forUpdateRows = New.arrayList();
         }
+        CompiledExpression compiled = getCompiledExpression(columnCount);
         while (topTableFilter.next()) {
             setCurrentRowNumber(rowNumber + 1);
-            if (condition == null || Boolean.TRUE.equals(condition.getBooleanValue(session))) {
+            if (condition == null || Boolean.TRUE.equals(compiled == null ? condition.getBooleanValue(session)
+                    : compiled.getValue(session, columnCount).getBoolean())) {
                 Value[] row = new Value[columnCount];
                 for (int i = 0; i < columnCount; i++) {
                     Expression expr = expressions.get(i);
-                    row[i] = expr.getValue(session);
+                    row[i] = compiled == null ? expr.getValue(session) : compiled.getValue(session, i);
                 }
                 if (isForUpdateMvcc) {
                     topTableFilter.lockRowAdd(forUpdateRows);
@@ -671,6 +923,73 @@ public class Select extends Query implements Callable<ResultInterface> {
         }
     }
 
+    /**
+     * 不分组的查询执行的次数达到COMPILE_EXPRESSIONS时，开始把查询的表达式和条件编译成一个类，
+     * 编号0到columnCount-1是查询的表达式，columnCount是条件，不能编译的表达式仍然解释执行。
+     * 在后台编译完成之前和编译失败时(比如没有javac)都解释执行。
+     */
+    private CompiledExpression getCompiledExpression(int columnCount) {
+        int threshold = session.getDatabase().getSettings().compileExpressions;
+        if (threshold > 0 && flatQueryCount < threshold && ++flatQueryCount == threshold) {
+            ExpressionCompiler compiler = new ExpressionCompiler();
+            for (int i = 0; i < columnCount; i++) {
+                compiler.add(expressions.get(i));
+            }
+            if (condition != null) {
+                compiler.add(condition);
+            }
+            if (compiler.compile(session.getDatabase())) {
+                expressionCompiler = compiler;
+            }
+        }
+        if (expressionCompiler != null) {
+            try {
+                compiledExpression = expressionCompiler.getCompiledExpression();
+                if (compiledExpression != null) {
+                    expressionCompiler = null;
+                }
+            } catch (DbException e) {
+                expressionCompiler = null;
+                session.getTrace().debug(e, "compile " + getSQL());
+            }
+        }
+        return compiledExpression;
+    }
+
+    /**
+     * 按批读取行，在long、double数组上计算条件，只对满足条件的行逐行计算查询的表达式。
+     */
+    private void queryFlatVector(int columnCount, ResultTarget result, long limitRows,
+            VectorExpression vectorCondition) {
+        VectorBatch batch = new VectorBatch(topTableFilter);
+        int[] sel = new int[VectorBatch.SIZE];
+        int rowNumber = 0;
+        CompiledExpression compiled = getCompiledExpression(columnCount);
+        while (batch.next()) {
+            int n = vectorCondition.select(batch, sel);
+            // n < 0时这一批行逐行计算条件
+            int size = n < 0 ? batch.size() : n;
+            for (int j = 0; j < size; j++) {
+                topTableFilter.set(batch.getRow(n < 0 ? j : sel[j]));
+                setCurrentRowNumber(rowNumber + 1);
+                if (n < 0 && !Boolean.TRUE.equals(compiled == null ? condition.getBooleanValue(session)
+                        : compiled.getValue(session, columnCount).getBoolean())) {
+                    continue;
+                }
+                Value[] row = new Value[columnCount];
+                for (int i = 0; i < columnCount; i++) {
+                    Expression expr = expressions.get(i);
+                    row[i] = compiled == null ? expr.getValue(session) : compiled.getValue(session, i);
+                }
+                result.addRow(row);
+                rowNumber++;
+                if ((sort == null || sortUsingIndex) && limitRows > 0 && result.getRowCount() >= limitRows) {
+                    return;
+                }
+            }
+        }
+    }
+
     private void queryQuick(int columnCount, ResultTarget result) {
         Value[] row = new Value[columnCount];
         for (int i = 0; i < columnCount; i++) {
@@ -741,18 +1060,22 @@ public class Select extends Query implements Callable<ResultInterface> {
         topTableFilter.lock(session, exclusive, exclusive);
         ResultTarget to = result != null ? result : target;
         if (limitRows != 0) {
-            if (isQuickAggregateQuery) {
-                queryQuick(columnCount, to);
-            } else if (isGroupQuery) {
-                if (isGroupSortedQuery) {
-                    queryGroupSorted(columnCount, to);
+            try {
+                if (isQuickAggregateQuery) {
+                    queryQuick(columnCount, to);
+                } else if (isGroupQuery) {
+                    if (isGroupSortedQuery) {
+                        queryGroupSorted(columnCount, to);
+                    } else {
+                        queryGroup(columnCount, result);
+                    }
+                } else if (isDistinctQuery) {
+                    queryDistinct(to, limitRows);
                 } else {
-                    queryGroup(columnCount, result);
+                    queryFlat(columnCount, to, limitRows);
                 }
-            } else if (isDistinctQuery) {
-                queryDistinct(to, limitRows);
-            } else {
-                queryFlat(columnCount, to, limitRows);
+            } finally {
+                topTableFilter.endQuery();
             }
         }
         if (offsetExpr != null) {
@@ -1213,7 +1536,8 @@ public class Select extends Query implements Callable<ResultInterface> {
                 buff.append(StringUtils.unEnclose(o.getSQL()));
             }
         }
-        if (limitExpr != null) {
+        //分组查询的各节点只返回部分分组，要等所有节点的结果合并完才能知道是哪些分组，所以不能带LIMIT
+        if (limitExpr != null && !(isDistributed && isGroupQuery)) {
             if (isDistributed) {
                 int limit = limitExpr.getValue(session).getInt();
                 if (offsetExpr != null)
@@ -1268,6 +1592,32 @@ public class Select extends Query implements Callable<ResultInterface> {
         return topTableFilter;
     }
 
+    /**
+     * Only return the rows of the partitions accepted by the filter.
+     *
+     * @param partitionFilter the filter, or null to return all rows
+     */
+    public void setPartitionFilter(PartitionFilter partitionFilter) {
+        topTableFilter.setPartitionFilter(partitionFilter);
+        if (partitionFilter != null) {
+            if (this.partitionFilter == null) {
+                savedQuickAggregateQuery = isQuickAggregateQuery;
+                savedDistinctQuery = isDistinctQuery;
+                savedNoCache = isCacheDisabled();
+            }
+            //快速聚合和distinct查询直接读索引，不经过TableFilter.next()，所以不能再使用
+            isQuickAggregateQuery = false;
+            isDistinctQuery = false;
+            //不同的分区范围返回的结果不同，不能重用上一次的结果
+            disableCache();
+        } else if (this.partitionFilter != null) {
+            isQuickAggregateQuery = savedQuickAggregateQuery;
+            isDistinctQuery = savedDistinctQuery;
+            setCacheDisabled(savedNoCache);
+        }
+        this.partitionFilter = partitionFilter;
+    }
+
     @Override
     public ArrayList<Expression> getExpressions() {
         return expressions;
@@ -0,0 +1,203 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.command.dml;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.lealone.engine.Session;
+import org.lealone.expression.Expression;
+import org.lealone.expression.VectorAggregate;
+import org.lealone.expression.VectorBatch;
+import org.lealone.expression.VectorExpression;
+import org.lealone.result.Row;
+import org.lealone.util.New;
+import org.lealone.util.ValueHashMap;
+import org.lealone.value.Value;
+import org.lealone.value.ValueArray;
+
+/**
+ * 按批计算的分组查询的中间结果。
+ *
+ * 每个分组有一个从0开始的编号，聚合函数的中间结果按这个编号保存在VectorAggregate中。
+ * 并行查询时每个线程有一个VectorGroups，最后按扫描的顺序合并。
+ */
+class VectorGroups {
+
+    private final int[] columnIds;
+    private final VectorAggregate[] aggregates;
+    private final ValueArray defaultGroup;
+    private final ValueHashMap<Integer> ids = ValueHashMap.newInstance();
+    private final ArrayList<Value> keys = New.arrayList();
+    private final int[] groupIds;
+    private int rowCount;
+
+    /**
+     * Create the groups.
+     *
+     * @param columnIds the ids of the group by columns, or null if there is
+     *            only one group
+     * @param aggregates the aggregates
+     * @param defaultGroup the key of the group if there are no group by
+     *            columns
+     */
+    VectorGroups(int[] columnIds, VectorAggregate[] aggregates, ValueArray defaultGroup) {
+        this.columnIds = columnIds;
+        this.aggregates = aggregates;
+        this.defaultGroup = defaultGroup;
+        groupIds = columnIds == null ? null : new int[VectorBatch.SIZE];
+    }
+
+    /**
+     * Calculate the arguments of the aggregates for the selected rows.
+     *
+     * @param batch the batch
+     * @param sel the positions of the rows
+     * @param n the number of rows
+     * @return false if the batch must be evaluated row by row
+     */
+    boolean evaluate(VectorBatch batch, int[] sel, int n) {
+        for (VectorAggregate a : aggregates) {
+            if (!a.evaluate(batch, sel, n)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Add the evaluated rows to their groups.
+     *
+     * @param batch the batch
+     * @param sel the positions of the rows
+     * @param n the number of rows
+     */
+    void update(VectorBatch batch, int[] sel, int n) {
+        if (n == 0) {
+            return;
+        }
+        if (columnIds != null) {
+            for (int j = 0; j < n; j++) {
+                int i = sel[j];
+                Row row = batch.getRow(i);
+                Value[] keyValues = new Value[columnIds.length];
+                for (int k = 0; k < columnIds.length; k++) {
+                    keyValues[k] = row.getValue(columnIds[k]);
+                }
+                groupIds[i] = getId(ValueArray.get(keyValues));
+            }
+        } else if (keys.isEmpty()) {
+            getId(defaultGroup);
+        }
+        for (VectorAggregate a : aggregates) {
+            a.update(sel, n, groupIds, keys.size());
+        }
+        rowCount += n;
+    }
+
+    /**
+     * Create an array with the positions of all rows of a batch.
+     *
+     * @return the positions
+     */
+    static int[] newSelection() {
+        int[] sel = new int[VectorBatch.SIZE];
+        for (int i = 0; i < sel.length; i++) {
+            sel[i] = i;
+        }
+        return sel;
+    }
+
+    /**
+     * Read all rows of the batch and add the rows that match the condition to
+     * their groups. This method is called by the threads of a parallel query.
+     *
+     * @param session the session
+     * @param batch the batch
+     * @param condition the condition, or null
+     * @param stop set by another thread if the query can not be completed
+     * @return false if some rows must be evaluated row by row, or if the scan
+     *         was stopped
+     */
+    boolean scan(Session session, VectorBatch batch, VectorExpression condition, AtomicBoolean stop) {
+        int[] sel = newSelection();
+        while (batch.next()) {
+            if (stop.get()) {
+                return false;
+            }
+            session.checkCanceled();
+            int n = condition == null ? batch.size() : condition.select(batch, sel);
+            if (n < 0 || !evaluate(batch, sel, n)) {
+                return false;
+            }
+            update(batch, sel, n);
+        }
+        return true;
+    }
+
+    private int getId(Value key) {
+        Integer id = ids.get(key);
+        if (id == null) {
+            id = keys.size();
+            ids.put(key, id);
+            keys.add(key);
+        }
+        return id;
+    }
+
+    /**
+     * Add the groups of the rows that were scanned after the rows of these
+     * groups.
+     *
+     * @param other the other groups
+     */
+    void merge(VectorGroups other) {
+        for (int i = 0, size = other.keys.size(); i < size; i++) {
+            int id = getId(other.keys.get(i));
+            for (int k = 0; k < aggregates.length; k++) {
+                aggregates[k].merge(other.aggregates[k], i, id);
+            }
+        }
+        rowCount += other.rowCount;
+    }
+
+    /**
+     * Get the number of rows that were added.
+     *
+     * @return the row count
+     */
+    int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Store the groups in the same form as the row by row calculation.
+     *
+     * @param groups the map of groups
+     */
+    void setGroups(ValueHashMap<HashMap<Expression, Object>> groups) {
+        for (int i = 0, size = keys.size(); i < size; i++) {
+            HashMap<Expression, Object> values = new HashMap<Expression, Object>();
+            for (VectorAggregate a : aggregates) {
+                a.setResult(values, i);
+            }
+            groups.put(keys.get(i), values);
+        }
+    }
+}
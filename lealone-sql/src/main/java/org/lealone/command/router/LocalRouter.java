@@ -65,4 +65,9 @@ public class LocalRouter implements Router {
         return select.queryLocal(maxRows);
     }
 
+    @Override
+    public PartitionFilter createPartitionFilter(String partitionRanges) {
+        return null;
+    }
+
 }
@@ -0,0 +1,35 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.command.router;
+
+import org.lealone.value.Value;
+
+/**
+ * 在多副本的情况下，全表扫描的子查询只需要返回当前节点负责的那部分分区的记录，
+ * 其他分区的记录由另一个副本节点返回，这样每条记录只被读取一次。
+ */
+public interface PartitionFilter {
+
+    /**
+     * Check if the row with the given partition key should be returned by this node.
+     *
+     * @param partitionKey the partition key (the row key) of the row
+     * @return true if the row belongs to one of the assigned partitions
+     */
+    boolean accept(Value partitionKey);
+}
@@ -38,4 +38,12 @@ public interface Router {
     int executeUpdate(Update update);
 
     ResultInterface executeSelect(Select select, int maxRows, boolean scrollable);
+
+    /**
+     * Create the filter for the partition ranges that a sub query received from the coordinator.
+     *
+     * @param partitionRanges the encoded partition ranges
+     * @return the filter, or null if all rows should be returned
+     */
+    PartitionFilter createPartitionFilter(String partitionRanges);
 }
@@ -22,11 +22,9 @@ import java.util.List;
 import org.lealone.command.CommandInterface;
 import org.lealone.command.dml.Select;
 import org.lealone.result.DelegatedResult;
-import org.lealone.result.ResultInterface;
 
 public class SerializedResult extends DelegatedResult {
     private final static int UNKNOW_ROW_COUNT = -1;
-    private final List<ResultInterface> results;
     private final List<? extends CommandInterface> commands;
     private final int maxRows;
     private final int limitRows;
@@ -37,7 +35,6 @@ public class SerializedResult extends DelegatedResult {
     private int count = 0;
 
     public SerializedResult(List<? extends CommandInterface> commands, int maxRows, boolean scrollable, Select select) {
-        this.results = null;
         this.commands = commands;
         this.maxRows = maxRows;
         this.limitRows = select.getLimitRows();
@@ -46,16 +43,6 @@ public class SerializedResult extends DelegatedResult {
         nextResult();
     }
 
-    public SerializedResult(List<ResultInterface> results, Select select) {
-        this.results = results;
-        this.commands = null;
-        this.maxRows = -1;
-        this.limitRows = select.getLimitRows();
-        this.scrollable = false;
-        this.size = results.size();
-        nextResult();
-    }
-
     private boolean nextResult() {
         if (index >= size)
             return false;
@@ -63,10 +50,7 @@ public class SerializedResult extends DelegatedResult {
         if (result != null)
             result.close();
 
-        if (results != null)
-            result = results.get(index++);
-        else
-            result = commands.get(index++).executeQuery(maxRows, scrollable);
+        result = commands.get(index++).executeQuery(maxRows, scrollable);
         return true;
     }
 
@@ -17,24 +17,33 @@
  */
 package org.lealone.command.router;
 
+import java.util.Comparator;
 import java.util.List;
+import java.util.PriorityQueue;
 
 import org.lealone.command.dml.Select;
 import org.lealone.engine.Session;
 import org.lealone.result.DelegatedResult;
 import org.lealone.result.ResultInterface;
+import org.lealone.result.ResultRemoteCursor;
 import org.lealone.result.SortOrder;
 import org.lealone.value.Value;
 import org.lealone.value.ValueNull;
 
+/**
+ * 对各节点返回的已排好序的结果集做k路归并。
+ *
+ * 每个结果集的当前行放在一个按排序规则组织的堆中，每取一行只需O(log k)次比较(k是结果集个数)。
+ * 各节点的子查询已经带上了limit + offset，远程结果集会提前预取下一批记录。
+ */
 public class SortedResult extends DelegatedResult {
-    private static final Value[] END = new Value[0];
     private final SortOrder sort;
     private final ResultInterface[] results;
     private final int limit;
     private final int size;
     private int rowCount = -1;
     private Value[] currentRow;
+    private PriorityQueue<Integer> queue;
     private final Value[][] currentRows;
 
     private int rowNumber;
@@ -46,6 +55,24 @@ public class SortedResult extends DelegatedResult {
         this.size = this.results.length;
         currentRows = new Value[size][];
 
+        int limitRows = getLimitRows(maxRows, session, select);
+        int offset = getOffset(session, select);
+
+        if (limitRows >= 0)
+            rowCount = limitRows;
+
+        limit = limitRows < 0 ? -1 : limitRows + offset;
+
+        for (ResultInterface r : this.results) {
+            if (r instanceof ResultRemoteCursor)
+                ((ResultRemoteCursor) r).setPrefetch(true);
+        }
+
+        for (int i = 0; i < offset; i++)
+            next();
+    }
+
+    private static int getLimitRows(int maxRows, Session session, Select select) {
         int limitRows = maxRows == 0 ? -1 : maxRows;
         if (select.getLimit() != null) {
             Value v = select.getLimit().getValue(session);
@@ -56,27 +83,38 @@ public class SortedResult extends DelegatedResult {
                 limitRows = Math.min(l, limitRows);
             }
         }
+        return limitRows;
+    }
 
-        int offset;
-        if (select.getOffset() != null) {
-            offset = select.getOffset().getValue(session).getInt();
-        } else {
-            offset = 0;
-        }
-
-        if (limitRows >= 0)
-            rowCount = limitRows;
-
-        limit = limitRows + offset;
+    private static int getOffset(Session session, Select select) {
+        if (select.getOffset() != null)
+            return select.getOffset().getValue(session).getInt();
+        else
+            return 0;
+    }
 
-        for (int i = 0; i < offset; i++)
-            next();
+    /**
+     * 每个节点最多只需要返回limit + offset行
+     *
+     * @return the maximum number of rows each node has to return, 0 means no limit
+     */
+    public static int getSubQueryMaxRows(int maxRows, Session session, Select select) {
+        int limitRows = getLimitRows(maxRows, session, select);
+        if (limitRows < 0)
+            return 0;
+        long rows = (long) limitRows + getOffset(session, select);
+        //maxRows为0时表示不限制，所以limit为0时至少要取1行
+        return (int) Math.max(1, Math.min(rows, Integer.MAX_VALUE));
     }
 
     @Override
     public void reset() {
-        for (int i = 0; i < size; i++)
+        for (int i = 0; i < size; i++) {
             results[i].reset();
+            currentRows[i] = null;
+        }
+        queue = null;
+        rowNumber = 0;
     }
 
     @Override
@@ -84,6 +122,26 @@ public class SortedResult extends DelegatedResult {
         return currentRow;
     }
 
+    private void initQueue() {
+        queue = new PriorityQueue<Integer>(Math.max(1, size), new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                return sort.compare(currentRows[i1], currentRows[i2]);
+            }
+        });
+        for (int i = 0; i < size; i++)
+            advance(i);
+    }
+
+    private void advance(int i) {
+        if (results[i].next()) {
+            currentRows[i] = results[i].currentRow();
+            queue.add(i);
+        } else {
+            currentRows[i] = null;
+        }
+    }
+
     @Override
     public boolean next() {
         if (limit == 0 || (limit > 0 && rowNumber >= limit)) {
@@ -92,32 +150,17 @@ public class SortedResult extends DelegatedResult {
         }
         rowNumber++;
 
-        int next = -1;
-        Value[] row = null;
-        for (int i = 0; i < size; i++) {
-            if (currentRows[i] == END)
-                continue;
-            if (currentRows[i] == null) {
-                if (results[i].next())
-                    currentRows[i] = results[i].currentRow();
-                else
-                    currentRows[i] = END;
-            }
-            if (currentRows[i] != END) {
-                if (next == -1) {
-                    next = i;
-                    row = currentRows[i];
-                } else {
-                    if (sort.compare(row, currentRows[i]) > 0) {
-                        next = i;
-                        row = currentRows[i];
-                    }
-                }
-            }
+        if (queue == null)
+            initQueue();
+
+        Integer next = queue.poll();
+        if (next == null) {
+            currentRow = null;
+            return false;
         }
-        currentRow = row;
-        currentRows[next] = null;
-        return currentRow != null;
+        currentRow = currentRows[next];
+        advance(next);
+        return true;
     }
 
     @Override
@@ -125,6 +125,17 @@ public interface Index extends SchemaObject {
      */
     Cursor findNext(Session session, SearchRow higherThan, SearchRow last);
 
+    /**
+     * Split this index into ranges of about the same size that can be read by
+     * different threads at the same time.
+     *
+     * @param session the session
+     * @param count the number of ranges
+     * @return one cursor for each range, or null if this index can not be
+     *         split
+     */
+    Cursor[] findParallel(Session session, int count);
+
     /**
      * Find the first (or last) value of this index. The cursor returned is
      * positioned on the correct row, or on null if no row has been found.
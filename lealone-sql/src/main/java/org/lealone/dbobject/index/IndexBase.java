@@ -139,6 +139,11 @@ public abstract class IndexBase extends SchemaObjectBase implements Index {
         throw DbException.throwInternalError();
     }
 
+    @Override
+    public Cursor[] findParallel(Session session, int count) {
+        return null;
+    }
+
     /**
      * Calculate the cost for the given mask as if this index was a typical
      * b-tree range index. This is the estimated cost required to search one
@@ -304,6 +304,15 @@ public class IndexCondition {
         return compareType;
     }
 
+    /**
+     * Get the expression the column is compared with.
+     *
+     * @return the expression, or null for IN(..) conditions
+     */
+    public Expression getExpression() {
+        return expression;
+    }
+
     /**
      * Get the referenced column.
      *
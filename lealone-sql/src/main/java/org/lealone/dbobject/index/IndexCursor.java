@@ -20,6 +20,7 @@ import org.lealone.result.ResultInterface;
 import org.lealone.result.Row;
 import org.lealone.result.SearchRow;
 import org.lealone.result.SortOrder;
+import org.lealone.value.CompareMode;
 import org.lealone.value.Value;
 import org.lealone.value.ValueNull;
 
@@ -29,6 +30,11 @@ import org.lealone.value.ValueNull;
  */
 public class IndexCursor implements Cursor {
 
+    /**
+     * 合并连接时，如果要跳过的行超过这个数就重新查找索引。
+     */
+    private static final int MAX_MERGE_SKIP = 16;
+
     private Session session;
     private final TableFilter tableFilter;
     private Index index;
@@ -44,12 +50,20 @@ public class IndexCursor implements Cursor {
     private ResultInterface inResult;
     private HashSet<Value> inResultTested;
 
+    private Column mergeColumn;
+    private Cursor mergeCursor;
+    private Value mergeKey;
+    private boolean merging;
+    private boolean mergePending;
+    private boolean mergeEnd;
+
     public IndexCursor(TableFilter filter) {
         this.tableFilter = filter;
     }
 
     public void setIndex(Index index) {
         this.index = index;
+        this.mergeCursor = null;
         this.table = index.getTable();
         Column[] columns = table.getColumns();
         indexColumns = new IndexColumn[columns.length];
@@ -76,10 +90,106 @@ public class IndexCursor implements Cursor {
             return;
         }
         if (!alwaysFalse) {
+            if (mergeColumn != null && findMerge()) {
+                return;
+            }
             cursor = index.find(tableFilter, start, end);
         }
     }
 
+    /**
+     * Use a merge join on the given column. The index is ordered by this column,
+     * and the outer table usually returns its rows in the same order. If the
+     * value of the equality condition on this column is larger than the last
+     * one, the cursor continues to read from the current position instead of
+     * searching the index again. This also resets the current position.
+     *
+     * @param column the first column of the index, or null to search the index
+     *            for each value
+     */
+    public void setMergeColumn(Column column) {
+        mergeColumn = column;
+        mergeCursor = null;
+        mergeKey = null;
+        merging = false;
+    }
+
+    private boolean findMerge() {
+        if (start == null || end == null) {
+            return false;
+        }
+        int id = mergeColumn.getColumnId();
+        Value v = start.getValue(id);
+        Value e = end.getValue(id);
+        CompareMode mode = table.getDatabase().getCompareMode();
+        if (v == null || v == ValueNull.INSTANCE || e == null || v.compareTo(e, mode) != 0) {
+            return false;
+        }
+        if (mergeCursor != null && mergeKey.compareTo(v, mode) < 0) {
+            // 外层的值变大了，从当前位置往后读
+            int skipped = 0;
+            while (!mergeEnd) {
+                if (!mergePending) {
+                    if (!mergeCursor.next()) {
+                        mergeEnd = true;
+                        break;
+                    }
+                    mergePending = true;
+                }
+                if (getMergeValue().compareTo(v, mode) >= 0) {
+                    break;
+                }
+                mergePending = false;
+                if (++skipped > MAX_MERGE_SKIP) {
+                    seekMerge(v);
+                    break;
+                }
+            }
+        } else {
+            seekMerge(v);
+        }
+        mergeKey = v;
+        merging = true;
+        cursor = mergeCursor;
+        return true;
+    }
+
+    private void seekMerge(Value v) {
+        SearchRow first = table.getTemplateRow();
+        first.setValue(mergeColumn.getColumnId(), v);
+        mergeCursor = index.find(tableFilter, first, null);
+        mergePending = false;
+        mergeEnd = false;
+    }
+
+    private Value getMergeValue() {
+        int id = mergeColumn.getColumnId();
+        Value v = mergeCursor.getSearchRow().getValue(id);
+        if (v == null) {
+            v = mergeCursor.get().getValue(id);
+        }
+        return v;
+    }
+
+    private boolean nextMerge() {
+        if (mergeEnd) {
+            return false;
+        }
+        if (!mergePending) {
+            if (!mergeCursor.next()) {
+                mergeEnd = true;
+                return false;
+            }
+        }
+        mergePending = false;
+        if (getMergeValue().compareTo(mergeKey, table.getDatabase().getCompareMode()) == 0) {
+            return true;
+        }
+        // the row belongs to a larger value
+        mergePending = true;
+        return false;
+    }
+
     public void parseIndexConditions(Session s, ArrayList<IndexCondition> indexConditions) {
         this.session = s;
         alwaysFalse = false;
@@ -88,6 +198,7 @@ public class IndexCursor implements Cursor {
         inColumn = null;
         inResult = null;
         inResultTested = null;
+        merging = false;
         // don't use enhanced for loop to avoid creating objects
         for (int i = 0, size = indexConditions.size(); i < size; i++) {
             IndexCondition condition = indexConditions.get(i);
@@ -238,6 +349,9 @@ public class IndexCursor implements Cursor {
 
     @Override
     public boolean next() {
+        if (merging) {
+            return nextMerge();
+        }
         while (true) {
             if (cursor == null) {
                 nextCursor();
@@ -300,4 +414,17 @@ public class IndexCursor implements Cursor {
     public SearchRow getEndSearchRow() {
         return end;
     }
+
+    public Column getInColumn() {
+        return inColumn;
+    }
+
+    /**
+     * Get the values of the IN(..) condition used by the cursor.
+     *
+     * @return the values, or null if there is no IN(..) condition or it is an IN(SELECT ..)
+     */
+    public Value[] getInList() {
+        return inList;
+    }
 }
@@ -0,0 +1,170 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.dbobject.table;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.lealone.engine.Session;
+import org.lealone.result.Row;
+import org.lealone.util.New;
+import org.lealone.value.Value;
+import org.lealone.value.ValueArray;
+import org.lealone.value.ValueLong;
+import org.lealone.value.ValueNull;
+
+/**
+ * hash join的build端，保存被连接表的行，按连接列的值分组。
+ *
+ * 所有行都在内存中，行数最多是maxMemoryRows，超过后add返回false，
+ * 调用者要放弃hash join，改回对外层的每一行扫描被连接的表(nested loops)。
+ * 不把行写到临时文件，因为外层的行不是按分区顺序来的，每换一个分区都要重新装入，
+ * 而且内存数据库也没有地方可写。
+ *
+ * 连接列的值是NULL的行永远不会匹配，所以不保存。
+ */
+class JoinHashTable {
+
+    private final int[] columnIds;
+    private final int maxMemoryRows;
+
+    private HashMap<Value, ArrayList<Row>> map = New.hashMap();
+    private int rowCount;
+
+    /**
+     * Create a new hash table.
+     *
+     * @param session the session
+     * @param columnIds the ids of the join columns
+     */
+    JoinHashTable(Session session, int[] columnIds) {
+        this.columnIds = columnIds;
+        this.maxMemoryRows = session.getDatabase().getMaxMemoryRows();
+    }
+
+    /**
+     * Add a row of the joined table.
+     *
+     * @param row the row
+     * @return false if the table has more rows than fit in memory
+     */
+    boolean add(Row row) {
+        Value[] values = new Value[columnIds.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = row.getValue(columnIds[i]);
+        }
+        Value key = getKey(values);
+        if (key == null) {
+            return true;
+        }
+        if (++rowCount > maxMemoryRows) {
+            return false;
+        }
+        ArrayList<Row> list = map.get(key);
+        if (list == null) {
+            list = New.arrayList(1);
+            map.put(key, list);
+        }
+        list.add(row);
+        return true;
+    }
+
+    /**
+     * Get the rows with the given join column values.
+     *
+     * @param values the values, in the order of the join columns
+     * @return the rows, or null if there are none
+     */
+    ArrayList<Row> get(Value[] values) {
+        Value key = getKey(values);
+        if (key == null) {
+            return null;
+        }
+        return map.get(key);
+    }
+
+    /**
+     * Release the memory.
+     */
+    void close() {
+        map = null;
+    }
+
+    private static Value getKey(Value[] values) {
+        if (values.length == 1) {
+            return normalize(values[0]);
+        }
+        Value[] key = new Value[values.length];
+        for (int i = 0; i < values.length; i++) {
+            key[i] = normalize(values[i]);
+            if (key[i] == null) {
+                return null;
+            }
+        }
+        return ValueArray.get(key);
+    }
+
+    /**
+     * 整数类型的列可以和不同宽度的整数比较，统一转成LONG后equals和hashCode才和比较的结果一致。
+     */
+    private static Value normalize(Value v) {
+        if (v == null || v == ValueNull.INSTANCE) {
+            return null;
+        }
+        switch (v.getType()) {
+        case Value.BYTE:
+        case Value.SHORT:
+        case Value.INT:
+            return ValueLong.get(v.getLong());
+        default:
+            return v;
+        }
+    }
+
+    /**
+     * Check whether a hash table on a column of the given type can be used to
+     * find the rows that are equal to a value of the given type.
+     *
+     * @param columnType the type of the column
+     * @param type the type of the value
+     * @param binaryCompare whether strings are compared without a collator
+     * @return true if equal values have equal hash keys
+     */
+    static boolean isHashable(int columnType, int type, boolean binaryCompare) {
+        switch (columnType) {
+        case Value.BYTE:
+        case Value.SHORT:
+        case Value.INT:
+        case Value.LONG:
+            return type == Value.BYTE || type == Value.SHORT || type == Value.INT || type == Value.LONG;
+        case Value.STRING:
+        case Value.STRING_FIXED:
+            return type == columnType && binaryCompare;
+        case Value.BOOLEAN:
+        case Value.DATE:
+        case Value.TIME:
+        case Value.TIMESTAMP:
+        case Value.UUID:
+            return type == columnType;
+        default:
+            // DECIMAL和浮点数的equals和比较的结果不一致(比如1.0和1.00)，
+            // VARCHAR_IGNORECASE的hashCode用的是toUpperCase，和equalsIgnoreCase也不完全一致
+            return false;
+        }
+    }
+}
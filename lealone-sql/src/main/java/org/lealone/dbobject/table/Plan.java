@@ -107,10 +107,19 @@ public class Plan {
         double cost = 1;
         boolean invalidPlan = false;
         int level = 1;
+        TableFilter outer = null;
         for (TableFilter tableFilter : allFilters) {
-            PlanItem item = tableFilter.getBestPlanItem(session, level++);
+            PlanItem item = tableFilter.getBestPlanItem(session, level++, outer,
+                    outer == null ? null : planItems.get(outer).getIndex());
             planItems.put(tableFilter, item);
-            cost += cost * item.cost;
+            if (item.isHashJoin() || item.isMergeJoin()) {
+                // probe or advance once for each outer row, and the cost of the
+                // item is the cost to build the hash table or read the whole index
+                cost += cost + item.cost;
+            } else {
+                cost += cost * item.cost;
+            }
+            outer = tableFilter;
             setEvaluatable(tableFilter, true);
             Expression on = tableFilter.getJoinCondition();
             if (on != null) {
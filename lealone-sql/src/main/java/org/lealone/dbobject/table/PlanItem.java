@@ -22,6 +22,8 @@ public class PlanItem {
     private Index index;
     private PlanItem joinPlan;
     private PlanItem nestedJoinPlan;
+    private boolean hashJoin;
+    private boolean mergeJoin;
 
     void setIndex(Index index) {
         this.index = index;
@@ -47,4 +49,34 @@ public class PlanItem {
         this.nestedJoinPlan = nestedJoinPlan;
     }
 
+    /**
+     * Whether the table is read once into a hash table, instead of once for
+     * each row of the outer tables. The cost is then the cost to build the
+     * hash table.
+     *
+     * @return true for a hash join
+     */
+    boolean isHashJoin() {
+        return hashJoin;
+    }
+
+    void setHashJoin(boolean hashJoin) {
+        this.hashJoin = hashJoin;
+    }
+
+    /**
+     * Whether the index is read in the order of the index of the outer table,
+     * so that it is read about once instead of being searched for each outer
+     * row.
+     *
+     * @return true for a merge join
+     */
+    boolean isMergeJoin() {
+        return mergeJoin;
+    }
+
+    void setMergeJoin(boolean mergeJoin) {
+        this.mergeJoin = mergeJoin;
+    }
+
 }
@@ -101,6 +101,11 @@ public abstract class Table extends SchemaObjectBase {
      */
     protected String storageEngine;
 
+    /**
+     * The compression algorithm of the stored pages (null for the database default).
+     */
+    protected String compression;
+
     private final HashMap<String, Column> columnMap;
     private final boolean persistIndexes;
     private final boolean persistData;
@@ -1145,6 +1150,10 @@ public abstract class Table extends SchemaObjectBase {
         return storageEngine;
     }
 
+    public String getCompression() {
+        return compression;
+    }
+
     public void addColumn(Column column) {
     }
 
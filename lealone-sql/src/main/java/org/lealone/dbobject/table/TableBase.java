@@ -45,6 +45,7 @@ public abstract class TableBase extends Table {
     public TableBase(CreateTableData data) {
         super(data.schema, data.id, data.tableName, data.persistIndexes, data.persistData);
         this.storageEngine = data.storageEngine;
+        this.compression = data.compression;
         this.globalTemporary = data.globalTemporary;
 
         setTemporary(data.temporary);
@@ -120,6 +121,9 @@ public abstract class TableBase extends Table {
                 buff.append('\"');
             }
         }
+        if (compression != null) {
+            buff.append("\nCOMPRESSION ").append(StringUtils.quoteIdentifier(compression));
+        }
         if (!isPersistIndexes() && !isPersistData()) {
             buff.append("\nNOT PERSISTENT");
         }
@@ -7,20 +7,24 @@
 package org.lealone.dbobject.table;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 
 import org.lealone.command.Parser;
 import org.lealone.command.Prepared;
 import org.lealone.command.dml.Select;
+import org.lealone.command.router.PartitionFilter;
 import org.lealone.dbobject.Right;
 import org.lealone.dbobject.index.Index;
 import org.lealone.dbobject.index.IndexCondition;
 import org.lealone.dbobject.index.IndexCursor;
+import org.lealone.dbobject.index.IndexType;
 import org.lealone.engine.Session;
 import org.lealone.engine.SysProperties;
 import org.lealone.expression.Comparison;
 import org.lealone.expression.ConditionAndOr;
 import org.lealone.expression.Expression;
 import org.lealone.expression.ExpressionColumn;
+import org.lealone.expression.ExpressionVisitor;
 import org.lealone.message.DbException;
 import org.lealone.result.Row;
 import org.lealone.result.SearchRow;
@@ -28,6 +32,7 @@ import org.lealone.result.SortOrder;
 import org.lealone.util.New;
 import org.lealone.util.StatementBuilder;
 import org.lealone.util.StringUtils;
+import org.lealone.value.CompareMode;
 import org.lealone.value.Value;
 import org.lealone.value.ValueLong;
 import org.lealone.value.ValueNull;
@@ -107,6 +112,31 @@ public class TableFilter implements ColumnResolver {
 
     private Prepared prepared;
 
+    /**
+     * The equality join conditions used to probe the hash table, or null if
+     * this is not the inner table of a hash join.
+     */
+    private IndexCondition[] hashConditions;
+    private JoinHashTable hashTable;
+    private ArrayList<Row> hashRows;
+    private int hashRowIndex;
+
+    /**
+     * Whether the joined table has too many rows for the hash table, so that
+     * it is scanned for each outer row like without a hash join.
+     */
+    private boolean hashTableTooLarge;
+
+    /**
+     * The equality join condition on the first column of the index, if the
+     * index is read like a merge join with the ordered rows of the outer table.
+     */
+    private IndexCondition mergeCondition;
+
+    //多副本时全表扫描的子查询只返回当前节点负责的分区
+    private PartitionFilter partitionFilter;
+    private Column partitionKeyColumn;
+
     /**
      * Create a new table filter object.
      *
@@ -160,6 +190,21 @@ public class TableFilter implements ColumnResolver {
      * @return the best plan item
      */
     public PlanItem getBestPlanItem(Session s, int level) {
+        return getBestPlanItem(s, level, null, null);
+    }
+
+    /**
+     * Get the best plan item for the current join order. If the rows of this
+     * table can be merged with the rows of the outer table, the plan item is
+     * a merge join, and its cost is the cost to read the whole index.
+     *
+     * @param s the session
+     * @param level 1 for the first table in a join, 2 for the second, and so on
+     * @param outer the outer table, or null
+     * @param outerIndex the index of the outer table, or null
+     * @return the best plan item
+     */
+    PlanItem getBestPlanItem(Session s, int level, TableFilter outer, Index outerIndex) {
         PlanItem item;
         if (indexConditions.size() == 0) {
             item = new PlanItem();
@@ -189,6 +234,21 @@ public class TableFilter implements ColumnResolver {
             // This is to ensure joins without indexes run quickly:
             // x (x.a=10); y (x.b=y.b) - see issue 113
             item.cost -= item.cost * indexConditions.size() / 100 / level;
+            if (level > 1 && item.getIndex().getIndexType().isScan()) {
+                // 没有可用的索引时，被连接的表只在建hash表时扫描一次
+                for (IndexCondition condition : indexConditions) {
+                    if (condition.isEvaluatable() && item.getIndex().getColumnIndex(condition.getColumn()) < 0
+                            && isHashable(condition)) {
+                        item.setHashJoin(true);
+                        break;
+                    }
+                }
+            }
+            // 和prepare时的判断一样，能用merge join时整个索引按顺序只读一遍
+            if (outer != null && !item.isHashJoin() && getMergeCondition(item.getIndex(), outer, outerIndex) != null) {
+                item.setMergeJoin(true);
+                item.cost = item.getIndex().getCost(s, null, null);
+            }
         }
         if (nestedJoin != null) {
             setEvaluatable(nestedJoin);
@@ -199,10 +259,15 @@ public class TableFilter implements ColumnResolver {
         }
         if (join != null) {
             setEvaluatable(join);
-            item.setJoinPlan(join.getBestPlanItem(s, level));
+            PlanItem joinPlan = join.getBestPlanItem(s, level, this, item.getIndex());
+            item.setJoinPlan(joinPlan);
             // TODO optimizer: calculate cost of a join: should use separate
             // expected row number and lookup cost
-            item.cost += item.cost * item.getJoinPlan().cost;
+            if (joinPlan.isHashJoin() || joinPlan.isMergeJoin()) {
+                item.cost += item.cost + joinPlan.cost;
+            } else {
+                item.cost += item.cost * joinPlan.cost;
+            }
         }
         return item;
     }
@@ -255,6 +320,11 @@ public class TableFilter implements ColumnResolver {
      * can not be used, and optimize the conditions.
      */
     public void prepare() {
+        prepare(null);
+    }
+
+    private void prepare(TableFilter outer) {
+        ArrayList<IndexCondition> unused = New.arrayList();
         // forget all unused index conditions
         // the indexConditions list may be modified here
         for (int i = 0; i < indexConditions.size(); i++) {
@@ -263,23 +333,32 @@ public class TableFilter implements ColumnResolver {
                 Column col = condition.getColumn();
                 if (col.getColumnId() >= 0) {
                     if (index.getColumnIndex(col) < 0) {
+                        unused.add(condition);
                         indexConditions.remove(i);
                         i--;
                     }
                 }
             }
         }
+        hashConditions = null;
+        mergeCondition = null;
+        if (outer != null) {
+            prepareHashJoin(unused);
+            if (hashConditions == null) {
+                mergeCondition = getMergeCondition(index, outer, outer.index);
+            }
+        }
         if (nestedJoin != null) {
             if (SysProperties.CHECK && nestedJoin == this) {
                 DbException.throwInternalError("self join");
             }
-            nestedJoin.prepare();
+            nestedJoin.prepare(null);
         }
         if (join != null) {
             if (SysProperties.CHECK && join == this) {
                 DbException.throwInternalError("self join");
             }
-            join.prepare();
+            join.prepare(this);
         }
         if (filterCondition != null) {
             filterCondition = filterCondition.optimize(session);
@@ -289,6 +368,110 @@ public class TableFilter implements ColumnResolver {
         }
     }
 
+    /**
+     * 如果这个表是被连接的表，并且连接列上没有可用的索引，就改用hash join:
+     * 第一次读的时候把这个表(按剩下的不依赖外层行的索引条件)扫描一遍，按连接列建hash表，
+     * 之后对外层的每一行只需要用连接条件另一边的值查hash表。
+     * 其他条件仍然按原来的方式对每个候选行求值，所以hash表只是减少了要检查的行。
+     * 被连接的表的行数超过MAX_MEMORY_ROWS时不建hash表，还是对外层的每一行扫描一遍。
+     *
+     * @param unused the index conditions that the index can not use
+     */
+    private void prepareHashJoin(ArrayList<IndexCondition> unused) {
+        if (select == null || nestedJoin != null || !session.getDatabase().getSettings().hashJoin
+                || !table.isDeterministic()) {
+            return;
+        }
+        for (IndexCondition condition : indexConditions) {
+            // 建hash表时只能用不依赖外层行的索引条件
+            if (condition.getExpression() == null) {
+                return;
+            }
+            HashSet<Column> columns = New.hashSet();
+            condition.getExpression().isEverything(ExpressionVisitor.getColumnsVisitor(columns));
+            if (!columns.isEmpty()) {
+                return;
+            }
+        }
+        ArrayList<IndexCondition> list = New.arrayList();
+        HashSet<Column> columns = New.hashSet();
+        for (IndexCondition condition : unused) {
+            if (isHashable(condition) && columns.add(condition.getColumn())) {
+                list.add(condition);
+            }
+        }
+        if (!list.isEmpty()) {
+            hashConditions = new IndexCondition[list.size()];
+            list.toArray(hashConditions);
+        }
+    }
+
+    private boolean isHashable(IndexCondition condition) {
+        if (condition.getCompareType() != Comparison.EQUAL) {
+            return false;
+        }
+        Column column = condition.getColumn();
+        Expression e = condition.getExpression();
+        if (column.getColumnId() < 0 || e == null) {
+            return false;
+        }
+        if (!e.isEverything(ExpressionVisitor.getNotFromResolverVisitor(this))
+                || !e.isEverything(ExpressionVisitor.DETERMINISTIC_VISITOR)) {
+            return false;
+        }
+        CompareMode compareMode = session.getDatabase().getCompareMode();
+        boolean binaryCompare = CompareMode.OFF.equals(compareMode.getName());
+        return JoinHashTable.isHashable(column.getType(), e.getType(), binaryCompare);
+    }
+
+    /**
+     * Get the equality condition that allows to merge the rows of this table
+     * with the rows of the outer table: both indexes are ordered by the
+     * columns of the condition.
+     *
+     * @param index the index of this table
+     * @param outer the outer table
+     * @param outerIndex the index of the outer table
+     * @return the condition, or null if a merge join is not possible
+     */
+    IndexCondition getMergeCondition(Index index, TableFilter outer, Index outerIndex) {
+        if (select == null || index == null || outerIndex == null
+                || !session.getDatabase().getSettings().mergeJoin) {
+            return null;
+        }
+        IndexType type = index.getIndexType();
+        IndexColumn[] columns = index.getIndexColumns();
+        if (type.isScan() || type.isHash() || columns == null || columns.length == 0
+                || (columns[0].sortType & SortOrder.DESCENDING) != 0) {
+            return null;
+        }
+        Column column = columns[0].column;
+        for (IndexCondition condition : indexConditions) {
+            if (condition.getCompareType() == Comparison.EQUAL && condition.getColumn() == column
+                    && condition.getExpression() instanceof ExpressionColumn) {
+                ExpressionColumn e = (ExpressionColumn) condition.getExpression();
+                if (e.getTableFilter() == outer && e.getColumn().getType() == column.getType()
+                        && isOrderedBy(outerIndex, e.getColumn())) {
+                    return condition;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean isOrderedBy(Index index, Column column) {
+        IndexType type = index.getIndexType();
+        if (type.isHash()) {
+            return false;
+        } else if (type.isScan()) {
+            // 扫描索引按行的key的顺序返回记录
+            return column.isRowKeyColumn();
+        }
+        IndexColumn[] columns = index.getIndexColumns();
+        return columns != null && columns.length > 0 && columns[0].column == column
+                && (columns[0].sortType & SortOrder.DESCENDING) == 0;
+    }
+
     /**
      * Start the query. This will reset the scan counts.
      *
@@ -297,6 +480,8 @@ public class TableFilter implements ColumnResolver {
     public void startQuery(Session s) {
         this.session = s;
         scanCount = 0;
+        closeHashTable();
+        cursor.setMergeColumn(mergeCondition == null ? null : mergeCondition.getColumn());
         if (nestedJoin != null) {
             nestedJoin.startQuery(s);
         }
@@ -305,6 +490,29 @@ public class TableFilter implements ColumnResolver {
         }
     }
 
+    /**
+     * End the query. This will release the hash tables of the joined tables.
+     */
+    public void endQuery() {
+        closeHashTable();
+        cursor.setMergeColumn(null);
+        if (nestedJoin != null) {
+            nestedJoin.endQuery();
+        }
+        if (join != null) {
+            join.endQuery();
+        }
+    }
+
+    private void closeHashTable() {
+        if (hashTable != null) {
+            hashTable.close();
+            hashTable = null;
+        }
+        hashRows = null;
+        hashTableTooLarge = false;
+    }
+
     /**
      * Reset to the current position.
      */
@@ -328,7 +536,11 @@ public class TableFilter implements ColumnResolver {
         if (state == AFTER_LAST) {
             return false;
         } else if (state == BEFORE_FIRST) {
-            cursor.find(session, indexConditions);
+            if (hashConditions != null && !hashTableTooLarge) {
+                findHashRows();
+            } else {
+                cursor.find(session, indexConditions);
+            }
             if (!cursor.isAlwaysFalse()) {
                 if (nestedJoin != null) {
                     nestedJoin.reset();
@@ -359,7 +571,15 @@ public class TableFilter implements ColumnResolver {
                 if ((++scanCount & 4095) == 0) {
                     checkTimeout();
                 }
-                if (cursor.next()) {
+                if (hashConditions != null && !hashTableTooLarge) {
+                    if (hashRows != null && hashRowIndex < hashRows.size()) {
+                        current = hashRows.get(hashRowIndex++);
+                        currentSearchRow = current;
+                        state = FOUND;
+                    } else {
+                        state = AFTER_LAST;
+                    }
+                } else if (cursor.next()) {
                     currentSearchRow = cursor.getSearchRow();
                     current = null;
                     state = FOUND;
@@ -385,6 +605,9 @@ public class TableFilter implements ColumnResolver {
                     break;
                 }
             }
+            if (state == FOUND && partitionFilter != null && !partitionFilter.accept(getValue(partitionKeyColumn))) {
+                continue;
+            }
             if (!isOk(filterCondition)) {
                 continue;
             }
@@ -411,6 +634,37 @@ public class TableFilter implements ColumnResolver {
         return false;
     }
 
+    private void findHashRows() {
+        if (hashTable == null) {
+            int[] columnIds = new int[hashConditions.length];
+            for (int i = 0; i < columnIds.length; i++) {
+                columnIds[i] = hashConditions[i].getColumn().getColumnId();
+            }
+            hashTable = new JoinHashTable(session, columnIds);
+            cursor.find(session, indexConditions);
+            if (!cursor.isAlwaysFalse()) {
+                for (int count = 1; cursor.next(); count++) {
+                    if ((count & 4095) == 0) {
+                        checkTimeout();
+                    }
+                    if (!hashTable.add(cursor.get())) {
+                        // 被连接的表的行太多，这次查询剩下的部分改回对外层的每一行扫描一遍
+                        closeHashTable();
+                        hashTableTooLarge = true;
+                        cursor.find(session, indexConditions);
+                        return;
+                    }
+                }
+            }
+        }
+        Value[] values = new Value[hashConditions.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = hashConditions[i].getCurrentValue(session);
+        }
+        hashRows = hashTable.get(values);
+        hashRowIndex = 0;
+    }
+
     /**
      * Set the state of this and all nested tables to the NULL row.
      */
@@ -428,6 +682,34 @@ public class TableFilter implements ColumnResolver {
         }
     }
 
+    /**
+     * Only return the rows of the partitions accepted by the filter.
+     * If the table has no row key column the filter is ignored.
+     *
+     * @param partitionFilter the filter, or null to return all rows
+     */
+    public void setPartitionFilter(PartitionFilter partitionFilter) {
+        partitionKeyColumn = null;
+        if (partitionFilter != null) {
+            for (Column c : table.getColumns()) {
+                if (c.isRowKeyColumn()) {
+                    partitionKeyColumn = c;
+                    break;
+                }
+            }
+        }
+        this.partitionFilter = partitionKeyColumn != null ? partitionFilter : null;
+    }
+
+    /**
+     * Get the partition filter.
+     *
+     * @return the filter, or null if all rows are returned
+     */
+    public PartitionFilter getPartitionFilter() {
+        return partitionFilter;
+    }
+
     private void checkTimeout() {
         session.checkCanceled();
         // System.out.println(this.alias+ " " + table.getName() + ": " +
@@ -685,6 +967,17 @@ public class TableFilter implements ColumnResolver {
                     planBuff.append(condition.getSQL());
                 }
             }
+            if (mergeCondition != null) {
+                planBuff.append("\nmerge join: ").append(mergeCondition.getSQL());
+            }
+            if (hashConditions != null) {
+                planBuff.append("\nhash join: ");
+                planBuff.resetCount();
+                for (IndexCondition condition : hashConditions) {
+                    planBuff.appendExceptFirst("\n    AND ");
+                    planBuff.append(condition.getSQL());
+                }
+            }
             String plan = StringUtils.quoteRemarkSQL(planBuff.toString());
             if (plan.indexOf('\n') >= 0) {
                 plan += "\n";
@@ -730,6 +1023,16 @@ public class TableFilter implements ColumnResolver {
         return index;
     }
 
+    /**
+     * Check if the current index of this table filter is used with index
+     * conditions, so that not all rows of the index are read.
+     *
+     * @return true if there are index conditions
+     */
+    public boolean hasIndexConditions() {
+        return !indexConditions.isEmpty();
+    }
+
     public void setIndex(Index index) {
         this.index = index;
         cursor.setIndex(index);
@@ -1076,6 +1379,22 @@ public class TableFilter implements ColumnResolver {
         return cursor.getEndSearchRow();
     }
 
+    public Column getInColumn() {
+        if (!indexConditionsParsed) {
+            indexConditionsParsed = true;
+            cursor.parseIndexConditions(session, indexConditions);
+        }
+        return cursor.getInColumn();
+    }
+
+    public Value[] getInList() {
+        if (!indexConditionsParsed) {
+            indexConditionsParsed = true;
+            cursor.parseIndexConditions(session, indexConditions);
+        }
+        return cursor.getInList();
+    }
+
     public Prepared getPrepared() {
         return prepared;
     }
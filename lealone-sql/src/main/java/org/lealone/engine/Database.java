@@ -15,6 +15,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.Future;
 
 import org.lealone.api.DatabaseEventListener;
 import org.lealone.api.ErrorCode;
@@ -155,6 +156,7 @@ public class Database implements DataHandler {
     private int cacheSize;
     private int compactMode;
     private SourceCompiler compiler;
+    private final SmallLRUCache<String, Future<Class<?>>> compiledExpressions = SmallLRUCache.newInstance(128);
     private volatile boolean metaTablesInitialized;
     private LobStorageInterface lobStorage;
     private int pageSize;
@@ -1945,6 +1947,18 @@ public class Database implements DataHandler {
         return compiler;
     }
 
+    /**
+     * Get the classes that were generated for the expressions of queries. The
+     * key is the source code, so that a query that is run in many sessions is
+     * only compiled once. Only the most recently used classes are kept. The
+     * caller needs to synchronize on the map.
+     *
+     * @return the map of classes that are compiled or being compiled
+     */
+    public SmallLRUCache<String, Future<Class<?>>> getCompiledExpressions() {
+        return compiledExpressions;
+    }
+
     @Override
     public LobStorageInterface getLobStorage() {
         return lobStorage;
@@ -373,6 +373,28 @@ public class Aggregate extends Expression {
         return v;
     }
 
+    /**
+     * Get an aggregate that is calculated on batches of rows of the given
+     * table filter.
+     *
+     * @param session the session
+     * @param filter the table filter
+     * @return the aggregate, or null if not supported
+     */
+    public VectorAggregate getVectorAggregate(Session session, TableFilter filter) {
+        if (distinct) {
+            return null;
+        }
+        VectorExpression v = null;
+        if (on != null) {
+            v = on.getVectorExpression(session, filter);
+            if (v == null) {
+                return null;
+            }
+        }
+        return VectorAggregate.get(this, type, dataType, v);
+    }
+
     public Value getMergedValue(Session session) {
         if (select.isQuickAggregateQuery()) {
             switch (type) {
@@ -459,9 +481,16 @@ public class Aggregate extends Expression {
             break;
 
         case Aggregate.AVG: {
+            //和AggregateData一样按不会溢出的类型相除，再转成AVG的类型，例如int的AVG结果还是int
             int i = calculator.getIndex();
-            double avg = calculator.getValue(i + 1).getDouble() / calculator.getValue(i).getDouble();
-            calculator.addResultValue(ValueDouble.get(avg));
+            long count = calculator.getValue(i).getLong();
+            Value sum = calculator.getValue(i + 1);
+            Value avg = ValueNull.INSTANCE;
+            if (count > 0 && sum != ValueNull.INSTANCE) {
+                int t = Value.getHigherOrder(sum.getType(), Value.LONG);
+                avg = sum.convertTo(t).divide(ValueLong.get(count).convertTo(t)).convertTo(dataType);
+            }
+            calculator.addResultValue(avg);
             calculator.addIndex(2);
             break;
         }
@@ -471,7 +500,7 @@ public class Aggregate extends Expression {
             double sum1 = calculator.getValue(i + 1).getDouble();
             double sum2 = calculator.getValue(i + 2).getDouble();
             double result = Math.sqrt(sum2 / count - (sum1 / count) * (sum1 / count));
-            calculator.addResultValue(ValueDouble.get(result));
+            calculator.addResultValue(count < 1 ? ValueNull.INSTANCE : ValueDouble.get(result));
             calculator.addIndex(3);
             break;
         }
@@ -481,7 +510,7 @@ public class Aggregate extends Expression {
             double sum1 = calculator.getValue(i + 1).getDouble();
             double sum2 = calculator.getValue(i + 2).getDouble();
             double result = Math.sqrt((sum2 - (sum1 * sum1 / count)) / (count - 1));
-            calculator.addResultValue(ValueDouble.get(result));
+            calculator.addResultValue(count < 2 ? ValueNull.INSTANCE : ValueDouble.get(result));
             calculator.addIndex(3);
             break;
         }
@@ -491,7 +520,7 @@ public class Aggregate extends Expression {
             double sum1 = calculator.getValue(i + 1).getDouble();
             double sum2 = calculator.getValue(i + 2).getDouble();
             double result = sum2 / count - (sum1 / count) * (sum1 / count);
-            calculator.addResultValue(ValueDouble.get(result));
+            calculator.addResultValue(count < 1 ? ValueNull.INSTANCE : ValueDouble.get(result));
             calculator.addIndex(3);
             break;
         }
@@ -501,7 +530,7 @@ public class Aggregate extends Expression {
             double sum1 = calculator.getValue(i + 1).getDouble();
             double sum2 = calculator.getValue(i + 2).getDouble();
             double result = (sum2 - (sum1 * sum1 / count)) / (count - 1);
-            calculator.addResultValue(ValueDouble.get(result));
+            calculator.addResultValue(count < 2 ? ValueNull.INSTANCE : ValueDouble.get(result));
             calculator.addIndex(3);
             break;
         }
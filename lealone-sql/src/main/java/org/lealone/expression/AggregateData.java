@@ -172,6 +172,17 @@ class AggregateData {
         }
     }
 
+    /**
+     * Set the count and the value that were calculated elsewhere.
+     *
+     * @param count the number of rows
+     * @param value the value, or null
+     */
+    void set(long count, Value value) {
+        this.count = count;
+        this.value = value;
+    }
+
     void merge(Database database, boolean distinct, Value v) {
         if (aggregateType == Aggregate.COUNT || aggregateType == Aggregate.COUNT_ALL) {
             count += v.getLong();
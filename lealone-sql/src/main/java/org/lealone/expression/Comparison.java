@@ -242,6 +242,22 @@ public class Comparison extends Condition {
         return ValueBoolean.get(result);
     }
 
+    public VectorExpression getVectorExpression(Session session, TableFilter filter) {
+        VectorExpression l = left.getVectorExpression(session, filter);
+        VectorExpression r = null;
+        if (right != null) {
+            r = right.getVectorExpression(session, filter);
+            if (r == null) {
+                return null;
+            }
+        }
+        return VectorExpression.Compare.get(compareType, l, r);
+    }
+
+    public ExpressionCompiler.Code getJavaCode(ExpressionCompiler compiler) {
+        return compiler.getComparison(compareType, left, right);
+    }
+
     /**
      * Compare two values, given the values are not NULL.
      *
@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.expression;
+
+import org.lealone.engine.Session;
+import org.lealone.value.Value;
+
+/**
+ * 由ExpressionCompiler生成的类的父类，一个类计算一个查询的多个表达式。
+ *
+ * 生成的代码用long、double在栈上计算表达式，不能这样计算的情况(比如整数溢出、除数是0、
+ * 参数的类型和编译时不同)调用fallback，由原来的表达式逐个解释执行。
+ */
+public abstract class CompiledExpression {
+
+    private Expression[] expressions;
+
+    /**
+     * The sub-expressions that are calculated by calling getValue.
+     */
+    protected Expression[] e;
+
+    void init(Expression[] expressions, Expression[] e) {
+        this.expressions = expressions;
+        this.e = e;
+    }
+
+    /**
+     * Calculate the value of an expression for the current row.
+     *
+     * @param session the session
+     * @param index the position of the expression in the compiler
+     * @return the value
+     */
+    public abstract Value getValue(Session session, int index);
+
+    /**
+     * Calculate the value of an expression with the interpreter.
+     *
+     * @param session the session
+     * @param index the position of the expression in the compiler
+     * @return the value
+     */
+    protected Value fallback(Session session, int index) {
+        return expressions[index].getValue(session);
+    }
+
+    /**
+     * Check whether the value is an integer that fits in a long.
+     *
+     * @param v the value (not NULL)
+     * @return true for BYTE, SHORT, INT and LONG values
+     */
+    protected static boolean isLong(Value v) {
+        return VectorExpression.isLong(v.getType());
+    }
+}
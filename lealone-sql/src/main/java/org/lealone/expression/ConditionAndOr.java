@@ -120,6 +120,16 @@ public class ConditionAndOr extends Condition {
         }
     }
 
+    public VectorExpression getVectorExpression(Session session, TableFilter filter) {
+        VectorExpression l = left.getVectorExpression(session, filter);
+        VectorExpression r = right.getVectorExpression(session, filter);
+        return VectorExpression.AndOr.get(andOrType == AND, l, r);
+    }
+
+    public ExpressionCompiler.Code getJavaCode(ExpressionCompiler compiler) {
+        return compiler.getAndOr(andOrType == AND, left, right);
+    }
+
     public Expression optimize(Session session) {
         // NULL handling: see wikipedia,
         // http://www-cs-students.stanford.edu/~wlam/compsci/sqlnulls
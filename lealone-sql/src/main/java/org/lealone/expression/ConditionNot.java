@@ -35,6 +35,14 @@ public class ConditionNot extends Condition {
         return v.convertTo(Value.BOOLEAN).negate();
     }
 
+    public VectorExpression getVectorExpression(Session session, TableFilter filter) {
+        return VectorExpression.Not.get(condition.getVectorExpression(session, filter));
+    }
+
+    public ExpressionCompiler.Code getJavaCode(ExpressionCompiler compiler) {
+        return compiler.getNot(condition);
+    }
+
     public void mapColumns(ColumnResolver resolver, int level) {
         condition.mapColumns(resolver, level);
     }
@@ -195,6 +195,30 @@ public abstract class Expression {
         // default is do nothing
     }
 
+    /**
+     * Get an expression that calculates this expression on batches of rows of
+     * the given table filter.
+     *
+     * @param session the session
+     * @param filter the table filter
+     * @return the expression, or null if this expression is not supported
+     */
+    public VectorExpression getVectorExpression(Session session, TableFilter filter) {
+        return null;
+    }
+
+    /**
+     * Get the Java code that calculates this expression using primitive
+     * values. Expressions that are not supported are calculated by calling
+     * getValue from the generated code.
+     *
+     * @param compiler the compiler
+     * @return the code, or null if this expression is not supported
+     */
+    public ExpressionCompiler.Code getJavaCode(ExpressionCompiler compiler) {
+        return null;
+    }
+
     /**
      * Get the column name or alias name of this expression.
      *
@@ -263,6 +263,13 @@ public class ExpressionColumn extends Expression {
         return value;
     }
 
+    public VectorExpression getVectorExpression(Session session, TableFilter filter) {
+        if (columnResolver != filter || column.getColumnId() < 0 || !VectorExpression.isSupported(column.getType())) {
+            return null;
+        }
+        return new VectorExpression.Column(column.getType(), column.getColumnId());
+    }
+
     public int getType() {
         return column.getType();
     }
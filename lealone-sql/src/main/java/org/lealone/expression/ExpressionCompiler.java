@@ -0,0 +1,549 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.expression;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.lealone.engine.Constants;
+import org.lealone.engine.Database;
+import org.lealone.message.DbException;
+import org.lealone.util.New;
+import org.lealone.util.SmallLRUCache;
+import org.lealone.util.SourceCompiler;
+import org.lealone.value.Value;
+
+/**
+ * 把一个查询的多个表达式编译成一个CompiledExpression的子类。
+ *
+ * 整数(BYTE、SHORT、INT、LONG，以及只由整数算出的DECIMAL)用long计算，DOUBLE用double计算，
+ * 条件用int表示(1是TRUE，0是FALSE，-1是NULL)，AND、OR的右边和比较的右边只在需要时才计算，和解释执行一样。
+ * 其他表达式(比如列、函数)在生成的代码中调用它们的getValue，所以只编译结果是确定的表达式。
+ *
+ * 编译在一个后台线程中进行，执行查询的线程不用等javac，编译完成前仍然解释执行。
+ * 源代码相同的类在一个数据库中只编译一次，数据库只保留最近用过的一部分类。
+ */
+public class ExpressionCompiler {
+
+    private static final int LONG = 0, DOUBLE = 1, BOOLEAN = 2, VALUE = 3;
+
+    private static final String IMPORTS = "import java.math.BigDecimal;\n" //
+            + "import org.lealone.engine.Session;\n" //
+            + "import org.lealone.expression.CompiledExpression;\n" //
+            + "import org.lealone.value.Value;\n" //
+            + "import org.lealone.value.ValueBoolean;\n" //
+            + "import org.lealone.value.ValueByte;\n" //
+            + "import org.lealone.value.ValueDecimal;\n" //
+            + "import org.lealone.value.ValueDouble;\n" //
+            + "import org.lealone.value.ValueInt;\n" //
+            + "import org.lealone.value.ValueLong;\n" //
+            + "import org.lealone.value.ValueNull;\n" //
+            + "import org.lealone.value.ValueShort;\n";
+
+    private static final AtomicInteger nextClassId = new AtomicInteger();
+
+    private static final ThreadPoolExecutor pool = initPool();
+
+    private static ThreadPoolExecutor initPool() {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, ExpressionCompiler.class.getSimpleName());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * The Java code that calculates an expression.
+     */
+    public static class Code {
+
+        /**
+         * How the value is kept: LONG, DOUBLE, BOOLEAN or VALUE.
+         */
+        final int kind;
+
+        /**
+         * The value type of the expression.
+         */
+        final int type;
+
+        /**
+         * The statements that calculate the value.
+         */
+        final String code;
+
+        /**
+         * The Java expression of the value.
+         */
+        final String value;
+
+        /**
+         * The Java expression that is true if the value is NULL.
+         */
+        final String isNull;
+
+        Code(int kind, int type, String code, String value, String isNull) {
+            this.kind = kind;
+            this.type = type;
+            this.code = code;
+            this.value = value;
+            this.isNull = isNull;
+        }
+    }
+
+    private final ArrayList<Expression> expressions = New.arrayList();
+    private final ArrayList<Expression> values = New.arrayList();
+    private final StringBuilder cases = new StringBuilder();
+    private final StringBuilder methods = new StringBuilder();
+    private int index;
+    private int nextId;
+    private Future<Class<?>> future;
+
+    /**
+     * Add an expression. The expressions are numbered in the order they are
+     * added. An expression that can not be compiled is calculated by the
+     * interpreter.
+     *
+     * @param expr the expression
+     * @return true if the expression is compiled
+     */
+    public boolean add(Expression expr) {
+        index = expressions.size();
+        expressions.add(expr);
+        if (!expr.isEverything(ExpressionVisitor.DETERMINISTIC_VISITOR)) {
+            return false;
+        }
+        Code c = expr.getJavaCode(this);
+        if (c == null || c.kind == VALUE || c.code.length() == 0) {
+            return false;
+        }
+        cases.append("        case ").append(index).append(":\n");
+        cases.append("            return getValue").append(index).append("(session);\n");
+        methods.append("\n    private Value getValue").append(index).append("(Session session) {\n");
+        methods.append(c.code);
+        methods.append("        return ").append(toValue(c)).append(";\n    }\n");
+        return true;
+    }
+
+    /**
+     * Start compiling the added expressions in a background thread.
+     *
+     * @param database the database
+     * @return false if none of the expressions can be compiled
+     */
+    public boolean compile(Database database) {
+        if (cases.length() == 0) {
+            return false;
+        }
+        final String body = "    public Value getValue(Session session, int index) {\n" //
+                + "        switch (index) {\n" + cases //
+                + "        default:\n            return fallback(session, index);\n        }\n    }\n" + methods;
+        SmallLRUCache<String, Future<Class<?>>> classes = database.getCompiledExpressions();
+        synchronized (classes) {
+            future = classes.get(body);
+            if (future == null) {
+                future = pool.submit(new Callable<Class<?>>() {
+                    @Override
+                    public Class<?> call() throws Exception {
+                        return compile(body);
+                    }
+                });
+                classes.put(body, future);
+            }
+        }
+        return true;
+    }
+
+    private static Class<?> compile(String body) throws ClassNotFoundException {
+        String className = "CompiledExpression" + nextClassId.incrementAndGet();
+        String fullClassName = Constants.USER_PACKAGE + "." + className;
+        // 不用数据库的SourceCompiler，这样不会和其他会话抢锁，编译完后也不会一直留着源代码
+        SourceCompiler compiler = new SourceCompiler();
+        compiler.setSource(fullClassName, "package " + Constants.USER_PACKAGE + ";\n" + IMPORTS
+                + "public class " + className + " extends CompiledExpression {\n" + body + "}\n");
+        return compiler.getClass(fullClassName);
+    }
+
+    /**
+     * Get the compiled expressions, if compiling is finished.
+     *
+     * @return the compiled expressions, or null if compiling is not finished
+     *         yet
+     * @throws DbException if compiling failed
+     */
+    public CompiledExpression getCompiledExpression() {
+        if (!future.isDone()) {
+            return null;
+        }
+        CompiledExpression c;
+        try {
+            c = (CompiledExpression) future.get().newInstance();
+        } catch (ExecutionException e) {
+            throw DbException.convert(e.getCause());
+        } catch (Exception e) {
+            throw DbException.convert(e);
+        }
+        c.init(expressions.toArray(new Expression[expressions.size()]), values.toArray(new Expression[values.size()]));
+        return c;
+    }
+
+    private Code get(Expression expr) {
+        Code c = expr.getJavaCode(this);
+        return c != null ? c : getValue(expr);
+    }
+
+    private String newName() {
+        return "x" + nextId++;
+    }
+
+    private String fallback() {
+        return "return fallback(session, " + index + ");";
+    }
+
+    /**
+     * Call getValue of the expression from the generated code. If the value
+     * type is supported, the value is converted, and if the value has a
+     * different type at runtime, the interpreter is used.
+     */
+    private Code getValue(Expression expr) {
+        String e = "e[" + values.size() + "].getValue(session)";
+        values.add(expr);
+        String x = newName();
+        int type = expr.getType();
+        StringBuilder buff = new StringBuilder();
+        if (VectorExpression.isNumber(type)) {
+            boolean isLong = VectorExpression.isLong(type);
+            buff.append("        Value ").append(x).append("v = ").append(e).append(";\n");
+            buff.append("        boolean ").append(x).append("n = ").append(x).append("v == ValueNull.INSTANCE;\n");
+            buff.append("        ").append(isLong ? "long " : "double ").append(x).append(" = 0;\n");
+            buff.append("        if (!").append(x).append("n) {\n");
+            buff.append("            if (").append(isLong ? "!isLong(" + x + "v)" : x + "v.getType() != Value.DOUBLE");
+            buff.append(") {\n                ").append(fallback()).append("\n            }\n");
+            buff.append("            ").append(x).append(" = ").append(x).append(isLong ? "v.getLong();\n" : "v.getDouble();\n");
+            buff.append("        }\n");
+            return new Code(isLong ? LONG : DOUBLE, type, buff.toString(), x, x + "n");
+        } else if (type == Value.BOOLEAN) {
+            buff.append("        Value ").append(x).append("v = ").append(e).append(";\n");
+            buff.append("        int ").append(x).append(" = -1;\n");
+            buff.append("        if (").append(x).append("v != ValueNull.INSTANCE) {\n");
+            buff.append("            if (").append(x).append("v.getType() != Value.BOOLEAN) {\n");
+            buff.append("                ").append(fallback()).append("\n            }\n");
+            buff.append("            ").append(x).append(" = ").append(x).append("v.getBoolean().booleanValue() ? 1 : 0;\n");
+            buff.append("        }\n");
+            return new Code(BOOLEAN, type, buff.toString(), x, x + " < 0");
+        }
+        buff.append("        Value ").append(x).append(" = ").append(e).append(";\n");
+        return new Code(VALUE, type, buff.toString(), x, x + " == ValueNull.INSTANCE");
+    }
+
+    private static String toValue(Code c) {
+        String v;
+        switch (c.kind) {
+        case LONG:
+            switch (c.type) {
+            case Value.BYTE:
+                v = "ValueByte.get((byte) " + c.value + ")";
+                break;
+            case Value.SHORT:
+                v = "ValueShort.get((short) " + c.value + ")";
+                break;
+            case Value.INT:
+                v = "ValueInt.get((int) " + c.value + ")";
+                break;
+            case Value.LONG:
+                v = "ValueLong.get(" + c.value + ")";
+                break;
+            default:
+                v = "ValueDecimal.get(BigDecimal.valueOf(" + c.value + "))";
+            }
+            break;
+        case DOUBLE:
+            v = "ValueDouble.get(" + c.value + ")";
+            break;
+        default:
+            v = "ValueBoolean.get(" + c.value + " == 1)";
+        }
+        return c.isNull + " ? ValueNull.INSTANCE : " + v;
+    }
+
+    /**
+     * Get the code of a constant.
+     *
+     * @param v the value
+     * @return the code, or null if the value type is not supported
+     */
+    Code getConstant(Value v) {
+        int type = v.getType();
+        if (VectorExpression.isLong(type)) {
+            return new Code(LONG, type, "", "(" + v.getLong() + "L)", "false");
+        } else if (type == Value.DOUBLE) {
+            long bits = Double.doubleToRawLongBits(v.getDouble());
+            return new Code(DOUBLE, type, "", "Double.longBitsToDouble(" + bits + "L)", "false");
+        } else if (type == Value.BOOLEAN) {
+            return new Code(BOOLEAN, type, "", v.getBoolean().booleanValue() ? "1" : "0", "false");
+        }
+        return null;
+    }
+
+    /**
+     * Get the code of an arithmetic operation. Integers are calculated with
+     * long values if the result type is an integer type or DECIMAL, and DOUBLE
+     * values with double values.
+     *
+     * @param type the result type
+     * @param opType the operation type
+     * @param left the left operand
+     * @param right the right operand, or null for unary minus
+     * @return the code, or null if the operation is not supported
+     */
+    Code getOperation(int type, int opType, Expression left, Expression right) {
+        if (opType == Operation.CONCAT) {
+            return null;
+        }
+        Code l = get(left);
+        Code r = right == null ? null : get(right);
+        boolean isLong = VectorExpression.isLong(type);
+        if (isLong || type == Value.DECIMAL) {
+            if (l.kind != LONG || r != null && r.kind != LONG) {
+                return null;
+            }
+            // 整数的结果不能由更大的类型转换得到，DECIMAL的除法结果不是整数
+            if (isLong) {
+                if (Value.getHigherOrder(l.type, type) != type || r != null
+                        && Value.getHigherOrder(r.type, type) != type) {
+                    return null;
+                }
+            } else if (opType == Operation.DIVIDE) {
+                return null;
+            }
+        } else if (type == Value.DOUBLE) {
+            if (!isNumber(l) || r != null && !isNumber(r) || opType == Operation.MODULUS) {
+                return null;
+            }
+        } else {
+            return null;
+        }
+        String x = newName();
+        String t = type == Value.DOUBLE ? "double" : "long";
+        StringBuilder buff = new StringBuilder(l.code);
+        if (r != null) {
+            buff.append(r.code);
+        }
+        buff.append("        boolean ").append(x).append("n = ").append(l.isNull);
+        if (r != null) {
+            buff.append(" || ").append(r.isNull);
+        }
+        buff.append(";\n");
+        buff.append("        ").append(t).append(' ').append(x).append(" = 0;\n");
+        buff.append("        if (!").append(x).append("n) {\n");
+        buff.append("            ").append(t).append(" a = ").append(l.value).append(";\n");
+        if (r != null) {
+            buff.append("            ").append(t).append(" b = ").append(r.value).append(";\n");
+        }
+        String fail = "                " + fallback() + "\n            }\n";
+        if (type == Value.DOUBLE) {
+            switch (opType) {
+            case Operation.NEGATE:
+                buff.append("            ").append(x).append(" = -a;\n");
+                break;
+            case Operation.PLUS:
+                buff.append("            ").append(x).append(" = a + b;\n");
+                break;
+            case Operation.MINUS:
+                buff.append("            ").append(x).append(" = a - b;\n");
+                break;
+            case Operation.MULTIPLY:
+                buff.append("            ").append(x).append(" = a * b;\n");
+                break;
+            default:
+                buff.append("            if (b == 0) {\n").append(fail);
+                buff.append("            ").append(x).append(" = a / b;\n");
+            }
+        } else {
+            switch (opType) {
+            case Operation.NEGATE:
+                buff.append("            if (a == Long.MIN_VALUE) {\n").append(fail);
+                buff.append("            ").append(x).append(" = -a;\n");
+                break;
+            case Operation.PLUS:
+                buff.append("            ").append(x).append(" = a + b;\n");
+                buff.append("            if (((a ^ ").append(x).append(") & (b ^ ").append(x).append(")) < 0) {\n");
+                buff.append(fail);
+                break;
+            case Operation.MINUS:
+                buff.append("            ").append(x).append(" = a - b;\n");
+                buff.append("            if (((a ^ b) & (a ^ ").append(x).append(")) < 0) {\n").append(fail);
+                break;
+            case Operation.MULTIPLY:
+                buff.append("            ").append(x).append(" = a * b;\n");
+                buff.append("            if (a == Long.MIN_VALUE && b == -1 || b != 0 && ").append(x);
+                buff.append(" / b != a) {\n").append(fail);
+                break;
+            case Operation.DIVIDE:
+                buff.append("            if (b == 0) {\n").append(fail);
+                buff.append("            ").append(x).append(" = a / b;\n");
+                break;
+            default:
+                buff.append("            if (b == 0) {\n").append(fail);
+                buff.append("            ").append(x).append(" = a % b;\n");
+            }
+            String range = null;
+            switch (type) {
+            case Value.BYTE:
+                range = "Byte";
+                break;
+            case Value.SHORT:
+                range = "Short";
+                break;
+            case Value.INT:
+                range = "Integer";
+                break;
+            }
+            if (range != null) {
+                buff.append("            if (").append(x).append(" < ").append(range).append(".MIN_VALUE || ");
+                buff.append(x).append(" > ").append(range).append(".MAX_VALUE) {\n").append(fail);
+            }
+        }
+        buff.append("        }\n");
+        return new Code(type == Value.DOUBLE ? DOUBLE : LONG, type, buff.toString(), x, x + "n");
+    }
+
+    private static boolean isNumber(Code c) {
+        return c.kind == LONG || c.kind == DOUBLE;
+    }
+
+    /**
+     * Get the code of a comparison of two numbers, or of IS [NOT] NULL.
+     *
+     * @param compareType the comparison type
+     * @param left the left operand
+     * @param right the right operand, or null for IS [NOT] NULL
+     * @return the code, or null if the comparison is not supported
+     */
+    Code getComparison(int compareType, Expression left, Expression right) {
+        String op;
+        switch (compareType) {
+        case Comparison.IS_NULL:
+        case Comparison.IS_NOT_NULL: {
+            Code l = get(left);
+            String x = newName();
+            String code = l.code + "        int " + x + " = " + l.isNull
+                    + (compareType == Comparison.IS_NULL ? " ? 1 : 0;\n" : " ? 0 : 1;\n");
+            return new Code(BOOLEAN, Value.BOOLEAN, code, x, "false");
+        }
+        case Comparison.EQUAL:
+            op = "==";
+            break;
+        case Comparison.NOT_EQUAL:
+            op = "!=";
+            break;
+        case Comparison.BIGGER:
+            op = ">";
+            break;
+        case Comparison.BIGGER_EQUAL:
+            op = ">=";
+            break;
+        case Comparison.SMALLER:
+            op = "<";
+            break;
+        case Comparison.SMALLER_EQUAL:
+            op = "<=";
+            break;
+        default:
+            return null;
+        }
+        Code l = get(left);
+        Code r = get(right);
+        String compare;
+        if (l.kind == LONG && r.kind == LONG) {
+            compare = l.value + " " + op + " " + r.value;
+        } else if (isNumber(l) && isNumber(r) && Value.getHigherOrder(l.type, r.type) == Value.DOUBLE) {
+            // 和ValueDouble的比较一致
+            compare = "Double.compare(" + l.value + ", " + r.value + ") " + op + " 0";
+        } else {
+            return null;
+        }
+        String x = newName();
+        StringBuilder buff = new StringBuilder(l.code);
+        buff.append("        int ").append(x).append(";\n");
+        buff.append("        if (").append(l.isNull).append(") {\n");
+        buff.append("            ").append(x).append(" = -1;\n");
+        buff.append("        } else {\n").append(r.code);
+        buff.append("            ").append(x).append(" = ").append(r.isNull).append(" ? -1 : ").append(compare);
+        buff.append(" ? 1 : 0;\n        }\n");
+        return new Code(BOOLEAN, Value.BOOLEAN, buff.toString(), x, x + " < 0");
+    }
+
+    /**
+     * Get the code of an AND or OR condition.
+     *
+     * @param and true for AND, false for OR
+     * @param left the left condition
+     * @param right the right condition
+     * @return the code, or null if the conditions are not supported
+     */
+    Code getAndOr(boolean and, Expression left, Expression right) {
+        Code l = get(left);
+        Code r = get(right);
+        if (l.kind != BOOLEAN || r.kind != BOOLEAN) {
+            return null;
+        }
+        // AND的左边是FALSE，或者OR的左边是TRUE时不计算右边
+        String decided = and ? "0" : "1";
+        String other = and ? "1" : "0";
+        String x = newName();
+        StringBuilder buff = new StringBuilder(l.code);
+        buff.append("        int ").append(x).append(";\n");
+        buff.append("        if (").append(l.value).append(" == ").append(decided).append(") {\n");
+        buff.append("            ").append(x).append(" = ").append(decided).append(";\n");
+        buff.append("        } else {\n").append(r.code);
+        buff.append("            ").append(x).append(" = ").append(r.value).append(" == ").append(decided);
+        buff.append(" ? ").append(decided).append(" : ").append(l.value).append(" < 0 || ").append(r.value);
+        buff.append(" < 0 ? -1 : ").append(other).append(";\n        }\n");
+        return new Code(BOOLEAN, Value.BOOLEAN, buff.toString(), x, x + " < 0");
+    }
+
+    /**
+     * Get the code of a NOT condition.
+     *
+     * @param condition the condition
+     * @return the code, or null if the condition is not supported
+     */
+    Code getNot(Expression condition) {
+        Code c = get(condition);
+        if (c.kind != BOOLEAN) {
+            return null;
+        }
+        String x = newName();
+        String code = c.code + "        int " + x + " = " + c.value + " < 0 ? -1 : 1 - " + c.value + ";\n";
+        return new Code(BOOLEAN, Value.BOOLEAN, code, x, x + " < 0");
+    }
+}
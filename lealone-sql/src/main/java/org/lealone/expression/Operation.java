@@ -166,6 +166,28 @@ public class Operation extends Expression {
         }
     }
 
+    public VectorExpression getVectorExpression(Session session, TableFilter filter) {
+        if (!convertRight) {
+            return null;
+        }
+        VectorExpression l = left.getVectorExpression(session, filter);
+        VectorExpression r = null;
+        if (right != null) {
+            r = right.getVectorExpression(session, filter);
+            if (r == null) {
+                return null;
+            }
+        }
+        return VectorExpression.Arithmetic.get(dataType, opType, l, r);
+    }
+
+    public ExpressionCompiler.Code getJavaCode(ExpressionCompiler compiler) {
+        if (!convertRight) {
+            return null;
+        }
+        return compiler.getOperation(dataType, opType, left, right);
+    }
+
     public void mapColumns(ColumnResolver resolver, int level) {
         left.mapColumns(resolver, level);
         if (right != null) {
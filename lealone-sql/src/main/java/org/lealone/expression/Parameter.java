@@ -55,6 +55,10 @@ public class Parameter extends Expression implements ParameterInterface {
         return getParamValue();
     }
 
+    public VectorExpression getVectorExpression(Session session, TableFilter filter) {
+        return VectorExpression.Constant.get(getValue(session));
+    }
+
     public int getType() {
         if (value != null) {
             return value.getType();
@@ -73,6 +73,14 @@ public class ValueExpression extends Expression {
         return value;
     }
 
+    public VectorExpression getVectorExpression(Session session, TableFilter filter) {
+        return VectorExpression.Constant.get(value);
+    }
+
+    public ExpressionCompiler.Code getJavaCode(ExpressionCompiler compiler) {
+        return compiler.getConstant(value);
+    }
+
     public int getType() {
         return value.getType();
     }
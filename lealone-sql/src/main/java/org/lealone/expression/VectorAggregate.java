@@ -0,0 +1,275 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.expression;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.lealone.value.DataType;
+import org.lealone.value.Value;
+import org.lealone.value.ValueDecimal;
+import org.lealone.value.ValueDouble;
+import org.lealone.value.ValueLong;
+
+/**
+ * 在一批行上计算的聚合函数，支持不带DISTINCT的COUNT、SUM、AVG、MIN、MAX。
+ *
+ * 每个分组的中间结果保存在按分组编号索引的数组中，
+ * 最后由setResult转成和逐行计算时相同的AggregateData。
+ */
+public class VectorAggregate {
+
+    private final Aggregate aggregate;
+    private final int aggregateType;
+    private final int dataType;
+    private final VectorExpression on;
+    private final boolean isLong;
+
+    private long[] counts = new long[16];
+    private long[] longs;
+    private double[] doubles;
+    private BigDecimal[] carries;
+
+    VectorAggregate(Aggregate aggregate, int aggregateType, int dataType, VectorExpression on) {
+        this.aggregate = aggregate;
+        this.aggregateType = aggregateType;
+        this.dataType = dataType;
+        this.on = on;
+        isLong = on != null && on.isLongValue();
+        if (on != null && aggregateType != Aggregate.COUNT) {
+            if (isLong) {
+                longs = new long[16];
+            } else {
+                doubles = new double[16];
+            }
+        }
+    }
+
+    /**
+     * Create an aggregate, if the type and the argument are supported.
+     *
+     * @param aggregate the aggregate
+     * @param aggregateType the aggregate type
+     * @param dataType the result type
+     * @param on the argument, or null for COUNT(*)
+     * @return the aggregate, or null
+     */
+    static VectorAggregate get(Aggregate aggregate, int aggregateType, int dataType, VectorExpression on) {
+        switch (aggregateType) {
+        case Aggregate.COUNT_ALL:
+            return new VectorAggregate(aggregate, aggregateType, dataType, null);
+        case Aggregate.COUNT:
+            if (on == null) {
+                return null;
+            }
+            break;
+        case Aggregate.SUM:
+        case Aggregate.AVG:
+        case Aggregate.MIN:
+        case Aggregate.MAX:
+            if (on == null || !on.isNumberValue()) {
+                return null;
+            }
+            break;
+        default:
+            return null;
+        }
+        return new VectorAggregate(aggregate, aggregateType, dataType, on);
+    }
+
+    /**
+     * Calculate the argument for the given rows of the batch. The aggregated
+     * values are not changed.
+     *
+     * @param batch the batch
+     * @param sel the positions of the rows
+     * @param n the number of rows
+     * @return false if the batch must be evaluated row by row
+     */
+    public boolean evaluate(VectorBatch batch, int[] sel, int n) {
+        return on == null || on.evaluate(batch, sel, n);
+    }
+
+    /**
+     * Add the evaluated rows to their groups.
+     *
+     * @param sel the positions of the rows
+     * @param n the number of rows
+     * @param groupIds the group id of each position, or null if there is only
+     *            one group
+     * @param groupCount the number of groups
+     */
+    public void update(int[] sel, int n, int[] groupIds, int groupCount) {
+        ensureCapacity(groupCount);
+        if (on == null) {
+            for (int j = 0; j < n; j++) {
+                counts[groupIds == null ? 0 : groupIds[sel[j]]]++;
+            }
+            return;
+        }
+        boolean[] nulls = on.nulls;
+        for (int j = 0; j < n; j++) {
+            int i = sel[j];
+            if (nulls[i]) {
+                continue;
+            }
+            int g = groupIds == null ? 0 : groupIds[i];
+            long c = counts[g]++;
+            if (longs != null) {
+                updateLong(g, c, on.longs[i]);
+            } else if (doubles != null) {
+                updateDouble(g, c, on.getDouble(i));
+            }
+        }
+    }
+
+    private void ensureCapacity(int groupCount) {
+        if (groupCount > counts.length) {
+            int len = Math.max(groupCount, counts.length * 2);
+            counts = Arrays.copyOf(counts, len);
+            if (longs != null) {
+                longs = Arrays.copyOf(longs, len);
+            }
+            if (doubles != null) {
+                doubles = Arrays.copyOf(doubles, len);
+            }
+            if (carries != null) {
+                carries = Arrays.copyOf(carries, len);
+            }
+        }
+    }
+
+    /**
+     * Add the aggregated value of a group of another aggregate of the same
+     * type to a group of this aggregate.
+     *
+     * @param other the other aggregate
+     * @param from the group id in the other aggregate
+     * @param to the group id in this aggregate
+     */
+    public void merge(VectorAggregate other, int from, int to) {
+        ensureCapacity(to + 1);
+        long c = from < other.counts.length ? other.counts[from] : 0;
+        if (c == 0) {
+            return;
+        }
+        if (longs != null) {
+            updateLong(to, counts[to], other.longs[from]);
+            if (other.carries != null && other.carries[from] != null) {
+                if (carries == null) {
+                    carries = new BigDecimal[counts.length];
+                }
+                carries[to] = carries[to] == null ? other.carries[from] : carries[to].add(other.carries[from]);
+            }
+        } else if (doubles != null) {
+            updateDouble(to, counts[to], other.doubles[from]);
+        }
+        counts[to] += c;
+    }
+
+    private void updateLong(int g, long c, long x) {
+        long v = longs[g];
+        switch (aggregateType) {
+        case Aggregate.SUM:
+        case Aggregate.AVG: {
+            long s = v + x;
+            if (c != 0 && ((v ^ s) & (x ^ s)) < 0) {
+                // 溢出的部分累加到BigDecimal中
+                if (carries == null) {
+                    carries = new BigDecimal[counts.length];
+                }
+                BigDecimal carry = BigDecimal.valueOf(v);
+                carries[g] = carries[g] == null ? carry : carries[g].add(carry);
+                s = x;
+            } else if (c == 0) {
+                s = x;
+            }
+            longs[g] = s;
+            break;
+        }
+        case Aggregate.MIN:
+            if (c == 0 || x < v) {
+                longs[g] = x;
+            }
+            break;
+        default:
+            if (c == 0 || x > v) {
+                longs[g] = x;
+            }
+        }
+    }
+
+    private void updateDouble(int g, long c, double x) {
+        double v = doubles[g];
+        switch (aggregateType) {
+        case Aggregate.SUM:
+        case Aggregate.AVG:
+            doubles[g] = c == 0 ? x : v + x;
+            break;
+        case Aggregate.MIN:
+            if (c == 0 || Double.compare(x, v) < 0) {
+                doubles[g] = x;
+            }
+            break;
+        default:
+            if (c == 0 || Double.compare(x, v) > 0) {
+                doubles[g] = x;
+            }
+        }
+    }
+
+    /**
+     * Store the aggregated value of a group in the same form as the row by
+     * row calculation.
+     *
+     * @param group the values of the group
+     * @param groupId the group id
+     */
+    public void setResult(HashMap<Expression, Object> group, int groupId) {
+        AggregateData data = new AggregateData(aggregateType, dataType);
+        long c = groupId < counts.length ? counts[groupId] : 0;
+        Value v = null;
+        if (c > 0 && on != null) {
+            switch (aggregateType) {
+            case Aggregate.SUM:
+                v = getSum(groupId).convertTo(dataType);
+                break;
+            case Aggregate.AVG:
+                v = getSum(groupId).convertTo(DataType.getAddProofType(dataType));
+                break;
+            case Aggregate.MIN:
+            case Aggregate.MAX:
+                v = isLong ? ValueLong.get(longs[groupId]).convertTo(on.type) : ValueDouble.get(doubles[groupId]);
+                break;
+            }
+        }
+        data.set(c, v);
+        group.put(aggregate, data);
+    }
+
+    private Value getSum(int g) {
+        if (!isLong) {
+            return ValueDouble.get(doubles[g]);
+        }
+        if (carries == null || carries[g] == null) {
+            return ValueLong.get(longs[g]);
+        }
+        return ValueDecimal.get(carries[g].add(BigDecimal.valueOf(longs[g])));
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.expression;
+
+import org.lealone.dbobject.index.Cursor;
+import org.lealone.dbobject.table.Table;
+import org.lealone.dbobject.table.TableFilter;
+import org.lealone.result.Row;
+import org.lealone.value.Value;
+import org.lealone.value.ValueNull;
+
+/**
+ * 一批从TableFilter或Cursor读出的行，最多SIZE行。
+ *
+ * 列的值在第一次被用到时才从这批行中取出，放到long、double或boolean数组中，
+ * 每个数组的下标就是行在这一批中的位置，NULL值用另一个boolean数组标记。
+ */
+public class VectorBatch {
+
+    /**
+     * The maximum number of rows in a batch.
+     */
+    public static final int SIZE = 1024;
+
+    private static final int LONG = 0, DOUBLE = 1, BOOLEAN = 2;
+
+    private final TableFilter filter;
+    private final Cursor cursor;
+    private final Row[] rows = new Row[SIZE];
+    private int size;
+
+    private final long[][] longs;
+    private final double[][] doubles;
+    private final boolean[][] booleans;
+    private final boolean[][] nulls;
+    private final int[] loaded;
+    private int batchId;
+
+    public VectorBatch(TableFilter filter) {
+        this(filter.getTable(), filter, null);
+    }
+
+    /**
+     * Create a batch that reads the rows from a cursor instead of a table
+     * filter, so that several batches of the same table can be read by
+     * different threads.
+     *
+     * @param table the table
+     * @param cursor the cursor
+     */
+    public VectorBatch(Table table, Cursor cursor) {
+        this(table, null, cursor);
+    }
+
+    private VectorBatch(Table table, TableFilter filter, Cursor cursor) {
+        this.filter = filter;
+        this.cursor = cursor;
+        int columnCount = table.getColumns().length;
+        longs = new long[columnCount][];
+        doubles = new double[columnCount][];
+        booleans = new boolean[columnCount][];
+        nulls = new boolean[columnCount][];
+        loaded = new int[columnCount];
+    }
+
+    /**
+     * Read the next rows from the table filter or the cursor.
+     *
+     * @return false if there are no more rows
+     */
+    public boolean next() {
+        size = 0;
+        batchId++;
+        if (filter != null) {
+            while (size < SIZE && filter.next()) {
+                rows[size++] = filter.get();
+            }
+        } else {
+            while (size < SIZE && cursor.next()) {
+                rows[size++] = cursor.get();
+            }
+        }
+        return size > 0;
+    }
+
+    /**
+     * Get the number of rows in this batch.
+     *
+     * @return the number of rows
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get a row of this batch.
+     *
+     * @param i the position in the batch
+     * @return the row
+     */
+    public Row getRow(int i) {
+        return rows[i];
+    }
+
+    /**
+     * Get the values of an integer column.
+     *
+     * @param columnId the column id
+     * @return the values
+     */
+    long[] getLongs(int columnId) {
+        load(columnId, LONG);
+        return longs[columnId];
+    }
+
+    /**
+     * Get the values of a DOUBLE column.
+     *
+     * @param columnId the column id
+     * @return the values
+     */
+    double[] getDoubles(int columnId) {
+        load(columnId, DOUBLE);
+        return doubles[columnId];
+    }
+
+    /**
+     * Get the values of a BOOLEAN column.
+     *
+     * @param columnId the column id
+     * @return the values
+     */
+    boolean[] getBooleans(int columnId) {
+        load(columnId, BOOLEAN);
+        return booleans[columnId];
+    }
+
+    /**
+     * Get the NULL flags of a column that was already loaded.
+     *
+     * @param columnId the column id
+     * @return the flags
+     */
+    boolean[] getNulls(int columnId) {
+        return nulls[columnId];
+    }
+
+    private void load(int columnId, int kind) {
+        if (loaded[columnId] == batchId) {
+            return;
+        }
+        loaded[columnId] = batchId;
+        boolean[] n = nulls[columnId];
+        if (n == null) {
+            n = nulls[columnId] = new boolean[SIZE];
+        }
+        switch (kind) {
+        case LONG: {
+            long[] a = longs[columnId];
+            if (a == null) {
+                a = longs[columnId] = new long[SIZE];
+            }
+            for (int i = 0; i < size; i++) {
+                Value v = rows[i].getValue(columnId);
+                if (!(n[i] = v == ValueNull.INSTANCE)) {
+                    a[i] = v.getLong();
+                }
+            }
+            break;
+        }
+        case DOUBLE: {
+            double[] a = doubles[columnId];
+            if (a == null) {
+                a = doubles[columnId] = new double[SIZE];
+            }
+            for (int i = 0; i < size; i++) {
+                Value v = rows[i].getValue(columnId);
+                if (!(n[i] = v == ValueNull.INSTANCE)) {
+                    a[i] = v.getDouble();
+                }
+            }
+            break;
+        }
+        default: {
+            boolean[] a = booleans[columnId];
+            if (a == null) {
+                a = booleans[columnId] = new boolean[SIZE];
+            }
+            for (int i = 0; i < size; i++) {
+                Value v = rows[i].getValue(columnId);
+                if (!(n[i] = v == ValueNull.INSTANCE)) {
+                    a[i] = v.getBoolean().booleanValue();
+                }
+            }
+        }
+        }
+    }
+}
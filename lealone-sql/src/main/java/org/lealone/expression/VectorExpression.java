@@ -0,0 +1,621 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.expression;
+
+import java.util.Arrays;
+
+import org.lealone.value.Value;
+import org.lealone.value.ValueNull;
+
+/**
+ * 在一批行上计算的表达式。
+ *
+ * 只支持整数(BYTE、SHORT、INT、LONG)、DOUBLE和BOOLEAN类型，
+ * 整数统一放在long数组中，整数运算的结果是DECIMAL时也用long计算，
+ * 计算结果按行在VectorBatch中的位置保存，
+ * 只计算选择向量(sel)中列出的那些位置。
+ *
+ * 和逐行计算的结果不一致的情况(比如整数溢出，逐行计算时会抛出异常)，
+ * evaluate返回false，由调用者对这一批行改用逐行计算。
+ */
+public abstract class VectorExpression {
+
+    private static final int[] ALL = new int[VectorBatch.SIZE];
+
+    static {
+        for (int i = 0; i < ALL.length; i++) {
+            ALL[i] = i;
+        }
+    }
+
+    /**
+     * The value type of the result.
+     */
+    protected final int type;
+
+    long[] longs;
+    double[] doubles;
+    boolean[] booleans;
+    boolean[] nulls;
+
+    VectorExpression(int type) {
+        this.type = type;
+    }
+
+    /**
+     * Get the value type of the result.
+     *
+     * @return the type
+     */
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * Calculate the result for the given positions of the batch.
+     *
+     * @param batch the batch
+     * @param sel the positions
+     * @param n the number of positions
+     * @return false if the batch must be evaluated row by row
+     */
+    abstract boolean evaluate(VectorBatch batch, int[] sel, int n);
+
+    /**
+     * Evaluate this condition for all rows of the batch.
+     *
+     * @param batch the batch
+     * @param sel receives the positions of the rows where the result is TRUE
+     * @return the number of rows, or -1 if the batch must be evaluated row by
+     *         row
+     */
+    public int select(VectorBatch batch, int[] sel) {
+        int size = batch.size();
+        if (!evaluate(batch, ALL, size)) {
+            return -1;
+        }
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            if (booleans[i] && !nulls[i]) {
+                sel[n++] = i;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Check whether the value type is supported.
+     *
+     * @param type the value type
+     * @return true if it is supported
+     */
+    static boolean isSupported(int type) {
+        return isLong(type) || type == Value.DOUBLE || type == Value.BOOLEAN;
+    }
+
+    /**
+     * Check whether values of this type are kept in a long array.
+     *
+     * @param type the value type
+     * @return true for the integer types
+     */
+    static boolean isLong(int type) {
+        switch (type) {
+        case Value.BYTE:
+        case Value.SHORT:
+        case Value.INT:
+        case Value.LONG:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Check whether the value type is a number type that is supported.
+     *
+     * @param type the value type
+     * @return true for the integer types and DOUBLE
+     */
+    static boolean isNumber(int type) {
+        return isLong(type) || type == Value.DOUBLE;
+    }
+
+    /**
+     * Check whether the values of this expression are kept in the long array.
+     * DECIMAL is only supported as the result of an operation on integers, so
+     * its values are integers as well.
+     *
+     * @return true for the integer types and DECIMAL
+     */
+    final boolean isLongValue() {
+        return isLong(type) || type == Value.DECIMAL;
+    }
+
+    /**
+     * Check whether the values of this expression are numbers.
+     *
+     * @return true for the integer types, DECIMAL and DOUBLE
+     */
+    final boolean isNumberValue() {
+        return isLongValue() || type == Value.DOUBLE;
+    }
+
+    /**
+     * Get the value at the given position as a double.
+     */
+    final double getDouble(int i) {
+        return doubles != null ? doubles[i] : longs[i];
+    }
+
+    /**
+     * A column of the table.
+     */
+    static class Column extends VectorExpression {
+
+        private final int columnId;
+
+        Column(int type, int columnId) {
+            super(type);
+            this.columnId = columnId;
+        }
+
+        @Override
+        boolean evaluate(VectorBatch batch, int[] sel, int n) {
+            if (isLong(type)) {
+                longs = batch.getLongs(columnId);
+            } else if (type == Value.DOUBLE) {
+                doubles = batch.getDoubles(columnId);
+            } else {
+                booleans = batch.getBooleans(columnId);
+            }
+            nulls = batch.getNulls(columnId);
+            return true;
+        }
+    }
+
+    /**
+     * A value that is the same for all rows.
+     */
+    static class Constant extends VectorExpression {
+
+        Constant(Value v) {
+            super(v.getType());
+            nulls = new boolean[VectorBatch.SIZE];
+            if (isLong(type)) {
+                longs = new long[VectorBatch.SIZE];
+                Arrays.fill(longs, v.getLong());
+            } else if (type == Value.DOUBLE) {
+                doubles = new double[VectorBatch.SIZE];
+                Arrays.fill(doubles, v.getDouble());
+            } else {
+                booleans = new boolean[VectorBatch.SIZE];
+                Arrays.fill(booleans, v.getBoolean().booleanValue());
+            }
+        }
+
+        /**
+         * Create a constant, if the value type is supported.
+         *
+         * @param v the value
+         * @return the expression, or null
+         */
+        static Constant get(Value v) {
+            if (v == ValueNull.INSTANCE || !isSupported(v.getType())) {
+                return null;
+            }
+            return new Constant(v);
+        }
+
+        @Override
+        boolean evaluate(VectorBatch batch, int[] sel, int n) {
+            return true;
+        }
+    }
+
+    /**
+     * An arithmetic operation: +, -, * or unary minus.
+     */
+    static class Arithmetic extends VectorExpression {
+
+        private final int opType;
+        private final VectorExpression left, right;
+
+        Arithmetic(int type, int opType, VectorExpression left, VectorExpression right) {
+            super(type);
+            this.opType = opType;
+            this.left = left;
+            this.right = right;
+            nulls = new boolean[VectorBatch.SIZE];
+            if (isLongValue()) {
+                longs = new long[VectorBatch.SIZE];
+            } else {
+                doubles = new double[VectorBatch.SIZE];
+            }
+        }
+
+        /**
+         * Create an operation, if the types are supported.
+         *
+         * @param type the result type
+         * @param opType the operation type
+         * @param left the left operand
+         * @param right the right operand, or null for unary minus
+         * @return the expression, or null
+         */
+        static Arithmetic get(int type, int opType, VectorExpression left, VectorExpression right) {
+            if (left == null || !left.isNumberValue()) {
+                return null;
+            }
+            switch (opType) {
+            case Operation.NEGATE:
+                break;
+            case Operation.PLUS:
+            case Operation.MINUS:
+            case Operation.MULTIPLY:
+                if (right == null || !right.isNumberValue()) {
+                    return null;
+                }
+                break;
+            default:
+                return null;
+            }
+            if (isLong(type)) {
+                // 整数的结果不会由DOUBLE或DECIMAL转换得到
+                if (!isLong(left.type) || right != null && !isLong(right.type)) {
+                    return null;
+                }
+            } else if (type == Value.DECIMAL) {
+                // 两边都是整数时用long计算，溢出时evaluate返回false，这一批行改用逐行计算
+                if (!left.isLongValue() || right != null && !right.isLongValue()) {
+                    return null;
+                }
+            } else if (type != Value.DOUBLE) {
+                return null;
+            }
+            return new Arithmetic(type, opType, left, right);
+        }
+
+        @Override
+        boolean evaluate(VectorBatch batch, int[] sel, int n) {
+            if (!left.evaluate(batch, sel, n) || right != null && !right.evaluate(batch, sel, n)) {
+                return false;
+            }
+            boolean[] ln = left.nulls;
+            boolean[] rn = right == null ? ln : right.nulls;
+            if (longs != null) {
+                return evaluateLong(sel, n, ln, rn);
+            }
+            for (int j = 0; j < n; j++) {
+                int i = sel[j];
+                if (nulls[i] = ln[i] || rn[i]) {
+                    continue;
+                }
+                double a = left.getDouble(i);
+                switch (opType) {
+                case Operation.NEGATE:
+                    doubles[i] = -a;
+                    break;
+                case Operation.PLUS:
+                    doubles[i] = a + right.getDouble(i);
+                    break;
+                case Operation.MINUS:
+                    doubles[i] = a - right.getDouble(i);
+                    break;
+                default:
+                    doubles[i] = a * right.getDouble(i);
+                }
+            }
+            return true;
+        }
+
+        private boolean evaluateLong(int[] sel, int n, boolean[] ln, boolean[] rn) {
+            long min, max;
+            switch (type) {
+            case Value.BYTE:
+                min = Byte.MIN_VALUE;
+                max = Byte.MAX_VALUE;
+                break;
+            case Value.SHORT:
+                min = Short.MIN_VALUE;
+                max = Short.MAX_VALUE;
+                break;
+            case Value.INT:
+                min = Integer.MIN_VALUE;
+                max = Integer.MAX_VALUE;
+                break;
+            default:
+                min = Long.MIN_VALUE;
+                max = Long.MAX_VALUE;
+            }
+            boolean checkLong = type == Value.LONG || type == Value.DECIMAL;
+            long[] l = left.longs;
+            long[] r = right == null ? null : right.longs;
+            for (int j = 0; j < n; j++) {
+                int i = sel[j];
+                if (nulls[i] = ln[i] || rn[i]) {
+                    continue;
+                }
+                long a = l[i];
+                long x;
+                switch (opType) {
+                case Operation.NEGATE:
+                    if (a == Long.MIN_VALUE) {
+                        return false;
+                    }
+                    x = -a;
+                    break;
+                case Operation.PLUS: {
+                    long b = r[i];
+                    x = a + b;
+                    if (checkLong && ((a ^ x) & (b ^ x)) < 0) {
+                        return false;
+                    }
+                    break;
+                }
+                case Operation.MINUS: {
+                    long b = r[i];
+                    x = a - b;
+                    if (checkLong && ((a ^ b) & (a ^ x)) < 0) {
+                        return false;
+                    }
+                    break;
+                }
+                default: {
+                    long b = r[i];
+                    x = a * b;
+                    if (checkLong && ((Math.abs(a) | Math.abs(b)) >>> 31) != 0) {
+                        if (b != 0 && x / b != a || a == Long.MIN_VALUE && b == -1) {
+                            return false;
+                        }
+                    }
+                }
+                }
+                if (x < min || x > max) {
+                    return false;
+                }
+                longs[i] = x;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A comparison of two numbers, or IS [NOT] NULL.
+     */
+    static class Compare extends VectorExpression {
+
+        private final int compareType;
+        private final VectorExpression left, right;
+        private final boolean compareLongs;
+
+        Compare(int compareType, VectorExpression left, VectorExpression right) {
+            super(Value.BOOLEAN);
+            this.compareType = compareType;
+            this.left = left;
+            this.right = right;
+            compareLongs = right != null && left.isLongValue() && right.isLongValue();
+            booleans = new boolean[VectorBatch.SIZE];
+            nulls = new boolean[VectorBatch.SIZE];
+        }
+
+        /**
+         * Create a comparison, if the types are supported.
+         *
+         * @param compareType the comparison type
+         * @param left the left operand
+         * @param right the right operand, or null for IS [NOT] NULL
+         * @return the expression, or null
+         */
+        static Compare get(int compareType, VectorExpression left, VectorExpression right) {
+            if (left == null) {
+                return null;
+            }
+            switch (compareType) {
+            case Comparison.IS_NULL:
+            case Comparison.IS_NOT_NULL:
+                return new Compare(compareType, left, null);
+            case Comparison.EQUAL:
+            case Comparison.NOT_EQUAL:
+            case Comparison.BIGGER:
+            case Comparison.BIGGER_EQUAL:
+            case Comparison.SMALLER:
+            case Comparison.SMALLER_EQUAL:
+                if (right == null || !left.isNumberValue() || !right.isNumberValue()) {
+                    return null;
+                }
+                return new Compare(compareType, left, right);
+            default:
+                return null;
+            }
+        }
+
+        @Override
+        boolean evaluate(VectorBatch batch, int[] sel, int n) {
+            if (!left.evaluate(batch, sel, n)) {
+                return false;
+            }
+            boolean[] ln = left.nulls;
+            if (right == null) {
+                boolean isNull = compareType == Comparison.IS_NULL;
+                for (int j = 0; j < n; j++) {
+                    int i = sel[j];
+                    nulls[i] = false;
+                    booleans[i] = ln[i] == isNull;
+                }
+                return true;
+            }
+            if (!right.evaluate(batch, sel, n)) {
+                return false;
+            }
+            boolean[] rn = right.nulls;
+            long[] l = left.longs, r = right.longs;
+            for (int j = 0; j < n; j++) {
+                int i = sel[j];
+                if (nulls[i] = ln[i] || rn[i]) {
+                    continue;
+                }
+                int c;
+                if (compareLongs) {
+                    long a = l[i], b = r[i];
+                    c = a < b ? -1 : a == b ? 0 : 1;
+                } else {
+                    // 和ValueDouble的比较一致
+                    c = Double.compare(left.getDouble(i), right.getDouble(i));
+                }
+                boolean result;
+                switch (compareType) {
+                case Comparison.EQUAL:
+                    result = c == 0;
+                    break;
+                case Comparison.NOT_EQUAL:
+                    result = c != 0;
+                    break;
+                case Comparison.BIGGER:
+                    result = c > 0;
+                    break;
+                case Comparison.BIGGER_EQUAL:
+                    result = c >= 0;
+                    break;
+                case Comparison.SMALLER:
+                    result = c < 0;
+                    break;
+                default:
+                    result = c <= 0;
+                }
+                booleans[i] = result;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * AND or OR. The right condition is only evaluated for the rows where the
+     * left condition does not decide the result.
+     */
+    static class AndOr extends VectorExpression {
+
+        private final boolean and;
+        private final VectorExpression left, right;
+        private final int[] rightSel = new int[VectorBatch.SIZE];
+
+        AndOr(boolean and, VectorExpression left, VectorExpression right) {
+            super(Value.BOOLEAN);
+            this.and = and;
+            this.left = left;
+            this.right = right;
+            booleans = new boolean[VectorBatch.SIZE];
+            nulls = new boolean[VectorBatch.SIZE];
+        }
+
+        /**
+         * Create an AND or OR condition, if both conditions are supported.
+         *
+         * @param and true for AND, false for OR
+         * @param left the left condition
+         * @param right the right condition
+         * @return the expression, or null
+         */
+        static AndOr get(boolean and, VectorExpression left, VectorExpression right) {
+            if (left == null || right == null || left.type != Value.BOOLEAN || right.type != Value.BOOLEAN) {
+                return null;
+            }
+            return new AndOr(and, left, right);
+        }
+
+        @Override
+        boolean evaluate(VectorBatch batch, int[] sel, int n) {
+            if (!left.evaluate(batch, sel, n)) {
+                return false;
+            }
+            boolean[] lb = left.booleans, ln = left.nulls;
+            int m = 0;
+            for (int j = 0; j < n; j++) {
+                int i = sel[j];
+                if (ln[i] || lb[i] == and) {
+                    rightSel[m++] = i;
+                } else {
+                    // AND的左边是FALSE，或者OR的左边是TRUE
+                    nulls[i] = false;
+                    booleans[i] = !and;
+                }
+            }
+            if (m == 0) {
+                return true;
+            }
+            if (!right.evaluate(batch, rightSel, m)) {
+                return false;
+            }
+            boolean[] rb = right.booleans, rn = right.nulls;
+            for (int j = 0; j < m; j++) {
+                int i = rightSel[j];
+                if (!rn[i] && rb[i] != and) {
+                    nulls[i] = false;
+                    booleans[i] = !and;
+                } else if (ln[i] || rn[i]) {
+                    nulls[i] = true;
+                } else {
+                    nulls[i] = false;
+                    booleans[i] = and;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * NOT.
+     */
+    static class Not extends VectorExpression {
+
+        private final VectorExpression condition;
+
+        Not(VectorExpression condition) {
+            super(Value.BOOLEAN);
+            this.condition = condition;
+            booleans = new boolean[VectorBatch.SIZE];
+        }
+
+        /**
+         * Create a NOT condition, if the condition is supported.
+         *
+         * @param condition the condition
+         * @return the expression, or null
+         */
+        static Not get(VectorExpression condition) {
+            if (condition == null || condition.type != Value.BOOLEAN) {
+                return null;
+            }
+            return new Not(condition);
+        }
+
+        @Override
+        boolean evaluate(VectorBatch batch, int[] sel, int n) {
+            if (!condition.evaluate(batch, sel, n)) {
+                return false;
+            }
+            boolean[] b = condition.booleans;
+            nulls = condition.nulls;
+            for (int j = 0; j < n; j++) {
+                int i = sel[j];
+                booleans[i] = !b[i];
+            }
+            return true;
+        }
+    }
+}
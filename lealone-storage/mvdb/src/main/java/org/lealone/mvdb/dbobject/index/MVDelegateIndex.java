@@ -75,6 +75,11 @@ public class MVDelegateIndex extends IndexBase implements MVIndex {
         return mainIndex.findFirstOrLast(session, first);
     }
 
+    @Override
+    public Cursor[] findParallel(Session session, int count) {
+        return mainIndex.findParallel(session, count);
+    }
+
     @Override
     public int getColumnIndex(Column col) {
         if (col.getColumnId() == mainIndex.getMainIndexColumn()) {
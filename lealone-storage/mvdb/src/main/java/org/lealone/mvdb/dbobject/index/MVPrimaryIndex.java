@@ -69,6 +69,7 @@ public class MVPrimaryIndex extends IndexBase {
         }
         ValueDataType keyType = new ValueDataType(null, null, null);
         ValueDataType valueType = new ValueDataType(db.getCompareMode(), db, sortTypes);
+        valueType.setColumnar(db.getSettings().columnarPages);
         mapName = "table." + getId();
         dataMap = mvTable.getTransaction(session).openMap(mapName, keyType, valueType);
         //Fix bug in MVStore when creating lots of temporary tables, where we could run out of transaction IDs
@@ -76,6 +77,12 @@ public class MVPrimaryIndex extends IndexBase {
         if (!table.isPersistData()) {
             dataMap.map.setVolatile(true);
         }
+        if (table.getCompression() != null) {
+            dataMap.map.setCompressor(table.getCompression());
+        }
+        if (db.getSettings().longKeyPages) {
+            dataMap.map.setLongKeys(true);
+        }
         Value k = dataMap.lastKey();
         lastKey = k == null ? 0 : k.getLong();
     }
@@ -278,6 +285,28 @@ public class MVPrimaryIndex extends IndexBase {
         return c;
     }
 
+    @Override
+    public Cursor[] findParallel(Session session, int count) {
+        TransactionMap<Value, Value> map = getMap(session);
+        long size = map.map.sizeAsLong();
+        if (count < 2 || size < count) {
+            return null;
+        }
+        // 按B树中每个page的行数找到分界的key，每个范围的行数差不多，不用遍历所有的key
+        Cursor[] cursors = new Cursor[count];
+        ValueLong from = MIN;
+        for (int i = 0; i < count - 1; i++) {
+            ValueLong k = (ValueLong) map.map.getKey(size * (i + 1) / count);
+            if (k == null || k.getLong() <= from.getLong()) {
+                return null;
+            }
+            cursors[i] = new MVPrimaryIndexCursor(map.entryIterator(from), ValueLong.get(k.getLong() - 1));
+            from = k;
+        }
+        cursors[count - 1] = new MVPrimaryIndexCursor(map.entryIterator(from), MAX);
+        return cursors;
+    }
+
     @Override
     public boolean needRebuild() {
         return false;
@@ -74,6 +74,9 @@ public class MVSecondaryIndex extends IndexBase implements MVIndex {
         if (!keyType.equals(dataMap.getKeyType())) {
             throw DbException.throwInternalError("Incompatible key type");
         }
+        if (table.getCompression() != null) {
+            dataMap.map.setCompressor(table.getCompression());
+        }
     }
 
     @Override
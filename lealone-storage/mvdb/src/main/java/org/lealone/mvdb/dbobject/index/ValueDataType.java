@@ -12,13 +12,15 @@ import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map.Entry;
 
 import org.lealone.api.ErrorCode;
 import org.lealone.engine.DataHandler;
 import org.lealone.message.DbException;
 import org.lealone.mvstore.DataUtils;
 import org.lealone.mvstore.WriteBuffer;
-import org.lealone.mvstore.type.DataType;
+import org.lealone.mvstore.type.LongKeyDataType;
 import org.lealone.result.SimpleResultSet;
 import org.lealone.result.SortOrder;
 import org.lealone.value.CompareMode;
@@ -48,7 +50,7 @@ import org.lealone.value.ValueUuid;
 /**
  * A row type.
  */
-public class ValueDataType implements DataType {
+public class ValueDataType implements LongKeyDataType {
 
     private static final int INT_0_15 = 32;
     private static final int LONG_0_7 = 48;
@@ -64,9 +66,27 @@ public class ValueDataType implements DataType {
     private static final int STRING_0_31 = 68;
     private static final int BYTES_0_31 = 100;
 
+    /**
+     * The first byte of a list of rows that is stored column by column. It is
+     * not the type of any value, so lists that are stored row by row can
+     * still be read.
+     */
+    private static final int COLUMNAR = 255;
+
+    /**
+     * The minimum number of rows to store column by column.
+     */
+    private static final int COLUMNAR_MIN_ROWS = 4;
+
+    static final int COLUMN_PLAIN = 0;
+    static final int COLUMN_CONSTANT = 1;
+    static final int COLUMN_DICTIONARY = 2;
+    static final int COLUMN_DELTA = 3;
+
     final DataHandler handler;
     final CompareMode compareMode;
     final int[] sortTypes;
+    private boolean columnar;
 
     public ValueDataType(CompareMode compareMode, DataHandler handler, int[] sortTypes) {
         this.compareMode = compareMode;
@@ -74,6 +94,26 @@ public class ValueDataType implements DataType {
         this.sortTypes = sortTypes;
     }
 
+    /**
+     * Whether to store lists of rows column by column. Lists stored row by
+     * row can always be read.
+     *
+     * @param columnar the new value
+     */
+    public void setColumnar(boolean columnar) {
+        this.columnar = columnar;
+    }
+
+    @Override
+    public long getLong(Object key) {
+        return ((Value) key).getLong();
+    }
+
+    @Override
+    public Object getKey(long key) {
+        return ValueLong.get(key);
+    }
+
     @Override
     public int compare(Object a, Object b) {
         if (a == b) {
@@ -145,6 +185,10 @@ public class ValueDataType implements DataType {
 
     @Override
     public void read(ByteBuffer buff, Object[] obj, int len, boolean key) {
+        if (len > 0 && (buff.get(buff.position()) & 255) == COLUMNAR) {
+            readColumnar(buff, obj, len);
+            return;
+        }
         for (int i = 0; i < len; i++) {
             obj[i] = read(buff);
         }
@@ -152,11 +196,317 @@ public class ValueDataType implements DataType {
 
     @Override
     public void write(WriteBuffer buff, Object[] obj, int len, boolean key) {
+        if (columnar && !key && len >= COLUMNAR_MIN_ROWS) {
+            int columnCount = getColumnCount(obj, len);
+            if (columnCount > 0) {
+                writeColumnar(buff, obj, len, columnCount);
+                return;
+            }
+        }
         for (int i = 0; i < len; i++) {
             write(buff, obj[i]);
         }
     }
 
+    /**
+     * Get the number of columns if all objects are rows of the same length.
+     *
+     * @param obj the objects
+     * @param len the number of objects
+     * @return the number of columns, or 0 if the objects can not be stored
+     *         column by column
+     */
+    private static int getColumnCount(Object[] obj, int len) {
+        int columnCount = -1;
+        for (int i = 0; i < len; i++) {
+            Object o = obj[i];
+            if (!(o instanceof ValueArray)) {
+                return 0;
+            }
+            int c = ((ValueArray) o).getList().length;
+            if (columnCount < 0) {
+                columnCount = c;
+            } else if (c != columnCount) {
+                return 0;
+            }
+        }
+        return Math.max(0, columnCount);
+    }
+
+    /**
+     * Store the rows column by column. Each column uses its own encoding: a
+     * single value if all values are the same, a dictionary with bit packed
+     * indexes for columns with few distinct values, delta encoding for
+     * numeric and date-time columns, and the regular format otherwise.
+     */
+    private void writeColumnar(WriteBuffer buff, Object[] rows, int len, int columnCount) {
+        buff.put((byte) COLUMNAR).putVarInt(columnCount);
+        Value[] column = new Value[len];
+        for (int c = 0; c < columnCount; c++) {
+            for (int i = 0; i < len; i++) {
+                column[i] = ((ValueArray) rows[i]).getList()[c];
+            }
+            writeColumn(buff, column, len);
+        }
+    }
+
+    private void writeColumn(WriteBuffer buff, Value[] column, int len) {
+        int type = Value.NULL;
+        boolean sameType = true, hasNull = false;
+        for (int i = 0; i < len; i++) {
+            Value v = column[i];
+            if (v == ValueNull.INSTANCE) {
+                hasNull = true;
+            } else if (type == Value.NULL) {
+                type = v.getType();
+            } else if (v.getType() != type) {
+                sameType = false;
+                break;
+            }
+        }
+        HashMap<Value, Integer> dictionary = null;
+        if (sameType && isDictionaryType(type)) {
+            dictionary = new HashMap<Value, Integer>();
+            for (int i = 0; i < len; i++) {
+                if (!dictionary.containsKey(column[i])) {
+                    if (dictionary.size() >= len / 2) {
+                        dictionary = null;
+                        break;
+                    }
+                    dictionary.put(column[i], dictionary.size());
+                }
+            }
+        }
+        if (dictionary != null && dictionary.size() == 1) {
+            buff.put((byte) COLUMN_CONSTANT);
+            writeValue(buff, column[0]);
+            return;
+        }
+        boolean delta = sameType && !hasNull && isDeltaType(type);
+        if (delta && dictionary != null) {
+            // use the smaller encoding
+            int start = buff.position();
+            writeDictionaryColumn(buff, column, len, dictionary);
+            int dictionaryLength = buff.position() - start;
+            buff.position(start);
+            writeDeltaColumn(buff, column, len, type);
+            if (buff.position() - start <= dictionaryLength) {
+                return;
+            }
+            buff.position(start);
+            delta = false;
+        }
+        if (delta) {
+            writeDeltaColumn(buff, column, len, type);
+        } else if (dictionary != null) {
+            writeDictionaryColumn(buff, column, len, dictionary);
+        } else {
+            buff.put((byte) COLUMN_PLAIN);
+            for (int i = 0; i < len; i++) {
+                writeValue(buff, column[i]);
+            }
+        }
+    }
+
+    /**
+     * Whether values of this type are only equal if they are stored the same
+     * way (so that a dictionary doesn't change any value).
+     */
+    private static boolean isDictionaryType(int type) {
+        switch (type) {
+        case Value.NULL:
+        case Value.BOOLEAN:
+        case Value.BYTE:
+        case Value.SHORT:
+        case Value.INT:
+        case Value.LONG:
+        case Value.DECIMAL:
+        case Value.DATE:
+        case Value.TIME:
+        case Value.TIMESTAMP:
+        case Value.STRING:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    private static boolean isDeltaType(int type) {
+        switch (type) {
+        case Value.INT:
+        case Value.LONG:
+        case Value.DATE:
+        case Value.TIME:
+        case Value.TIMESTAMP:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    private void writeDictionaryColumn(WriteBuffer buff, Value[] column, int len, HashMap<Value, Integer> dictionary) {
+        int size = dictionary.size();
+        Value[] values = new Value[size];
+        for (Entry<Value, Integer> e : dictionary.entrySet()) {
+            values[e.getValue()] = e.getKey();
+        }
+        buff.put((byte) COLUMN_DICTIONARY).putVarInt(size);
+        for (Value v : values) {
+            writeValue(buff, v);
+        }
+        int bits = 32 - Integer.numberOfLeadingZeros(size - 1);
+        long word = 0;
+        int used = 0;
+        for (int i = 0; i < len; i++) {
+            long index = dictionary.get(column[i]);
+            word |= index << used;
+            used += bits;
+            if (used >= 64) {
+                buff.putLong(word);
+                used -= 64;
+                word = used == 0 ? 0 : index >>> (bits - used);
+            }
+        }
+        if (used > 0) {
+            buff.putLong(word);
+        }
+    }
+
+    private static void writeDeltaColumn(WriteBuffer buff, Value[] column, int len, int type) {
+        buff.put((byte) COLUMN_DELTA).put((byte) type);
+        long last = 0;
+        for (int i = 0; i < len; i++) {
+            Value v = column[i];
+            long x;
+            switch (type) {
+            case Value.DATE:
+                x = ((ValueDate) v).getDateValue();
+                break;
+            case Value.TIME:
+                x = ((ValueTime) v).getNanos();
+                break;
+            case Value.TIMESTAMP:
+                x = ((ValueTimestamp) v).getDateValue();
+                break;
+            default:
+                x = v.getLong();
+            }
+            writeDelta(buff, x - last);
+            last = x;
+        }
+        if (type == Value.TIMESTAMP) {
+            last = 0;
+            for (int i = 0; i < len; i++) {
+                long x = ((ValueTimestamp) column[i]).getNanos();
+                writeDelta(buff, x - last);
+                last = x;
+            }
+        }
+    }
+
+    private static void writeDelta(WriteBuffer buff, long delta) {
+        // zigzag encoding, so that small negative numbers are short as well
+        buff.putVarLong((delta << 1) ^ (delta >> 63));
+    }
+
+    private static long readDelta(ByteBuffer buff) {
+        long x = readVarLong(buff);
+        return (x >>> 1) ^ -(x & 1);
+    }
+
+    private void readColumnar(ByteBuffer buff, Object[] rows, int len) {
+        buff.get();
+        int columnCount = readVarInt(buff);
+        Value[][] lists = new Value[len][columnCount];
+        for (int c = 0; c < columnCount; c++) {
+            readColumn(buff, lists, len, c);
+        }
+        for (int i = 0; i < len; i++) {
+            rows[i] = ValueArray.get(lists[i]);
+        }
+    }
+
+    private void readColumn(ByteBuffer buff, Value[][] lists, int len, int c) {
+        int encoding = buff.get();
+        switch (encoding) {
+        case COLUMN_PLAIN:
+            for (int i = 0; i < len; i++) {
+                lists[i][c] = (Value) readValue(buff);
+            }
+            break;
+        case COLUMN_CONSTANT: {
+            Value v = (Value) readValue(buff);
+            for (int i = 0; i < len; i++) {
+                lists[i][c] = v;
+            }
+            break;
+        }
+        case COLUMN_DICTIONARY: {
+            int size = readVarInt(buff);
+            Value[] values = new Value[size];
+            for (int i = 0; i < size; i++) {
+                values[i] = (Value) readValue(buff);
+            }
+            int bits = 32 - Integer.numberOfLeadingZeros(size - 1);
+            long mask = (1L << bits) - 1;
+            long word = 0;
+            int available = 0;
+            for (int i = 0; i < len; i++) {
+                long index;
+                if (available >= bits) {
+                    index = word & mask;
+                    word >>>= bits;
+                    available -= bits;
+                } else {
+                    long next = buff.getLong();
+                    index = (word | (next << available)) & mask;
+                    word = next >>> (bits - available);
+                    available += 64 - bits;
+                }
+                lists[i][c] = values[(int) index];
+            }
+            break;
+        }
+        case COLUMN_DELTA: {
+            int type = buff.get();
+            long x = 0;
+            long[] first = type == Value.TIMESTAMP ? new long[len] : null;
+            for (int i = 0; i < len; i++) {
+                x += readDelta(buff);
+                switch (type) {
+                case Value.INT:
+                    lists[i][c] = ValueInt.get((int) x);
+                    break;
+                case Value.LONG:
+                    lists[i][c] = ValueLong.get(x);
+                    break;
+                case Value.DATE:
+                    lists[i][c] = ValueDate.fromDateValue(x);
+                    break;
+                case Value.TIME:
+                    lists[i][c] = ValueTime.fromNanos(x);
+                    break;
+                case Value.TIMESTAMP:
+                    first[i] = x;
+                    break;
+                default:
+                    throw DbException.get(ErrorCode.FILE_CORRUPTED_1, "column type: " + type);
+                }
+            }
+            if (type == Value.TIMESTAMP) {
+                x = 0;
+                for (int i = 0; i < len; i++) {
+                    x += readDelta(buff);
+                    lists[i][c] = ValueTimestamp.fromDateValueAndNanos(first[i], x);
+                }
+            }
+            break;
+        }
+        default:
+            throw DbException.get(ErrorCode.FILE_CORRUPTED_1, "column encoding: " + encoding);
+        }
+    }
+
     @Override
     public Object read(ByteBuffer buff) {
         return readValue(buff);
@@ -40,6 +40,7 @@ import org.lealone.mvdb.dbobject.index.HashIndex;
 import org.lealone.mvdb.dbobject.index.NonUniqueHashIndex;
 import org.lealone.mvdb.engine.MVStorageEngine;
 import org.lealone.mvdb.engine.MVStorageEngine.Store;
+import org.lealone.mvstore.compress.CompressorRegistry;
 import org.lealone.result.Row;
 import org.lealone.result.SortOrder;
 import org.lealone.transaction.local.DefaultTransactionEngine;
@@ -86,6 +87,13 @@ public class MVTable extends TableBase {
             }
         }
         traceLock = database.getTrace(Trace.LOCK);
+        if (compression != null && !"NO".equalsIgnoreCase(compression)) {
+            try {
+                CompressorRegistry.getId(compression);
+            } catch (IllegalArgumentException e) {
+                throw DbException.get(ErrorCode.UNSUPPORTED_COMPRESSION_ALGORITHM_1, compression);
+            }
+        }
     }
 
     /**
@@ -127,6 +127,15 @@ public class MVStorageEngine extends StorageEngineBase {
                 // use a larger page split size to improve the compression ratio
                 builder.pageSplitSize(64 * 1024);
             }
+            if (db.getSettings().mmapRead) {
+                builder.memoryMapped();
+            }
+            if (db.getSettings().offHeapCacheSize > 0) {
+                builder.offHeapCacheSize(db.getSettings().offHeapCacheSize);
+            }
+            if (db.getSettings().syncCommit) {
+                builder.syncCommit();
+            }
             builder.backgroundExceptionHandler(new UncaughtExceptionHandler() {
 
                 @Override
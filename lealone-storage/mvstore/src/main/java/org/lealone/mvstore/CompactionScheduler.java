@@ -0,0 +1,537 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.mvstore;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.lealone.engine.Constants;
+import org.lealone.util.Utils;
+
+/**
+ * 增量、并行的MVStore压缩(后台自动压缩时使用)。
+ *
+ * 和MVStore.compact一样，先选出填充率低的chunk，然后把这些chunk中还在使用的页面重写到新的chunk中，
+ * 不同的是重写工作被分成很多小的单元，由多个线程并行处理，
+ * 每次调用compact只工作一个时间片(TIME_SLICE毫秒)，时间片用完就提交已经重写的部分，剩下的单元留到下一次，
+ * 所有单元都处理完之后才释放旧的chunk。
+ *
+ * 一开始每个map的根页面是一个单元，处理内部节点的单元时只是把需要重写的子页面拆成新的单元，
+ * 只有叶子页面才真正重写，所以每个单元的工作量都很小，不管map多大，时间片都不会超时太多。
+ * 一个内部节点的所有子单元都处理完之后再处理这个节点本身(见MVMap.rewriteNode)。
+ *
+ * 同一个map的多个单元可以并行读取和反序列化页面，写操作仍然由map自己同步。
+ * 重写的字节数可以用MAX_RATE限速，避免压缩占用太多的I/O。
+ */
+public class CompactionScheduler {
+
+    private static final String PREFIX = Constants.PROJECT_NAME_PREFIX + "mvstore.compaction.";
+
+    //后台自动压缩是否使用增量压缩，否则使用MVStore.compact
+    static final boolean ENABLED = Utils.getProperty(PREFIX + "incremental", true);
+
+    //每次压缩的时间片(毫秒)
+    static final int TIME_SLICE = Utils.getProperty(PREFIX + "time.slice", 100);
+
+    //并行重写页面的线程数(所有store共享)
+    private static final int THREADS = Utils.getProperty(PREFIX + "threads",
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    //每秒最多重写的KB数，0表示不限速
+    private static final int MAX_RATE = Utils.getProperty(PREFIX + "rate", 0);
+
+    private static ExecutorService executorService;
+    private static int openSchedulers;
+
+    private static synchronized ExecutorService getExecutorService() {
+        if (executorService == null) {
+            executorService = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+                private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "MVStore-Compaction-" + threadNumber.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return executorService;
+    }
+
+    //最后一个store关闭时停掉线程池
+    private static synchronized void release() {
+        if (--openSchedulers == 0 && executorService != null) {
+            executorService.shutdown();
+            executorService = null;
+        }
+    }
+
+    private static synchronized void retain() {
+        openSchedulers++;
+    }
+
+    /**
+     * Get the number of schedulers of open stores that share the threads.
+     *
+     * @return the number of schedulers
+     */
+    static synchronized int getOpenSchedulerCount() {
+        return openSchedulers;
+    }
+
+    private final MVStore store;
+
+    // 当前任务的状态
+    private HashSet<Integer> chunkIds;
+    private final ConcurrentLinkedQueue<Unit> units = new ConcurrentLinkedQueue<Unit>();
+    private final AtomicInteger doneUnits = new AtomicInteger();
+    private final AtomicInteger totalUnits = new AtomicInteger();
+    private long averagePageLength;
+    private volatile boolean aborted;
+    private boolean closed;
+
+    // 限速
+    private long nextFreeNanos;
+
+    // 统计信息
+    private final AtomicLong rewrittenPages = new AtomicLong();
+    private final AtomicLong rewrittenBytes = new AtomicLong();
+    private long writtenBytes;
+    private long jobCount;
+    private long abortedJobCount;
+    private long sliceCount;
+    private long lastSliceTime;
+    private long maxSliceTime;
+
+    CompactionScheduler(MVStore store) {
+        this.store = store;
+        retain();
+    }
+
+    /**
+     * Stop using the shared threads. Called when the store is closed.
+     */
+    void close() {
+        synchronized (store.getCompactSync()) {
+            if (!closed) {
+                closed = true;
+                if (chunkIds != null) {
+                    resetJob(true);
+                }
+                release();
+            }
+        }
+    }
+
+    /**
+     * Work on the compaction for one time slice. If no compaction is in
+     * progress, a new one is started if the fill rate is lower than the
+     * target.
+     *
+     * @param targetFillRate the minimum percentage of live entries
+     * @param write the minimum number of bytes to rewrite in one compaction
+     * @return whether anything was rewritten
+     */
+    boolean compact(int targetFillRate, int write) {
+        synchronized (store.getCompactSync()) {
+            store.checkOpen();
+            if (closed) {
+                return false;
+            }
+            if (chunkIds == null && !startJob(targetFillRate, write)) {
+                return false;
+            }
+            long start = System.currentTimeMillis();
+            try {
+                runSlice(start + TIME_SLICE);
+            } finally {
+                long time = System.currentTimeMillis() - start;
+                sliceCount++;
+                lastSliceTime = time;
+                maxSliceTime = Math.max(maxSliceTime, time);
+            }
+            return true;
+        }
+    }
+
+    private boolean startJob(int targetFillRate, int write) {
+        ArrayList<Chunk> old;
+        synchronized (store) {
+            old = store.compactGetOldChunks(targetFillRate, write);
+        }
+        if (old == null || old.isEmpty()) {
+            return false;
+        }
+        HashSet<Integer> set = new HashSet<Integer>();
+        long length = 0;
+        long pageCount = 0;
+        for (Chunk c : old) {
+            set.add(c.id);
+            length += c.maxLenLive;
+            pageCount += c.pageCountLive;
+        }
+        chunkIds = set;
+        averagePageLength = length / Math.max(1, pageCount);
+        aborted = false;
+        try {
+            for (MVMap<?, ?> map : store.getMapsToCompact()) {
+                if (!map.isClosed()) {
+                    Page root = map.getRewriteRoot();
+                    if (root != null) {
+                        addUnit(new Unit(map, root, null));
+                    }
+                }
+            }
+        } catch (IllegalStateException e) {
+            if (DataUtils.getErrorCode(e.getMessage()) != DataUtils.ERROR_CHUNK_NOT_FOUND) {
+                throw e;
+            }
+            resetJob(true);
+            return false;
+        }
+        return true;
+    }
+
+    private void addUnit(Unit u) {
+        totalUnits.incrementAndGet();
+        units.add(u);
+    }
+
+    private void runSlice(final long deadline) {
+        int threads = Math.min(THREADS, units.size());
+        ArrayList<Future<?>> futures = new ArrayList<Future<?>>(threads);
+        for (int i = 0; i < threads; i++) {
+            futures.add(getExecutorService().submit(new Runnable() {
+                @Override
+                public void run() {
+                    rewriteUnits(deadline);
+                }
+            }));
+        }
+        RuntimeException exception = null;
+        for (Future<?> f : futures) {
+            try {
+                f.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (exception == null) {
+                    exception = cause instanceof RuntimeException ? (RuntimeException) cause
+                            : new RuntimeException(cause);
+                }
+            } catch (InterruptedException e) {
+                aborted = true;
+            }
+        }
+        if (exception != null) {
+            resetJob(true);
+            throw exception;
+        }
+        if (aborted) {
+            resetJob(true);
+            commit();
+            return;
+        }
+        if (units.isEmpty()) {
+            finishJob();
+        } else {
+            // 提交已经重写的页面，让每个时间片的工作都是持久的
+            commit();
+        }
+    }
+
+    private void commit() {
+        FileStore fileStore = store.getFileStore();
+        long bytes = fileStore.getWriteBytes();
+        store.commit();
+        writtenBytes += fileStore.getWriteBytes() - bytes;
+    }
+
+    private void rewriteUnits(long deadline) {
+        Unit u;
+        while (!aborted && System.currentTimeMillis() < deadline && (u = units.poll()) != null) {
+            if (!u.map.isClosed()) {
+                try {
+                    rewriteUnit(u);
+                } catch (IllegalStateException e) {
+                    if (DataUtils.getErrorCode(e.getMessage()) == DataUtils.ERROR_CHUNK_NOT_FOUND) {
+                        aborted = true;
+                        return;
+                    }
+                    throw e;
+                }
+            }
+            doneUnits.incrementAndGet();
+        }
+    }
+
+    private void rewriteUnit(Unit u) {
+        Page p = u.page;
+        if (p.isLeaf()) {
+            int written = u.map.rewrite(p, chunkIds);
+            addRewritten(written);
+            unitDone(u, written);
+            return;
+        }
+        ArrayList<Unit> children = new ArrayList<Unit>();
+        for (int i = 0; i < u.map.getChildPageCount(p); i++) {
+            long childPos = p.getChildPagePos(i);
+            if (childPos != 0 && DataUtils.getPageType(childPos) == DataUtils.PAGE_TYPE_LEAF
+                    && !chunkIds.contains(DataUtils.getPageChunkId(childPos))) {
+                // 不用读这个叶子页面
+                continue;
+            }
+            children.add(new Unit(u.map, p.getChildPage(i), u));
+        }
+        if (children.isEmpty()) {
+            int written = u.map.rewriteNode(p, chunkIds, 0);
+            addRewritten(written);
+            unitDone(u, written);
+            return;
+        }
+        // 先设置好计数，子单元可能马上被其他线程处理完
+        u.pending.set(children.size());
+        for (Unit child : children) {
+            addUnit(child);
+        }
+    }
+
+    /**
+     * A unit and all units below it are rewritten. If it was the last child of
+     * the parent, the parent node itself is rewritten if needed.
+     *
+     * @param u the unit
+     * @param written the number of rewritten pages of the subtree
+     */
+    private void unitDone(Unit u, int written) {
+        Unit parent = u.parent;
+        while (parent != null) {
+            int total = parent.written.addAndGet(written);
+            if (parent.pending.decrementAndGet() != 0 || parent.map.isClosed()) {
+                return;
+            }
+            written = parent.map.rewriteNode(parent.page, chunkIds, total);
+            addRewritten(written - total);
+            parent = parent.parent;
+        }
+    }
+
+    private void addRewritten(int pages) {
+        if (pages > 0) {
+            rewrittenPages.addAndGet(pages);
+            long bytes = pages * averagePageLength;
+            rewrittenBytes.addAndGet(bytes);
+            throttle(bytes);
+        }
+    }
+
+    private void throttle(long bytes) {
+        if (MAX_RATE <= 0 || bytes <= 0) {
+            return;
+        }
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (nextFreeNanos < now) {
+                nextFreeNanos = now;
+            }
+            wait = nextFreeNanos - now;
+            nextFreeNanos += bytes * 1000000000L / (MAX_RATE * 1024L);
+        }
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            } catch (InterruptedException e) {
+                aborted = true;
+            }
+        }
+    }
+
+    private void finishJob() {
+        resetJob(false);
+        store.freeUnusedChunks();
+        commit();
+    }
+
+    private void resetJob(boolean abort) {
+        if (abort) {
+            abortedJobCount++;
+        } else {
+            jobCount++;
+        }
+        chunkIds = null;
+        units.clear();
+        doneUnits.set(0);
+        totalUnits.set(0);
+    }
+
+    /**
+     * Get the progress of the current compaction.
+     *
+     * @return the percentage of the work that is done, 100 if no compaction
+     *         is in progress
+     */
+    public int getProgress() {
+        int total = totalUnits.get();
+        if (total == 0) {
+            return 100;
+        }
+        return (int) Math.min(100, 100L * doneUnits.get() / total);
+    }
+
+    /**
+     * Whether a compaction is in progress.
+     *
+     * @return true if some chunks are being rewritten
+     */
+    public boolean isCompacting() {
+        return totalUnits.get() > 0;
+    }
+
+    /**
+     * Get the number of pages that were rewritten.
+     *
+     * @return the number of pages
+     */
+    public long getRewrittenPages() {
+        return rewrittenPages.get();
+    }
+
+    /**
+     * Get the estimated number of bytes that were rewritten, based on the
+     * maximum length of the pages. This is used to limit the rate.
+     *
+     * @return the number of bytes
+     */
+    public long getRewrittenBytes() {
+        return rewrittenBytes.get();
+    }
+
+    /**
+     * Get the number of finished compactions.
+     *
+     * @return the number of compactions
+     */
+    public long getCompactionCount() {
+        return jobCount;
+    }
+
+    /**
+     * Get the number of compactions that were restarted, because they took
+     * too long or an old chunk was already removed.
+     *
+     * @return the number of aborted compactions
+     */
+    public long getAbortedCompactionCount() {
+        return abortedJobCount;
+    }
+
+    /**
+     * Get the number of time slices.
+     *
+     * @return the number of time slices
+     */
+    public long getSliceCount() {
+        return sliceCount;
+    }
+
+    /**
+     * Get the duration of the last time slice, including the commit.
+     *
+     * @return the duration in milliseconds
+     */
+    public long getLastSliceTime() {
+        return lastSliceTime;
+    }
+
+    /**
+     * Get the longest time slice, including the commit.
+     *
+     * @return the duration in milliseconds
+     */
+    public long getMaxSliceTime() {
+        return maxSliceTime;
+    }
+
+    /**
+     * Get the number of bytes written to the file when committing the
+     * rewritten pages. Changes of other threads that are committed at the
+     * same time are included.
+     *
+     * @return the number of bytes
+     */
+    public long getWrittenBytes() {
+        return writtenBytes;
+    }
+
+    /**
+     * Get the write amplification caused by compaction: the bytes written to
+     * the file divided by the bytes that were not written by compaction.
+     *
+     * @return the write amplification (1 or larger)
+     */
+    public double getWriteAmplification() {
+        long written = store.getFileStore().getWriteBytes();
+        long compaction = Math.min(writtenBytes, written);
+        return (double) written / Math.max(1, written - compaction);
+    }
+
+    /**
+     * Get the space amplification: the length of all chunks divided by the
+     * length of the live pages.
+     *
+     * @return the space amplification (1 or larger)
+     */
+    public double getSpaceAmplification() {
+        return 100.0 / Math.max(1, store.getFillRate());
+    }
+
+    /**
+     * A subtree that is rewritten by one thread, or split into units for the
+     * child pages.
+     */
+    private static class Unit {
+        final MVMap<?, ?> map;
+        final Page page;
+        final Unit parent;
+
+        /**
+         * The number of child units that are not rewritten yet.
+         */
+        final AtomicInteger pending = new AtomicInteger();
+
+        /**
+         * The number of rewritten pages below this page.
+         */
+        final AtomicInteger written = new AtomicInteger();
+
+        Unit(MVMap<?, ?> map, Page page, Unit parent) {
+            this.map = map;
+            this.page = page;
+            this.parent = parent;
+        }
+    }
+}
@@ -119,6 +119,18 @@ public class DataUtils {
      */
     public static final int PAGE_COMPRESSED_HIGH = 2 + 4;
 
+    /**
+     * The bit mask for compressed pages that store the id of the compressor
+     * (see CompressorRegistry).
+     */
+    public static final int PAGE_COMPRESSED_CODEC = 2 + 8;
+
+    /**
+     * The bit mask for pages that store the keys as delta encoded variable
+     * size longs (see LongKeyDataType).
+     */
+    public static final int PAGE_LONG_KEYS = 16;
+
     /**
      * The maximum length of a variable size int.
      */
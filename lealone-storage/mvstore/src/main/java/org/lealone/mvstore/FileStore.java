@@ -6,10 +6,16 @@
 package org.lealone.mvstore;
 
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.nio.channels.OverlappingFileLockException;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.lealone.fs.FilePath;
 import org.lealone.fs.FilePathDisk;
@@ -80,19 +86,61 @@ public class FileStore {
      */
     protected FileLock fileLock;
 
+    /**
+     * Whether pages are read from memory mapped regions of the file.
+     */
+    protected boolean memoryMapped;
+
+    /**
+     * The size of a memory mapped region (64 MB).
+     */
+    private static final int MAPPED_REGION_SHIFT = 26;
+    private static final int MAPPED_REGION_SIZE = 1 << MAPPED_REGION_SHIFT;
+
+    /**
+     * The plain file channel that is used to map the regions,
+     * or null if memory mapping is not used.
+     */
+    private FileChannel mappedFile;
+
+    /**
+     * The mapped regions (copy on write). Region i starts at i * MAPPED_REGION_SIZE;
+     * the last regions may be smaller than the region size and are mapped again
+     * when the file grows.
+     */
+    private volatile MappedByteBuffer[] mappedRegions = new MappedByteBuffer[0];
+
+    /**
+     * Views of the mapped regions are only returned to threads that hold the
+     * read lock, see beginMappedRead. Regions are unmapped with the write lock
+     * held, so that no thread can access a region after it was unmapped.
+     * Null if memory mapping is not used.
+     */
+    private ReentrantReadWriteLock mappedLock;
+
     @Override
     public String toString() {
         return fileName;
     }
 
     /**
-     * Read from the file.
+     * Read from the file. If the current thread called beginMappedRead, the
+     * buffer may be a view of a memory mapped region and must not be used
+     * after endMappedRead; otherwise it is a copy.
      *
      * @param pos the write position
      * @param len the number of bytes to read
      * @return the byte buffer
      */
     public ByteBuffer readFully(long pos, int len) {
+        if (mappedLock != null && mappedLock.getReadHoldCount() > 0 && mappedFile != null) {
+            ByteBuffer buff = readMapped(pos, len);
+            if (buff != null) {
+                readCount++;
+                readBytes += len;
+                return buff;
+            }
+        }
         ByteBuffer dst = ByteBuffer.allocate(len);
         DataUtils.readFully(file, pos, dst);
         readCount++;
@@ -100,6 +148,180 @@ public class FileStore {
         return dst;
     }
 
+    /**
+     * Get a read-only view of the mapped file, without copying.
+     * Chunks are only appended, so the data of a live page does not change while it is read.
+     *
+     * @param pos the position
+     * @param len the number of bytes
+     * @return the buffer, or null if the range is not inside one region of the file
+     */
+    private ByteBuffer readMapped(long pos, int len) {
+        if (pos + len > fileSize) {
+            // the last region may extend past the end of a truncated file
+            return null;
+        }
+        int index = (int) (pos >>> MAPPED_REGION_SHIFT);
+        int offset = (int) (pos & (MAPPED_REGION_SIZE - 1));
+        if (offset + len > MAPPED_REGION_SIZE) {
+            return null;
+        }
+        MappedByteBuffer region = getMappedRegion(index, offset + len);
+        if (region == null) {
+            return null;
+        }
+        ByteBuffer buff = region.duplicate();
+        buff.limit(offset + len).position(offset);
+        return buff.slice();
+    }
+
+    private MappedByteBuffer getMappedRegion(int index, int minLength) {
+        MappedByteBuffer[] regions = mappedRegions;
+        MappedByteBuffer region = index < regions.length ? regions[index] : null;
+        if (region != null && region.capacity() >= minLength) {
+            return region;
+        }
+        synchronized (this) {
+            regions = mappedRegions;
+            region = index < regions.length ? regions[index] : null;
+            if (region != null && region.capacity() >= minLength) {
+                return region;
+            }
+            long start = (long) index << MAPPED_REGION_SHIFT;
+            long size = Math.min(MAPPED_REGION_SIZE, fileSize - start);
+            if (size < minLength) {
+                return null;
+            }
+            try {
+                region = mappedFile.map(FileChannel.MapMode.READ_ONLY, start, size);
+            } catch (IOException e) {
+                throw DataUtils.newIllegalStateException(DataUtils.ERROR_READING_FAILED,
+                        "Could not map file {0} at {1}", fileName, start, e);
+            }
+            if (index >= regions.length) {
+                regions = Arrays.copyOf(regions, index + 1);
+            } else {
+                // the smaller region may still be read by other threads,
+                // so it is released by the garbage collector
+                regions = regions.clone();
+            }
+            regions[index] = region;
+            mappedRegions = regions;
+            return region;
+        }
+    }
+
+    /**
+     * Allow readFully to return views of memory mapped regions to the current
+     * thread, until endMappedRead is called. The views must not be used after
+     * that. Regions are not unmapped in between, so this should only be held
+     * while a page is decoded.
+     */
+    public void beginMappedRead() {
+        ReentrantReadWriteLock lock = mappedLock;
+        if (lock != null) {
+            lock.readLock().lock();
+        }
+    }
+
+    /**
+     * End reading from memory mapped regions, see beginMappedRead.
+     */
+    public void endMappedRead() {
+        ReentrantReadWriteLock lock = mappedLock;
+        if (lock != null) {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Unmap the regions that start at or after the end of the file. Accessing
+     * them would crash the process, and no live page is stored there.
+     * A region that is only partially inside the file is kept, because pages
+     * before the end of the file may be read from it concurrently; readMapped
+     * does not read past the end of the file.
+     * Waits until no other thread reads from a mapped region.
+     *
+     * @param size the new file size
+     */
+    private void unmapAfter(long size) {
+        mappedLock.writeLock().lock();
+        try {
+            synchronized (this) {
+                MappedByteBuffer[] regions = mappedRegions;
+                int keep = (int) Math.min(regions.length, (size + MAPPED_REGION_SIZE - 1) >>> MAPPED_REGION_SHIFT);
+                if (keep < regions.length) {
+                    mappedRegions = Arrays.copyOf(regions, keep);
+                    for (int i = keep; i < regions.length; i++) {
+                        unmap(regions[i]);
+                    }
+                }
+            }
+        } finally {
+            mappedLock.writeLock().unlock();
+        }
+    }
+
+    private static Object unsafe;
+    private static Method invokeCleaner;
+    private static boolean cleanerInitialized;
+
+    /**
+     * Release a mapped region now instead of waiting for the garbage collector,
+     * see http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=4724038
+     * Uses Unsafe.invokeCleaner on Java 9 and later and the cleaner of the
+     * buffer on older versions. If neither is available, the region is
+     * released when it is garbage collected.
+     *
+     * @param region the region (may be null)
+     */
+    static synchronized void unmap(MappedByteBuffer region) {
+        if (region == null) {
+            return;
+        }
+        if (!cleanerInitialized) {
+            cleanerInitialized = true;
+            try {
+                Class<?> c = Class.forName("sun.misc.Unsafe");
+                Field f = c.getDeclaredField("theUnsafe");
+                f.setAccessible(true);
+                unsafe = f.get(null);
+                invokeCleaner = c.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (Throwable e) {
+                // before Java 9
+                unsafe = null;
+                invokeCleaner = null;
+            }
+        }
+        try {
+            if (invokeCleaner != null) {
+                invokeCleaner.invoke(unsafe, region);
+            } else {
+                Method cleanerMethod = region.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(region);
+                if (cleaner != null) {
+                    Method cleanMethod = cleaner.getClass().getMethod("clean");
+                    cleanMethod.setAccessible(true);
+                    cleanMethod.invoke(cleaner);
+                }
+            }
+        } catch (Throwable e) {
+            // released by the garbage collector
+        }
+    }
+
+    /**
+     * Read pages from memory mapped regions of the file instead of copying them to the heap.
+     * This is ignored for encrypted files and file systems that are not on disk.
+     * It has to be called before the file is opened.
+     *
+     * @param memoryMapped whether to use memory mapping
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+    }
+
     /**
      * Write to the file.
      *
@@ -169,6 +391,13 @@ public class FileStore {
                         fileName);
             }
             fileSize = file.size();
+            if (memoryMapped && encryptionKey == null) {
+                FilePath raw = f.unwrap();
+                if (raw instanceof FilePathDisk) {
+                    mappedFile = new RandomAccessFile(raw.toString(), "r").getChannel();
+                    mappedLock = new ReentrantReadWriteLock();
+                }
+            }
         } catch (IOException e) {
             throw DataUtils.newIllegalStateException(DataUtils.ERROR_READING_FAILED, "Could not open file {0}",
                     fileName, e);
@@ -184,6 +413,20 @@ public class FileStore {
                 fileLock.release();
                 fileLock = null;
             }
+            if (mappedFile != null) {
+                mappedLock.writeLock().lock();
+                try {
+                    MappedByteBuffer[] regions = mappedRegions;
+                    mappedRegions = new MappedByteBuffer[0];
+                    for (MappedByteBuffer region : regions) {
+                        unmap(region);
+                    }
+                    mappedFile.close();
+                    mappedFile = null;
+                } finally {
+                    mappedLock.writeLock().unlock();
+                }
+            }
             file.close();
             freeSpace.clear();
         } catch (Exception e) {
@@ -223,8 +466,11 @@ public class FileStore {
     public void truncate(long size) {
         try {
             writeCount++;
-            file.truncate(size);
             fileSize = Math.min(fileSize, size);
+            if (mappedFile != null) {
+                unmapAfter(size);
+            }
+            file.truncate(size);
         } catch (IOException e) {
             throw DataUtils.newIllegalStateException(DataUtils.ERROR_WRITING_FAILED,
                     "Could not truncate file {0} to size {1}", fileName, size, e);
@@ -17,18 +17,92 @@
  */
 package org.lealone.mvstore;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import org.lealone.engine.Constants;
 import org.lealone.mvstore.type.DataType;
 import org.lealone.mvstore.type.ObjectDataType;
+import org.lealone.util.Utils;
 
+/**
+ * 写操作只写到内存中的ConcurrentSkipListMap(current)，由后台的Merger线程把它合并到B-Tree中。
+ *
+ * 合并时先把current换成snapshot，然后按key的顺序每次合并一段(MERGE_CHUNK_SIZE个)到B-Tree，
+ * 每合并完一段就从snapshot中删除这一段，这样snapshot占用的内存是逐步释放的。
+ * 
+ * Merger在以下情况下会合并一个map:
+ * <ul>
+ * <li>delta(current和snapshot)中的记录数超过MAX_DELTA_SIZE，或者按当前的写入速度在下一次检查之前就会超过</li>
+ * <li>堆内存的使用率超过HEAP_USAGE_THRESHOLD</li>
+ * <li>距离上一次合并已经超过MERGE_INTERVAL</li>
+ * </ul>
+ *
+ * 如果store有对应的文件，delta中的每个写操作还会先写到重做日志(RedoLog)中，
+ * 合并完并且store提交后才删除对应的日志段，打开map时重放剩下的日志，所以崩溃时不会丢失还没有合并的写操作。
+ */
 public class LockFreeMVMap<K, V> extends MVMap<K, V> implements Callable<Void> {
 
+    private static final String PREFIX = Constants.PROJECT_NAME_PREFIX + "mvstore.merger.";
+
+    //两次检查之间的间隔(毫秒)
+    private static final int CHECK_INTERVAL = Utils.getProperty(PREFIX + "check.interval", 1000);
+
+    //即使delta很小，超过这个时间(毫秒)也会合并
+    private static final int MERGE_INTERVAL = Utils.getProperty(PREFIX + "interval", 5 * 60 * 1000);
+
+    //delta中的记录数超过这个值就合并
+    private static final int MAX_DELTA_SIZE = Utils.getProperty(PREFIX + "max.delta.size", 64 * 1024);
+
+    //堆内存使用率超过这个百分比就合并所有非空的map
+    private static final int HEAP_USAGE_THRESHOLD = Utils.getProperty(PREFIX + "heap.usage.threshold", 70);
+
+    //每次写B-Tree时合并的记录数
+    private static final int MERGE_CHUNK_SIZE = Utils.getProperty(PREFIX + "chunk.size", 1024);
+
+    //同时合并的map个数
+    private static final int MERGE_THREADS = Utils.getProperty(PREFIX + "threads",
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    //是否使用重做日志
+    private static final boolean REDO_LOG = Utils.getProperty(Constants.PROJECT_NAME_PREFIX + "mvstore.redo.log",
+            true);
+
+    //重做日志的sync策略: commit、periodic或none
+    private static final int REDO_LOG_SYNC = RedoLog.getSyncPolicy(Utils.getProperty(
+            Constants.PROJECT_NAME_PREFIX + "mvstore.redo.sync", "periodic"));
+
+    //periodic和none策略把日志写到文件的间隔(毫秒)
+    private static final int REDO_LOG_SYNC_PERIOD = Utils.getProperty(Constants.PROJECT_NAME_PREFIX
+            + "mvstore.redo.sync.period", 100);
+
+    private static final byte REDO_PUT = 1;
+    private static final byte REDO_REMOVE = 2;
+
+    private static final ThreadLocal<WriteBuffer> redoBuffer = new ThreadLocal<WriteBuffer>() {
+        @Override
+        protected WriteBuffer initialValue() {
+            return new WriteBuffer();
+        }
+    };
+
     private static Merger merger;
     static {
         merger = new Merger();
@@ -52,15 +126,111 @@ public class LockFreeMVMap<K, V> extends MVMap<K, V> implements Callable<Void> {
     //snapshot里的数据是临时只读的
     private volatile ConcurrentSkipListMap<K, ValueHolder<V>> snapshot;
 
+    //current和snapshot中的记录数
+    private final AtomicInteger currentSize = new AtomicInteger();
+    private final AtomicInteger snapshotSize = new AtomicInteger();
+
+    //delta超过MAX_DELTA_SIZE后是否已经唤醒过Merger，Merger检查这个map时清除
+    private final AtomicBoolean mergeRequested = new AtomicBoolean();
+
+    //写操作的总次数，Merger用它估算写入速度
+    private final AtomicLong writeCount = new AtomicLong();
+
+    private volatile long lastMergeTime = System.currentTimeMillis();
+    private volatile long lastMergeDuration;
+    private final AtomicLong totalMergeDuration = new AtomicLong();
+    private final AtomicLong mergeCount = new AtomicLong();
+
+    //以下两个字段只由Merger线程访问
+    private long lastWriteCount;
+    private long lastCheckTime = lastMergeTime;
+
+    private RedoLog redoLog;
+    //写操作持有读锁，切换current和日志段时持有写锁，保证每个日志段只包含切换前或切换后的写操作
+    private final ReentrantReadWriteLock switchLock = new ReentrantReadWriteLock();
+    //上一次合并的最后一个日志段，store提交后就可以删除
+    private volatile int mergedSegmentId = -1;
+
     public LockFreeMVMap(DataType keyType, DataType valueType) {
         super(keyType, valueType);
+    }
+
+    @Override
+    protected void init(MVStore store, HashMap<String, Object> config) {
+        super.init(store, config);
+        FileStore fileStore = store.getFileStore();
+        if (REDO_LOG && fileStore != null && !fileStore.isReadOnly()) {
+            redoLog = new RedoLog(fileStore.getFileName() + "." + getId() + ".", REDO_LOG_SYNC,
+                    REDO_LOG_SYNC_PERIOD);
+            redoLog.open(this);
+        }
+    }
 
+    @Override
+    void setRootPos(long rootPos, long version) {
+        super.setRootPos(rootPos, version);
+        //有了root之后才能合并
         merger.addMap(this);
     }
 
+    /**
+     * Apply a record of the redo log when the map is opened.
+     *
+     * @param buff the record
+     */
+    @SuppressWarnings("unchecked")
+    void redo(ByteBuffer buff) {
+        byte type = buff.get();
+        K key = (K) getKeyType().read(buff);
+        V value = type == REDO_PUT ? (V) getValueType().read(buff) : null;
+        if (current.put(key, new ValueHolder<V>(value)) == null)
+            currentSize.incrementAndGet();
+    }
+
+    private ValueHolder<V> putDelta(K key, ValueHolder<V> vh) {
+        if (redoLog == null)
+            return putDeltaInMemory(key, vh);
+
+        WriteBuffer buff = redoBuffer.get();
+        buff.clear();
+        buff.put(vh.value == null ? REDO_REMOVE : REDO_PUT);
+        getKeyType().write(buff, key);
+        if (vh.value != null)
+            getValueType().write(buff, vh.value);
+        ByteBuffer record = buff.getBuffer();
+        record.flip();
+
+        long lsn;
+        ValueHolder<V> old;
+        switchLock.readLock().lock();
+        try {
+            lsn = redoLog.append(record);
+            old = putDeltaInMemory(key, vh);
+        } finally {
+            switchLock.readLock().unlock();
+        }
+        redoLog.commit(lsn);
+        return old;
+    }
+
+    private ValueHolder<V> putDeltaInMemory(K key, ValueHolder<V> vh) {
+        ValueHolder<V> old = current.put(key, vh);
+        if (old == null)
+            afterDeltaAdded();
+        writeCount.incrementAndGet();
+        return old;
+    }
+
+    private void afterDeltaAdded() {
+        //合并时snapshotSize会减少，多个线程也可能同时增加currentSize，所以不能只在恰好等于MAX_DELTA_SIZE时唤醒
+        if (currentSize.incrementAndGet() + snapshotSize.get() >= MAX_DELTA_SIZE
+                && mergeRequested.compareAndSet(false, true))
+            merger.wakeUp();
+    }
+
     @Override
     public V put(K key, V value) {
-        ValueHolder<V> vh = current.put(key, new ValueHolder<V>(value));
+        ValueHolder<V> vh = putDelta(key, new ValueHolder<V>(value));
         if (vh != null)
             return vh.value;
 
@@ -73,6 +243,7 @@ public class LockFreeMVMap<K, V> extends MVMap<K, V> implements Callable<Void> {
         if (vh != null)
             return vh.value;
 
+        ConcurrentSkipListMap<K, ValueHolder<V>> snapshot = this.snapshot;
         if (snapshot != null) {
             vh = snapshot.get(key);
             if (vh != null)
@@ -85,48 +256,18 @@ public class LockFreeMVMap<K, V> extends MVMap<K, V> implements Callable<Void> {
     @SuppressWarnings("unchecked")
     @Override
     public V remove(Object key) {
-        //按旧到新的次序找，B-Tree中最旧，其次是snapshot，最新是current
-        V old = super.get(key);
+        //按新到旧的次序找，current最新，其次是snapshot，B-Tree中最旧
+        V old = get(key);
         if (old != null)
-            current.put((K) key, new ValueHolder<V>(null));
-
-        ValueHolder<V> vh;
-
-        if (snapshot != null) {
-            vh = snapshot.get(key);
-            if (vh != null && vh.value != null) {
-                current.put((K) key, new ValueHolder<V>(null));
-                old = vh.value;
-            }
-        }
-
-        vh = current.remove(key);
-        if (vh != null && vh.value != null)
-            old = vh.value;
-
+            putDelta((K) key, new ValueHolder<V>(null));
         return old;
     }
 
     @Override
     public V replace(K key, V value) {
-        V old = super.get(key);
+        V old = get(key);
         if (old != null)
-            current.put(key, new ValueHolder<V>(value));
-
-        ValueHolder<V> vh;
-
-        if (snapshot != null) {
-            vh = snapshot.get(key);
-            if (vh != null && vh.value != null) {
-                current.put(key, new ValueHolder<V>(value));
-                old = vh.value;
-            }
-        }
-
-        vh = current.replace(key, new ValueHolder<V>(value));
-        if (vh != null && vh.value != null)
-            old = vh.value;
-
+            putDelta(key, new ValueHolder<V>(value));
         return old;
     }
 
@@ -149,6 +290,42 @@ public class LockFreeMVMap<K, V> extends MVMap<K, V> implements Callable<Void> {
         return size;
     }
 
+    /**
+     * Get the number of entries in memory that are not yet merged into the B-tree.
+     *
+     * @return the number of entries
+     */
+    public int getDeltaSize() {
+        return currentSize.get() + snapshotSize.get();
+    }
+
+    /**
+     * Get the duration of the last merge in milliseconds.
+     *
+     * @return the duration
+     */
+    public long getLastMergeDuration() {
+        return lastMergeDuration;
+    }
+
+    /**
+     * Get the total duration of all merges in milliseconds.
+     *
+     * @return the duration
+     */
+    public long getTotalMergeDuration() {
+        return totalMergeDuration.get();
+    }
+
+    /**
+     * Get the number of merges.
+     *
+     * @return the number of merges
+     */
+    public long getMergeCount() {
+        return mergeCount.get();
+    }
+
     @Override
     public Void call() throws Exception {
         beginMerge();
@@ -156,86 +333,248 @@ public class LockFreeMVMap<K, V> extends MVMap<K, V> implements Callable<Void> {
     }
 
     private void beginMerge() {
+        long now = System.currentTimeMillis();
+        lastMergeTime = now;
         if (current.isEmpty())
             return;
 
-        snapshot = current;
-        current = new ConcurrentSkipListMap<K, ValueHolder<V>>();
+        if (redoLog != null) {
+            switchLock.writeLock().lock();
+            try {
+                switchCurrent();
+                mergedSegmentId = redoLog.roll();
+            } finally {
+                switchLock.writeLock().unlock();
+            }
+        } else {
+            switchCurrent();
+        }
         merge();
         snapshot = null;
+        snapshotSize.set(0);
+
+        long duration = System.currentTimeMillis() - now;
+        lastMergeDuration = duration;
+        totalMergeDuration.addAndGet(duration);
+        mergeCount.incrementAndGet();
+    }
+
+    private void switchCurrent() {
+        snapshot = current;
+        current = new ConcurrentSkipListMap<K, ValueHolder<V>>();
+        //记录数只用于触发合并和监控，切换时的少量误差可以忽略
+        snapshotSize.set(currentSize.getAndSet(0));
+    }
+
+    /**
+     * Called after the store was committed by the merger,
+     * the redo log segments of the merged entries are not needed any more.
+     */
+    private void afterCommit() {
+        int id = mergedSegmentId;
+        if (redoLog != null && id >= 0) {
+            mergedSegmentId = -1;
+            redoLog.deleteSegments(id);
+        }
+    }
+
+    @Override
+    void close() {
+        super.close();
+        if (redoLog != null)
+            redoLog.close();
+    }
+
+    @Override
+    void afterRemove() {
+        //map已经被删除，没有合并的写操作和它们的重做日志都不再需要了
+        super.close();
+        current.clear();
+        currentSize.set(0);
+        if (redoLog != null)
+            redoLog.delete();
     }
 
+    /**
+     * 按key的顺序每次合并MERGE_CHUNK_SIZE条记录，每段都生成一个新的root，
+     * 新root生效后再从snapshot中删除这一段，读线程要么在snapshot中找到，要么在新的B-Tree中找到。
+     */
     private void merge() {
-        beforeWrite();
-
-        long v = writeVersion;
-        Page p = root.copy(v);
-        Object key;
-        Object value;
-
-        for (Entry<K, ValueHolder<V>> e : snapshot.entrySet()) {
-            key = e.getKey();
-            value = e.getValue().value;
-            if (value != null) {
-                p = splitRootIfNeeded(p, v);
-                put(p, v, key, value);
-            } else {
-                remove(p, v, key);
-                if (!p.isLeaf() && p.getTotalCount() == 0) {
-                    p.removePage();
-                    p = Page.createEmpty(this, p.getVersion());
+        Iterator<Map.Entry<K, ValueHolder<V>>> iterator = snapshot.entrySet().iterator();
+        ArrayList<K> merged = new ArrayList<>(MERGE_CHUNK_SIZE);
+        while (iterator.hasNext()) {
+            beforeWrite();
+
+            long v = writeVersion;
+            Page p = root.copy(v);
+            Object key;
+            Object value;
+
+            while (iterator.hasNext() && merged.size() < MERGE_CHUNK_SIZE) {
+                Map.Entry<K, ValueHolder<V>> e = iterator.next();
+                key = e.getKey();
+                value = e.getValue().value;
+                if (value != null) {
+                    p = splitRootIfNeeded(p, v);
+                    put(p, v, key, value);
+                } else {
+                    remove(p, v, key);
+                    if (!p.isLeaf() && p.getTotalCount() == 0) {
+                        p.removePage();
+                        p = Page.createEmpty(this, p.getVersion());
+                    }
                 }
+                merged.add(e.getKey());
             }
+            newRoot(p);
+
+            for (K k : merged)
+                snapshot.remove(k);
+            snapshotSize.addAndGet(-merged.size());
+            merged.clear();
         }
-        newRoot(p);
-        store.commit();
+    }
+
+    /**
+     * 检查是否需要合并
+     * 
+     * @param now 当前时间
+     * @param heapPressure 堆内存使用率是否超过了阈值
+     * @return 需要合并时返回true
+     */
+    private boolean needsMerge(long now, boolean heapPressure) {
+        mergeRequested.set(false);
+        long count = writeCount.get();
+        long writes = count - lastWriteCount;
+        long elapsed = Math.max(1, now - lastCheckTime);
+        lastWriteCount = count;
+        lastCheckTime = now;
+
+        int deltaSize = currentSize.get();
+        if (deltaSize == 0)
+            return false;
+        if (heapPressure || now - lastMergeTime >= MERGE_INTERVAL)
+            return true;
+        //按最近的写入速度估算下一次检查时delta的大小
+        long expected = deltaSize + writes * CHECK_INTERVAL / elapsed;
+        return expected >= MAX_DELTA_SIZE;
     }
 
     public static class Merger extends Thread {
-        private static final ExecutorService executorService = Executors.newCachedThreadPool();
+        private final ExecutorService executorService = Executors.newFixedThreadPool(MERGE_THREADS,
+                new ThreadFactory() {
+                    private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "BTree-Merger-" + threadNumber.getAndIncrement());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
 
         private volatile boolean isRunning;
-        private final ArrayList<LockFreeMVMap<?, ?>> maps = new ArrayList<>();
+        private boolean wakeUp;
+        private final CopyOnWriteArrayList<LockFreeMVMap<?, ?>> maps = new CopyOnWriteArrayList<>();
         private final ArrayList<Future<Void>> futures = new ArrayList<>();
 
-        public synchronized void addMap(LockFreeMVMap<?, ?> map) {
-            maps.add(map);
+        public void addMap(LockFreeMVMap<?, ?> map) {
+            maps.addIfAbsent(map);
         }
 
         public Merger() {
             super("BTree-Merger");
         }
 
-        @Override
-        public void run() {
-            isRunning = true;
-            long millis = 5 * 60 * 1000; //TODO 可配置
-            while (isRunning) {
+        /**
+         * Start the next check immediately.
+         */
+        public synchronized void wakeUp() {
+            wakeUp = true;
+            notify();
+        }
+
+        private synchronized void await() {
+            if (!wakeUp) {
                 try {
-                    sleep(millis);
+                    wait(CHECK_INTERVAL);
                 } catch (InterruptedException e) {
                     //e.printStackTrace();
                 }
+            }
+            wakeUp = false;
+        }
+
+        @Override
+        public void run() {
+            isRunning = true;
+            ArrayList<LockFreeMVMap<?, ?>> toMerge = new ArrayList<>();
+            ArrayList<LockFreeMVMap<?, ?>> merged = new ArrayList<>();
+            Map<MVStore, MVStore> stores = new IdentityHashMap<>();
+            while (isRunning) {
+                await();
+                if (!isRunning)
+                    break;
 
+                long now = System.currentTimeMillis();
+                boolean heapPressure = isHeapPressure();
                 for (LockFreeMVMap<?, ?> map : maps) {
+                    if (map.isClosed())
+                        maps.remove(map);
+                    else if (map.needsMerge(now, heapPressure))
+                        toMerge.add(map);
+                }
+                if (toMerge.isEmpty())
+                    continue;
+
+                //delta大的先合并
+                Collections.sort(toMerge, new Comparator<LockFreeMVMap<?, ?>>() {
+                    @Override
+                    public int compare(LockFreeMVMap<?, ?> m1, LockFreeMVMap<?, ?> m2) {
+                        return Integer.compare(m2.getDeltaSize(), m1.getDeltaSize());
+                    }
+                });
+                for (LockFreeMVMap<?, ?> map : toMerge) {
                     futures.add(executorService.submit(map));
+                    stores.put(map.getStore(), map.getStore());
                 }
 
-                for (Future<Void> f : futures) {
+                for (int i = 0, size = futures.size(); i < size; i++) {
                     try {
-                        f.get();
+                        futures.get(i).get();
+                        merged.add(toMerge.get(i));
                     } catch (Exception e) {
                         //e.printStackTrace();
                     }
                 }
 
+                //同一个store只提交一次，
+                //删除重做日志前合并后的B-Tree必须已经sync到磁盘，否则断电后这些写操作就丢了
+                for (MVStore store : stores.keySet()) {
+                    if (!store.isClosed())
+                        store.commitAndSync();
+                }
+                for (LockFreeMVMap<?, ?> map : merged) {
+                    if (!map.getStore().isClosed())
+                        map.afterCommit();
+                }
+
                 futures.clear();
+                toMerge.clear();
+                merged.clear();
+                stores.clear();
             }
         }
 
+        private static boolean isHeapPressure() {
+            Runtime rt = Runtime.getRuntime();
+            long used = rt.totalMemory() - rt.freeMemory();
+            return used * 100 >= rt.maxMemory() * HEAP_USAGE_THRESHOLD;
+        }
+
         public void stopMerger() {
             isRunning = false;
-            interrupt();
+            wakeUp();
             try {
                 join();
             } catch (InterruptedException e) {
@@ -15,7 +15,9 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
 
+import org.lealone.mvstore.compress.CompressorRegistry;
 import org.lealone.mvstore.type.DataType;
+import org.lealone.mvstore.type.LongKeyDataType;
 import org.lealone.mvstore.type.ObjectDataType;
 import org.lealone.util.New;
 
@@ -61,6 +63,16 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
     private boolean closed;
     private boolean readOnly;
     private boolean isVolatile;
+    private volatile int compressorId = -1;
+    private volatile boolean longKeys;
+
+    /**
+     * Page cache statistics of this map. They are updated without
+     * synchronization, so the values are approximations.
+     */
+    long cacheHits;
+    long cacheMisses;
+    long cacheEvictions;
 
     protected MVMap(DataType keyType, DataType valueType) {
         this.keyType = keyType;
@@ -517,6 +529,13 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
         return closed;
     }
 
+    /**
+     * Called by the store after the map was removed.
+     */
+    void afterRemove() {
+        // nothing to do
+    }
+
     /**
      * Remove a key-value pair, if the key exists.
      *
@@ -756,22 +775,12 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
      * @return whether rewriting was successful
      */
     boolean rewrite(Set<Integer> set) {
-        // read from old version, to avoid concurrent reads
-        long previousVersion = store.getCurrentVersion() - 1;
-        if (previousVersion < createVersion) {
-            // a new map
+        Page root = getRewriteRoot();
+        if (root == null) {
             return true;
         }
-        MVMap<K, V> readMap;
         try {
-            readMap = openVersion(previousVersion);
-        } catch (IllegalArgumentException e) {
-            // unknown version: ok
-            // TODO should not rely on exception handling
-            return true;
-        }
-        try {
-            rewrite(readMap.root, set);
+            rewrite(root, set);
             return true;
         } catch (IllegalStateException e) {
             // TODO should not rely on exception handling
@@ -783,7 +792,36 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
         }
     }
 
-    private int rewrite(Page p, Set<Integer> set) {
+    /**
+     * Get the root page of the previous version. Pages are rewritten by
+     * reading this version, to avoid concurrent reads.
+     *
+     * @return the root page, or null if there is nothing to rewrite
+     */
+    Page getRewriteRoot() {
+        long previousVersion = store.getCurrentVersion() - 1;
+        if (previousVersion < createVersion) {
+            // a new map
+            return null;
+        }
+        try {
+            return openVersion(previousVersion).root;
+        } catch (IllegalArgumentException e) {
+            // unknown version: ok
+            // TODO should not rely on exception handling
+            return null;
+        }
+    }
+
+    /**
+     * Re-write the pages of the given subtree that belong to one of the chunks
+     * in the given set.
+     *
+     * @param p the root of the subtree (of an old version)
+     * @param set the set of chunk ids
+     * @return the number of rewritten pages
+     */
+    int rewrite(Page p, Set<Integer> set) {
         if (p.isLeaf()) {
             long pos = p.getPos();
             int chunkId = DataUtils.getPageChunkId(pos);
@@ -814,6 +852,18 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
             }
             writtenPageCount += rewrite(p.getChildPage(i), set);
         }
+        return rewriteNode(p, set, writtenPageCount);
+    }
+
+    /**
+     * Re-write an inner node page after its children were processed.
+     *
+     * @param p the page (of an old version)
+     * @param set the set of chunk ids
+     * @param writtenPageCount the number of rewritten pages below this page
+     * @return the number of rewritten pages, including this page
+     */
+    int rewriteNode(Page p, Set<Integer> set, int writtenPageCount) {
         if (writtenPageCount == 0) {
             long pos = p.getPos();
             int chunkId = DataUtils.getPageChunkId(pos);
@@ -1006,6 +1056,83 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
         this.isVolatile = isVolatile;
     }
 
+    /**
+     * Set the compression algorithm for the pages of this map that are written from now on.
+     * Pages that are already stored keep their compression.
+     *
+     * @param compressorName the name of the algorithm (see CompressorRegistry),
+     *            "NO" to disable compression, or null to use the setting of the store
+     */
+    public void setCompressor(String compressorName) {
+        if (compressorName == null)
+            compressorId = -1;
+        else if ("NO".equalsIgnoreCase(compressorName))
+            compressorId = 0;
+        else
+            compressorId = CompressorRegistry.getId(compressorName);
+    }
+
+    /**
+     * Keep the keys of the pages of this map in a long[] (see
+     * LongKeyDataType). Pages that are already in memory keep their layout
+     * until they are changed or read again. All keys of the map must be
+     * convertible to long.
+     *
+     * @param longKeys whether to use the long key layout
+     */
+    public void setLongKeys(boolean longKeys) {
+        DataUtils.checkArgument(!longKeys || keyType instanceof LongKeyDataType,
+                "The key type {0} is not a LongKeyDataType", keyType.getClass().getName());
+        this.longKeys = longKeys;
+    }
+
+    /**
+     * Whether new pages of this map keep their keys in a long[].
+     *
+     * @return true if the long key layout is used
+     */
+    boolean isLongKeys() {
+        return longKeys;
+    }
+
+    /**
+     * Get the id of the compression algorithm for new pages of this map.
+     *
+     * @return the id, 0 for no compression
+     */
+    int getCompressorId() {
+        int id = compressorId;
+        return id < 0 ? store.getCompressorId() : id;
+    }
+
+    /**
+     * Get the number of pages of this map that were found in the page cache.
+     *
+     * @return the number of cache hits
+     */
+    public long getCacheHits() {
+        return cacheHits;
+    }
+
+    /**
+     * Get the number of pages of this map that had to be read from the file.
+     *
+     * @return the number of cache misses
+     */
+    public long getCacheMisses() {
+        return cacheMisses;
+    }
+
+    /**
+     * Get the number of pages of this map that were evicted from the page
+     * cache.
+     *
+     * @return the number of evictions
+     */
+    public long getCacheEvictions() {
+        return cacheEvictions;
+    }
+
     /**
      * Whether this is volatile map, meaning that changes
      * are not persisted. By default (even if the store is not persisted),
@@ -1134,6 +1261,7 @@ public class MVMap<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V
     MVMap<K, V> openReadOnly() {
         MVMap<K, V> m = new MVMap<K, V>(keyType, valueType);
         m.readOnly = true;
+        m.longKeys = longKeys;
         HashMap<String, Object> config = New.hashMap();
         config.put("id", id);
         config.put("createVersion", createVersion);
@@ -18,12 +18,16 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.lealone.compress.CompressDeflate;
 import org.lealone.compress.CompressLZF;
 import org.lealone.compress.Compressor;
+import org.lealone.mvstore.compress.CompressorRegistry;
 import org.lealone.mvstore.Page.PageChildren;
 import org.lealone.mvstore.cache.CacheLongKeyLIRS;
+import org.lealone.mvstore.cache.OffHeapPageCache;
 import org.lealone.mvstore.type.StringDataType;
 import org.lealone.util.MathUtils;
 import org.lealone.util.New;
@@ -171,6 +175,13 @@ public class MVStore {
      */
     private CacheLongKeyLIRS<PageChildren> cacheChunkRef;
 
+    /**
+     * The second level cache for serialized pages in direct memory, or null.
+     * Pages that are not in the page cache are read from here before they
+     * are read from the file.
+     */
+    private OffHeapPageCache offHeapCache;
+
     /**
      * The newest chunk. If nothing was stored yet, this field is not set.
      */
@@ -214,6 +225,16 @@ public class MVStore {
 
     private Compressor compressorHigh;
 
+    /**
+     * The id of the compression algorithm for new pages of maps without their own setting,
+     * 0 for no compression.
+     */
+    private final int compressorId;
+
+    //读写页面的线程都可能创建压缩器，用AtomicReferenceArray保证其他线程能看到完整创建的实例
+    private final AtomicReferenceArray<Compressor> compressors = new AtomicReferenceArray<>(
+            CompressorRegistry.MAX_ID + 1);
+
     private final UncaughtExceptionHandler backgroundExceptionHandler;
 
     private long currentVersion;
@@ -264,6 +285,43 @@ public class MVStore {
 
     private final Object compactSync = new Object();
 
+    /**
+     * The scheduler of the incremental compaction, or null if the background
+     * thread uses compact.
+     */
+    private CompactionScheduler compactionScheduler;
+
+    /**
+     * Whether commitAndSync is used to commit transactions.
+     */
+    private final boolean syncCommit;
+
+    /**
+     * The lock of the sync stage of the group commit.
+     */
+    private final Object syncSync = new Object();
+
+    /**
+     * Whether a thread is currently syncing the file (the leader of the
+     * batch), protected by syncSync.
+     */
+    private boolean syncing;
+
+    /**
+     * The number of store operations that were started and that completed.
+     * A store that started after a change was made contains the change.
+     */
+    private volatile long storeStartCount, storeEndCount;
+
+    /**
+     * The number of store operations that are known to be synced, protected
+     * by syncSync.
+     */
+    private long syncedStoreCount;
+
+    private final AtomicLong syncCommitCount = new AtomicLong();
+    private final AtomicLong groupSyncCount = new AtomicLong();
+
     private IllegalStateException panicException;
 
     /**
@@ -277,6 +335,15 @@ public class MVStore {
     MVStore(HashMap<String, Object> config) {
         Object o = config.get("compress");
         this.compressionLevel = o == null ? 0 : (Integer) o;
+        o = config.get("compressor");
+        if (o != null)
+            compressorId = CompressorRegistry.getId((String) o);
+        else if (compressionLevel == 1)
+            compressorId = CompressorRegistry.LZF;
+        else if (compressionLevel == 2)
+            compressorId = CompressorRegistry.DEFLATE;
+        else
+            compressorId = 0;
         String fileName = (String) config.get("fileName");
         o = config.get("pageSplitSize");
         if (o == null) {
@@ -286,6 +353,7 @@ public class MVStore {
         }
         o = config.get("backgroundExceptionHandler");
         this.backgroundExceptionHandler = (UncaughtExceptionHandler) o;
+        syncCommit = config.containsKey("syncCommit");
         meta = new MVMap<String, String>(StringDataType.INSTANCE, StringDataType.INSTANCE);
         HashMap<String, Object> c = New.hashMap();
         c.put("id", 0);
@@ -307,13 +375,26 @@ public class MVStore {
         boolean readOnly = config.containsKey("readOnly");
         o = config.get("cacheSize");
         int mb = o == null ? 16 : (Integer) o;
-        if (mb > 0) {
-            long maxMemoryBytes = mb * 1024L * 1024L;
+        long maxMemoryBytes = mb * 1024L * 1024L;
+        o = config.get("cacheSizeBytes");
+        if (o != null) {
+            maxMemoryBytes = (Long) o;
+        }
+        if (maxMemoryBytes > 0) {
             int segmentCount = 16;
             int stackMoveDistance = 8;
-            cache = new CacheLongKeyLIRS<Page>(maxMemoryBytes, segmentCount, stackMoveDistance);
+            cache = new CacheLongKeyLIRS<Page>(maxMemoryBytes, segmentCount, stackMoveDistance, true) {
+                @Override
+                protected void onEviction(long key, Page value) {
+                    value.getMap().cacheEvictions++;
+                }
+            };
             cacheChunkRef = new CacheLongKeyLIRS<PageChildren>(maxMemoryBytes / 4, segmentCount, stackMoveDistance);
         }
+        o = config.get("offHeapCacheSize");
+        if (o != null && (Integer) o > 0) {
+            offHeapCache = new OffHeapPageCache((Integer) o * 1024L * 1024L);
+        }
         o = config.get("autoCommitBufferSize");
         int kb = o == null ? 1024 : (Integer) o;
         // 19 KB memory is about 1 KB storage
@@ -321,10 +402,14 @@ public class MVStore {
 
         o = config.get("autoCompactFillRate");
         autoCompactFillRate = o == null ? 50 : (Integer) o;
+        if (CompactionScheduler.ENABLED) {
+            compactionScheduler = new CompactionScheduler(this);
+        }
 
         char[] encryptionKey = (char[]) config.get("encryptionKey");
         try {
             if (!fileStoreIsProvided) {
+                fileStore.setMemoryMapped(config.containsKey("memoryMapped"));
                 fileStore.open(fileName, readOnly, encryptionKey);
             }
             if (fileStore.size() == 0) {
@@ -378,7 +463,8 @@ public class MVStore {
         if (fileName != null)
             store = MVStoreCache.getMVStore(fileName);
 
-        if (store == null) {
+        //关闭后的store不能再用，重新打开文件
+        if (store == null || store.isClosed()) {
             store = new MVStore(config);
             if (fileName != null)
                 MVStoreCache.putMVStore(fileName, store);
@@ -797,6 +883,9 @@ public class MVStore {
         // the thread also synchronized on this, which
         // could result in a deadlock
         stopBackgroundThread();
+        if (compactionScheduler != null) {
+            compactionScheduler.close();
+        }
         closed = true;
         if (fileStore == null) {
             return;
@@ -809,6 +898,10 @@ public class MVStore {
             // because of out of memory
             cache = null;
             cacheChunkRef = null;
+            if (offHeapCache != null) {
+                offHeapCache.clear();
+                offHeapCache = null;
+            }
             for (MVMap<?, ?> m : New.arrayList(maps.values())) {
                 m.close();
             }
@@ -934,7 +1027,10 @@ public class MVStore {
         try {
             currentStoreVersion = currentVersion;
             currentStoreThread = Thread.currentThread();
-            return storeNow();
+            storeStartCount++;
+            long v = storeNow();
+            storeEndCount = storeStartCount;
+            return v;
         } finally {
             // in any case reset the current store version,
             // to allow closing the store
@@ -1147,7 +1243,10 @@ public class MVStore {
         return version;
     }
 
-    private synchronized void freeUnusedChunks() {
+    /**
+     * Free the chunks that are no longer used.
+     */
+    synchronized void freeUnusedChunks() {
         if (lastChunk == null || !reuseSpace) {
             return;
         }
@@ -1259,7 +1358,12 @@ public class MVStore {
                             "Negative position {0}; p={1}, c={2}", filePos, pos, c.toString());
                 }
                 long maxPos = (c.block + c.len) * BLOCK_SIZE;
-                r = PageChildren.read(fileStore, pos, mapId, filePos, maxPos);
+                fileStore.beginMappedRead();
+                try {
+                    r = PageChildren.read(fileStore, pos, mapId, filePos, maxPos);
+                } finally {
+                    fileStore.endMappedRead();
+                }
             }
             r.removeDuplicateChunkReferences();
             if (cacheChunkRef != null) {
@@ -1631,6 +1735,117 @@ public class MVStore {
         fileStore.sync();
     }
 
+    /**
+     * Commit all changes, and wait until they are synced to the storage (group
+     * commit).
+     * <p>
+     * Threads that call this method concurrently share the work: the first
+     * thread to get the store lock writes one chunk with the changes of all
+     * of them, and the others find their changes already stored. Syncing is
+     * decoupled from storing: one thread syncs the file for everything that
+     * was stored so far while the next chunk is already being written, and
+     * each sync acknowledges all committers of the chunks it covers.
+     * <p>
+     * For in-memory stores, this method is the same as commit.
+     *
+     */
+    public void commitAndSync() {
+        FileStore f = fileStore;
+        if (f == null) {
+            commit();
+            return;
+        }
+        syncCommitCount.incrementAndGet();
+        // the changes of the caller are contained in all stores that start
+        // from now on
+        long target = storeIfNeeded(storeStartCount + 1);
+        syncStored(f, target);
+    }
+
+    /**
+     * Store the changes, unless another thread already stored them.
+     *
+     * @param target the first store operation that contains the changes
+     * @return the number of completed store operations
+     */
+    private synchronized long storeIfNeeded(long target) {
+        if (storeEndCount < target) {
+            commitAndSave();
+        }
+        return storeEndCount;
+    }
+
+    /**
+     * Wait until the given number of store operations is synced. If no other
+     * thread is syncing, the current thread syncs everything that was stored
+     * so far.
+     *
+     * @param f the file store
+     * @param target the number of store operations
+     */
+    private void syncStored(FileStore f, long target) {
+        while (true) {
+            long stored;
+            synchronized (syncSync) {
+                while (syncing && syncedStoreCount < target) {
+                    try {
+                        syncSync.wait();
+                    } catch (InterruptedException e) {
+                        throw DataUtils.newIllegalStateException(DataUtils.ERROR_WRITING_FAILED,
+                                "Interrupted while waiting for the sync", e);
+                    }
+                }
+                if (syncedStoreCount >= target || closed) {
+                    return;
+                }
+                syncing = true;
+                stored = storeEndCount;
+            }
+            boolean synced = false;
+            try {
+                f.sync();
+                groupSyncCount.incrementAndGet();
+                synced = true;
+            } finally {
+                synchronized (syncSync) {
+                    if (synced && stored > syncedStoreCount) {
+                        syncedStoreCount = stored;
+                    }
+                    syncing = false;
+                    syncSync.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether transactions are committed with commitAndSync.
+     *
+     * @return true if each commit waits until the changes are synced
+     */
+    public boolean isSyncCommit() {
+        return syncCommit;
+    }
+
+    /**
+     * Get the number of calls to commitAndSync.
+     *
+     * @return the number of durable commits
+     */
+    public long getSyncCommitCount() {
+        return syncCommitCount.get();
+    }
+
+    /**
+     * Get the number of times commitAndSync synced the file. The number of
+     * durable commits divided by this number is the average batch size.
+     *
+     * @return the number of syncs
+     */
+    public long getGroupSyncCount() {
+        return groupSyncCount.get();
+    }
+
     /**
      * Try to increase the fill rate by re-writing partially full chunks. Chunks
      * with a low number of live items are re-written.
@@ -1667,7 +1882,15 @@ public class MVStore {
         }
     }
 
-    private ArrayList<Chunk> compactGetOldChunks(int targetFillRate, int write) {
+    /**
+     * Get the chunks with a low fill rate that should be rewritten first. The
+     * caller has to synchronize on the store.
+     *
+     * @param targetFillRate the minimum percentage of live entries
+     * @param write the minimum number of bytes to write
+     * @return the chunks, or null
+     */
+    ArrayList<Chunk> compactGetOldChunks(int targetFillRate, int write) {
         if (lastChunk == null) {
             // nothing to do
             return null;
@@ -1791,7 +2014,10 @@ public class MVStore {
             throw DataUtils.newIllegalStateException(DataUtils.ERROR_FILE_CORRUPT, "Position 0");
         }
         Page p = cache == null ? null : cache.get(pos);
-        if (p == null) {
+        if (p != null) {
+            map.cacheHits++;
+        } else {
+            map.cacheMisses++;
             Chunk c = getChunk(pos);
             long filePos = c.block * BLOCK_SIZE;
             filePos += DataUtils.getPageOffset(pos);
@@ -1800,8 +2026,33 @@ public class MVStore {
                         .newIllegalStateException(DataUtils.ERROR_FILE_CORRUPT, "Negative position {0}", filePos);
             }
             long maxPos = (c.block + c.len) * BLOCK_SIZE;
-            p = Page.read(fileStore, pos, map, filePos, maxPos);
-            cachePage(pos, p, p.getMemory());
+            OffHeapPageCache l2 = offHeapCache;
+            ByteBuffer buff = l2 == null ? null : l2.get(pos);
+            if (buff != null) {
+                p = Page.read(buff, pos, map);
+            } else {
+                // the buffer may be a view of a mapped region, which must
+                // not be unmapped before the page is decoded
+                fileStore.beginMappedRead();
+                try {
+                    buff = Page.readBuffer(fileStore, pos, filePos, maxPos);
+                    int start = buff.position();
+                    int pageLength = buff.getInt(start);
+                    ByteBuffer page = buff.duplicate();
+                    p = Page.read(buff, pos, map);
+                    if (l2 != null) {
+                        page.limit(start + pageLength);
+                        l2.put(pos, page);
+                    }
+                } finally {
+                    fileStore.endMappedRead();
+                }
+            }
+            if (cache != null) {
+                // pages that are read only once, for example by a large scan,
+                // should not replace the pages that are used more often
+                cache.putIfAdmitted(pos, p, p.getMemory());
+            }
         }
         return p;
     }
@@ -1836,6 +2087,9 @@ public class MVStore {
                 cache.remove(pos);
             }
         }
+        if (offHeapCache != null) {
+            offHeapCache.remove(pos);
+        }
 
         Chunk c = getChunk(pos);
         long version = currentVersion;
@@ -1890,6 +2144,32 @@ public class MVStore {
         return compressionLevel;
     }
 
+    int getCompressorId() {
+        return compressorId;
+    }
+
+    /**
+     * Get the compressor with the given id.
+     *
+     * @param id the id (see CompressorRegistry)
+     * @return the compressor
+     */
+    Compressor getCompressor(int id) {
+        switch (id) {
+        case CompressorRegistry.LZF:
+            return getCompressorFast();
+        case CompressorRegistry.DEFLATE:
+            return getCompressorHigh();
+        }
+        Compressor c = compressors.get(id);
+        if (c == null) {
+            c = CompressorRegistry.create(id);
+            if (!compressors.compareAndSet(id, null, c))
+                c = compressors.get(id);
+        }
+        return c;
+    }
+
     public int getPageSplitSize() {
         return pageSplitSize;
     }
@@ -2237,7 +2517,59 @@ public class MVStore {
         return storeHeader;
     }
 
-    private void checkOpen() {
+    /**
+     * Get the object to synchronize on while compacting.
+     *
+     * @return the object
+     */
+    Object getCompactSync() {
+        return compactSync;
+    }
+
+    /**
+     * Get the open maps, including the meta map.
+     *
+     * @return the maps
+     */
+    ArrayList<MVMap<?, ?>> getMapsToCompact() {
+        ArrayList<MVMap<?, ?>> list = New.arrayList(maps.values());
+        list.add(meta);
+        return list;
+    }
+
+    /**
+     * Get the fill rate of all chunks: the length of the live pages divided
+     * by the length of all pages.
+     *
+     * @return the fill rate in percent (0 to 100)
+     */
+    public synchronized int getFillRate() {
+        long maxLengthSum = 0;
+        long maxLengthLiveSum = 0;
+        for (Chunk c : chunks.values()) {
+            maxLengthSum += c.maxLen;
+            maxLengthLiveSum += c.maxLenLive;
+        }
+        if (maxLengthSum <= 0) {
+            return 100;
+        }
+        return (int) (100 * maxLengthLiveSum / maxLengthSum);
+    }
+
+    /**
+     * Get the scheduler of the incremental compaction that is used by the
+     * background thread.
+     *
+     * @return the scheduler, or null if the background thread uses compact
+     */
+    public CompactionScheduler getCompactionScheduler() {
+        return compactionScheduler;
+    }
+
+    /**
+     * Check whether the store is open.
+     */
+    void checkOpen() {
         if (closed) {
             throw DataUtils.newIllegalStateException(DataUtils.ERROR_CLOSED, "This store is closed", panicException);
         }
@@ -2282,6 +2614,7 @@ public class MVStore {
         meta.remove("name." + name);
         meta.remove(MVMap.getMapRootKey(id));
         maps.remove(id);
+        map.afterRemove();
     }
 
     /**
@@ -2337,7 +2670,13 @@ public class MVStore {
                 int fillRate = fileOps ? autoCompactFillRate / 3 : autoCompactFillRate;
                 // TODO how to avoid endless compaction if there is a bug
                 // in the bookkeeping?
-                compact(fillRate, autoCommitMemory);
+                if (compactionScheduler != null) {
+                    if (reuseSpace) {
+                        compactionScheduler.compact(fillRate, autoCommitMemory);
+                    }
+                } else {
+                    compact(fillRate, autoCommitMemory);
+                }
                 autoCompactLastFileOpCount = fileStore.getWriteCount() + fileStore.getReadCount();
             } catch (Exception e) {
                 if (backgroundExceptionHandler != null) {
@@ -2494,6 +2833,15 @@ public class MVStore {
         return cache;
     }
 
+    /**
+     * Get the second level page cache.
+     *
+     * @return the cache, or null if not used
+     */
+    public OffHeapPageCache getOffHeapCache() {
+        return offHeapCache;
+    }
+
     /**
      * A background writer thread to automatically store changes from time to
      * time.
@@ -2645,6 +2993,35 @@ public class MVStore {
             return set("cacheSize", mb);
         }
 
+        /**
+         * Set the read cache size in bytes. The memory of each cached page is
+         * estimated from its content, so pages of different sizes use a
+         * different part of the cache. This overrides cacheSize.
+         *
+         * @param bytes the cache size in bytes
+         * @return this
+         */
+        public Builder cacheSizeBytes(long bytes) {
+            return set("cacheSizeBytes", bytes);
+        }
+
+        /**
+         * Set the size of the second level page cache in MB. The default is 0
+         * (disabled). This cache keeps serialized (and, if page compression is
+         * used, compressed) pages in direct memory, so that a large cache does
+         * not increase the heap size and the garbage collection time. Pages
+         * that are found there only need to be deserialized.
+         * <p>
+         * The direct memory is limited by the JVM option
+         * -XX:MaxDirectMemorySize.
+         *
+         * @param mb the cache size in megabytes
+         * @return this
+         */
+        public Builder offHeapCacheSize(int mb) {
+            return set("offHeapCacheSize", mb);
+        }
+
         /**
          * Compress data before writing using the LZF algorithm. This will save
          * about 50% of the disk space, but will slow down read and write
@@ -2675,6 +3052,46 @@ public class MVStore {
             return set("compress", 2);
         }
 
+        /**
+         * Read pages from memory mapped regions of the file. Pages are decoded
+         * directly from the mapping instead of being copied to the heap first,
+         * and the operating system page cache is used as the read buffer.
+         * <p>
+         * This is ignored for encrypted files and for file systems that are not
+         * on disk. A page that crosses a region boundary is read as usual.
+         *
+         * @return this
+         */
+        public Builder memoryMapped() {
+            return set("memoryMapped", 1);
+        }
+
+        /**
+         * Let the transaction engine commit each transaction with
+         * commitAndSync, so that a commit returns only after the changes are
+         * synced. Concurrent commits are grouped into one chunk and one sync.
+         *
+         * @return this
+         */
+        public Builder syncCommit() {
+            return set("syncCommit", 1);
+        }
+
+        /**
+         * Compress data before writing using the given algorithm, for example
+         * "LZ4" or "LZ4_HIGH" (see CompressorRegistry). Each map can override
+         * this with MVMap.setCompressor.
+         * <p>
+         * This setting only affects writes; the algorithm of each page is
+         * stored in the page.
+         *
+         * @param compressorName the name of the algorithm
+         * @return this
+         */
+        public Builder compress(String compressorName) {
+            return set("compressor", compressorName);
+        }
+
         /**
          * Set the amount of memory a page should contain at most, in bytes,
          * before it is split. The default is 16 KB for persistent stores and 4
@@ -2728,7 +3145,8 @@ public class MVStore {
             if (fileName != null)
                 store = MVStoreCache.getMVStore(fileName);
 
-            if (store == null) {
+            //关闭后的store不能再用，重新打开文件
+            if (store == null || store.isClosed()) {
                 store = new MVStore(config);
                 if (fileName != null)
                     MVStoreCache.putMVStore(fileName, store);
@@ -10,7 +10,9 @@ import java.util.HashSet;
 import java.util.Set;
 
 import org.lealone.compress.Compressor;
+import org.lealone.mvstore.compress.CompressorRegistry;
 import org.lealone.mvstore.type.DataType;
+import org.lealone.mvstore.type.LongKeyDataType;
 import org.lealone.util.New;
 
 /**
@@ -24,9 +26,11 @@ import org.lealone.util.New;
  * check value: short
  * map id: varInt
  * number of keys: varInt
- * type: byte (0: leaf, 1: node; +2: compressed)
+ * type: byte (0: leaf, 1: node; +2: compressed; +4: compressed with deflate; +8: compressed with the compressor id;
+ * +16: long keys)
+ * compressor id: varInt (only if +8, see CompressorRegistry)
  * compressed: bytes saved (varInt)
- * keys
+ * keys (if +16: the first key as a varLong, then the difference to the previous key as a varLong)
  * leaf: values (one for each key)
  * node: children (1 more than keys)
  */
@@ -37,6 +41,11 @@ public class Page {
      */
     public static final Object[] EMPTY_OBJECT_ARRAY = new Object[0];
 
+    /**
+     * The estimated memory used by a key of a page with long keys.
+     */
+    private static final int LONG_KEY_MEMORY = 8;
+
     private final MVMap<?, ?> map;
     private long version;
     private long pos;
@@ -63,6 +72,12 @@ public class Page {
      */
     private Object[] keys;
 
+    /**
+     * The keys, if the page uses the long key layout (see LongKeyDataType).
+     * In this case the keys field is null.
+     */
+    private long[] longKeys;
+
     /**
      * The values.
      * <p>
@@ -115,9 +130,18 @@ public class Page {
      */
     public static Page create(MVMap<?, ?> map, long version, Object[] keys, Object[] values, PageReference[] children,
             long totalCount, int memory) {
+        if (map.isLongKeys()) {
+            return create(map, version, null, toLongKeys(map, keys), values, children, totalCount, memory);
+        }
+        return create(map, version, keys, null, values, children, totalCount, memory);
+    }
+
+    private static Page create(MVMap<?, ?> map, long version, Object[] keys, long[] longKeys, Object[] values,
+            PageReference[] children, long totalCount, int memory) {
         Page p = new Page(map, version);
         // the position is 0
         p.keys = keys;
+        p.longKeys = longKeys;
         p.values = values;
         p.children = children;
         p.totalCount = totalCount;
@@ -145,6 +169,7 @@ public class Page {
         Page p = new Page(map, version);
         // the position is 0
         p.keys = source.keys;
+        p.longKeys = source.longKeys;
         p.values = source.values;
         p.children = source.children;
         p.totalCount = source.totalCount;
@@ -167,6 +192,20 @@ public class Page {
      * @return the page
      */
     static Page read(FileStore fileStore, long pos, MVMap<?, ?> map, long filePos, long maxPos) {
+        return read(readBuffer(fileStore, pos, filePos, maxPos), pos, map);
+    }
+
+    /**
+     * Read the serialized page from the file.
+     *
+     * @param fileStore the file store
+     * @param pos the position
+     * @param filePos the position in the file
+     * @param maxPos the maximum position (the end of the chunk)
+     * @return the buffer, starting with the page; the remaining bytes are at
+     *         least the page length
+     */
+    static ByteBuffer readBuffer(FileStore fileStore, long pos, long filePos, long maxPos) {
         ByteBuffer buff;
         int maxLength = DataUtils.getPageMaxLength(pos);
         if (maxLength == DataUtils.PAGE_LARGE) {
@@ -180,15 +219,35 @@ public class Page {
             throw DataUtils.newIllegalStateException(DataUtils.ERROR_FILE_CORRUPT,
                     "Illegal page length {0} reading at {1}; max pos {2} ", length, filePos, maxPos);
         }
-        buff = fileStore.readFully(filePos, length);
+        return fileStore.readFully(filePos, length);
+    }
+
+    /**
+     * Read a page from a buffer that contains the serialized page.
+     *
+     * @param buff the buffer
+     * @param pos the position
+     * @param map the map
+     * @return the page
+     */
+    static Page read(ByteBuffer buff, long pos, MVMap<?, ?> map) {
         Page p = new Page(map, 0);
         p.pos = pos;
         int chunkId = DataUtils.getPageChunkId(pos);
         int offset = DataUtils.getPageOffset(pos);
-        p.read(buff, chunkId, offset, maxLength);
+        p.read(buff, chunkId, offset, buff.remaining());
         return p;
     }
 
+    /**
+     * Get the map this page belongs to.
+     *
+     * @return the map
+     */
+    MVMap<?, ?> getMap() {
+        return map;
+    }
+
     /**
      * Get the key at the given index.
      *
@@ -196,9 +255,34 @@ public class Page {
      * @return the key
      */
     public Object getKey(int index) {
+        if (longKeys != null) {
+            return getLongKeyType().getKey(longKeys[index]);
+        }
         return keys[index];
     }
 
+    /**
+     * Whether this page keeps its keys in a long[] (see LongKeyDataType).
+     *
+     * @return true if the long key layout is used
+     */
+    boolean isLongKeyLayout() {
+        return longKeys != null;
+    }
+
+    private LongKeyDataType getLongKeyType() {
+        return (LongKeyDataType) map.getKeyType();
+    }
+
+    private static long[] toLongKeys(MVMap<?, ?> map, Object[] keys) {
+        LongKeyDataType keyType = (LongKeyDataType) map.getKeyType();
+        long[] longKeys = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            longKeys[i] = keyType.getLong(keys[i]);
+        }
+        return longKeys;
+    }
+
     /**
      * Get the child page at the given index.
      *
@@ -236,7 +320,7 @@ public class Page {
      * @return the number of keys
      */
     public int getKeyCount() {
-        return keys.length;
+        return longKeys != null ? longKeys.length : keys.length;
     }
 
     /**
@@ -267,15 +351,16 @@ public class Page {
             int chunkId = DataUtils.getPageChunkId(pos);
             buff.append("chunk: ").append(Long.toHexString(chunkId)).append("\n");
         }
-        for (int i = 0; i <= keys.length; i++) {
+        int len = getKeyCount();
+        for (int i = 0; i <= len; i++) {
             if (i > 0) {
                 buff.append(" ");
             }
             if (children != null) {
                 buff.append("[" + Long.toHexString(children[i].pos) + "] ");
             }
-            if (i < keys.length) {
-                buff.append(keys[i]);
+            if (i < len) {
+                buff.append(getKey(i));
                 if (values != null) {
                     buff.append(':');
                     buff.append(values[i]);
@@ -292,7 +377,13 @@ public class Page {
      * @return a page with the given version
      */
     public Page copy(long version) {
-        Page newPage = create(map, version, keys, values, children, totalCount, getMemory());
+        Page newPage;
+        if (longKeys == null && map.isLongKeys()) {
+            // the layout was enabled after the page was created
+            newPage = create(map, version, null, toLongKeys(map, keys), values, children, totalCount, 0);
+        } else {
+            newPage = create(map, version, keys, longKeys, values, children, totalCount, getMemory());
+        }
         // mark the old as deleted
         removePage();
         newPage.cachedCompare = cachedCompare;
@@ -311,6 +402,9 @@ public class Page {
      * @return the value or null
      */
     public int binarySearch(Object key) {
+        if (longKeys != null) {
+            return binarySearch(getLongKeyType().getLong(key));
+        }
         int low = 0, high = keys.length - 1;
         // the cached index minus one, so that
         // for the first time (when cachedCompare is 0),
@@ -351,6 +445,29 @@ public class Page {
         // return -(low + 1);
     }
 
+    private int binarySearch(long key) {
+        int low = 0, high = longKeys.length - 1;
+        int x = cachedCompare - 1;
+        if (x < 0 || x > high) {
+            x = high >>> 1;
+        }
+        long[] k = longKeys;
+        while (low <= high) {
+            long v = k[x];
+            if (key > v) {
+                low = x + 1;
+            } else if (key < v) {
+                high = x - 1;
+            } else {
+                cachedCompare = x + 1;
+                return x;
+            }
+            x = (low + high) >>> 1;
+        }
+        cachedCompare = low;
+        return -(low + 1);
+    }
+
     /**
      * Split the page. This modifies the current page.
      *
@@ -362,12 +479,22 @@ public class Page {
     }
 
     private Page splitLeaf(int at) {
-        int a = at, b = keys.length - a;
-        Object[] aKeys = new Object[a];
-        Object[] bKeys = new Object[b];
-        System.arraycopy(keys, 0, aKeys, 0, a);
-        System.arraycopy(keys, a, bKeys, 0, b);
-        keys = aKeys;
+        int a = at, b = getKeyCount() - a;
+        Object[] bKeys = null;
+        long[] bLongKeys = null;
+        if (longKeys != null) {
+            long[] aLongKeys = new long[a];
+            bLongKeys = new long[b];
+            System.arraycopy(longKeys, 0, aLongKeys, 0, a);
+            System.arraycopy(longKeys, a, bLongKeys, 0, b);
+            longKeys = aLongKeys;
+        } else {
+            Object[] aKeys = new Object[a];
+            bKeys = new Object[b];
+            System.arraycopy(keys, 0, aKeys, 0, a);
+            System.arraycopy(keys, a, bKeys, 0, b);
+            keys = aKeys;
+        }
         Object[] aValues = new Object[a];
         Object[] bValues = new Object[b];
         bValues = new Object[b];
@@ -375,19 +502,29 @@ public class Page {
         System.arraycopy(values, a, bValues, 0, b);
         values = aValues;
         totalCount = a;
-        Page newPage = create(map, version, bKeys, bValues, null, bKeys.length, 0);
+        Page newPage = create(map, version, bKeys, bLongKeys, bValues, null, b, 0);
         recalculateMemory();
         return newPage;
     }
 
     private Page splitNode(int at) {
-        int a = at, b = keys.length - a;
-
-        Object[] aKeys = new Object[a];
-        Object[] bKeys = new Object[b - 1];
-        System.arraycopy(keys, 0, aKeys, 0, a);
-        System.arraycopy(keys, a + 1, bKeys, 0, b - 1);
-        keys = aKeys;
+        int a = at, b = getKeyCount() - a;
+
+        Object[] bKeys = null;
+        long[] bLongKeys = null;
+        if (longKeys != null) {
+            long[] aLongKeys = new long[a];
+            bLongKeys = new long[b - 1];
+            System.arraycopy(longKeys, 0, aLongKeys, 0, a);
+            System.arraycopy(longKeys, a + 1, bLongKeys, 0, b - 1);
+            longKeys = aLongKeys;
+        } else {
+            Object[] aKeys = new Object[a];
+            bKeys = new Object[b - 1];
+            System.arraycopy(keys, 0, aKeys, 0, a);
+            System.arraycopy(keys, a + 1, bKeys, 0, b - 1);
+            keys = aKeys;
+        }
 
         PageReference[] aChildren = new PageReference[a + 1];
         PageReference[] bChildren = new PageReference[b];
@@ -404,7 +541,7 @@ public class Page {
         for (PageReference x : bChildren) {
             t += x.count;
         }
-        Page newPage = create(map, version, bKeys, null, bChildren, t, 0);
+        Page newPage = create(map, version, bKeys, bLongKeys, null, bChildren, t, 0);
         recalculateMemory();
         return newPage;
     }
@@ -418,7 +555,7 @@ public class Page {
         if (MVStore.ASSERT) {
             long check = 0;
             if (isLeaf()) {
-                check = keys.length;
+                check = getKeyCount();
             } else {
                 for (PageReference x : children) {
                     check += x.count;
@@ -475,6 +612,11 @@ public class Page {
      * @param key the new key
      */
     public void setKey(int index, Object key) {
+        if (longKeys != null) {
+            longKeys = longKeys.clone();
+            longKeys[index] = getLongKeyType().getLong(key);
+            return;
+        }
         // this is slightly slower:
         // keys = Arrays.copyOf(keys, keys.length);
         keys = keys.clone();
@@ -538,17 +680,31 @@ public class Page {
      * @param value the value
      */
     public void insertLeaf(int index, Object key, Object value) {
-        int len = keys.length + 1;
-        Object[] newKeys = new Object[len];
-        DataUtils.copyWithGap(keys, newKeys, len - 1, index);
-        keys = newKeys;
+        int len = getKeyCount() + 1;
+        int keyMemory = insertKey(index, key);
         Object[] newValues = new Object[len];
         DataUtils.copyWithGap(values, newValues, len - 1, index);
         values = newValues;
-        keys[index] = key;
         values[index] = value;
         totalCount++;
-        addMemory(map.getKeyType().getMemory(key) + map.getValueType().getMemory(value));
+        addMemory(keyMemory + map.getValueType().getMemory(value));
+    }
+
+    private int insertKey(int index, Object key) {
+        if (longKeys != null) {
+            int len = longKeys.length;
+            long[] newKeys = new long[len + 1];
+            System.arraycopy(longKeys, 0, newKeys, 0, index);
+            System.arraycopy(longKeys, index, newKeys, index + 1, len - index);
+            newKeys[index] = getLongKeyType().getLong(key);
+            longKeys = newKeys;
+            return LONG_KEY_MEMORY;
+        }
+        Object[] newKeys = new Object[keys.length + 1];
+        DataUtils.copyWithGap(keys, newKeys, keys.length, index);
+        newKeys[index] = key;
+        keys = newKeys;
+        return map.getKeyType().getMemory(key);
     }
 
     /**
@@ -559,11 +715,7 @@ public class Page {
      * @param childPage the child page
      */
     public void insertNode(int index, Object key, Page childPage) {
-
-        Object[] newKeys = new Object[keys.length + 1];
-        DataUtils.copyWithGap(keys, newKeys, keys.length, index);
-        newKeys[index] = key;
-        keys = newKeys;
+        int keyMemory = insertKey(index, key);
 
         int childCount = children.length;
         PageReference[] newChildren = new PageReference[childCount + 1];
@@ -572,7 +724,7 @@ public class Page {
         children = newChildren;
 
         totalCount += childPage.totalCount;
-        addMemory(map.getKeyType().getMemory(key) + DataUtils.PAGE_MEMORY_CHILD);
+        addMemory(keyMemory + DataUtils.PAGE_MEMORY_CHILD);
     }
 
     /**
@@ -581,16 +733,24 @@ public class Page {
      * @param index the index
      */
     public void remove(int index) {
-        int keyLength = keys.length;
+        int keyLength = getKeyCount();
         int keyIndex = index >= keyLength ? index - 1 : index;
-        Object old = keys[keyIndex];
-        addMemory(-map.getKeyType().getMemory(old));
-        Object[] newKeys = new Object[keyLength - 1];
-        DataUtils.copyExcept(keys, newKeys, keyLength, keyIndex);
-        keys = newKeys;
+        if (longKeys != null) {
+            addMemory(-LONG_KEY_MEMORY);
+            long[] newKeys = new long[keyLength - 1];
+            System.arraycopy(longKeys, 0, newKeys, 0, keyIndex);
+            System.arraycopy(longKeys, keyIndex + 1, newKeys, keyIndex, keyLength - keyIndex - 1);
+            longKeys = newKeys;
+        } else {
+            Object old = keys[keyIndex];
+            addMemory(-map.getKeyType().getMemory(old));
+            Object[] newKeys = new Object[keyLength - 1];
+            DataUtils.copyExcept(keys, newKeys, keyLength, keyIndex);
+            keys = newKeys;
+        }
 
         if (values != null) {
-            old = values[index];
+            Object old = values[index];
             addMemory(-map.getValueType().getMemory(old));
             Object[] newValues = new Object[keyLength - 1];
             DataUtils.copyExcept(values, newValues, keyLength, index);
@@ -641,7 +801,6 @@ public class Page {
                     "File corrupted in chunk {0}, expected check value {1}, got {2}", chunkId, checkTest, check);
         }
         int len = DataUtils.readVarInt(buff);
-        keys = new Object[len];
         int type = buff.get();
         boolean node = (type & 1) == DataUtils.PAGE_TYPE_NODE;
         if (node) {
@@ -661,7 +820,9 @@ public class Page {
         boolean compressed = (type & DataUtils.PAGE_COMPRESSED) != 0;
         if (compressed) {
             Compressor compressor;
-            if ((type & DataUtils.PAGE_COMPRESSED_HIGH) == DataUtils.PAGE_COMPRESSED_HIGH) {
+            if ((type & DataUtils.PAGE_COMPRESSED_CODEC) == DataUtils.PAGE_COMPRESSED_CODEC) {
+                compressor = map.getStore().getCompressor(DataUtils.readVarInt(buff));
+            } else if ((type & DataUtils.PAGE_COMPRESSED_HIGH) == DataUtils.PAGE_COMPRESSED_HIGH) {
                 compressor = map.getStore().getCompressorHigh();
             } else {
                 compressor = map.getStore().getCompressorFast();
@@ -674,7 +835,21 @@ public class Page {
             buff = ByteBuffer.allocate(l);
             compressor.expand(comp, 0, compLen, buff.array(), buff.arrayOffset(), l);
         }
-        map.getKeyType().read(buff, keys, len, true);
+        if ((type & DataUtils.PAGE_LONG_KEYS) != 0) {
+            if (!(map.getKeyType() instanceof LongKeyDataType)) {
+                throw DataUtils.newIllegalStateException(DataUtils.ERROR_FILE_CORRUPT,
+                        "File corrupted in chunk {0}, page with long keys for a map with key type {1}", chunkId,
+                        map.getKeyType().getClass().getName());
+            }
+            longKeys = readLongKeys(buff, len);
+        } else {
+            keys = new Object[len];
+            map.getKeyType().read(buff, keys, len, true);
+            if (map.isLongKeys()) {
+                longKeys = toLongKeys(map, keys);
+                keys = null;
+            }
+        }
         if (!node) {
             values = new Object[len];
             map.getValueType().read(buff, values, len, false);
@@ -692,11 +867,12 @@ public class Page {
      */
     private int write(Chunk chunk, WriteBuffer buff) {
         int start = buff.position();
-        int len = keys.length;
+        int len = getKeyCount();
         int type = children != null ? DataUtils.PAGE_TYPE_NODE : DataUtils.PAGE_TYPE_LEAF;
+        int keyFormat = longKeys != null ? DataUtils.PAGE_LONG_KEYS : 0;
         buff.putInt(0).putShort((byte) 0).putVarInt(map.getId()).putVarInt(len);
         int typePos = buff.position();
-        buff.put((byte) type);
+        buff.put((byte) (type + keyFormat));
         if (type == DataUtils.PAGE_TYPE_NODE) {
             writeChildren(buff);
             for (int i = 0; i <= len; i++) {
@@ -704,32 +880,42 @@ public class Page {
             }
         }
         int compressStart = buff.position();
-        map.getKeyType().write(buff, keys, len, true);
+        if (longKeys != null) {
+            writeLongKeys(buff, longKeys, len);
+        } else {
+            map.getKeyType().write(buff, keys, len, true);
+        }
         if (type == DataUtils.PAGE_TYPE_LEAF) {
             map.getValueType().write(buff, values, len, false);
         }
         MVStore store = map.getStore();
         int expLen = buff.position() - compressStart;
         if (expLen > 16) {
-            int compressionLevel = store.getCompressionLevel();
-            if (compressionLevel > 0) {
-                Compressor compressor;
+            int compressorId = map.getCompressorId();
+            if (compressorId > 0) {
+                Compressor compressor = store.getCompressor(compressorId);
                 int compressType;
-                if (compressionLevel == 1) {
-                    compressor = map.getStore().getCompressorFast();
+                // LZF and Deflate keep the old format, other compressors store their id
+                if (compressorId == CompressorRegistry.LZF) {
                     compressType = DataUtils.PAGE_COMPRESSED;
-                } else {
-                    compressor = map.getStore().getCompressorHigh();
+                } else if (compressorId == CompressorRegistry.DEFLATE) {
                     compressType = DataUtils.PAGE_COMPRESSED_HIGH;
+                } else {
+                    compressType = DataUtils.PAGE_COMPRESSED_CODEC;
                 }
                 byte[] exp = new byte[expLen];
                 buff.position(compressStart).get(exp);
                 byte[] comp = new byte[expLen * 2];
                 int compLen = compressor.compress(exp, expLen, comp, 0);
                 int plus = DataUtils.getVarIntLen(compLen - expLen);
+                if (compressType == DataUtils.PAGE_COMPRESSED_CODEC)
+                    plus += DataUtils.getVarIntLen(compressorId);
                 if (compLen + plus < expLen) {
-                    buff.position(typePos).put((byte) (type + compressType));
-                    buff.position(compressStart).putVarInt(expLen - compLen).put(comp, 0, compLen);
+                    buff.position(typePos).put((byte) (type + keyFormat + compressType));
+                    buff.position(compressStart);
+                    if (compressType == DataUtils.PAGE_COMPRESSED_CODEC)
+                        buff.putVarInt(compressorId);
+                    buff.putVarInt(expLen - compLen).put(comp, 0, compLen);
                 }
             }
         }
@@ -762,8 +948,28 @@ public class Page {
         return typePos + 1;
     }
 
+    private static void writeLongKeys(WriteBuffer buff, long[] keys, int len) {
+        long last = 0;
+        for (int i = 0; i < len; i++) {
+            // the keys are sorted, so the difference is small and positive
+            // (except for the first key)
+            buff.putVarLong(keys[i] - last);
+            last = keys[i];
+        }
+    }
+
+    private static long[] readLongKeys(ByteBuffer buff, int len) {
+        long[] keys = new long[len];
+        long last = 0;
+        for (int i = 0; i < len; i++) {
+            last += DataUtils.readVarLong(buff);
+            keys[i] = last;
+        }
+        return keys;
+    }
+
     private void writeChildren(WriteBuffer buff) {
-        int len = keys.length;
+        int len = getKeyCount();
         for (int i = 0; i <= len; i++) {
             buff.putLong(children[i].pos);
         }
@@ -862,13 +1068,18 @@ public class Page {
 
     private void recalculateMemory() {
         int mem = DataUtils.PAGE_MEMORY;
-        DataType keyType = map.getKeyType();
-        for (int i = 0; i < keys.length; i++) {
-            mem += keyType.getMemory(keys[i]);
+        int len = getKeyCount();
+        if (longKeys != null) {
+            mem += len * LONG_KEY_MEMORY;
+        } else {
+            DataType keyType = map.getKeyType();
+            for (int i = 0; i < len; i++) {
+                mem += keyType.getMemory(keys[i]);
+            }
         }
         if (this.isLeaf()) {
             DataType valueType = map.getValueType();
-            for (int i = 0; i < keys.length; i++) {
+            for (int i = 0; i < len; i++) {
                 mem += valueType.getMemory(values[i]);
             }
         } else {
@@ -0,0 +1,390 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.mvstore;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.CRC32;
+
+import org.lealone.fs.FileUtils;
+import org.lealone.util.New;
+
+/**
+ * LockFreeMVMap的重做日志，记录还没有合并到B-Tree中的写操作。
+ *
+ * 日志由多个按顺序编号的段文件组成，文件名是"前缀 + 段号 + .redo"，
+ * Merger每次开始合并时切换到一个新的段，合并完并且store提交后就删除旧的段，
+ * 打开map时按段号的顺序重放所有剩下的段，重放时按记录逐条读取，不会把整个段读到内存中。
+ * map被删除时删除它的所有段。
+ *
+ * 每条记录的格式是: 长度(int) + CRC32(int) + 内容，重放时遇到不完整或校验失败的记录就停止，
+ * 这样的记录只可能是崩溃时最后一批还没有sync的记录。
+ *
+ * 写线程先把记录追加到内存缓冲区中，sync时由一个线程把缓冲区中所有线程的记录一起写到文件并fsync(组提交)，
+ * 其他等待的线程发现自己的记录已经sync过了就直接返回。
+ *
+ * sync的策略:
+ * <ul>
+ * <li>commit: 每次写操作返回前都要sync</li>
+ * <li>periodic: 由后台线程每隔一段时间sync一次，崩溃时最多丢失这段时间内的写操作</li>
+ * <li>none: 后台线程每隔一段时间把记录写到文件，但不做fsync，由操作系统决定什么时候写到磁盘，
+ * 进程崩溃时最多丢失这段时间内的写操作，操作系统崩溃时可能丢失更多</li>
+ * </ul>
+ * 所有periodic和none策略的日志共用一个后台线程，每个日志按自己的间隔sync，
+ * 最后一个这样的日志关闭后(比如store关闭时)后台线程就退出。
+ */
+class RedoLog {
+
+    static final int SYNC_COMMIT = 0;
+    static final int SYNC_PERIODIC = 1;
+    static final int SYNC_NONE = 2;
+
+    private static final String SUFFIX = ".redo";
+
+    //缓冲区超过这个大小时，即使不需要sync也先写到文件
+    private static final int MAX_BUFFER_SIZE = 1024 * 1024;
+
+    //所有的日志共用一把锁(RedoLog.class)管理后台线程
+    private static final CopyOnWriteArrayList<RedoLog> periodicLogs = new CopyOnWriteArrayList<>();
+    private static Thread periodicSyncThread;
+
+    static int getSyncPolicy(String policy) {
+        if ("commit".equalsIgnoreCase(policy))
+            return SYNC_COMMIT;
+        else if ("none".equalsIgnoreCase(policy))
+            return SYNC_NONE;
+        else if ("periodic".equalsIgnoreCase(policy))
+            return SYNC_PERIODIC;
+        throw DataUtils.newIllegalArgumentException("Unknown redo log sync policy: {0}", policy);
+    }
+
+    private final String prefix;
+    private final int syncPolicy;
+    private final int syncPeriod;
+    //下一次由后台线程sync的时间
+    private volatile long nextSyncTime;
+
+    //syncLock保证同一时刻只有一个线程写文件，写文件时不持有this的锁，其他线程还可以继续追加记录
+    private final Object syncLock = new Object();
+    private WriteBuffer buff = new WriteBuffer();
+    private WriteBuffer flushBuff = new WriteBuffer();
+
+    //已追加的和已写到文件的字节数，用于组提交
+    private long appendedLsn;
+    private volatile long flushedLsn;
+    private boolean synced = true;
+
+    private int segmentId;
+    private FileChannel channel;
+
+    /**
+     * Create a redo log.
+     *
+     * @param prefix the file name prefix of the segments
+     * @param syncPolicy the sync policy
+     * @param syncPeriod the sync period in milliseconds, not used by the commit policy
+     */
+    RedoLog(String prefix, int syncPolicy, int syncPeriod) {
+        this.prefix = prefix;
+        this.syncPolicy = syncPolicy;
+        this.syncPeriod = Math.max(1, syncPeriod);
+    }
+
+    private List<Integer> getSegmentIds() {
+        String name = FileUtils.getName(prefix);
+        List<Integer> ids = New.arrayList();
+        for (String f : FileUtils.newDirectoryStream(FileUtils.getParent(prefix))) {
+            f = FileUtils.getName(f);
+            if (f.startsWith(name) && f.endsWith(SUFFIX)) {
+                try {
+                    ids.add(Integer.parseInt(f.substring(name.length(), f.length() - SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // not a segment of this log
+                }
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private String getFileName(int id) {
+        return prefix + id + SUFFIX;
+    }
+
+    /**
+     * Replay all existing segments and open a new segment for the following records.
+     *
+     * @param map the map to apply the records to
+     */
+    void open(LockFreeMVMap<?, ?> map) {
+        List<Integer> ids = getSegmentIds();
+        for (int id : ids)
+            replay(getFileName(id), map);
+        segmentId = ids.isEmpty() ? 0 : ids.get(ids.size() - 1) + 1;
+        channel = openSegment(segmentId);
+        if (syncPolicy != SYNC_COMMIT)
+            addPeriodicLog(this);
+    }
+
+    private static void replay(String fileName, LockFreeMVMap<?, ?> map) {
+        try {
+            long remaining = FileUtils.size(fileName);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(FileUtils.newInputStream(fileName)));
+            try {
+                CRC32 crc = new CRC32();
+                byte[] record = new byte[256];
+                while (remaining >= 8) {
+                    int len = in.readInt();
+                    int checksum = in.readInt();
+                    remaining -= 8;
+                    if (len < 0 || len > remaining)
+                        break;
+                    if (len > record.length)
+                        record = new byte[Math.max(len, record.length * 2)];
+                    in.readFully(record, 0, len);
+                    remaining -= len;
+                    crc.reset();
+                    crc.update(record, 0, len);
+                    if ((int) crc.getValue() != checksum)
+                        break;
+                    map.redo(ByteBuffer.wrap(record, 0, len));
+                }
+            } catch (EOFException e) {
+                // the file was truncated, the last record is incomplete
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw DataUtils.newIllegalStateException(DataUtils.ERROR_READING_FAILED, "Reading from {0} failed",
+                    fileName, e);
+        }
+    }
+
+    private FileChannel openSegment(int id) {
+        String fileName = getFileName(id);
+        try {
+            FileChannel file = FileUtils.open(fileName, "rw");
+            file.position(file.size());
+            return file;
+        } catch (IOException e) {
+            throw DataUtils.newIllegalStateException(DataUtils.ERROR_WRITING_FAILED, "Opening {0} failed",
+                    fileName, e);
+        }
+    }
+
+    /**
+     * Append a record to the buffer.
+     *
+     * @param record the record
+     * @return the log sequence number to wait for
+     */
+    long append(ByteBuffer record) {
+        int len = record.remaining();
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), record.arrayOffset() + record.position(), len);
+        synchronized (this) {
+            buff.putInt(len).putInt((int) crc.getValue()).put(record);
+            appendedLsn += len + 8;
+            return appendedLsn;
+        }
+    }
+
+    private synchronized long getAppendedLsn() {
+        return appendedLsn;
+    }
+
+    /**
+     * Make the record with the given log sequence number durable according to the sync policy.
+     *
+     * @param lsn the log sequence number returned by append
+     */
+    void commit(long lsn) {
+        if (syncPolicy == SYNC_COMMIT) {
+            flush(lsn, true);
+        } else if (flushedLsn + MAX_BUFFER_SIZE < lsn) {
+            flush(lsn, false);
+        }
+    }
+
+    /**
+     * Write all records up to the given log sequence number to the file.
+     *
+     * @param lsn the log sequence number
+     * @param force whether to call fsync
+     */
+    void flush(long lsn, boolean force) {
+        synchronized (syncLock) {
+            if (flushedLsn >= lsn && (synced || !force))
+                return;
+            WriteBuffer data;
+            long end;
+            synchronized (this) {
+                data = buff;
+                buff = flushBuff;
+                flushBuff = data;
+                end = appendedLsn;
+            }
+            try {
+                ByteBuffer bb = data.getBuffer();
+                bb.flip();
+                FileUtils.writeFully(channel, bb);
+                data.clear();
+                if (force)
+                    channel.force(false);
+            } catch (IOException e) {
+                throw DataUtils.newIllegalStateException(DataUtils.ERROR_WRITING_FAILED,
+                        "Writing to {0} failed", getFileName(segmentId), e);
+            }
+            synced = force;
+            flushedLsn = end;
+        }
+    }
+
+    /**
+     * Write and sync all records, then switch to a new segment.
+     * The caller has to make sure no records are appended at the same time.
+     *
+     * @return the id of the last segment whose records are all before the switch
+     */
+    int roll() {
+        synchronized (syncLock) {
+            flush(getAppendedLsn(), syncPolicy != SYNC_NONE);
+            closeChannel();
+            int old = segmentId++;
+            channel = openSegment(segmentId);
+            return old;
+        }
+    }
+
+    /**
+     * Delete all segments up to the given id,
+     * the records in them are already stored in the B-tree.
+     *
+     * @param id the segment id
+     */
+    void deleteSegments(int id) {
+        for (int i : getSegmentIds()) {
+            if (i <= id)
+                FileUtils.tryDelete(getFileName(i));
+        }
+    }
+
+    /**
+     * Close the log and delete all segments, used when the map is removed.
+     */
+    void delete() {
+        close();
+        for (int i : getSegmentIds())
+            FileUtils.tryDelete(getFileName(i));
+    }
+
+    void close() {
+        removePeriodicLog(this);
+        synchronized (syncLock) {
+            if (channel == null)
+                return;
+            flush(getAppendedLsn(), syncPolicy != SYNC_NONE);
+            closeChannel();
+            channel = null;
+        }
+    }
+
+    private void closeChannel() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private void syncPeriodically() {
+        synchronized (syncLock) {
+            if (channel != null)
+                flush(getAppendedLsn(), syncPolicy == SYNC_PERIODIC);
+        }
+    }
+
+    private static synchronized void addPeriodicLog(RedoLog log) {
+        log.nextSyncTime = System.currentTimeMillis() + log.syncPeriod;
+        periodicLogs.add(log);
+        if (periodicSyncThread == null) {
+            periodicSyncThread = new Thread("RedoLog-Sync") {
+                @Override
+                public void run() {
+                    runPeriodicSync();
+                }
+            };
+            periodicSyncThread.setDaemon(true);
+            periodicSyncThread.start();
+        } else {
+            //新日志的间隔可能比后台线程正在等待的时间短
+            RedoLog.class.notifyAll();
+        }
+    }
+
+    private static synchronized void removePeriodicLog(RedoLog log) {
+        if (periodicLogs.remove(log))
+            RedoLog.class.notifyAll();
+    }
+
+    static synchronized boolean isPeriodicSyncRunning() {
+        return periodicSyncThread != null;
+    }
+
+    private static void runPeriodicSync() {
+        while (true) {
+            synchronized (RedoLog.class) {
+                if (periodicLogs.isEmpty()) {
+                    periodicSyncThread = null;
+                    return;
+                }
+                //等到最早的一个日志需要sync的时候
+                long now = System.currentTimeMillis();
+                long next = Long.MAX_VALUE;
+                for (RedoLog log : periodicLogs)
+                    next = Math.min(next, log.nextSyncTime);
+                if (next > now) {
+                    try {
+                        RedoLog.class.wait(next - now);
+                    } catch (InterruptedException e) {
+                        // ignore
+                    }
+                    continue;
+                }
+            }
+            long now = System.currentTimeMillis();
+            for (RedoLog log : periodicLogs) {
+                if (log.nextSyncTime > now)
+                    continue;
+                log.nextSyncTime = now + log.syncPeriod;
+                try {
+                    log.syncPeriodically();
+                } catch (Exception e) {
+                    // the next period tries again
+                }
+            }
+        }
+    }
+}
@@ -39,6 +39,13 @@ import org.lealone.mvstore.DataUtils;
  * of other entries have been moved to the front (8 per segment by default).
  * Write access and moving entries to the top of the stack is synchronized per
  * segment.
+ * <p>
+ * Optionally, each segment uses a TinyLFU admission filter: the access
+ * frequency of keys is estimated with a small count-min sketch, and an entry
+ * that is loaded after a cache miss (see putIfAdmitted) is only added to a
+ * full segment if it was accessed more often recently than the cold entry
+ * that would be evicted for it. That way a large scan, where each entry is
+ * read only once, can not replace the frequently used entries.
  *
  * @author Thomas Mueller
  * @param <V> the value type
@@ -56,6 +63,13 @@ public class CacheLongKeyLIRS<V> {
     private final int segmentShift;
     private final int segmentMask;
     private final int stackMoveDistance;
+    private final boolean admissionFilter;
+
+    /**
+     * The estimated average memory of an entry, used to size the frequency
+     * sketch of the admission filter.
+     */
+    private static final int ESTIMATED_ENTRY_MEMORY = 1024;
 
     /**
      * Create a new cache with the given number of entries, and the default
@@ -75,9 +89,24 @@ public class CacheLongKeyLIRS<V> {
      * @param stackMoveDistance how many other item are to be moved to the top
      *        of the stack before the current item is moved
      */
-    @SuppressWarnings("unchecked")
     public CacheLongKeyLIRS(long maxMemory, int segmentCount, int stackMoveDistance) {
+        this(maxMemory, segmentCount, stackMoveDistance, false);
+    }
+
+    /**
+     * Create a new cache with the given memory size.
+     *
+     * @param maxMemory the maximum memory to use (1 or larger)
+     * @param segmentCount the number of cache segments (must be a power of 2)
+     * @param stackMoveDistance how many other item are to be moved to the top
+     *        of the stack before the current item is moved
+     * @param admissionFilter whether to use the TinyLFU admission filter for
+     *        entries added with putIfAdmitted
+     */
+    @SuppressWarnings("unchecked")
+    public CacheLongKeyLIRS(long maxMemory, int segmentCount, int stackMoveDistance, boolean admissionFilter) {
         setMaxMemory(maxMemory);
+        this.admissionFilter = admissionFilter;
         DataUtils.checkArgument(Integer.bitCount(segmentCount) == 1, "The segment count must be a power of 2, is {0}",
                 segmentCount);
         this.segmentCount = segmentCount;
@@ -95,7 +124,8 @@ public class CacheLongKeyLIRS<V> {
     public void clear() {
         long max = Math.max(1, maxMemory / segmentCount);
         for (int i = 0; i < segmentCount; i++) {
-            segments[i] = new Segment<V>(max, stackMoveDistance, 8);
+            FrequencySketch sketch = admissionFilter ? new FrequencySketch(max / ESTIMATED_ENTRY_MEMORY) : null;
+            segments[i] = new Segment<V>(this, sketch, max, stackMoveDistance, 8);
         }
     }
 
@@ -158,7 +188,29 @@ public class CacheLongKeyLIRS<V> {
         // from the old segment)
         synchronized (s) {
             s = resizeIfNeeded(s, segmentIndex);
-            return s.put(key, hash, value, memory);
+            return s.put(key, hash, value, memory, false);
+        }
+    }
+
+    /**
+     * Add an entry that was loaded after a cache miss. If the admission filter
+     * is used and the segment is full, the entry is only added if it was
+     * accessed more often recently than the entry that would be evicted.
+     *
+     * @param key the key (may not be null)
+     * @param value the value (may not be null)
+     * @param memory the memory used for the given entry
+     * @return true if the entry was added
+     */
+    public boolean putIfAdmitted(long key, V value, int memory) {
+        int hash = getHash(key);
+        int segmentIndex = getSegmentIndex(hash);
+        Segment<V> s = segments[segmentIndex];
+        synchronized (s) {
+            s = resizeIfNeeded(s, segmentIndex);
+            long rejections = s.rejections;
+            s.put(key, hash, value, memory, true);
+            return s.rejections == rejections;
         }
     }
 
@@ -188,6 +240,18 @@ public class CacheLongKeyLIRS<V> {
         return 1;
     }
 
+    /**
+     * Called when a resident entry is evicted because the cache is full. This
+     * method is called while the segment is locked, so it should be fast. The
+     * default implementation does nothing.
+     *
+     * @param key the key
+     * @param value the evicted value
+     */
+    protected void onEviction(long key, V value) {
+        // nothing to do
+    }
+
     /**
      * Remove an entry. Both resident and non-resident entries can be
      * removed.
@@ -229,7 +293,11 @@ public class CacheLongKeyLIRS<V> {
      */
     public V get(long key) {
         int hash = getHash(key);
-        return getSegment(hash).get(key, hash);
+        Segment<V> s = getSegment(hash);
+        if (s.sketch != null) {
+            s.sketch.increment(key);
+        }
+        return s.get(key, hash);
     }
 
     private Segment<V> getSegment(int hash) {
@@ -381,13 +449,41 @@ public class CacheLongKeyLIRS<V> {
      * @return the cache misses
      */
     public long getMisses() {
-        int x = 0;
+        long x = 0;
         for (Segment<V> s : segments) {
             x += s.misses;
         }
         return x;
     }
 
+    /**
+     * Get the number of resident entries that were evicted because the cache
+     * was full.
+     *
+     * @return the number of evictions
+     */
+    public long getEvictions() {
+        long x = 0;
+        for (Segment<V> s : segments) {
+            x += s.evictions;
+        }
+        return x;
+    }
+
+    /**
+     * Get the number of entries that were not added by putIfAdmitted because
+     * they were used less frequently than the entries in the cache.
+     *
+     * @return the number of rejected entries
+     */
+    public long getRejections() {
+        long x = 0;
+        for (Segment<V> s : segments) {
+            x += s.rejections;
+        }
+        return x;
+    }
+
     /**
      * Get the number of resident entries.
      *
@@ -512,6 +608,21 @@ public class CacheLongKeyLIRS<V> {
          */
         long misses;
 
+        /**
+         * The number of evicted resident entries.
+         */
+        long evictions;
+
+        /**
+         * The number of entries rejected by the admission filter.
+         */
+        long rejections;
+
+        /**
+         * The access frequency sketch of the admission filter, or null.
+         */
+        final FrequencySketch sketch;
+
         /**
          * The map array. The size is always a power of 2.
          */
@@ -573,15 +684,24 @@ public class CacheLongKeyLIRS<V> {
          */
         private int stackMoveCounter;
 
+        /**
+         * The cache this segment belongs to.
+         */
+        private final CacheLongKeyLIRS<V> cache;
+
         /**
          * Create a new cache segment.
          *
+         * @param cache the cache
+         * @param sketch the frequency sketch of the admission filter, or null
          * @param maxMemory the maximum memory to use
          * @param stackMoveDistance the number of other entries to be moved to
          *        the top of the stack before moving an entry to the top
          * @param len the number of hash table buckets (must be a power of 2)
          */
-        Segment(long maxMemory, int stackMoveDistance, int len) {
+        Segment(CacheLongKeyLIRS<V> cache, FrequencySketch sketch, long maxMemory, int stackMoveDistance, int len) {
+            this.cache = cache;
+            this.sketch = sketch;
             setMaxMemory(maxMemory);
             this.stackMoveDistance = stackMoveDistance;
 
@@ -610,9 +730,11 @@ public class CacheLongKeyLIRS<V> {
          * @param len the number of hash table buckets (must be a power of 2)
          */
         Segment(Segment<V> old, int len) {
-            this(old.maxMemory, old.stackMoveDistance, len);
+            this(old.cache, old.sketch, old.maxMemory, old.stackMoveDistance, len);
             hits = old.hits;
             misses = old.misses;
+            evictions = old.evictions;
+            rejections = old.rejections;
             Entry<V> s = old.stack.stackPrev;
             while (s != old.stack) {
                 Entry<V> e = copy(s);
@@ -779,9 +901,10 @@ public class CacheLongKeyLIRS<V> {
          * @param hash the hash
          * @param value the value (may not be null)
          * @param memory the memory used for the given entry
+         * @param admit whether a new entry has to pass the admission filter
          * @return the old value, or null if there was no resident entry
          */
-        synchronized V put(long key, int hash, V value, int memory) {
+        synchronized V put(long key, int hash, V value, int memory, boolean admit) {
             if (value == null) {
                 throw DataUtils.newIllegalArgumentException("The value may not be null");
             }
@@ -797,6 +920,10 @@ public class CacheLongKeyLIRS<V> {
                 // the new entry is too big to fit
                 return old;
             }
+            if (admit && sketch != null && old == null && usedMemory + memory > maxMemory && !isAdmitted(key)) {
+                rejections++;
+                return null;
+            }
             e = new Entry<V>();
             e.key = key;
             e.value = value;
@@ -821,6 +948,22 @@ public class CacheLongKeyLIRS<V> {
             return old;
         }
 
+        /**
+         * Check whether a new entry should replace the entry that is evicted
+         * next, that is the oldest resident cold entry. If there is no cold
+         * entry yet, the new entry is always added.
+         *
+         * @param key the key of the new entry
+         * @return true if the new entry was used more often recently
+         */
+        private boolean isAdmitted(long key) {
+            Entry<V> victim = queue.queuePrev;
+            if (victim == queue) {
+                return true;
+            }
+            return sketch.frequency(key) > sketch.frequency(victim.key);
+        }
+
         /**
          * Remove an entry. Both resident and non-resident entries can be
          * removed.
@@ -896,6 +1039,8 @@ public class CacheLongKeyLIRS<V> {
                 Entry<V> e = queue.queuePrev;
                 usedMemory -= e.memory;
                 removeFromQueue(e);
+                evictions++;
+                cache.onEviction(e.key, e.value);
                 e.value = null;
                 e.memory = 0;
                 addToQueue(queue2, e);
@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.mvstore.cache;
+
+/**
+ * TinyLFU使用的访问频率估算器(Count-Min Sketch)。
+ *
+ * 每个计数器占4位，一个long存放16个计数器，每个key映射到4个不同long中的各一个计数器，
+ * 估算的频率是这4个计数器的最小值，计数器最大是15。
+ * 增加的次数达到sampleSize后，所有计数器减半，这样很久以前的访问会逐渐被遗忘。
+ *
+ * 为了不让读操作加锁，increment没有同步，并发时可能丢失一些增加操作，这只会让估算值偏小一点。
+ */
+class FrequencySketch {
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+
+    private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+            0xcbf29ce484222325L };
+
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int size;
+
+    /**
+     * Create a sketch for about the given number of distinct entries.
+     *
+     * @param maxEntries the estimated maximum number of entries in the cache
+     */
+    FrequencySketch(long maxEntries) {
+        int len = (int) Math.min(1 << 24, Math.max(16, Long.highestOneBit(Math.max(1, maxEntries - 1)) << 1));
+        table = new long[len];
+        tableMask = len - 1;
+        sampleSize = 10 * len;
+    }
+
+    /**
+     * Get the estimated number of times the key was accessed recently.
+     *
+     * @param key the key
+     * @return the frequency (0 to 15)
+     */
+    int frequency(long key) {
+        int hash = spread(key);
+        int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Record an access of the key.
+     *
+     * @param key the key
+     */
+    void increment(long key) {
+        int hash = spread(key);
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            added |= incrementAt(index, start + i);
+        }
+        if (added && ++size >= sampleSize) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(int i, int j) {
+        int offset = j << 2;
+        long mask = 0xfL << offset;
+        long v = table[i];
+        if ((v & mask) != mask) {
+            table[i] = v + (1L << offset);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Halve all counters (aging).
+     */
+    private void reset() {
+        int odd = 0;
+        for (int i = 0; i < table.length; i++) {
+            odd += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size = (size >>> 1) - (odd >>> 2);
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return ((int) h) & tableMask;
+    }
+
+    private static int spread(long key) {
+        int x = CacheLongKeyLIRS.getHash(key);
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.mvstore.cache;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.lealone.mvstore.DataUtils;
+
+/**
+ * 在堆外内存中缓存序列化后的页面的二级缓存，位于堆内的CacheLongKeyLIRS和FileStore之间。
+ *
+ * 缓存的是页面在文件中的原始字节(如果页面是压缩的，就是压缩后的字节)，
+ * 堆内缓存没有命中时先查这里，命中的话只需要反序列化，不用再读文件。
+ *
+ * 堆外内存被分成固定大小的区域，按需分配，新页面总是追加到当前区域的末尾，
+ * 当前区域写满后切换到下一个区域，所有区域都用过之后，最老的区域被整个清空后重用(FIFO)，
+ * 所以缓存的大小是有界的，淘汰也和堆内缓存无关，并且不会产生需要GC的对象(索引除外)。
+ *
+ * 读操作不加锁，每个区域有一个版本号(类似seqlock)，清空区域时版本号变成奇数，清空完成后再变成偶数，
+ * 读者在复制页面前后检查版本号，如果变了就当作没有命中。
+ */
+public class OffHeapPageCache {
+
+    private static final int MAX_REGIONS = 1 << 12;
+    private static final int MAX_REGION_SIZE = 1 << 26;
+    private static final int DEFAULT_REGION_SIZE = 16 * 1024 * 1024;
+
+    private final int regionSize;
+    private final Region[] regions;
+    private final long maxMemory;
+
+    /**
+     * The index: page position -> region (12 bits), offset (26 bits), length
+     * (26 bits).
+     */
+    private final ConcurrentHashMap<Long, Long> index = new ConcurrentHashMap<Long, Long>();
+
+    /**
+     * The region new pages are appended to.
+     */
+    private int current;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Create a new cache.
+     *
+     * @param maxMemory the maximum direct memory to use, in bytes
+     */
+    public OffHeapPageCache(long maxMemory) {
+        DataUtils.checkArgument(maxMemory > 0, "Max memory must be larger than 0, is {0}", maxMemory);
+        long size = DEFAULT_REGION_SIZE;
+        while (maxMemory / size > MAX_REGIONS && size < MAX_REGION_SIZE) {
+            size <<= 1;
+        }
+        regionSize = (int) Math.min(size, Math.max(4096, maxMemory));
+        int count = (int) Math.max(1, Math.min(MAX_REGIONS, maxMemory / regionSize));
+        this.maxMemory = (long) count * regionSize;
+        regions = new Region[count];
+        for (int i = 0; i < count; i++) {
+            regions[i] = new Region(i);
+        }
+    }
+
+    /**
+     * Get a copy of the cached page.
+     *
+     * @param pos the page position
+     * @return a heap buffer with the page, or null if the page is not cached
+     */
+    public ByteBuffer get(long pos) {
+        Long value = index.get(pos);
+        if (value != null) {
+            long v = value;
+            Region r = regions[(int) (v >>> 52)];
+            int generation = r.generation;
+            ByteBuffer b = r.buffer;
+            // 版本号是奇数说明区域正在被清空；索引项不在了说明区域已经被重用
+            if ((generation & 1) == 0 && b != null && value.equals(index.get(pos))) {
+                int offset = (int) ((v >>> 26) & (MAX_REGION_SIZE - 1));
+                int length = (int) (v & (MAX_REGION_SIZE - 1));
+                ByteBuffer src = b.duplicate();
+                src.limit(offset + length).position(offset);
+                ByteBuffer buff = ByteBuffer.allocate(length);
+                buff.put(src);
+                if (r.generation == generation) {
+                    buff.flip();
+                    hits++;
+                    return buff;
+                }
+            }
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * Add a page to the cache.
+     *
+     * @param pos the page position
+     * @param buff the buffer, the page is read from the position to the limit
+     *            (the buffer position is not changed)
+     */
+    public synchronized void put(long pos, ByteBuffer buff) {
+        int length = buff.remaining();
+        if (length > regionSize || length >= MAX_REGION_SIZE || index.containsKey(pos)) {
+            return;
+        }
+        Region r = regions[current];
+        if (r.buffer == null) {
+            r.buffer = ByteBuffer.allocateDirect(regionSize);
+        }
+        if (r.used + length > regionSize) {
+            current = (current + 1) % regions.length;
+            r = regions[current];
+            if (r.buffer == null) {
+                r.buffer = ByteBuffer.allocateDirect(regionSize);
+            } else {
+                evict(r);
+            }
+        }
+        int offset = r.used;
+        ByteBuffer dst = r.buffer.duplicate();
+        dst.position(offset);
+        dst.put(buff.duplicate());
+        r.used += length;
+        r.add(pos);
+        long v = ((long) current << 52) | ((long) offset << 26) | length;
+        index.put(pos, v);
+    }
+
+    private void evict(Region r) {
+        r.generation++;
+        for (int i = 0; i < r.keyCount; i++) {
+            long key = r.keys[i];
+            Long v = index.get(key);
+            // the page may have been removed and added again to another region
+            if (v != null && (int) (v >>> 52) == r.id && index.remove(key, v)) {
+                evictions++;
+            }
+        }
+        r.keyCount = 0;
+        r.used = 0;
+        r.generation++;
+    }
+
+    /**
+     * Remove a page from the cache. The space is reused when the region is
+     * evicted.
+     *
+     * @param pos the page position
+     */
+    public void remove(long pos) {
+        index.remove(pos);
+    }
+
+    /**
+     * Remove all pages and release the direct memory.
+     */
+    public synchronized void clear() {
+        for (Region r : regions) {
+            r.generation += 2;
+            r.buffer = null;
+            r.used = 0;
+            r.keyCount = 0;
+        }
+        index.clear();
+        current = 0;
+    }
+
+    /**
+     * Get the maximum memory to use.
+     *
+     * @return the maximum memory
+     */
+    public long getMaxMemory() {
+        return maxMemory;
+    }
+
+    /**
+     * Get the direct memory that is currently allocated.
+     *
+     * @return the allocated memory
+     */
+    public synchronized long getAllocatedMemory() {
+        long x = 0;
+        for (Region r : regions) {
+            if (r.buffer != null) {
+                x += regionSize;
+            }
+        }
+        return x;
+    }
+
+    /**
+     * Get the number of cached pages.
+     *
+     * @return the number of pages
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Get the number of cache hits.
+     *
+     * @return the cache hits
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * Get the number of cache misses.
+     *
+     * @return the cache misses
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Get the number of pages that were evicted.
+     *
+     * @return the number of evictions
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * A region of direct memory.
+     */
+    private static class Region {
+
+        final int id;
+
+        /**
+         * Even while the region is in use, odd while it is cleared.
+         */
+        volatile int generation;
+
+        volatile ByteBuffer buffer;
+        int used;
+        long[] keys = new long[64];
+        int keyCount;
+
+        Region(int id) {
+            this.id = id;
+        }
+
+        void add(long key) {
+            if (keyCount == keys.length) {
+                long[] k = new long[keyCount * 2];
+                System.arraycopy(keys, 0, k, 0, keyCount);
+                keys = k;
+            }
+            keys[keyCount++] = key;
+        }
+    }
+}
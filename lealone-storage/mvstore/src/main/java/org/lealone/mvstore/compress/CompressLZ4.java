@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.mvstore.compress;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+import org.lealone.compress.Compressor;
+
+/**
+ * LZ4压缩算法，压缩和解压都比Deflate快得多，压缩率比LZF略好。
+ *
+ * LZ4的压缩器和解压器都是线程安全的，所以一个实例可以被多个线程同时使用。
+ */
+public class CompressLZ4 implements Compressor {
+
+    private static final LZ4Factory factory = LZ4Factory.fastestInstance();
+
+    private final LZ4Compressor compressor;
+    private final LZ4FastDecompressor decompressor = factory.fastDecompressor();
+
+    public CompressLZ4() {
+        this(factory.fastCompressor());
+    }
+
+    protected CompressLZ4(LZ4Compressor compressor) {
+        this.compressor = compressor;
+    }
+
+    @Override
+    public int getAlgorithm() {
+        return CompressorRegistry.LZ4;
+    }
+
+    @Override
+    public int compress(byte[] in, int inLen, byte[] out, int outPos) {
+        return outPos + compressor.compress(in, 0, inLen, out, outPos, out.length - outPos);
+    }
+
+    @Override
+    public void expand(byte[] in, int inPos, int inLen, byte[] out, int outPos, int outLen) {
+        decompressor.decompress(in, inPos, out, outPos, outLen);
+    }
+
+    @Override
+    public void setOptions(String options) {
+        // no options
+    }
+
+    /**
+     * LZ4的高压缩率模式，压缩比快速模式慢，但解压速度一样。
+     */
+    public static class High extends CompressLZ4 {
+
+        public High() {
+            super(factory.highCompressor());
+        }
+
+        @Override
+        public int getAlgorithm() {
+            return CompressorRegistry.LZ4_HIGH;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.mvstore.compress;
+
+import java.util.HashMap;
+
+import org.lealone.compress.CompressDeflate;
+import org.lealone.compress.CompressLZF;
+import org.lealone.compress.Compressor;
+import org.lealone.mvstore.DataUtils;
+
+/**
+ * 页面压缩算法的注册表。
+ *
+ * 每个算法有一个唯一的id，使用新算法压缩的页面会把id写到页面中，
+ * 所以同一个文件中可以有用不同算法压缩的页面，读页面时按页面中的id找到对应的算法。
+ * id必须在1到255之间，一旦有页面用某个id写到文件中，这个id就不能再换成其他算法。
+ */
+public class CompressorRegistry {
+
+    public static final int LZF = Compressor.LZF;
+    public static final int DEFLATE = Compressor.DEFLATE;
+    public static final int LZ4 = 3;
+    public static final int LZ4_HIGH = 4;
+
+    public static final int MAX_ID = 255;
+
+    private static final HashMap<String, Integer> ids = new HashMap<>();
+    private static final Class<?>[] classes = new Class<?>[MAX_ID + 1];
+
+    static {
+        register(LZF, "LZF", CompressLZF.class);
+        register(DEFLATE, "DEFLATE", CompressDeflate.class);
+        register(LZ4, "LZ4", CompressLZ4.class);
+        register(LZ4_HIGH, "LZ4_HIGH", CompressLZ4.High.class);
+    }
+
+    private CompressorRegistry() {
+    }
+
+    /**
+     * Register a compression algorithm.
+     *
+     * @param id the id that is stored in the pages
+     * @param name the name, case insensitive
+     * @param compressorClass the class, it needs a public no-argument constructor
+     */
+    public static synchronized void register(int id, String name, Class<? extends Compressor> compressorClass) {
+        DataUtils.checkArgument(id > 0 && id <= MAX_ID, "Compressor id {0} is out of range", id);
+        DataUtils.checkArgument(classes[id] == null || classes[id] == compressorClass,
+                "Compressor id {0} is already used", id);
+        classes[id] = compressorClass;
+        ids.put(name.toUpperCase(), id);
+    }
+
+    /**
+     * Get the id of a compression algorithm.
+     *
+     * @param name the name, case insensitive
+     * @return the id
+     * @throws IllegalArgumentException if the algorithm is unknown
+     */
+    public static synchronized int getId(String name) {
+        Integer id = ids.get(name.toUpperCase());
+        if (id == null)
+            throw DataUtils.newIllegalArgumentException("Unknown compression algorithm: {0}", name);
+        return id;
+    }
+
+    /**
+     * Create a new instance of a compression algorithm.
+     *
+     * @param id the id
+     * @return the compressor
+     * @throws IllegalStateException if the algorithm is unknown
+     */
+    public static Compressor create(int id) {
+        Class<?> c;
+        synchronized (CompressorRegistry.class) {
+            c = id > 0 && id <= MAX_ID ? classes[id] : null;
+        }
+        if (c == null)
+            throw DataUtils.newIllegalStateException(DataUtils.ERROR_FILE_CORRUPT, "Unknown compressor id {0}", id);
+        try {
+            return (Compressor) c.newInstance();
+        } catch (Exception e) {
+            throw DataUtils.newIllegalStateException(DataUtils.ERROR_INTERNAL, "Can not create compressor {0}",
+                    c.getName(), e);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.mvstore.type;
+
+/**
+ * 键可以和long互相转换的数据类型。
+ *
+ * 如果map调用了MVMap.setLongKeys(true)，它的页面用long[]而不是Object[]存放键，
+ * 查找时直接比较long，写到硬盘时键按差值用变长编码。
+ * 所以这个map的键必须都能转换成long，并且long的大小顺序必须和compare的顺序一致。
+ *
+ * 页面在硬盘上的格式有单独的标记，
+ * 所以用这种格式保存的页面在map没有启用setLongKeys时也能读取，只要键类型实现了这个接口。
+ */
+public interface LongKeyDataType extends DataType {
+
+    /**
+     * Convert a key to a long.
+     *
+     * @param key the key
+     * @return the long value
+     */
+    long getLong(Object key);
+
+    /**
+     * Convert a long to a key.
+     *
+     * @param key the long value
+     * @return the key
+     */
+    Object getKey(long key);
+
+}
@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.cluster.router;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.lealone.cluster.dht.ByteOrderedPartitioner;
+import org.lealone.cluster.dht.IPartitioner;
+import org.lealone.cluster.dht.Murmur3Partitioner;
+import org.lealone.cluster.dht.Range;
+import org.lealone.cluster.dht.Token;
+import org.lealone.command.dml.Select;
+import org.lealone.engine.Session;
+import org.lealone.jdbc.JdbcConnection;
+import org.lealone.value.ValueInt;
+
+/**
+ * 不启动集群，直接用一个token环测试P2PRouter按IN列表和分区键的范围裁剪token range。
+ */
+public class P2PRouterTest {
+
+    static Connection conn;
+    static Session session;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        conn = DriverManager.getConnection("jdbc:lealone:mem:embed:P2PRouterTest", "sa", "");
+        session = (Session) ((JdbcConnection) conn).getSession();
+        Statement stmt = conn.createStatement();
+        stmt.executeUpdate("CREATE TABLE P2PRouterTest(f1 int primary key, f2 int)");
+        stmt.executeUpdate("CREATE TABLE P2PRouterTestNoKey(f1 int, f2 int)");
+        stmt.executeUpdate("CREATE INDEX P2PRouterTestNoKey_f1 ON P2PRouterTestNoKey(f1)");
+        stmt.close();
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception {
+        conn.close();
+    }
+
+    @Test
+    public void run() throws Exception {
+        testByteOrderedPartitioner();
+        testMurmur3Partitioner();
+    }
+
+    //环上的token是0、100、200、300这四个key的token，所以有(0,100]、(100,200]、(200,300]、(300,0]四个range
+    void testByteOrderedPartitioner() throws Exception {
+        IPartitioner p = ByteOrderedPartitioner.instance;
+        ArrayList<Token> sortedTokens = getSortedTokens(p, 0, 100, 200, 300);
+        List<Range<Token>> all = getAllRanges(sortedTokens);
+
+        assertRanges(all, getTargetRanges("f1 IN(50, 150)", p, sortedTokens), 0, 1);
+        assertRanges(all, getTargetRanges("f1 IN(100, 101, 150)", p, sortedTokens), 0, 1);
+        assertRanges(all, getTargetRanges("f1 IN(301)", p, sortedTokens), 3);
+        assertRanges(all, getTargetRanges("f1 = 150", p, sortedTokens), 1);
+        assertRanges(all, getTargetRanges("f1 BETWEEN 120 AND 250", p, sortedTokens), 1, 2);
+        assertRanges(all, getTargetRanges("f1 >= 110 AND f1 <= 190", p, sortedTokens), 1);
+        assertRanges(all, getTargetRanges("f1 > 250", p, sortedTokens), 2, 3);
+
+        //没有下界、下界是负数或者条件不在分区键上时要访问所有的range
+        assertEquals(all, getTargetRanges("f1 < 50", p, sortedTokens));
+        assertEquals(all, getTargetRanges("f1 > -5", p, sortedTokens));
+        assertEquals(all, getTargetRanges("f2 IN(50, 150)", p, sortedTokens));
+        assertEquals(all, getTargetRanges("f2 > 250", p, sortedTokens));
+        assertEquals(all, getTargetRanges("f1 > 250 AND f1 < 200", p, sortedTokens));
+
+        //没有分区键时不能按token range访问
+        assertNull(getTargetRanges("SELECT * FROM P2PRouterTestNoKey WHERE f1 IN(50, 150)", p, sortedTokens));
+    }
+
+    //Murmur3Partitioner不保持顺序，只有IN列表能裁剪
+    void testMurmur3Partitioner() throws Exception {
+        IPartitioner p = Murmur3Partitioner.instance;
+        ArrayList<Token> sortedTokens = new ArrayList<>();
+        for (int i = 0; i < 8; i++)
+            sortedTokens.add(new Murmur3Partitioner.LongToken(Long.MIN_VALUE / 4 * 3 + Long.MAX_VALUE / 4 * i));
+        List<Range<Token>> all = getAllRanges(sortedTokens);
+
+        List<Range<Token>> ranges = getTargetRanges("f1 IN(1, 2, 3)", p, sortedTokens);
+        assertTrue(ranges.size() <= 3);
+        for (int key : new int[] { 1, 2, 3 }) {
+            Token tk = getToken(p, key);
+            boolean found = false;
+            for (Range<Token> r : ranges)
+                found |= r.contains(tk);
+            assertTrue("key " + key, found);
+        }
+        //按环上的顺序排列
+        int last = -1;
+        for (Range<Token> r : ranges) {
+            int i = all.indexOf(r);
+            assertTrue(i > last);
+            last = i;
+        }
+
+        assertEquals(all, getTargetRanges("f1 BETWEEN 1 AND 3", p, sortedTokens));
+    }
+
+    private static List<Range<Token>> getTargetRanges(String where, IPartitioner p, ArrayList<Token> sortedTokens) {
+        String sql = where.startsWith("SELECT") ? where : "SELECT * FROM P2PRouterTest WHERE " + where;
+        Select select = (Select) session.prepare(sql, true);
+        return P2PRouter.getTargetRanges(select.getTopTableFilter(), p, sortedTokens, getAllRanges(sortedTokens));
+    }
+
+    private static void assertRanges(List<Range<Token>> all, List<Range<Token>> actual, int... expected) {
+        List<Range<Token>> list = new ArrayList<>();
+        for (int i : expected)
+            list.add(all.get(i));
+        assertEquals(list, actual);
+    }
+
+    private static Token getToken(IPartitioner p, int key) {
+        return p.getToken(ByteBuffer.wrap(ValueInt.get(key).getBytesNoCopy()));
+    }
+
+    private static ArrayList<Token> getSortedTokens(IPartitioner p, int... keys) {
+        ArrayList<Token> sortedTokens = new ArrayList<>();
+        for (int key : keys)
+            sortedTokens.add(getToken(p, key));
+        Collections.sort(sortedTokens);
+        return sortedTokens;
+    }
+
+    //和StorageService.getAllRanges一样
+    private static List<Range<Token>> getAllRanges(List<Token> sortedTokens) {
+        int size = sortedTokens.size();
+        List<Range<Token>> ranges = new ArrayList<>(size);
+        for (int i = 1; i < size; ++i)
+            ranges.add(new Range<>(sortedTokens.get(i - 1), sortedTokens.get(i)));
+        ranges.add(new Range<>(sortedTokens.get(size - 1), sortedTokens.get(0)));
+        return ranges;
+    }
+}
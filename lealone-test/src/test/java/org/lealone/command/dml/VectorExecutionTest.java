@@ -0,0 +1,235 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.command.dml;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.lealone.engine.Session;
+import org.lealone.jdbc.JdbcConnection;
+
+/**
+ * 按批计算的条件和聚合函数(queryFlatVector、queryGroupVector)的结果要和逐行计算的一样，
+ * 包括NULL、整数运算的DECIMAL结果，以及扫描到一半时因为溢出改用逐行计算的情况。
+ * 表N的列大部分是NULL(有的整批都是NULL，有一列全是NULL)，用来检查NULL的处理、
+ * 溢出前后才出现的分组，以及整数和DOUBLE混合的比较。
+ */
+public class VectorExecutionTest {
+
+    static final int ROWS = 5000;
+    // 这一行的f2 * 4溢出，所在的那一批行(不是第一批)改用逐行计算
+    static final int OVERFLOW_ROW = 3000;
+    // 表N中这一行的n4 * 4溢出，它在第四批(3072开始)的中间，之后才出现分组3、4、5
+    static final int N_OVERFLOW_ROW = 3501;
+
+    static Connection conn;
+    static Connection rowConn;
+    static Session session;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        conn = DriverManager.getConnection("jdbc:lealone:mem:embed:VectorExecutionTest;PARALLEL_QUERY_THREADS=1",
+                "sa", "");
+        rowConn = DriverManager.getConnection("jdbc:lealone:mem:embed:VectorExecutionTest2;VECTOR_EXECUTION=FALSE",
+                "sa", "");
+        session = (Session) ((JdbcConnection) conn).getSession();
+        init(conn);
+        init(rowConn);
+    }
+
+    static void init(Connection conn) throws Exception {
+        Statement stmt = conn.createStatement();
+        stmt.executeUpdate("CREATE TABLE V(id int primary key, g int, f1 int, f2 bigint, f3 int, d double)");
+        stmt.close();
+        PreparedStatement ps = conn.prepareStatement("INSERT INTO V VALUES(?, ?, ?, ?, ?, ?)");
+        for (int i = 0; i < ROWS; i++) {
+            ps.setInt(1, i);
+            ps.setInt(2, i % 5);
+            if (i % 7 == 0)
+                ps.setNull(3, Types.INTEGER);
+            else
+                ps.setInt(3, i % 300 - 100);
+            ps.setLong(4, i == OVERFLOW_ROW ? Long.MAX_VALUE / 3 : i * 1000L);
+            ps.setInt(5, i % 100 - 50);
+            if (i % 11 == 0)
+                ps.setNull(6, Types.DOUBLE);
+            else
+                ps.setDouble(6, i * 0.5);
+            ps.executeUpdate();
+        }
+        ps.close();
+
+        stmt = conn.createStatement();
+        stmt.executeUpdate("CREATE TABLE N(id int primary key, g int, n1 int, n2 double, n3 bigint, n4 bigint, "
+                + "d double)");
+        stmt.close();
+        ps = conn.prepareStatement("INSERT INTO N VALUES(?, ?, ?, ?, ?, ?, ?)");
+        for (int i = 0; i < ROWS; i++) {
+            ps.setInt(1, i);
+            // 分组3、4、5在溢出的那一行之后才出现，分组列也有NULL
+            if (i % 50 == 0)
+                ps.setNull(2, Types.INTEGER);
+            else
+                ps.setInt(2, i < 3600 ? i % 3 : i % 6);
+            // 前两批都是NULL，之后大部分是NULL
+            if (i < 2 * 1024 || i % 9 != 0)
+                ps.setNull(3, Types.INTEGER);
+            else
+                ps.setInt(3, i % 20 - 10);
+            if (i % 10 != 3)
+                ps.setNull(4, Types.DOUBLE);
+            else
+                ps.setDouble(4, i % 7 - 3.5);
+            ps.setNull(5, Types.BIGINT);
+            if (i % 4 == 0)
+                ps.setNull(6, Types.BIGINT);
+            else
+                ps.setLong(6, i == N_OVERFLOW_ROW ? Long.MAX_VALUE / 3 : i % 100 - 30);
+            // 有整数值、-0.0和比long能精确表示的更大的值
+            if (i % 6 == 0)
+                ps.setNull(7, Types.DOUBLE);
+            else if (i % 6 == 1)
+                ps.setDouble(7, -0.0);
+            else if (i % 6 == 2)
+                ps.setDouble(7, (double) (Long.MAX_VALUE / 3));
+            else
+                ps.setDouble(7, i % 20 - 10 + (i % 6 == 3 ? 0 : 0.5));
+            ps.executeUpdate();
+        }
+        ps.close();
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception {
+        conn.close();
+        rowConn.close();
+    }
+
+    @Test
+    public void run() throws Exception {
+        testFlat();
+        testGroup();
+        testNulls();
+        testOverflowGroups();
+        testMixedTypes();
+    }
+
+    void testFlat() throws Exception {
+        checkFlat("SELECT id, f1 * 2 FROM V WHERE f1 * 3 > f3 - 10");
+        checkFlat("SELECT id FROM V WHERE f1 + f3 < 0 OR d IS NULL");
+        checkFlat("SELECT id FROM V WHERE NOT (f1 > 0 AND f3 * f1 < 100)");
+        checkFlat("SELECT id FROM V WHERE -f1 * 2 < d");
+        // 溢出时改用逐行计算
+        checkFlat("SELECT id, f2 FROM V WHERE f2 * 4 > 1000000");
+        checkFlat("SELECT id FROM V WHERE f2 * 4 - f1 < 2000000 ORDER BY id");
+    }
+
+    void testGroup() throws Exception {
+        checkGroup("SELECT g, count(*), count(f1), sum(f1 * 2 + f3), min(f3 - f1), max(f1 * f3), avg(-f3) "
+                + "FROM V GROUP BY g");
+        checkGroup("SELECT count(*), sum(f1 + f3), avg(f1 * 2) FROM V WHERE f1 IS NULL OR f3 + 1 < 0");
+        checkGroup("SELECT g, sum(d), max(f1 - 1) FROM V WHERE NOT (f1 * 3 >= f3) GROUP BY g");
+        // 溢出时已经按批算出的结果和之后逐行算出的结果合在一起
+        checkGroup("SELECT g, count(*), sum(f2 * 4), min(f2 * 4), max(f2 * 4) FROM V GROUP BY g");
+        checkGroup("SELECT count(*), sum(f2) FROM V WHERE f2 * 4 > 1000000");
+    }
+
+    void testNulls() throws Exception {
+        checkFlat("SELECT id FROM N WHERE n1 > 0");
+        checkFlat("SELECT id FROM N WHERE n3 IS NULL AND n1 IS NOT NULL");
+        checkFlat("SELECT id, n1 + n2 FROM N WHERE n1 + n3 > 0 OR n2 < 0");
+        checkFlat("SELECT id FROM N WHERE NOT (n1 > 0 OR n2 > 0)");
+        checkFlat("SELECT id FROM N WHERE NOT (n1 < 0 AND n3 < 0)");
+        checkGroup("SELECT count(*), count(n1), sum(n1), avg(n1), min(n1), max(n1) FROM N");
+        // 全是NULL的列，以及没有满足条件的行
+        checkGroup("SELECT count(n3), sum(n3), avg(n3), min(n3), max(n3) FROM N");
+        checkGroup("SELECT count(*), sum(n1), max(n2) FROM N WHERE n3 > 0");
+        checkGroup("SELECT g, count(*), count(n1), sum(n1 * 2), min(n2), max(n2), avg(n2), sum(n3) "
+                + "FROM N GROUP BY g");
+        checkGroup("SELECT g, count(*), sum(n2), min(n1 - 1), max(n3 + 1) FROM N "
+                + "WHERE n1 IS NULL OR n2 > 0 GROUP BY g");
+    }
+
+    // 在扫描到一半时溢出，之前几批按批算出的分组和之后逐行算出的分组合在一起，
+    // 有的分组只在溢出之前或之后出现
+    void testOverflowGroups() throws Exception {
+        checkGroup("SELECT g, count(*), count(n4), sum(n4 * 4), min(n4 * 4), max(n4 * 4), avg(n4 * 4) "
+                + "FROM N GROUP BY g");
+        checkGroup("SELECT g, sum(n1), sum(n2), max(d), min(n4) FROM N WHERE n4 * 4 > 0 GROUP BY g");
+        checkGroup("SELECT g, count(*), sum(n4) FROM N WHERE n4 * 4 < 100 OR n1 IS NOT NULL GROUP BY g");
+        checkGroup("SELECT count(*), sum(n4 * 4), avg(d) FROM N WHERE n2 IS NULL");
+        checkFlat("SELECT id, n4 FROM N WHERE n4 * 4 > 200 OR n1 < 0");
+    }
+
+    // 整数和DOUBLE比较时都转成DOUBLE，包括-0.0和超过2^53的long。
+    // 算术运算的结果是DECIMAL，有DOUBLE参与的运算不按批计算，所以这里只有比较
+    void testMixedTypes() throws Exception {
+        checkFlat("SELECT id FROM N WHERE n1 = d");
+        checkFlat("SELECT id FROM N WHERE n4 >= d");
+        checkFlat("SELECT id FROM N WHERE d <> n4 * 4");
+        checkFlat("SELECT id FROM N WHERE n4 < n2 OR n1 >= n2");
+        checkFlat("SELECT id FROM N WHERE d > n3 OR d < n2 OR n1 * 2 > n2");
+        checkFlat("SELECT id FROM N WHERE n4 = CAST(0 AS DOUBLE) OR n4 > CAST(2.5 AS DOUBLE) AND d <= 0");
+        checkFlat("SELECT id FROM N WHERE d = 0 OR n1 = -CAST(0 AS DOUBLE)");
+        checkFlat("SELECT id FROM V WHERE f2 > d AND f1 * 1000 <= d");
+        checkGroup("SELECT g, count(*), sum(d), min(d), max(n2), sum(n4 + n1) FROM N WHERE n4 < d GROUP BY g");
+    }
+
+    void checkFlat(String sql) throws Exception {
+        Select select = (Select) session.prepare(sql, true);
+        assertNotNull(sql, select.getVectorCondition());
+        assertEquals(sql, query(rowConn, sql), query(conn, sql));
+    }
+
+    void checkGroup(String sql) throws Exception {
+        Select select = (Select) session.prepare(sql, true);
+        if (sql.contains("WHERE"))
+            assertNotNull(sql, select.getVectorCondition());
+        assertNotNull(sql, select.getVectorAggregates(select.getColumnCount()));
+        assertEquals(sql, query(rowConn, sql), query(conn, sql));
+    }
+
+    static String query(Connection conn, String sql) throws Exception {
+        Statement stmt = conn.createStatement();
+        ResultSet rs = stmt.executeQuery(sql);
+        int columnCount = rs.getMetaData().getColumnCount();
+        ArrayList<String> rows = new ArrayList<>();
+        while (rs.next()) {
+            StringBuilder buff = new StringBuilder();
+            for (int i = 1; i <= columnCount; i++)
+                buff.append(rs.getString(i)).append(',');
+            rows.add(buff.toString());
+        }
+        rs.close();
+        stmt.close();
+        Collections.sort(rows);
+        return rows.size() + " " + rows;
+    }
+}
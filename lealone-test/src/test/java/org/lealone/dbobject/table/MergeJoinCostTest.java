@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.dbobject.table;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+
+import org.junit.Test;
+import org.lealone.command.dml.Select;
+import org.lealone.dbobject.index.Index;
+import org.lealone.engine.Session;
+import org.lealone.jdbc.JdbcConnection;
+
+/**
+ * 被连接的表能用merge join时，代价是按顺序读一遍整个索引的代价，
+ * 不管是在Plan中还是在外连接的getBestPlanItem中都要用和运行时一样的规则判断能不能用merge join。
+ */
+public class MergeJoinCostTest {
+
+    static final String SQL = "SELECT count(*) FROM MJ_S s LEFT JOIN MJ_B b ON s.id = b.k";
+
+    @Test
+    public void run() throws Exception {
+        Connection conn = DriverManager.getConnection("jdbc:lealone:mem:embed:MergeJoinCostTest", "sa", "");
+        Statement stmt = conn.createStatement();
+        stmt.executeUpdate("CREATE TABLE MJ_S(id int primary key, v int)");
+        stmt.executeUpdate("CREATE TABLE MJ_B(id int primary key, k int, v int)");
+        stmt.executeUpdate("CREATE INDEX MJ_B_k ON MJ_B(k)");
+        for (int i = 0; i < 100; i++)
+            stmt.executeUpdate("INSERT INTO MJ_S VALUES(" + i + ", " + i + ")");
+        PreparedStatement ps = conn.prepareStatement("INSERT INTO MJ_B VALUES(?, ?, ?)");
+        for (int i = 0; i < 5000; i++) {
+            ps.setInt(1, i);
+            ps.setInt(2, i % 200);
+            ps.setInt(3, i);
+            ps.executeUpdate();
+        }
+        ps.close();
+        Session session = (Session) ((JdbcConnection) conn).getSession();
+        testMergeJoinCost(session);
+
+        //关掉merge join后还是按索引查找
+        Connection conn2 = DriverManager.getConnection("jdbc:lealone:mem:embed:MergeJoinCostTest2;MERGE_JOIN=FALSE",
+                "sa", "");
+        conn2.createStatement().executeUpdate("CREATE TABLE MJ_S(id int primary key, v int)");
+        conn2.createStatement().executeUpdate("CREATE TABLE MJ_B(id int primary key, k int, v int)");
+        conn2.createStatement().executeUpdate("CREATE INDEX MJ_B_k ON MJ_B(k)");
+        testIndexLookupCost((Session) ((JdbcConnection) conn2).getSession());
+        conn2.close();
+
+        stmt.close();
+        conn.close();
+    }
+
+    void testMergeJoinCost(Session session) {
+        Select select = (Select) session.prepare(SQL, true);
+        TableFilter s = select.getTopTableFilter();
+        TableFilter b = s.getJoin();
+        assertEquals("MJ_B", b.getTable().getName());
+
+        Plan plan = new Plan(new TableFilter[] { s }, 1, null);
+        double cost = plan.calculateCost(session);
+        PlanItem item = plan.getItem(b);
+        Index index = item.getIndex();
+        assertEquals("MJ_B_K", index.getName());
+        assertTrue(item.isMergeJoin());
+        double scanCost = index.getCost(session, null, null);
+        assertEquals(scanCost, item.cost);
+        assertTrue(cost > scanCost);
+
+        //外连接中被连接的表也按同样的规则计算
+        PlanItem joinPlan = plan.getItem(s).getJoinPlan();
+        assertTrue(joinPlan.isMergeJoin());
+        assertEquals(scanCost, joinPlan.cost);
+        assertTrue(plan.getItem(s).cost > scanCost);
+    }
+
+    void testIndexLookupCost(Session session) {
+        Select select = (Select) session.prepare(SQL, true);
+        TableFilter s = select.getTopTableFilter();
+        Plan plan = new Plan(new TableFilter[] { s }, 1, null);
+        plan.calculateCost(session);
+        PlanItem item = plan.getItem(s.getJoin());
+        assertFalse(item.isMergeJoin());
+        assertFalse(plan.getItem(s).getJoinPlan().isMergeJoin());
+        assertEquals("MJ_B_K", item.getIndex().getName());
+    }
+}
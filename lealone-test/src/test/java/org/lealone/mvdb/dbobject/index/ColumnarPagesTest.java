@@ -0,0 +1,235 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.mvdb.dbobject.index;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import org.lealone.fs.FileUtils;
+import org.lealone.mvstore.MVMap;
+import org.lealone.mvstore.MVStore;
+import org.lealone.mvstore.WriteBuffer;
+import org.lealone.util.DateTimeUtils;
+import org.lealone.value.Value;
+import org.lealone.value.ValueArray;
+import org.lealone.value.ValueDate;
+import org.lealone.value.ValueDouble;
+import org.lealone.value.ValueInt;
+import org.lealone.value.ValueLong;
+import org.lealone.value.ValueNull;
+import org.lealone.value.ValueString;
+import org.lealone.value.ValueTimestamp;
+
+/**
+ * 按列存放的页面：每种列编码(CONSTANT、DICTIONARY、DELTA、PLAIN)和NULL值都要能原样读出来，
+ * 关掉COLUMNAR_PAGES时还是按行存放，同一个map中按行和按列存放的页面可以混在一起。
+ */
+public class ColumnarPagesTest {
+
+    static final String DIR = "./lealone-test-data/mvdb";
+    static final String FILE_NAME = DIR + "/ColumnarPagesTest.mv.db";
+    static final int ROWS = 100;
+    static final int COUNT = 20000;
+
+    @Test
+    public void run() throws Exception {
+        testEncodings();
+        testRowLayout();
+        testMixedPages();
+    }
+
+    static ValueDataType newValueType(boolean columnar) {
+        ValueDataType valueType = new ValueDataType(null, null, null);
+        valueType.setColumnar(columnar);
+        return valueType;
+    }
+
+    static Value[] column(int type) {
+        long date = DateTimeUtils.dateValue(2015, 6, 1);
+        Value[] column = new Value[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            Value v;
+            switch (type) {
+            case 0: // 都一样
+                v = ValueString.get("same");
+                break;
+            case 1: // 都是NULL
+                v = ValueNull.INSTANCE;
+                break;
+            case 2: // 几个不同的值
+                v = ValueString.get("city" + (i % 3));
+                break;
+            case 3: // 几个不同的值和NULL
+                v = i % 7 == 0 ? ValueNull.INSTANCE : ValueInt.get(i % 5 - 2);
+                break;
+            case 4: // 递增的值，差可以是负数
+                v = ValueLong.get(1000000L * i - (i % 2) * 3000000L);
+                break;
+            case 5:
+                v = ValueInt.get(Integer.MIN_VALUE + i * 7);
+                break;
+            case 6:
+                v = ValueDate.fromDateValue(DateTimeUtils.dateValue(2015, 6, 1 + i % 3));
+                break;
+            case 7:
+                v = ValueTimestamp.fromDateValueAndNanos(date + i / 10, i * 1000000007L);
+                break;
+            case 8: // 都不一样的值
+                v = ValueString.get("value" + i * 31);
+                break;
+            case 9: // 都不一样的值和NULL，不能用DELTA
+                v = i % 9 == 0 ? ValueNull.INSTANCE : ValueLong.get(i * 13L);
+                break;
+            case 10: // 不能用DICTIONARY的类型
+                v = ValueDouble.get(i % 2 * 1.5);
+                break;
+            default: // 不同类型的值
+                v = i % 2 == 0 ? ValueInt.get(i) : ValueString.get("" + i);
+            }
+            column[i] = v;
+        }
+        return column;
+    }
+
+    static final int[] ENCODINGS = { ValueDataType.COLUMN_CONSTANT, ValueDataType.COLUMN_CONSTANT,
+            ValueDataType.COLUMN_DICTIONARY, ValueDataType.COLUMN_DICTIONARY, ValueDataType.COLUMN_DELTA,
+            ValueDataType.COLUMN_DELTA, ValueDataType.COLUMN_DICTIONARY, ValueDataType.COLUMN_DELTA,
+            ValueDataType.COLUMN_PLAIN, ValueDataType.COLUMN_PLAIN, ValueDataType.COLUMN_PLAIN,
+            ValueDataType.COLUMN_PLAIN };
+
+    static Object[] rows(Value[]... columns) {
+        Object[] rows = new Object[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            Value[] list = new Value[columns.length];
+            for (int c = 0; c < columns.length; c++)
+                list[c] = columns[c][i];
+            rows[i] = ValueArray.get(list);
+        }
+        return rows;
+    }
+
+    static ByteBuffer write(ValueDataType valueType, Object[] rows) {
+        WriteBuffer buff = new WriteBuffer();
+        valueType.write(buff, rows, rows.length, false);
+        ByteBuffer b = buff.getBuffer();
+        b.flip();
+        return b;
+    }
+
+    static void checkRead(ValueDataType valueType, Object[] rows, ByteBuffer buff) {
+        Object[] read = new Object[rows.length];
+        valueType.read(buff, read, rows.length, false);
+        assertEquals(0, buff.remaining());
+        for (int i = 0; i < rows.length; i++)
+            assertEquals(rows[i], read[i]);
+    }
+
+    //只有一列时，列的编码在按列存放的标记和列数后面
+    void testEncodings() {
+        ValueDataType valueType = newValueType(true);
+        Value[][] columns = new Value[ENCODINGS.length][];
+        for (int type = 0; type < ENCODINGS.length; type++) {
+            columns[type] = column(type);
+            Object[] rows = rows(columns[type]);
+            ByteBuffer buff = write(valueType, rows);
+            assertEquals(255, buff.get(0) & 255);
+            assertEquals(1, buff.get(1));
+            assertEquals("type " + type, ENCODINGS[type], buff.get(2));
+            checkRead(valueType, rows, buff);
+        }
+
+        //所有列放在一起
+        Object[] rows = rows(columns);
+        checkRead(valueType, rows, write(valueType, rows));
+
+        //行数太少或者每行的列数不一样时按行存放
+        Object[] few = { rows[0], rows[1], rows[2] };
+        ByteBuffer buff = write(valueType, few);
+        assertTrue(255 != (buff.get(0) & 255));
+        checkRead(valueType, few, buff);
+        Object[] mixed = rows.clone();
+        mixed[50] = ValueArray.get(new Value[] { ValueInt.get(1) });
+        buff = write(valueType, mixed);
+        assertTrue(255 != (buff.get(0) & 255));
+        checkRead(valueType, mixed, buff);
+    }
+
+    //关掉时按行存放，打开后也能读
+    void testRowLayout() {
+        Object[] rows = rows(column(0), column(2), column(4), column(9));
+        ByteBuffer buff = write(newValueType(false), rows);
+        assertTrue(255 != (buff.get(0) & 255));
+        checkRead(newValueType(true), rows, buff);
+        buff.rewind();
+        checkRead(newValueType(false), rows, buff);
+        checkRead(newValueType(false), rows, write(newValueType(true), rows));
+    }
+
+    static Value row(int key, int version) {
+        Value f2 = key % 11 == 0 ? ValueNull.INSTANCE : ValueString.get("v" + key % 4);
+        return ValueArray.get(new Value[] { ValueLong.get(key * 10L + version), f2, ValueInt.get(version) });
+    }
+
+    static MVStore open() {
+        return new MVStore.Builder().fileName(FILE_NAME).pageSplitSize(1024).cacheSize(1).open();
+    }
+
+    static MVMap<Value, Value> openMap(MVStore store, boolean columnar) {
+        MVMap.Builder<Value, Value> builder = new MVMap.Builder<Value, Value>();
+        builder.keyType(new ValueDataType(null, null, null)).valueType(newValueType(columnar));
+        return store.openMap("data", builder);
+    }
+
+    static void check(MVMap<Value, Value> map) {
+        assertEquals(COUNT, map.size());
+        for (int i = 0; i < COUNT; i++) {
+            int version = i < COUNT / 2 && i % 2 == 0 ? 1 : 0;
+            assertEquals(row(i, version), map.get(ValueLong.get(i)));
+        }
+    }
+
+    //先按行写所有记录，再按列改写前一半的记录，后一半记录所在的页面还是按行存放的
+    void testMixedPages() {
+        FileUtils.deleteRecursive(DIR, false);
+        new File(DIR).mkdirs();
+        MVStore store = open();
+        MVMap<Value, Value> map = openMap(store, false);
+        for (int i = 0; i < COUNT; i++)
+            map.put(ValueLong.get(i), row(i, 0));
+        store.commit();
+        store.close();
+
+        store = open();
+        map = openMap(store, true);
+        for (int i = 0; i < COUNT / 2; i += 2)
+            map.put(ValueLong.get(i), row(i, 1));
+        store.commit();
+        store.close();
+
+        store = open();
+        check(openMap(store, true));
+        store.close();
+        store = open();
+        check(openMap(store, false));
+        store.close();
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.mvstore;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.lealone.fs.FileUtils;
+
+/**
+ * 增量压缩要把所有旧chunk中的页面重写完才释放旧chunk，每个时间片只做很少的工作，
+ * 压缩的同时其他线程可以写；所有store都关闭后共享的压缩线程要退出。
+ */
+public class CompactionSchedulerTest {
+
+    static {
+        //时间片很小，压缩要分成很多个时间片
+        System.setProperty("lealone.mvstore.compaction.time.slice", "1");
+    }
+
+    static final String DIR = "./lealone-test-data/mvstore";
+    static final String FILE_NAME = DIR + "/CompactionSchedulerTest.mv.db";
+    static final int COUNT = 50000;
+
+    @Test
+    public void run() throws Exception {
+        new File(DIR).mkdirs();
+        FileUtils.delete(FILE_NAME);
+        int openSchedulers = CompactionScheduler.getOpenSchedulerCount();
+        testCompact();
+        testReopen();
+        assertEquals(openSchedulers, CompactionScheduler.getOpenSchedulerCount());
+        if (openSchedulers == 0)
+            testThreadsStopped();
+        FileUtils.delete(FILE_NAME);
+    }
+
+    static MVStore open() {
+        MVStore.Builder builder = new MVStore.Builder();
+        builder.fileName(FILE_NAME);
+        builder.autoCommitDisabled();
+        //页面很小，B-Tree有好几层
+        builder.pageSplitSize(512);
+        MVStore store = builder.open();
+        store.setRetentionTime(0);
+        return store;
+    }
+
+    static String value(int i, int round) {
+        return "value-" + round + "-" + i;
+    }
+
+    void testCompact() throws Exception {
+        final MVStore store = open();
+        final MVMap<Integer, String> map = store.openMap("test");
+        for (int i = 0; i < COUNT; i++) {
+            map.put(i, value(i, 0));
+            if (i % 5000 == 0)
+                store.commit();
+        }
+        store.commit();
+        //旧的chunk中只有三分之一的页面还在使用
+        for (int round = 1; round <= 2; round++) {
+            for (int i = 0; i < COUNT; i++) {
+                if (i % 3 != 0)
+                    map.put(i, value(i, round));
+            }
+            store.commit();
+        }
+        assertTrue(map.getRoot().getRawChildPageCount() > 0);
+        assertFalse(map.getRoot().getChildPage(0).isLeaf());
+
+        int fillRate = store.getFillRate();
+        CompactionScheduler scheduler = store.getCompactionScheduler();
+        long compactions = scheduler.getCompactionCount();
+
+        //压缩的同时写
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < COUNT; i += 7)
+                        map.put(i, value(i, 3));
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            }
+        });
+        writer.start();
+        int slices = 0;
+        while (scheduler.compact(90, Integer.MAX_VALUE)) {
+            slices++;
+            if (!scheduler.isCompacting() && scheduler.getCompactionCount() > compactions)
+                break;
+        }
+        writer.join();
+        assertNull(error.get());
+        store.commit();
+
+        assertTrue(scheduler.getCompactionCount() > compactions);
+        assertTrue(scheduler.getRewrittenPages() > 0);
+        if (CompactionScheduler.TIME_SLICE <= 1) {
+            //每个单元只重写一个叶子页面或者拆分一个内部节点
+            assertTrue("slices: " + slices, slices > 10);
+            assertTrue("max slice time: " + scheduler.getMaxSliceTime(), scheduler.getMaxSliceTime() < 1000);
+        }
+        assertEquals(100, scheduler.getProgress());
+        assertTrue(store.getFillRate() + " " + fillRate, store.getFillRate() > fillRate);
+        check(map);
+        store.close();
+    }
+
+    void testReopen() {
+        MVStore store = open();
+        check(store.<Integer, String> openMap("test"));
+        store.close();
+    }
+
+    static void check(MVMap<Integer, String> map) {
+        assertEquals(COUNT, map.size());
+        for (int i = 0; i < COUNT; i++) {
+            String expected = i % 7 == 0 ? value(i, 3) : value(i, i % 3 == 0 ? 0 : 2);
+            assertEquals(expected, map.get(i));
+        }
+    }
+
+    //最后一个store关闭时线程池被关闭
+    void testThreadsStopped() throws Exception {
+        long end = System.currentTimeMillis() + 10000;
+        while (true) {
+            boolean running = false;
+            for (Thread t : Thread.getAllStackTraces().keySet()) {
+                if (t.getName().startsWith("MVStore-Compaction-") && t.isAlive())
+                    running = true;
+            }
+            if (!running)
+                return;
+            assertTrue(System.currentTimeMillis() < end);
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.mvstore;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.lealone.fs.FileUtils;
+
+/**
+ * 用内存映射读文件时，文件截断后超出文件尾的映射区域和关闭时所有的映射区域都要马上释放。
+ * 通过/proc/self/maps检查映射，没有这个文件的系统上只检查读到的数据。
+ * 释放映射区域时要等待正在读映射区域的线程，否则访问已经释放的内存会让JVM崩溃。
+ */
+public class FileStoreMappedTest {
+
+    static final String DIR = "./lealone-test-data/mvstore";
+    static final String FILE_NAME = DIR + "/FileStoreMappedTest.mv.db";
+    static final int REGION_SIZE = 64 * 1024 * 1024;
+
+    @Test
+    public void run() throws Exception {
+        new File(DIR).mkdirs();
+        testTruncate();
+        testStore();
+        testCloseWaitsForReader();
+        testConcurrentReads();
+    }
+
+    void testTruncate() throws Exception {
+        FileUtils.delete(FILE_NAME);
+        FileStore fs = new FileStore();
+        fs.setMemoryMapped(true);
+        fs.open(FILE_NAME, false, null);
+        //稀疏文件，第二个区域只有开头的一部分
+        long pos0 = 1024, pos1 = REGION_SIZE + 1024;
+        write(fs, pos0, "region0");
+        write(fs, pos1, "region1");
+        assertEquals("region0", read(fs, pos0, 7));
+        assertEquals("region1", read(fs, pos1, 7));
+        assertMappings(2);
+
+        //第二个区域完全在文件尾之后，要马上释放
+        fs.truncate(REGION_SIZE);
+        assertMappings(1);
+        assertEquals("region0", read(fs, pos0, 7));
+
+        //第一个区域的一部分在文件尾之后，文件内的数据还能读
+        fs.truncate(4096);
+        assertEquals("region0", read(fs, pos0, 7));
+        assertEquals(4096, fs.readFully(0, 4096).remaining());
+
+        //文件再变大后还能读到新写的数据
+        write(fs, 8192, "grown");
+        assertEquals("grown", read(fs, 8192, 5));
+        write(fs, pos1, "region1");
+        assertEquals("region1", read(fs, pos1, 7));
+
+        fs.close();
+        assertMappings(0);
+        FileUtils.delete(FILE_NAME);
+    }
+
+    void testStore() throws Exception {
+        FileUtils.delete(FILE_NAME);
+        MVStore store = open();
+        MVMap<Integer, String> map = store.openMap("test");
+        for (int i = 0; i < 10000; i++)
+            map.put(i, "value-" + i);
+        store.commit();
+        for (int i = 0; i < 10000; i += 2)
+            map.remove(i);
+        store.commit();
+        //移动chunk后文件会被截断
+        store.compactMoveChunks();
+        for (int i = 0; i < 10000; i++)
+            assertEquals(i % 2 == 0 ? null : "value-" + i, map.get(i));
+        store.close();
+        assertMappings(0);
+
+        store = open();
+        map = store.openMap("test");
+        for (int i = 1; i < 10000; i += 2)
+            assertEquals("value-" + i, map.get(i));
+        assertNull(map.get(0));
+        store.close();
+        assertMappings(0);
+        FileUtils.delete(FILE_NAME);
+    }
+
+    //没有调用beginMappedRead的线程读到的是复制的数据，
+    //调用了beginMappedRead的线程在endMappedRead之前一直能读映射区域，close要等它结束
+    void testCloseWaitsForReader() throws Exception {
+        FileUtils.delete(FILE_NAME);
+        final FileStore fs = new FileStore();
+        fs.setMemoryMapped(true);
+        fs.open(FILE_NAME, false, null);
+        write(fs, 1024, "region0");
+        assertFalse(fs.readFully(1024, 7).isDirect());
+        assertMappings(0);
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicReference<String> result = new AtomicReference<>();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                fs.beginMappedRead();
+                try {
+                    ByteBuffer buff = fs.readFully(1024, 7);
+                    started.countDown();
+                    Thread.sleep(200);
+                    byte[] bytes = new byte[7];
+                    buff.get(bytes);
+                    result.set((buff.isDirect() ? "mapped " : "") + new String(bytes, StandardCharsets.UTF_8));
+                } catch (InterruptedException e) {
+                    // ignore
+                } finally {
+                    fs.endMappedRead();
+                }
+            }
+        });
+        reader.start();
+        started.await();
+        fs.close();
+        assertEquals("mapped region0", result.get());
+        assertMappings(0);
+        reader.join();
+        FileUtils.delete(FILE_NAME);
+    }
+
+    //读页面的同时截断和关闭文件，读线程可以抛出异常，但JVM不能崩溃
+    void testConcurrentReads() throws Exception {
+        FileUtils.delete(FILE_NAME);
+        final MVStore store = open();
+        final MVMap<Integer, String> map = store.openMap("test");
+        for (int i = 0; i < 20000; i++)
+            map.put(i, "value-" + i);
+        store.commit();
+        for (int i = 0; i < 20000; i += 2)
+            map.remove(i);
+        store.commit();
+
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread[] readers = new Thread[4];
+        for (int t = 0; t < readers.length; t++) {
+            readers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random r = new Random();
+                    try {
+                        while (!stop.get()) {
+                            int i = r.nextInt(10000) * 2 + 1;
+                            String v = map.get(i);
+                            if (!("value-" + i).equals(v))
+                                throw new AssertionError(i + ": " + v);
+                        }
+                    } catch (Throwable e) {
+                        //关闭后抛出的异常是预期的
+                        if (!store.isClosed())
+                            error.compareAndSet(null, e);
+                    }
+                }
+            });
+            readers[t].start();
+        }
+        //移动chunk后文件会被截断
+        store.compactMoveChunks();
+        Thread.sleep(100);
+        store.close();
+        stop.set(true);
+        for (Thread t : readers)
+            t.join();
+        assertNull(error.get());
+        assertMappings(0);
+        FileUtils.delete(FILE_NAME);
+    }
+
+    static MVStore open() {
+        MVStore.Builder builder = new MVStore.Builder();
+        builder.fileName(FILE_NAME);
+        builder.memoryMapped();
+        builder.cacheSize(1);
+        return builder.open();
+    }
+
+    static void write(FileStore fs, long pos, String s) {
+        fs.writeFully(pos, ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    static String read(FileStore fs, long pos, int len) {
+        fs.beginMappedRead();
+        try {
+            ByteBuffer buff = fs.readFully(pos, len);
+            byte[] bytes = new byte[len];
+            buff.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        } finally {
+            fs.endMappedRead();
+        }
+    }
+
+    static void assertMappings(int expected) throws Exception {
+        File maps = new File("/proc/self/maps");
+        if (!maps.exists())
+            return;
+        String path = new File(FILE_NAME).getCanonicalPath();
+        int count = 0;
+        for (String line : Files.readAllLines(Paths.get(maps.getPath()), StandardCharsets.UTF_8)) {
+            if (line.endsWith(path))
+                count++;
+        }
+        assertEquals(expected, count);
+    }
+}
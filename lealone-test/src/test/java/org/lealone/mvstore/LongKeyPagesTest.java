@@ -0,0 +1,246 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.mvstore;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+import org.lealone.fs.FileUtils;
+import org.lealone.mvstore.type.LongKeyDataType;
+import org.lealone.mvstore.type.ObjectDataType;
+
+/**
+ * 用long[]存放键的页面：重新打开store后能读出来，同一个store中新旧两种格式的页面可以混在一起，
+ * 页面分裂和删除后合并时键的顺序和查找结果都要和TreeMap一样。
+ */
+public class LongKeyPagesTest {
+
+    static final String DIR = "./lealone-test-data/mvstore";
+    static final String FILE_NAME = DIR + "/LongKeyPagesTest.mv.db";
+
+    /**
+     * Long类型的键。
+     */
+    static class LongKeyType extends ObjectDataType implements LongKeyDataType {
+        @Override
+        public long getLong(Object key) {
+            return (Long) key;
+        }
+
+        @Override
+        public Object getKey(long key) {
+            return key;
+        }
+    }
+
+    @Test
+    public void run() throws Exception {
+        new File(DIR).mkdirs();
+        testReopen();
+        testMixedLayouts();
+        testSplitAndMerge();
+        FileUtils.delete(FILE_NAME);
+    }
+
+    static MVStore open() {
+        MVStore.Builder builder = new MVStore.Builder();
+        builder.fileName(FILE_NAME);
+        //页面很小，页面经常分裂
+        builder.pageSplitSize(256);
+        return builder.open();
+    }
+
+    static MVMap<Long, String> openMap(MVStore store, boolean longKeys) {
+        MVMap.Builder<Long, String> b = new MVMap.Builder<Long, String>();
+        b.keyType(new LongKeyType());
+        MVMap<Long, String> map = store.openMap("test", b);
+        map.setLongKeys(longKeys);
+        return map;
+    }
+
+    void testReopen() {
+        FileUtils.delete(FILE_NAME);
+        TreeMap<Long, String> expected = new TreeMap<>();
+        MVStore store = open();
+        MVMap<Long, String> map = openMap(store, true);
+        Random random = new Random(1);
+        //包括负数、相差很大的键和边界值
+        long[] special = { Long.MIN_VALUE, Long.MIN_VALUE + 1, -1, 0, 1, Long.MAX_VALUE - 1, Long.MAX_VALUE };
+        for (long key : special)
+            put(map, expected, key);
+        for (int i = 0; i < 5000; i++)
+            put(map, expected, random.nextInt(3) == 0 ? random.nextLong() : random.nextInt(100000) - 50000);
+        store.commit();
+        assertTrue(map.getRoot().isLongKeyLayout());
+        check(map, expected);
+        store.close();
+
+        store = open();
+        map = openMap(store, true);
+        check(map, expected);
+        assertLayout(map.getRoot(), true);
+        store.close();
+
+        //map没有启用long key时也能读，改过的页面换成Object[]格式
+        store = open();
+        map = openMap(store, false);
+        check(map, expected);
+        for (int i = 0; i < 1000; i++)
+            put(map, expected, random.nextInt(100000) - 50000);
+        check(map, expected);
+        store.close();
+
+        store = open();
+        map = openMap(store, true);
+        check(map, expected);
+        store.close();
+    }
+
+    void testMixedLayouts() {
+        FileUtils.delete(FILE_NAME);
+        TreeMap<Long, String> expected = new TreeMap<>();
+        MVStore store = open();
+        MVMap<Long, String> map = openMap(store, false);
+        for (long i = 0; i < 3000; i++)
+            put(map, expected, i * 10);
+        store.commit();
+        assertFalse(map.getRoot().isLongKeyLayout());
+
+        //只修改一部分页面，其他页面保持旧的格式
+        map.setLongKeys(true);
+        for (long i = 0; i < 300; i++)
+            put(map, expected, i * 10 + 5);
+        store.commit();
+        assertTrue(countPages(map.getRoot(), true) > 0);
+        assertTrue(countPages(map.getRoot(), false) > 0);
+        check(map, expected);
+        store.close();
+
+        store = open();
+        map = openMap(store, true);
+        check(map, expected);
+        //重新读的页面都转换成long[]格式
+        assertLayout(map.getRoot(), true);
+        for (long i = 1000; i < 1500; i++) {
+            map.remove(i * 10);
+            expected.remove(i * 10);
+        }
+        check(map, expected);
+        store.close();
+
+        store = open();
+        map = openMap(store, false);
+        check(map, expected);
+        store.close();
+    }
+
+    void testSplitAndMerge() {
+        FileUtils.delete(FILE_NAME);
+        TreeMap<Long, String> expected = new TreeMap<>();
+        MVStore store = open();
+        MVMap<Long, String> map = openMap(store, true);
+        Random random = new Random(2);
+        for (int round = 0; round < 5; round++) {
+            //连续插入，页面不断分裂
+            for (long i = 0; i < 4000; i++)
+                put(map, expected, i * 3 + round);
+            store.commit();
+            check(map, expected);
+            //随机删除大部分键，空的页面被删除，父页面合并
+            Iterator<Long> it = expected.keySet().iterator();
+            while (it.hasNext()) {
+                Long key = it.next();
+                if (random.nextInt(10) != 0) {
+                    map.remove(key);
+                    it.remove();
+                }
+            }
+            store.commit();
+            check(map, expected);
+            assertLayout(map.getRoot(), true);
+        }
+        //全部删除后再插入
+        map.clear();
+        expected.clear();
+        check(map, expected);
+        for (long i = 100; i > 0; i--)
+            put(map, expected, i);
+        check(map, expected);
+        store.close();
+
+        store = open();
+        check(openMap(store, true), expected);
+        store.close();
+    }
+
+    static void put(MVMap<Long, String> map, TreeMap<Long, String> expected, long key) {
+        String value = "value-" + key;
+        map.put(key, value);
+        expected.put(key, value);
+    }
+
+    static void check(MVMap<Long, String> map, TreeMap<Long, String> expected) {
+        assertEquals(expected.size(), map.size());
+        if (expected.isEmpty()) {
+            assertEquals(null, map.firstKey());
+            return;
+        }
+        assertEquals(expected.firstKey(), map.firstKey());
+        assertEquals(expected.lastKey(), map.lastKey());
+        Iterator<Long> it = map.keyIterator(null);
+        long index = 0;
+        for (Map.Entry<Long, String> e : expected.entrySet()) {
+            Long key = e.getKey();
+            assertEquals(key, it.next());
+            assertEquals(e.getValue(), map.get(key));
+            if (index % 97 == 0) {
+                assertEquals(key, map.getKey(index));
+                assertEquals(index, map.getKeyIndex(key));
+                if (key != Long.MIN_VALUE && key != Long.MAX_VALUE) {
+                    assertEquals(expected.ceilingKey(key + 1), map.ceilingKey(key + 1));
+                    assertEquals(expected.floorKey(key - 1), map.floorKey(key - 1));
+                    assertEquals(expected.higherKey(key), map.higherKey(key));
+                    assertEquals(expected.lowerKey(key), map.lowerKey(key));
+                }
+            }
+            index++;
+        }
+        assertFalse(it.hasNext());
+    }
+
+    static void assertLayout(Page p, boolean longKeys) {
+        assertEquals(0, countPages(p, !longKeys));
+    }
+
+    static int countPages(Page p, boolean longKeys) {
+        int count = p.isLongKeyLayout() == longKeys ? 1 : 0;
+        if (!p.isLeaf()) {
+            for (int i = 0; i < p.getRawChildPageCount(); i++)
+                count += countPages(p.getChildPage(i), longKeys);
+        }
+        return count;
+    }
+}
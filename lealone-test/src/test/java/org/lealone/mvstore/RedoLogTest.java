@@ -0,0 +1,229 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.mvstore;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.lealone.fs.FileUtils;
+import org.lealone.mvstore.type.ObjectDataType;
+
+/**
+ * LockFreeMVMap中没有合并到B-Tree的写操作只在重做日志中，重新打开store时要从日志中恢复。
+ */
+public class RedoLogTest {
+
+    static {
+        //测试期间不让Merger合并
+        System.setProperty("lealone.mvstore.merger.heap.usage.threshold", "100");
+    }
+
+    static final String DIR = "./lealone-test-data/mvstore";
+    static final String FILE_NAME = DIR + "/RedoLogTest.mv.db";
+
+    MVStore store;
+    LockFreeMVMap<Integer, String> map;
+
+    @Test
+    public void run() throws Exception {
+        FileUtils.deleteRecursive(DIR + "/RedoLogTest.mv.db", false);
+        for (String f : getSegmentFiles())
+            FileUtils.delete(f);
+
+        testReplay();
+        testTruncatedRecord();
+        testBadChecksum();
+        testSyncThread();
+        testRemoveMap();
+        testMergeSync();
+    }
+
+    void open() {
+        new File(DIR).mkdirs();
+        MVStore.Builder builder = new MVStore.Builder();
+        builder.fileName(FILE_NAME);
+        builder.autoCommitDisabled();
+        store = builder.open();
+        LockFreeMVMap.Builder<Integer, String> mb = new LockFreeMVMap.Builder<Integer, String>();
+        mb.keyType(new ObjectDataType()).valueType(new ObjectDataType());
+        map = store.openMap("RedoLogTest", mb);
+        store.commit();
+    }
+
+    static String value(int i) {
+        StringBuilder buff = new StringBuilder("v" + i);
+        //比重放时的初始缓冲区大的记录
+        if (i % 100 == 0) {
+            for (int j = 0; j < 1000; j++)
+                buff.append((char) ('a' + j % 26));
+        }
+        return buff.toString();
+    }
+
+    void testReplay() {
+        open();
+        for (int i = 0; i < 1000; i++)
+            map.put(i, value(i));
+        for (int i = 0; i < 1000; i += 10)
+            map.remove(i);
+        for (int i = 0; i < 1000; i += 20)
+            map.put(i, "again" + i);
+        assertTrue(map.getDeltaSize() > 0);
+        assertEquals(0, map.getMergeCount());
+        //模拟崩溃: 不保存store，delta中的写操作只在重做日志中
+        store.closeImmediately();
+        assertFalse(getSegmentFiles().isEmpty());
+
+        open();
+        assertTrue(map.getDeltaSize() > 0);
+        for (int i = 0; i < 1000; i++) {
+            if (i % 20 == 0)
+                assertEquals("again" + i, map.get(i));
+            else if (i % 10 == 0)
+                assertNull(map.get(i));
+            else
+                assertEquals(value(i), map.get(i));
+        }
+        store.close();
+    }
+
+    //崩溃时最后一条记录只写了一部分，它前面的记录都要恢复
+    void testTruncatedRecord() throws Exception {
+        open();
+        map.put(2000, "x");
+        store.closeImmediately();
+        String last = getLastSegmentFile();
+        RandomAccessFile f = new RandomAccessFile(last, "rw");
+        try {
+            long len = f.length();
+            f.seek(len);
+            f.writeInt(100);
+            f.writeInt(12345);
+            f.write(new byte[10]);
+        } finally {
+            f.close();
+        }
+
+        open();
+        assertEquals("x", map.get(2000));
+        assertEquals(value(1), map.get(1));
+        map.put(2001, "y");
+        store.closeImmediately();
+        open();
+        assertEquals("y", map.get(2001));
+        store.close();
+    }
+
+    //校验失败的记录和它后面的记录都不能重放
+    void testBadChecksum() throws Exception {
+        open();
+        map.put(3000, "a");
+        map.put(3001, "b");
+        store.closeImmediately();
+        String last = getLastSegmentFile();
+        RandomAccessFile f = new RandomAccessFile(last, "rw");
+        try {
+            //最后一条记录的最后一个字节
+            long pos = f.length() - 1;
+            f.seek(pos);
+            int b = f.read();
+            f.seek(pos);
+            f.write(b ^ 0xff);
+        } finally {
+            f.close();
+        }
+        open();
+        assertEquals("a", map.get(3000));
+        assertNull(map.get(3001));
+        store.close();
+    }
+
+    //所有使用periodic策略的日志都关闭后后台sync线程要退出
+    void testSyncThread() throws Exception {
+        open();
+        assertTrue(RedoLog.isPeriodicSyncRunning());
+        store.close();
+        long end = System.currentTimeMillis() + 5000;
+        while (RedoLog.isPeriodicSyncRunning() && System.currentTimeMillis() < end)
+            Thread.sleep(10);
+        assertFalse(RedoLog.isPeriodicSyncRunning());
+    }
+
+    void testRemoveMap() {
+        open();
+        map.put(1, "z");
+        store.commit();
+        assertFalse(getSegmentFiles().isEmpty());
+        store.removeMap(map);
+        assertTrue(getSegmentFiles().isEmpty());
+        store.close();
+    }
+
+    //delta超过max.delta.size时Merger开始合并，删除重做日志之前要sync合并后的store
+    void testMergeSync() throws Exception {
+        open();
+        assertEquals(0, store.getGroupSyncCount());
+        for (int i = 0; i < 70000; i++)
+            map.put(i, value(i));
+        long end = System.currentTimeMillis() + 30000;
+        while (store.getGroupSyncCount() == 0 && System.currentTimeMillis() < end)
+            Thread.sleep(10);
+        assertTrue(map.getMergeCount() > 0);
+        assertTrue(store.getGroupSyncCount() > 0);
+        store.closeImmediately();
+
+        open();
+        for (int i = 0; i < 70000; i += 1000)
+            assertEquals(value(i), map.get(i));
+        store.close();
+    }
+
+    private static List<String> getSegmentFiles() {
+        List<String> list = new ArrayList<>();
+        if (!FileUtils.exists(DIR))
+            return list;
+        for (String f : FileUtils.newDirectoryStream(DIR)) {
+            String name = FileUtils.getName(f);
+            if (name.startsWith("RedoLogTest.mv.db.") && name.endsWith(".redo"))
+                list.add(f);
+        }
+        return list;
+    }
+
+    private static String getLastSegmentFile() {
+        String last = null;
+        int lastId = -1;
+        for (String f : getSegmentFiles()) {
+            String name = f.substring(0, f.length() - ".redo".length());
+            int id = Integer.parseInt(name.substring(name.lastIndexOf('.') + 1));
+            if (id > lastId) {
+                lastId = id;
+                last = f;
+            }
+        }
+        return last;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.mvstore.cache;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Test;
+import org.lealone.fs.FileUtils;
+import org.lealone.mvstore.Cursor;
+import org.lealone.mvstore.MVMap;
+import org.lealone.mvstore.MVStore;
+import org.lealone.mvstore.Page;
+
+/**
+ * 缓存满了以后，putIfAdmitted只加入最近访问次数比下一个要淘汰的cold entry多的entry，
+ * 只读一次的页面(例如全表扫描)不会把常用的页面挤出缓存。
+ */
+public class CacheAdmissionTest {
+
+    static final String FILE_NAME = "./lealone-test-data/mvstore/CacheAdmissionTest.mv.db";
+
+    @Test
+    public void run() throws Exception {
+        testAdmission();
+        testNoFilter();
+        testStore();
+    }
+
+    void testAdmission() {
+        CacheLongKeyLIRS<Integer> cache = new CacheLongKeyLIRS<>(100, 1, 8, true);
+        //缓存没满时都加入
+        for (int i = 0; i < 100; i++)
+            assertTrue(cache.putIfAdmitted(i, i, 1));
+        //还没有cold entry时总是加入
+        assertTrue(cache.putIfAdmitted(100, 100, 1));
+        assertTrue(cache.getMemory(100) > 0);
+
+        //新的key和要淘汰的entry都没有被访问过，不加入
+        assertFalse(cache.putIfAdmitted(1000, 1000, 1));
+        assertFalse(cache.containsKey(1000));
+        assertEquals(1, cache.getRejections());
+
+        //缓存未命中时get也增加频率，访问多次后可以加入
+        for (int i = 0; i < 3; i++)
+            assertEquals(null, cache.get(1000));
+        assertTrue(cache.putIfAdmitted(1000, 1000, 1));
+        assertEquals(1000, cache.get(1000).intValue());
+        assertEquals(1, cache.getRejections());
+
+        //已经在缓存中的key总是替换
+        assertTrue(cache.putIfAdmitted(1000, 1001, 1));
+        assertEquals(1001, cache.get(1000).intValue());
+
+        //put不经过准入过滤
+        cache.put(2000, 2000, 1);
+        assertTrue(cache.containsKey(2000));
+        assertEquals(1, cache.getRejections());
+    }
+
+    void testNoFilter() {
+        CacheLongKeyLIRS<Integer> cache = new CacheLongKeyLIRS<>(100, 1, 8, false);
+        for (int i = 0; i < 1000; i++)
+            assertTrue(cache.putIfAdmitted(i, i, 1));
+        assertEquals(0, cache.getRejections());
+        assertTrue(cache.containsKey(999));
+    }
+
+    void testStore() throws Exception {
+        new File(FILE_NAME).getParentFile().mkdirs();
+        FileUtils.delete(FILE_NAME);
+        MVStore store = open();
+        MVMap<Integer, String> hot = store.openMap("hot");
+        MVMap<Integer, String> big = store.openMap("big");
+        for (int i = 0; i < 2000; i++)
+            hot.put(i, "hot-" + i);
+        for (int i = 0; i < 400000; i++)
+            big.put(i, "big-" + i + "-abcdefghijklmnopqrstuvwxyz");
+        store.close();
+
+        store = open();
+        CacheLongKeyLIRS<Page> cache = store.getCache();
+        hot = store.openMap("hot");
+        big = store.openMap("big");
+        //先用扫描把缓存填满，然后反复读常用的页面
+        scan(big);
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 2000; i++)
+                assertEquals("hot-" + i, hot.get(i));
+        }
+
+        //扫描的数据比缓存大，只读一次的页面不加入缓存
+        long rejections = cache.getRejections();
+        scan(big);
+        assertTrue(cache.getRejections() > rejections);
+
+        //常用的页面还在缓存中
+        long misses = cache.getMisses();
+        for (int i = 0; i < 2000; i++)
+            assertEquals("hot-" + i, hot.get(i));
+        assertEquals(misses, cache.getMisses());
+        store.close();
+        FileUtils.delete(FILE_NAME);
+    }
+
+    static void scan(MVMap<Integer, String> big) {
+        Cursor<Integer, String> cursor = big.cursor(null);
+        int count = 0;
+        while (cursor.hasNext()) {
+            assertEquals(count, cursor.next().intValue());
+            assertEquals("big-" + count + "-abcdefghijklmnopqrstuvwxyz", cursor.getValue());
+            count++;
+        }
+        assertEquals(400000, count);
+    }
+
+    static MVStore open() {
+        MVStore.Builder builder = new MVStore.Builder();
+        builder.fileName(FILE_NAME);
+        builder.cacheSize(4);
+        return builder.open();
+    }
+}
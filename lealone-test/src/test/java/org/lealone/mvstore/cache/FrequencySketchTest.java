@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.mvstore.cache;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * 计数器最大是15，估算值不会比实际访问次数小(只要还没有减半)，增加的次数达到sampleSize后所有计数器减半。
+ */
+public class FrequencySketchTest {
+
+    @Test
+    public void run() {
+        testIncrement();
+        testEstimate();
+        testAging();
+    }
+
+    void testIncrement() {
+        FrequencySketch sketch = new FrequencySketch(1024);
+        assertEquals(0, sketch.frequency(1));
+        for (int i = 1; i <= 15; i++) {
+            sketch.increment(1);
+            assertEquals(i, sketch.frequency(1));
+        }
+        //计数器不会溢出
+        for (int i = 0; i < 10; i++)
+            sketch.increment(1);
+        assertEquals(15, sketch.frequency(1));
+
+        //其他key基本不受影响
+        int collisions = 0;
+        for (long key = 2; key < 1002; key++) {
+            if (sketch.frequency(key) > 0)
+                collisions++;
+        }
+        assertTrue("collisions: " + collisions, collisions < 10);
+    }
+
+    void testEstimate() {
+        FrequencySketch sketch = new FrequencySketch(4096);
+        Random random = new Random(1);
+        Map<Long, Integer> counts = new HashMap<>();
+        //总的增加次数小于sampleSize(10 * 4096)，不会减半
+        for (int i = 0; i < 20000; i++) {
+            long key = ((long) (Math.abs(random.nextGaussian()) * 300) << 32) + 12345;
+            sketch.increment(key);
+            Integer c = counts.get(key);
+            counts.put(key, c == null ? 1 : c + 1);
+        }
+        int exact = 0;
+        for (Map.Entry<Long, Integer> e : counts.entrySet()) {
+            int expected = Math.min(15, e.getValue());
+            int f = sketch.frequency(e.getKey());
+            assertTrue(e.getKey() + ": " + f + " < " + expected, f >= expected);
+            if (f == expected)
+                exact++;
+        }
+        assertTrue(exact + " of " + counts.size(), exact > counts.size() * 9 / 10);
+    }
+
+    void testAging() {
+        FrequencySketch sketch = new FrequencySketch(16);
+        //表的长度是16，sampleSize是160
+        for (int i = 0; i < 15; i++)
+            sketch.increment(-1);
+        assertEquals(15, sketch.frequency(-1));
+        int before = 15;
+        for (long key = 0; key < 1000 && sketch.frequency(-1) == before; key++) {
+            sketch.increment(key);
+        }
+        //减半后频率变小，但近期访问多的key仍然比只访问一次的key高
+        int after = sketch.frequency(-1);
+        assertTrue("after: " + after, after < before && after >= 7);
+        for (int i = 0; i < 4; i++) {
+            for (long key = 0; key < 1000; key++)
+                sketch.increment(key + 1000000 * (i + 1));
+        }
+        //很久没有访问，会逐渐被遗忘
+        assertTrue(sketch.frequency(-1) <= 1);
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.mvstore.cache;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.lealone.fs.FileUtils;
+import org.lealone.mvstore.MVMap;
+import org.lealone.mvstore.MVStore;
+
+/**
+ * 区域被清空重用的同时，不加锁的读操作要么没有命中，要么读到完整的页面，不能读到别的页面的数据。
+ * 堆内缓存不命中时MVStore从二级缓存中的字节反序列化页面，结果要和从文件读的一样。
+ */
+public class OffHeapPageCacheTest {
+
+    static final String FILE_NAME = "./lealone-test-data/mvstore/OffHeapPageCacheTest.mv.db";
+
+    @Test
+    public void run() throws Exception {
+        testPutGet();
+        testEviction();
+        testConcurrentEviction();
+        testStore("NO");
+        testStore("LZ4");
+    }
+
+    //页面的内容只由位置决定，和页面在文件中一样不会改变
+    static ByteBuffer page(long pos) {
+        int length = 64 + (int) (pos % 4000);
+        ByteBuffer buff = ByteBuffer.allocate(length);
+        buff.putLong(0, pos);
+        for (int i = 8; i < length; i++)
+            buff.put(i, (byte) (pos * 31 + i));
+        return buff;
+    }
+
+    static void check(long pos, ByteBuffer buff) {
+        ByteBuffer expected = page(pos);
+        assertEquals(expected.remaining(), buff.remaining());
+        if (!expected.equals(buff))
+            throw new AssertionError("pos " + pos + " " + Arrays.toString(Arrays.copyOf(buff.array(), 16)));
+    }
+
+    void testPutGet() {
+        OffHeapPageCache cache = new OffHeapPageCache(1024 * 1024);
+        assertNull(cache.get(1));
+        ByteBuffer buff = page(1);
+        cache.put(1, buff);
+        //put不改变buff的position
+        assertEquals(0, buff.position());
+        check(1, cache.get(1));
+        //取到的是副本
+        cache.get(1).put(0, (byte) 0);
+        check(1, cache.get(1));
+        cache.remove(1);
+        assertNull(cache.get(1));
+        assertEquals(3, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    void testEviction() {
+        OffHeapPageCache cache = new OffHeapPageCache(64 * 1024);
+        for (long pos = 0; pos < 1000; pos++) {
+            cache.put(pos, page(pos));
+            check(pos, cache.get(pos));
+        }
+        assertTrue(cache.getEvictions() > 0);
+        assertTrue(cache.getAllocatedMemory() <= cache.getMaxMemory());
+        for (long pos = 0; pos < 1000; pos++) {
+            ByteBuffer buff = cache.get(pos);
+            if (buff != null)
+                check(pos, buff);
+        }
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getAllocatedMemory());
+        assertNull(cache.get(999));
+    }
+
+    //一个区域只能放几十个页面，写线程不停地清空重用区域，读线程检查读到的每个页面
+    void testConcurrentEviction() throws Exception {
+        final OffHeapPageCache cache = new OffHeapPageCache(64 * 1024);
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final AtomicLong hits = new AtomicLong();
+        Thread[] threads = new Thread[6];
+        for (int t = 0; t < threads.length; t++) {
+            final boolean writer = t < 2;
+            final int seed = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    try {
+                        while (!stop.get()) {
+                            long pos = random.nextInt(200);
+                            if (writer) {
+                                cache.put(pos, page(pos));
+                                if (random.nextInt(10) == 0)
+                                    cache.remove(pos);
+                            } else {
+                                ByteBuffer buff = cache.get(pos);
+                                if (buff != null) {
+                                    check(pos, buff);
+                                    hits.incrementAndGet();
+                                }
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        Thread.sleep(2000);
+        stop.set(true);
+        for (Thread t : threads)
+            t.join();
+        assertNull(error.get());
+        assertTrue(hits.get() > 0);
+        assertTrue(cache.getEvictions() > 0);
+    }
+
+    void testStore(String codec) throws Exception {
+        new File(FILE_NAME).getParentFile().mkdirs();
+        FileUtils.delete(FILE_NAME);
+        MVStore store = open();
+        MVMap<Integer, String> map = store.openMap("test");
+        map.setCompressor(codec);
+        for (int i = 0; i < 20000; i++)
+            map.put(i, "value-" + i);
+        //超过1MB的页面，读的时候要先读出页面长度
+        MVMap<Integer, byte[]> large = store.openMap("large");
+        large.setCompressor(codec);
+        for (int i = 0; i < 3; i++)
+            large.put(i, largeValue(i));
+        store.close();
+
+        store = open();
+        OffHeapPageCache cache = store.getOffHeapCache();
+        map = store.openMap("test");
+        large = store.openMap("large");
+        //没有堆内缓存，第一次从文件读，以后从二级缓存读
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 20000; i++)
+                assertEquals("value-" + i, map.get(i));
+            for (int i = 0; i < 3; i++)
+                assertTrue(Arrays.equals(largeValue(i), large.get(i)));
+        }
+        assertTrue(cache.getHits() > 0);
+        assertTrue(cache.size() > 0);
+        store.close();
+        FileUtils.delete(FILE_NAME);
+    }
+
+    static byte[] largeValue(int i) {
+        byte[] value = new byte[2 * 1024 * 1024];
+        new Random(i).nextBytes(value);
+        return value;
+    }
+
+    static MVStore open() {
+        MVStore.Builder builder = new MVStore.Builder();
+        builder.fileName(FILE_NAME);
+        builder.cacheSize(0);
+        builder.offHeapCacheSize(64);
+        return builder.open();
+    }
+}
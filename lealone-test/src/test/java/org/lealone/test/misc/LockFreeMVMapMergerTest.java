@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.misc;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.lealone.mvstore.LockFreeMVMap;
+import org.lealone.mvstore.MVStore;
+import org.lealone.mvstore.type.ObjectDataType;
+
+/**
+ * 定时检查和定时合并都设成一小时，只有delta超过max.delta.size时的唤醒能触发合并。
+ * 多个线程并发写入，写完后delta也要被合并到max.delta.size以下。
+ */
+public class LockFreeMVMapMergerTest {
+
+    static final int MAX_DELTA_SIZE = 1000;
+
+    static {
+        //要在LockFreeMVMap类初始化之前设置
+        System.setProperty("lealone.mvstore.merger.check.interval", "3600000");
+        System.setProperty("lealone.mvstore.merger.interval", "3600000");
+        System.setProperty("lealone.mvstore.merger.max.delta.size", "" + MAX_DELTA_SIZE);
+        System.setProperty("lealone.mvstore.merger.heap.usage.threshold", "100");
+        System.setProperty("lealone.mvstore.merger.chunk.size", "100");
+    }
+
+    @Test
+    public void run() throws Exception {
+        MVStore store = new MVStore.Builder().open();
+        LockFreeMVMap.Builder<Integer, String> builder = new LockFreeMVMap.Builder<Integer, String>();
+        builder.keyType(new ObjectDataType()).valueType(new ObjectDataType());
+        final LockFreeMVMap<Integer, String> map = store.openMap("LockFreeMVMapMergerTest", builder);
+        //有了root之后Merger才会合并这个map
+        store.commit();
+
+        final int threadCount = 4;
+        final int count = 20000;
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final int offset = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = offset; i < count; i += threadCount)
+                            map.put(i, "v" + i);
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        assertNull(error.get());
+
+        long end = System.currentTimeMillis() + 10000;
+        while (map.getDeltaSize() >= MAX_DELTA_SIZE && System.currentTimeMillis() < end)
+            Thread.sleep(10);
+        assertTrue("delta size: " + map.getDeltaSize(), map.getDeltaSize() < MAX_DELTA_SIZE);
+        assertTrue(map.getMergeCount() > 0);
+
+        for (int i = 0; i < count; i++)
+            assertEquals("v" + i, map.get(i));
+        store.close();
+    }
+}
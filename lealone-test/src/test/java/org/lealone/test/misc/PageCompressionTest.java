@@ -0,0 +1,157 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.misc;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.lealone.fs.FileUtils;
+import org.lealone.mvstore.MVMap;
+import org.lealone.mvstore.MVStore;
+
+/**
+ * 用不同的压缩算法写页面，重新打开store后要能读出同样的数据，同一个文件中可以有用不同算法压缩的页面。
+ */
+public class PageCompressionTest {
+
+    static final String DIR = "./lealone-test-data/mvstore/PageCompressionTest";
+    static final int COUNT = 5000;
+
+    @Test
+    public void run() throws Exception {
+        FileUtils.deleteRecursive(DIR, false);
+        new File(DIR).mkdirs();
+
+        long noSize = testRoundTrip("NO");
+        long lz4Size = testRoundTrip("LZ4");
+        long lz4HighSize = testRoundTrip("LZ4_HIGH");
+        testRoundTrip("LZF");
+        testRoundTrip("DEFLATE");
+        assertTrue(lz4Size + " " + noSize, lz4Size * 2 < noSize);
+        assertTrue(lz4HighSize + " " + noSize, lz4HighSize * 2 < noSize);
+
+        testMixedCodecs();
+        testConcurrentReads();
+    }
+
+    static String value(int i) {
+        return "value-" + (i % 10) + "-abcdefghijklmnopqrstuvwxyz-abcdefghijklmnopqrstuvwxyz-" + i;
+    }
+
+    static MVStore open(String fileName, String compress) {
+        MVStore.Builder builder = new MVStore.Builder();
+        builder.fileName(fileName);
+        if (compress != null)
+            builder.compress(compress);
+        builder.cacheSize(1);
+        return builder.open();
+    }
+
+    static void write(MVMap<Integer, String> map, String codec) {
+        if (codec != null)
+            map.setCompressor(codec);
+        for (int i = 0; i < COUNT; i++)
+            map.put(i, value(i));
+    }
+
+    static void check(MVMap<Integer, String> map) {
+        for (int i = 0; i < COUNT; i++)
+            assertEquals(value(i), map.get(i));
+        assertNull(map.get(COUNT));
+    }
+
+    long testRoundTrip(String codec) {
+        String fileName = DIR + "/" + codec + ".mv.db";
+        MVStore store = open(fileName, null);
+        MVMap<Integer, String> map = store.openMap("test");
+        write(map, codec);
+        store.close();
+        long size = FileUtils.size(fileName);
+
+        //读页面时按页面中记录的算法解压，不需要设置压缩算法
+        store = open(fileName, null);
+        check(store.<Integer, String> openMap("test"));
+        store.close();
+        return size;
+    }
+
+    void testMixedCodecs() {
+        String fileName = DIR + "/mixed.mv.db";
+        MVStore store = open(fileName, "DEFLATE");
+        write(store.<Integer, String> openMap("default"), null);
+        write(store.<Integer, String> openMap("lz4"), "LZ4");
+        write(store.<Integer, String> openMap("no"), "NO");
+        MVMap<Integer, String> changed = store.openMap("changed");
+        write(changed, "LZF");
+        store.commit();
+        //已经写到文件的页面保持原来的压缩算法
+        changed.setCompressor("LZ4");
+        for (int i = 0; i < COUNT; i += 3)
+            changed.put(i, value(i));
+        store.close();
+
+        store = open(fileName, null);
+        check(store.<Integer, String> openMap("default"));
+        check(store.<Integer, String> openMap("lz4"));
+        check(store.<Integer, String> openMap("no"));
+        check(store.<Integer, String> openMap("changed"));
+        store.close();
+    }
+
+    //多个线程同时解压页面，第一次使用LZ4时多个线程可能同时创建压缩器
+    void testConcurrentReads() throws Exception {
+        String fileName = DIR + "/concurrent.mv.db";
+        MVStore store = open(fileName, null);
+        write(store.<Integer, String> openMap("test"), "LZ4");
+        store.close();
+
+        for (int round = 0; round < 3; round++) {
+            store = open(fileName, null);
+            final MVMap<Integer, String> map = store.openMap("test");
+            final AtomicReference<Throwable> error = new AtomicReference<>();
+            Thread[] threads = new Thread[8];
+            for (int t = 0; t < threads.length; t++) {
+                final int offset = t;
+                threads[t] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int i = offset; i < COUNT; i += 7) {
+                                if (!value(i).equals(map.get(i)))
+                                    throw new AssertionError("key " + i + ": " + map.get(i));
+                            }
+                        } catch (Throwable e) {
+                            error.compareAndSet(null, e);
+                        }
+                    }
+                });
+            }
+            for (Thread t : threads)
+                t.start();
+            for (Thread t : threads)
+                t.join();
+            assertNull(error.get());
+            store.close();
+        }
+    }
+}
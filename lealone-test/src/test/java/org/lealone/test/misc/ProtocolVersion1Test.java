@@ -0,0 +1,243 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.misc;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.lealone.api.ErrorCode;
+import org.lealone.engine.Constants;
+import org.lealone.engine.FrontendSession;
+import org.lealone.engine.SysProperties;
+import org.lealone.jdbc.JdbcConnection;
+import org.lealone.jdbc.JdbcPreparedStatement;
+import org.lealone.server.TcpServer;
+
+/**
+ * 客户端连接只支持TCP_PROTOCOL_VERSION_1的服务器时不带请求id，也不使用流水线。
+ *
+ * 在客户端和TcpServer之间加一个代理，把握手包中客户端支持的最大协议版本改成1，
+ * 这样服务器只会协商出版本1。
+ */
+public class ProtocolVersion1Test {
+
+    private static final int PORT = 5216;
+    private static final int PROXY_PORT = 5217;
+    private static final String URL = "jdbc:lealone:tcp://localhost:" + PROXY_PORT + "/ProtocolVersion1Test";
+
+    private static TcpServer server;
+    private static ServerSocket proxy;
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        server = new TcpServer();
+        server.init("-baseDir", "./lealone-test-data/ProtocolVersion1Test", "-tcpPort", "" + PORT);
+        server.start();
+
+        proxy = new ServerSocket(PROXY_PORT);
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Socket client = proxy.accept();
+                        Socket s = new Socket("localhost", PORT);
+                        pump(client.getInputStream(), s.getOutputStream(), true);
+                        pump(s.getInputStream(), client.getOutputStream(), false);
+                    }
+                } catch (Exception e) {
+                    // closed
+                }
+            }
+        }, "ProtocolVersion1Test proxy");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    //握手包的前8个字节是客户端支持的最小和最大协议版本
+    static void pump(final InputStream in, final OutputStream out, final boolean handshake) {
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buff = new byte[4096];
+                long pos = 0;
+                try {
+                    for (int len; (len = in.read(buff)) >= 0;) {
+                        for (int i = 0; handshake && i < len; i++) {
+                            if (pos + i >= 4 && pos + i < 8)
+                                buff[i] = (byte) (pos + i == 7 ? Constants.TCP_PROTOCOL_VERSION_1 : 0);
+                        }
+                        pos += len;
+                        out.write(buff, 0, len);
+                        out.flush();
+                    }
+                } catch (Exception e) {
+                    // closed
+                } finally {
+                    try {
+                        out.close();
+                    } catch (Exception e) {
+                        // ignore
+                    }
+                }
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @AfterClass
+    public static void stopServer() throws Exception {
+        if (proxy != null)
+            proxy.close();
+        if (server != null)
+            server.stop();
+    }
+
+    @Test
+    public void run() throws Exception {
+        Connection conn = DriverManager.getConnection(URL, "sa", "");
+        FrontendSession session = (FrontendSession) ((JdbcConnection) conn).getSession();
+        assertEquals(Constants.TCP_PROTOCOL_VERSION_1, session.getClientVersion());
+
+        Statement stmt = conn.createStatement();
+        stmt.executeUpdate("DROP TABLE IF EXISTS ProtocolVersion1Test");
+        stmt.executeUpdate("CREATE TABLE ProtocolVersion1Test(f1 int primary key, f2 int)");
+        for (int i = 0; i < 100; i++)
+            stmt.executeUpdate("INSERT INTO ProtocolVersion1Test(f1, f2) VALUES(" + i + ", " + (i * 2) + ")");
+
+        testFetchRows(stmt);
+        testError(stmt);
+        testReprepare(conn, stmt);
+        testAsync(conn);
+        testConcurrentRequests(conn);
+
+        stmt.close();
+        conn.close();
+    }
+
+    //结果集分多次读取
+    void testFetchRows(Statement stmt) throws Exception {
+        stmt.setFetchSize(7);
+        ResultSet rs = stmt.executeQuery("SELECT f1, f2 FROM ProtocolVersion1Test ORDER BY f1");
+        for (int i = 0; i < 100; i++) {
+            assertTrue(rs.next());
+            assertEquals(i * 2, rs.getInt(2));
+        }
+        assertFalse(rs.next());
+        rs.close();
+    }
+
+    void testError(Statement stmt) throws Exception {
+        try {
+            stmt.executeQuery("SELECT f3 FROM ProtocolVersion1Test");
+            fail();
+        } catch (SQLException e) {
+            assertEquals(ErrorCode.COLUMN_NOT_FOUND_1, e.getErrorCode());
+        }
+        ResultSet rs = stmt.executeQuery("SELECT count(*) FROM ProtocolVersion1Test");
+        assertTrue(rs.next());
+        assertEquals(100, rs.getInt(1));
+        rs.close();
+    }
+
+    //prepare要在执行之前得到响应
+    void testReprepare(Connection conn, Statement stmt) throws Exception {
+        PreparedStatement ps = conn.prepareStatement("SELECT f2 FROM ProtocolVersion1Test WHERE f1 = ?");
+        for (int i = 0; i <= SysProperties.SERVER_CACHED_OBJECTS; i++)
+            stmt.executeQuery("SELECT 1").close();
+        ps.setInt(1, 20);
+        ResultSet rs = ps.executeQuery();
+        assertTrue(rs.next());
+        assertEquals(40, rs.getInt(1));
+        rs.close();
+        ps.close();
+    }
+
+    //不使用流水线，异步执行在返回之前已经得到响应
+    void testAsync(Connection conn) throws Exception {
+        JdbcPreparedStatement ps = (JdbcPreparedStatement) conn
+                .prepareStatement("SELECT f1 FROM ProtocolVersion1Test WHERE f1 = ?");
+        ArrayList<Future<ResultSet>> futures = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            ps.setInt(1, i);
+            Future<ResultSet> f = ps.executeQueryAsync();
+            assertTrue(f.isDone());
+            futures.add(f);
+        }
+        for (int i = 0; i < 20; i++) {
+            ResultSet rs = futures.get(i).get();
+            assertTrue(rs.next());
+            assertEquals(i, rs.getInt(1));
+            rs.close();
+        }
+        ps.close();
+    }
+
+    void testConcurrentRequests(final Connection conn) throws Exception {
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        PreparedStatement ps = conn
+                                .prepareStatement("SELECT f2 FROM ProtocolVersion1Test WHERE f1 = ?");
+                        for (int i = offset; i < 100; i += 4) {
+                            ps.setInt(1, i);
+                            ResultSet rs = ps.executeQuery();
+                            rs.next();
+                            if (rs.getInt(1) != i * 2)
+                                throw new AssertionError("f1 = " + i + ": " + rs.getInt(1));
+                            rs.close();
+                        }
+                        ps.close();
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        assertNull(error.get());
+    }
+}
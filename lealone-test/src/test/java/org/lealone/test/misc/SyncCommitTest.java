@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.misc;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.lealone.engine.Session;
+import org.lealone.fs.FileUtils;
+import org.lealone.jdbc.JdbcConnection;
+import org.lealone.mvdb.engine.MVStorageEngine;
+import org.lealone.mvstore.MVStore;
+
+/**
+ * SYNC_COMMIT=TRUE时，并发提交的事务共用一次fsync，提交后的数据重新打开数据库后还在；
+ * 回滚和只读事务不需要fsync。
+ */
+public class SyncCommitTest {
+
+    static final String DIR = "./lealone-test-data/SyncCommitTest";
+    static final String URL = "jdbc:lealone:embed:" + DIR + "/db;SYNC_COMMIT=TRUE";
+    static final int THREADS = 16;
+    static final int ROWS = 100;
+
+    @Test
+    public void run() throws Exception {
+        FileUtils.deleteRecursive(DIR, false);
+        Connection conn = DriverManager.getConnection(URL, "sa", "");
+        Statement stmt = conn.createStatement();
+        //插入时要加表的排它锁，每个线程用自己的表，这样提交才是并发的
+        for (int t = 0; t < THREADS; t++)
+            stmt.executeUpdate("CREATE TABLE SyncCommitTest" + t + "(f1 int primary key, f2 varchar)");
+        MVStore store = getStore(conn);
+        assertTrue(store.isSyncCommit());
+
+        testConcurrentCommits(store);
+        testNoSync(conn, store);
+
+        stmt.close();
+        conn.close();
+
+        //提交的数据都已经在磁盘上
+        conn = DriverManager.getConnection(URL, "sa", "");
+        stmt = conn.createStatement();
+        for (int t = 0; t < THREADS; t++) {
+            ResultSet rs = stmt.executeQuery("SELECT count(*), sum(f1) FROM SyncCommitTest" + t);
+            assertTrue(rs.next());
+            assertEquals(ROWS, rs.getInt(1));
+            assertEquals((long) ROWS * (ROWS - 1) / 2, rs.getLong(2));
+            rs.close();
+        }
+        stmt.close();
+        conn.close();
+        FileUtils.deleteRecursive(DIR, false);
+    }
+
+    static MVStore getStore(Connection conn) {
+        Session session = (Session) ((JdbcConnection) conn).getSession();
+        return ((MVStorageEngine.Store) MVStorageEngine.getStore(session)).getStore();
+    }
+
+    //每个线程一个连接，每插入一行就提交一次
+    void testConcurrentCommits(MVStore store) throws Exception {
+        long syncCommits = store.getSyncCommitCount();
+        long syncs = store.getGroupSyncCount();
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int table = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Connection conn = DriverManager.getConnection(URL, "sa", "");
+                        PreparedStatement ps = conn.prepareStatement("INSERT INTO SyncCommitTest" + table
+                                + " VALUES(?, ?)");
+                        start.await();
+                        for (int i = 0; i < ROWS; i++) {
+                            ps.setInt(1, i);
+                            ps.setString(2, "value-" + i);
+                            ps.executeUpdate();
+                        }
+                        ps.close();
+                        conn.close();
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread t : threads)
+            t.join();
+        assertNull(error.get());
+
+        syncCommits = store.getSyncCommitCount() - syncCommits;
+        syncs = store.getGroupSyncCount() - syncs;
+        assertTrue("sync commits: " + syncCommits, syncCommits >= THREADS * ROWS);
+        assertTrue("syncs: " + syncs + ", sync commits: " + syncCommits, syncs < syncCommits);
+    }
+
+    void testNoSync(Connection conn, MVStore store) throws Exception {
+        long syncCommits = store.getSyncCommitCount();
+        Statement stmt = conn.createStatement();
+        for (int i = 0; i < 10; i++) {
+            ResultSet rs = stmt.executeQuery("SELECT f2 FROM SyncCommitTest0 WHERE f1 = " + i);
+            assertTrue(rs.next());
+            rs.close();
+        }
+        conn.setAutoCommit(false);
+        stmt.executeUpdate("INSERT INTO SyncCommitTest0 VALUES(-1, 'rollback')");
+        stmt.executeUpdate("UPDATE SyncCommitTest0 SET f2 = 'rollback' WHERE f1 = 0");
+        conn.rollback();
+        //只读事务
+        ResultSet rs = stmt.executeQuery("SELECT f2 FROM SyncCommitTest0 WHERE f1 = 0");
+        assertTrue(rs.next());
+        assertEquals("value-0", rs.getString(1));
+        rs.close();
+        conn.commit();
+        conn.setAutoCommit(true);
+        stmt.close();
+        assertEquals(syncCommits, store.getSyncCommitCount());
+    }
+}
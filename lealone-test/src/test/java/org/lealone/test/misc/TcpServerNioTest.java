@@ -0,0 +1,201 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.misc;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.net.Socket;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.lealone.jdbc.JdbcPreparedStatement;
+import org.lealone.server.TcpServer;
+
+/**
+ * 用-tcpNio启动一个只有两个工作线程的TcpServer，连接数比工作线程多时所有连接都要能正常工作，
+ * 只发送了部分请求的连接在读超时后被关闭，不会一直占用工作线程。
+ */
+public class TcpServerNioTest {
+
+    private static final int PORT = 5215;
+    private static final String URL = "jdbc:lealone:tcp://localhost:" + PORT + "/TcpServerNioTest";
+
+    private static TcpServer server;
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        server = new TcpServer();
+        server.init("-baseDir", "./lealone-test-data/TcpServerNioTest", "-tcpPort", "" + PORT, "-tcpNio",
+                "-tcpWorkerThreads", "2", "-tcpReadTimeout", "1000");
+        server.start();
+    }
+
+    @AfterClass
+    public static void stopServer() throws Exception {
+        if (server != null)
+            server.stop();
+    }
+
+    @Test
+    public void run() throws Exception {
+        Connection conn = DriverManager.getConnection(URL, "sa", "");
+        Statement stmt = conn.createStatement();
+        stmt.executeUpdate("DROP TABLE IF EXISTS TcpServerNioTest");
+        stmt.executeUpdate("CREATE TABLE TcpServerNioTest(f1 int primary key, f2 varchar)");
+
+        testIdleConnections();
+        testConcurrentConnections();
+        testLargeRequest(stmt);
+        testPipelinedRequests(conn);
+        testPartialRequests();
+
+        stmt.close();
+        conn.close();
+        assertTrue(server.isRunning(false));
+    }
+
+    //空闲连接不占用工作线程
+    void testIdleConnections() throws Exception {
+        ArrayList<Connection> list = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+            list.add(DriverManager.getConnection(URL, "sa", ""));
+        for (int i = list.size() - 1; i >= 0; i--) {
+            Statement stmt = list.get(i).createStatement();
+            ResultSet rs = stmt.executeQuery("SELECT " + i);
+            assertTrue(rs.next());
+            assertEquals(i, rs.getInt(1));
+            rs.close();
+            stmt.close();
+        }
+        for (Connection c : list)
+            c.close();
+    }
+
+    void testConcurrentConnections() throws Exception {
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread[] threads = new Thread[6];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t * 100;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Connection conn = DriverManager.getConnection(URL, "sa", "");
+                        PreparedStatement ps = conn
+                                .prepareStatement("INSERT INTO TcpServerNioTest(f1, f2) VALUES(?, ?)");
+                        for (int i = 0; i < 50; i++) {
+                            ps.setInt(1, offset + i);
+                            ps.setString(2, "v" + i);
+                            ps.executeUpdate();
+                        }
+                        ps.close();
+                        conn.close();
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        assertNull(error.get());
+
+        Connection conn = DriverManager.getConnection(URL, "sa", "");
+        ResultSet rs = conn.createStatement().executeQuery("SELECT count(*) FROM TcpServerNioTest");
+        assertTrue(rs.next());
+        assertEquals(300, rs.getInt(1));
+        rs.close();
+        conn.close();
+    }
+
+    //请求比socket的缓冲区大，剩余部分由工作线程读取
+    void testLargeRequest(Statement stmt) throws Exception {
+        StringBuilder buff = new StringBuilder();
+        for (int i = 0; i < 1024 * 1024; i++)
+            buff.append((char) ('a' + i % 26));
+        String s = buff.toString();
+        PreparedStatement ps = stmt.getConnection().prepareStatement(
+                "INSERT INTO TcpServerNioTest(f1, f2) VALUES(?, ?)");
+        ps.setInt(1, -1);
+        ps.setString(2, s);
+        assertEquals(1, ps.executeUpdate());
+        ps.close();
+
+        ResultSet rs = stmt.executeQuery("SELECT f2 FROM TcpServerNioTest WHERE f1 = -1");
+        assertTrue(rs.next());
+        assertEquals(s, rs.getString(1));
+        assertFalse(rs.next());
+        rs.close();
+    }
+
+    //多个已缓冲的请求由工作线程一次处理完
+    void testPipelinedRequests(Connection conn) throws Exception {
+        JdbcPreparedStatement ps = (JdbcPreparedStatement) conn
+                .prepareStatement("SELECT f1 FROM TcpServerNioTest WHERE f1 = ?");
+        ArrayList<Future<ResultSet>> futures = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            ps.setInt(1, i);
+            futures.add(ps.executeQueryAsync());
+        }
+        for (int i = 0; i < 50; i++) {
+            ResultSet rs = futures.get(i).get();
+            assertTrue(rs.next());
+            assertEquals(i, rs.getInt(1));
+            rs.close();
+        }
+        ps.close();
+    }
+
+    //工作线程都在等待部分请求的剩余部分时，新的连接要在读超时后得到处理
+    void testPartialRequests() throws Exception {
+        ArrayList<Socket> list = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Socket s = new Socket("localhost", PORT);
+            s.getOutputStream().write(new byte[] { 0, 0 });
+            s.getOutputStream().flush();
+            list.add(s);
+        }
+        Connection conn = DriverManager.getConnection(URL, "sa", "");
+        ResultSet rs = conn.createStatement().executeQuery("SELECT count(*) FROM TcpServerNioTest");
+        assertTrue(rs.next());
+        rs.close();
+        conn.close();
+
+        for (Socket s : list) {
+            s.setSoTimeout(30000);
+            InputStream in = s.getInputStream();
+            while (in.read() >= 0)
+                ;
+            s.close();
+        }
+    }
+}
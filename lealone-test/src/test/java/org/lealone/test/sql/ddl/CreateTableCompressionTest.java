@@ -0,0 +1,60 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.sql.ddl;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import java.sql.SQLException;
+
+import org.junit.Test;
+import org.lealone.api.ErrorCode;
+import org.lealone.test.sql.TestBase;
+
+public class CreateTableCompressionTest extends TestBase {
+    @Test
+    public void run() throws Exception {
+        executeUpdate("DROP TABLE IF EXISTS CreateTableCompressionTest");
+        executeUpdate("CREATE TABLE CreateTableCompressionTest(f1 int primary key, f2 varchar, f3 int) "
+                + "COMPRESSION LZ4");
+        executeUpdate("CREATE INDEX IF NOT EXISTS CreateTableCompressionTest_f3 ON CreateTableCompressionTest(f3)");
+        for (int i = 0; i < 2000; i++)
+            executeUpdate("INSERT INTO CreateTableCompressionTest VALUES(" + i + ", 'value-" + (i % 10)
+                    + "-abcdefghijklmnopqrstuvwxyz', " + (i % 100) + ")");
+        //把页面写到文件，写时用LZ4压缩
+        executeUpdate("CHECKPOINT");
+
+        sql = "SELECT count(*), sum(f1) FROM CreateTableCompressionTest WHERE f2 LIKE 'value-3-%'";
+        assertEquals(200, getIntValue(1));
+        assertEquals(200 * 3 + 10 * 199 * 200 / 2, getIntValue(2, true));
+        sql = "SELECT count(*) FROM CreateTableCompressionTest WHERE f3 = 42";
+        assertEquals(20, getIntValue(1, true));
+
+        //压缩算法保存在建表语句中，重启后还能用
+        sql = "SELECT SQL FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_NAME = 'CREATETABLECOMPRESSIONTEST'";
+        assertTrue(getStringValue(1, true).contains("COMPRESSION \"LZ4\""));
+
+        try {
+            stmt.executeUpdate("CREATE TABLE CreateTableCompressionTest2(f1 int) COMPRESSION NO_SUCH_CODEC");
+            fail();
+        } catch (SQLException e) {
+            assertEquals(ErrorCode.UNSUPPORTED_COMPRESSION_ALGORITHM_1, e.getErrorCode());
+        }
+    }
+}
@@ -29,6 +29,7 @@ public class AggregateFunctionTest extends TestBase {
         init();
         testAggregateFunctions();
         testAggregateFunctionsWithGroupBy();
+        testVectorExecution();
     }
 
     void init() throws Exception {
@@ -111,6 +112,29 @@ public class AggregateFunctionTest extends TestBase {
         assertValues();
     }
 
+    //条件和聚合函数只有整数运算时，按批计算
+    void testVectorExecution() throws Exception {
+        sql = "SELECT f1, count(*), sum(f3), min(f3), max(f3), avg(f3) FROM AggregateFunctionTest " //
+                + "WHERE f3 > 1 AND f3 * 2 < 20 GROUP BY f1 ORDER BY f1";
+        assertEquals("a1", getStringValue(1));
+        assertEquals(4, getIntValue(2));
+        assertEquals(16, getIntValue(3));
+        assertEquals(3, getIntValue(4));
+        assertEquals(5, getIntValue(5));
+        assertEquals(4, getIntValue(6));
+        next();
+        assertEquals("a2", getStringValue(1));
+        assertEquals(4, getIntValue(2));
+        assertEquals(32, getIntValue(3));
+        assertEquals(7, getIntValue(4));
+        assertEquals(9, getIntValue(5));
+        assertEquals(8, getIntValue(6, true));
+
+        sql = "SELECT count(f3), sum(f3) FROM AggregateFunctionTest WHERE NOT (f3 = 1 OR f3 >= 9)";
+        assertEquals(6, getIntValue(1));
+        assertEquals(30, getIntValue(2, true));
+    }
+
     void getValues1() throws Exception {
         count1 = getIntValue(1);
         max1 = getIntValue(2);
@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.sql.misc;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.lealone.api.AsyncHandler;
+import org.lealone.api.ErrorCode;
+import org.lealone.jdbc.JdbcPreparedStatement;
+import org.lealone.test.sql.TestBase;
+
+public class AsyncStatementTest extends TestBase {
+    @Test
+    public void run() throws Exception {
+        createTable("AsyncStatementTest");
+        insert();
+        query();
+        error();
+    }
+
+    void insert() throws Exception {
+        sql = "INSERT INTO AsyncStatementTest(pk, f1, f3) VALUES(?, ?, ?)";
+        JdbcPreparedStatement ps = (JdbcPreparedStatement) conn.prepareStatement(sql);
+        ArrayList<Future<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            ps.setString(1, "" + i);
+            ps.setString(2, "a" + i);
+            ps.setInt(3, i);
+            futures.add(ps.executeUpdateAsync());
+        }
+        int count = 0;
+        for (Future<Integer> f : futures)
+            count += f.get();
+        assertEquals(100, count);
+        ps.close();
+    }
+
+    void query() throws Exception {
+        sql = "SELECT f3 FROM AsyncStatementTest WHERE pk = ?";
+        JdbcPreparedStatement ps = (JdbcPreparedStatement) conn.prepareStatement(sql);
+        final AtomicInteger handled = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(100);
+        ArrayList<Future<ResultSet>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            ps.setString(1, "" + i);
+            futures.add(ps.executeQueryAsync(new AsyncHandler<ResultSet>() {
+                @Override
+                public void onSuccess(ResultSet result) {
+                    handled.incrementAndGet();
+                    latch.countDown();
+                }
+
+                @Override
+                public void onFailure(Throwable cause) {
+                    latch.countDown();
+                }
+            }));
+        }
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals(100, handled.get());
+        for (int i = 0; i < 100; i++) {
+            rs = futures.get(i).get();
+            assertTrue(rs.next());
+            assertEquals(i, rs.getInt(1));
+            rs.close();
+        }
+        ps.close();
+
+        //I/O线程启动后同步调用也要正常工作
+        rs = stmt.executeQuery("SELECT count(*) FROM AsyncStatementTest");
+        rs.next();
+        assertEquals(100, getIntValue(1, true));
+    }
+
+    void error() throws Exception {
+        sql = "INSERT INTO AsyncStatementTest(pk, f1, f3) VALUES('1', 'a1', 1)";
+        JdbcPreparedStatement ps = (JdbcPreparedStatement) conn.prepareStatement(sql);
+        try {
+            ps.executeUpdateAsync().get();
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals(ErrorCode.DUPLICATE_KEY_1, ((SQLException) e.getCause()).getErrorCode());
+        }
+        ps.close();
+    }
+}
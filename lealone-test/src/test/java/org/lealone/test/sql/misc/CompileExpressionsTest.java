@@ -0,0 +1,198 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.sql.misc;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.Future;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.lealone.engine.Database;
+import org.lealone.engine.Session;
+import org.lealone.jdbc.JdbcConnection;
+import org.lealone.util.SmallLRUCache;
+
+/**
+ * COMPILE_EXPRESSIONS=1时查询第一次执行就开始在后台编译，编译完成后的结果(包括异常)要和解释执行的一样:
+ * 整数溢出、除数是0、AND/OR/NOT中的NULL、DECIMAL结果、以及参数的类型和编译时不同的情况。
+ */
+public class CompileExpressionsTest {
+
+    static Connection conn;
+    static Connection interpretedConn;
+    static Database database;
+    static Database interpretedDatabase;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        //不重用上一次的结果，否则第二次执行时不会用到编译后的类
+        conn = DriverManager.getConnection("jdbc:lealone:mem:embed:CompileExpressionsTest;COMPILE_EXPRESSIONS=1;"
+                + "OPTIMIZE_REUSE_RESULTS=0", "sa", "");
+        //默认不编译
+        interpretedConn = DriverManager.getConnection("jdbc:lealone:mem:embed:CompileExpressionsTest2;"
+                + "OPTIMIZE_REUSE_RESULTS=0", "sa", "");
+        database = ((Session) ((JdbcConnection) conn).getSession()).getDatabase();
+        interpretedDatabase = ((Session) ((JdbcConnection) interpretedConn).getSession()).getDatabase();
+        init(conn);
+        init(interpretedConn);
+    }
+
+    static void init(Connection conn) throws Exception {
+        Statement stmt = conn.createStatement();
+        stmt.executeUpdate("CREATE TABLE CompileExpressionsTest"
+                + "(id int primary key, a int, b bigint, c int, d decimal(20, 2))");
+        stmt.close();
+        PreparedStatement ps = conn.prepareStatement("INSERT INTO CompileExpressionsTest VALUES(?, ?, ?, ?, ?)");
+        insert(ps, 0, 1, Long.MAX_VALUE - 1, 0, new BigDecimal("1.50"));
+        insert(ps, 1, null, 5L, 3, null);
+        insert(ps, 2, Integer.MAX_VALUE, Long.MIN_VALUE + 1, -2, new BigDecimal("-2.25"));
+        insert(ps, 3, -7, null, null, BigDecimal.ZERO);
+        insert(ps, 4, Integer.MIN_VALUE + 1, 100L, 7, new BigDecimal(3));
+        for (int i = 5; i < 40; i++)
+            insert(ps, i, i % 6 == 0 ? null : i - 20, i * 1000L, i % 5, new BigDecimal(i).divide(new BigDecimal(4)));
+        ps.close();
+    }
+
+    static void insert(PreparedStatement ps, Object... values) throws Exception {
+        for (int i = 0; i < values.length; i++)
+            ps.setObject(i + 1, values[i]);
+        ps.executeUpdate();
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception {
+        conn.close();
+        interpretedConn.close();
+    }
+
+    @Test
+    public void run() throws Exception {
+        testOverflow();
+        testDivisionByZero();
+        testNull();
+        testDecimal();
+        testParameters();
+        assertTrue(database.getCompiledExpressions().size() <= 128);
+        assertEquals(0, interpretedDatabase.getCompiledExpressions().size());
+    }
+
+    //溢出时解释执行，结果是准确的DECIMAL，或者和解释执行时一样抛出异常
+    void testOverflow() throws Exception {
+        check("SELECT id, b + 1, b * 2, a * b, -b FROM CompileExpressionsTest");
+        check("SELECT id, a + a, a - b FROM CompileExpressionsTest WHERE b * 4 > 0");
+        check("SELECT id, -a FROM CompileExpressionsTest WHERE a < 0");
+    }
+
+    void testDivisionByZero() throws Exception {
+        check("SELECT id, a % c FROM CompileExpressionsTest");
+        check("SELECT id, a % c, b / c FROM CompileExpressionsTest WHERE c <> 0");
+        check("SELECT id FROM CompileExpressionsTest WHERE a % c = 1");
+    }
+
+    void testNull() throws Exception {
+        check("SELECT id, a > 0 AND c > 1, a > 0 OR c > 1, NOT (a > c), b IS NULL FROM CompileExpressionsTest");
+        check("SELECT id FROM CompileExpressionsTest WHERE NOT (a > 0 AND b IS NULL) OR c < 2");
+        check("SELECT id FROM CompileExpressionsTest WHERE NOT (a + c > 3 OR c - a < 0)");
+    }
+
+    void testDecimal() throws Exception {
+        check("SELECT id, a * 3 - c * 2, a + c + 1 FROM CompileExpressionsTest WHERE a * 2 > c");
+        check("SELECT id, d + a, d * 2, -d, a * c FROM CompileExpressionsTest WHERE d > a");
+    }
+
+    //参数的类型和编译时不同时解释执行
+    void testParameters() throws Exception {
+        check("SELECT id, a + ?, ? * c FROM CompileExpressionsTest WHERE b > ?", //
+                new Object[] { 1, 2, 0 }, //
+                new Object[] { new BigDecimal("1.5"), 2L, -5 }, //
+                new Object[] { "3", null, 10 }, //
+                new Object[] { Long.MAX_VALUE, Integer.MAX_VALUE, Long.MIN_VALUE }, //
+                new Object[] { 1, 2, 0 });
+        check("SELECT id FROM CompileExpressionsTest WHERE a > ? AND c < ?", //
+                new Object[] { 0, 3 }, //
+                new Object[] { null, 3 }, //
+                new Object[] { 2.5, "4" }, //
+                new Object[] { -100, 100 });
+    }
+
+    void check(String sql, Object[]... paramsList) throws Exception {
+        if (paramsList.length == 0)
+            paramsList = new Object[][] { {} };
+        PreparedStatement ps = conn.prepareStatement(sql);
+        PreparedStatement interpretedPs = interpretedConn.prepareStatement(sql);
+        int size = database.getCompiledExpressions().size();
+        //第一次执行时开始编译
+        query(ps, paramsList[0]);
+        waitForCompiler();
+        assertEquals(sql, size + 1, database.getCompiledExpressions().size());
+        for (Object[] params : paramsList) {
+            assertEquals(sql, query(interpretedPs, params), query(ps, params));
+        }
+        ps.close();
+        interpretedPs.close();
+    }
+
+    static void waitForCompiler() throws Exception {
+        SmallLRUCache<String, Future<Class<?>>> classes = database.getCompiledExpressions();
+        ArrayList<Future<Class<?>>> futures;
+        synchronized (classes) {
+            futures = new ArrayList<>(classes.values());
+        }
+        for (Future<Class<?>> f : futures)
+            assertNotNull(f.get());
+    }
+
+    static String query(PreparedStatement ps, Object[] params) throws Exception {
+        for (int i = 0; i < params.length; i++) {
+            if (params[i] == null)
+                ps.setNull(i + 1, Types.NULL);
+            else
+                ps.setObject(i + 1, params[i]);
+        }
+        ArrayList<String> rows = new ArrayList<>();
+        try {
+            ResultSet rs = ps.executeQuery();
+            int columnCount = rs.getMetaData().getColumnCount();
+            while (rs.next()) {
+                StringBuilder buff = new StringBuilder();
+                for (int i = 1; i <= columnCount; i++)
+                    buff.append(rs.getString(i)).append(',');
+                rows.add(buff.toString());
+            }
+            rs.close();
+        } catch (SQLException e) {
+            return "error " + e.getErrorCode();
+        }
+        Collections.sort(rows);
+        return rows.size() + " " + rows;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.sql.misc;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * 被连接的表没有可用的索引时用hash join，结果要和HASH_JOIN=false时的nested loops一样。
+ * 一个数据库的MAX_MEMORY_ROWS足够大，hash表都在内存中；另一个很小，被连接的表的行数超过它后改回nested loops。
+ * 包括外连接、连接列是NULL、多个连接列以及整数类型不同的情况。
+ */
+public class HashJoinTest {
+
+    static Connection conn;
+    static Connection smallConn;
+    static Connection nestedLoopsConn;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        conn = DriverManager.getConnection("jdbc:lealone:mem:embed:HashJoinTest", "sa", "");
+        smallConn = DriverManager.getConnection("jdbc:lealone:mem:embed:HashJoinTest2;OPTIMIZE_REUSE_RESULTS=0", "sa",
+                "");
+        nestedLoopsConn = DriverManager.getConnection("jdbc:lealone:mem:embed:HashJoinTest3;HASH_JOIN=false", "sa",
+                "");
+        init(conn, 100000);
+        init(smallConn, 50);
+        init(nestedLoopsConn, 100000);
+    }
+
+    static void init(Connection conn, int maxMemoryRows) throws Exception {
+        Statement stmt = conn.createStatement();
+        stmt.executeUpdate("SET MAX_MEMORY_ROWS " + maxMemoryRows);
+        //连接列上都没有索引
+        stmt.executeUpdate("CREATE TABLE HashJoinTest1(id int primary key, a int, b varchar, c bigint)");
+        stmt.executeUpdate("CREATE TABLE HashJoinTest2(id int primary key, a bigint, b varchar, c smallint)");
+        stmt.close();
+        PreparedStatement ps = conn.prepareStatement("INSERT INTO HashJoinTest1 VALUES(?, ?, ?, ?)");
+        for (int i = 0; i < 300; i++)
+            insert(ps, i, i % 7 == 3 ? null : i % 40, i % 11 == 5 ? null : "b" + (i % 3), (long) (i % 5));
+        ps.close();
+        ps = conn.prepareStatement("INSERT INTO HashJoinTest2 VALUES(?, ?, ?, ?)");
+        for (int i = 0; i < 200; i++)
+            insert(ps, i, i % 5 == 4 ? null : (long) (i % 60), i % 13 == 6 ? null : "b" + (i % 4), (short) (i % 3));
+        ps.close();
+    }
+
+    static void insert(PreparedStatement ps, Object... values) throws Exception {
+        for (int i = 0; i < values.length; i++)
+            ps.setObject(i + 1, values[i]);
+        ps.executeUpdate();
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception {
+        conn.close();
+        smallConn.close();
+        nestedLoopsConn.close();
+    }
+
+    @Test
+    public void run() throws Exception {
+        testInnerJoin();
+        testOuterJoin();
+        testMultiColumns();
+    }
+
+    void testInnerJoin() throws Exception {
+        check("SELECT t1.id, t2.id FROM HashJoinTest1 t1 JOIN HashJoinTest2 t2 ON t1.a = t2.a");
+        check("SELECT t1.id, t2.id FROM HashJoinTest1 t1 JOIN HashJoinTest2 t2 ON t1.a = t2.a WHERE t2.c <> 1");
+        check("SELECT count(*), sum(t2.a) FROM HashJoinTest1 t1 JOIN HashJoinTest2 t2 ON t1.b = t2.b");
+        //连接条件以外的条件也要对每个候选行求值
+        check("SELECT t1.id, t2.id FROM HashJoinTest1 t1 JOIN HashJoinTest2 t2 ON t1.a = t2.a AND t1.c < t2.c + 1");
+    }
+
+    void testOuterJoin() throws Exception {
+        check("SELECT t1.id, t2.id FROM HashJoinTest1 t1 LEFT OUTER JOIN HashJoinTest2 t2 ON t1.a = t2.a");
+        check("SELECT t1.id, t2.id FROM HashJoinTest2 t2 LEFT OUTER JOIN HashJoinTest1 t1 ON t2.a = t1.a");
+        check("SELECT t1.id, t2.id FROM HashJoinTest1 t1 LEFT OUTER JOIN HashJoinTest2 t2 "
+                + "ON t1.b = t2.b AND t2.c = 2");
+        check("SELECT t1.id, t2.id FROM HashJoinTest1 t1 LEFT OUTER JOIN HashJoinTest2 t2 ON t1.a = t2.a "
+                + "WHERE t2.id IS NULL");
+    }
+
+    void testMultiColumns() throws Exception {
+        check("SELECT t1.id, t2.id FROM HashJoinTest1 t1 JOIN HashJoinTest2 t2 ON t1.a = t2.a AND t1.b = t2.b");
+        check("SELECT t1.id, t2.id FROM HashJoinTest1 t1 JOIN HashJoinTest2 t2 ON t1.c = t2.c AND t1.b = t2.b");
+        check("SELECT t1.id, t2.id FROM HashJoinTest1 t1 LEFT OUTER JOIN HashJoinTest2 t2 "
+                + "ON t1.a = t2.a AND t1.c = t2.c AND t1.b = t2.b");
+    }
+
+    void check(String sql) throws Exception {
+        assertTrue(sql, query(conn, "EXPLAIN " + sql).contains("hash join"));
+        assertTrue(sql, query(smallConn, "EXPLAIN " + sql).contains("hash join"));
+        String expected = query(nestedLoopsConn, sql);
+        assertEquals(sql, expected, query(conn, sql));
+        assertEquals(sql, expected, query(smallConn, sql));
+        //同一个查询再执行一次(不重用上一次的结果)，重新建hash表
+        assertEquals(sql, expected, query(smallConn, sql));
+    }
+
+    static String query(Connection conn, String sql) throws Exception {
+        ArrayList<String> rows = new ArrayList<>();
+        Statement stmt = conn.createStatement();
+        ResultSet rs = stmt.executeQuery(sql);
+        int columnCount = rs.getMetaData().getColumnCount();
+        while (rs.next()) {
+            StringBuilder buff = new StringBuilder();
+            for (int i = 1; i <= columnCount; i++)
+                buff.append(rs.getString(i)).append(',');
+            rows.add(buff.toString());
+        }
+        rs.close();
+        stmt.close();
+        Collections.sort(rows);
+        return rows.size() + " " + rows;
+    }
+}
@@ -18,6 +18,7 @@
 package org.lealone.test.sql.misc;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
 
 import org.junit.Test;
 import org.lealone.test.sql.TestBase;
@@ -125,5 +126,27 @@ public class JoinTest extends TestBase {
 
         sql = "SELECT count(*) FROM JoinTest1 t1 join JoinTest4 t4 ON t1.id = t4.id";
         assertEquals(4, getIntValue(1, true));
+
+        //id和id2上都没有索引，被连接的表用hash join
+        sql = "EXPLAIN SELECT count(*) FROM JoinTest1 t1 join JoinTest4 t4 ON t1.id = t4.id";
+        assertTrue(getStringValue(1, true).contains("hash join"));
+
+        sql = "SELECT count(*) FROM JoinTest1 LEFT OUTER JOIN JoinTest2 ON id = id2";
+        assertEquals(5, getIntValue(1, true));
+
+        sql = "SELECT count(*) FROM JoinTest1 t1 JOIN JoinTest4 t4 ON t1.id = t4.id AND t1.name = t4.name";
+        assertEquals(2, getIntValue(1, true));
+
+        //两边的索引都按连接列排序，被连接的表用merge join
+        executeUpdate("CREATE INDEX IF NOT EXISTS JoinTest1_id ON JoinTest1(id)");
+        executeUpdate("CREATE INDEX IF NOT EXISTS JoinTest4_id ON JoinTest4(id)");
+        sql = "EXPLAIN SELECT count(*) FROM JoinTest1 t1 join JoinTest4 t4 ON t1.id = t4.id WHERE t1.id > 0";
+        assertTrue(getStringValue(1, true).contains("merge join"));
+
+        sql = "SELECT count(*) FROM JoinTest1 t1 join JoinTest4 t4 ON t1.id = t4.id WHERE t1.id > 0";
+        assertEquals(4, getIntValue(1, true));
+
+        sql = "SELECT count(*) FROM JoinTest1 t1 LEFT OUTER JOIN JoinTest4 t4 ON t1.id = t4.id WHERE t1.id > 0";
+        assertEquals(6, getIntValue(1, true));
     }
 }
@@ -0,0 +1,167 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.sql.misc;
+
+import static junit.framework.Assert.assertEquals;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.lealone.command.dml.Select;
+import org.lealone.command.router.MergedResult;
+import org.lealone.engine.Session;
+import org.lealone.jdbc.JdbcConnection;
+import org.lealone.result.ResultInterface;
+import org.lealone.util.New;
+import org.lealone.value.Value;
+
+/**
+ * 用三个表模拟三个节点，每个表上执行分布式的子查询得到部分聚合结果，
+ * 用MergedResult合并后的结果要和在包含所有记录的表上直接查询的结果一样。
+ */
+public class MergedResultTest {
+
+    static final int NODES = 3;
+
+    static Connection conn;
+    static Session session;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        conn = DriverManager.getConnection("jdbc:lealone:mem:embed:MergedResultTest", "sa", "");
+        session = (Session) ((JdbcConnection) conn).getSession();
+        Statement stmt = conn.createStatement();
+        createTables(stmt, "MERGE_ALL", "MERGE_P");
+        for (int i = 0; i < 200; i++) {
+            String f2 = i % 17 == 0 ? "NULL" : "" + (i % 7);
+            String f3 = i % 5 == 0 ? "NULL" : "" + (i * 1.5);
+            String values = "VALUES(" + i + ", " + f2 + ", " + f3 + ", 'v" + (i % 11) + "')";
+            stmt.executeUpdate("INSERT INTO MERGE_ALL " + values);
+            //最后一个节点没有记录
+            stmt.executeUpdate("INSERT INTO MERGE_P" + (i % (NODES - 1)) + " " + values);
+        }
+        stmt.close();
+    }
+
+    static void createTables(Statement stmt, String all, String part) throws Exception {
+        stmt.executeUpdate("CREATE TABLE " + all + "(f1 int primary key, f2 int, f3 double, f4 varchar)");
+        for (int i = 0; i < NODES; i++)
+            stmt.executeUpdate("CREATE TABLE " + part + i + "(f1 int primary key, f2 int, f3 double, f4 varchar)");
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception {
+        conn.close();
+    }
+
+    @Test
+    public void run() throws Exception {
+        check("SELECT f2, count(*), sum(f1), min(f3), max(f3), count(f3) FROM MERGE_ALL GROUP BY f2", false);
+        check("SELECT f2, avg(f1), avg(f3) FROM MERGE_ALL GROUP BY f2", false);
+        check("SELECT f2, stddev_pop(f3), var_samp(f3) FROM MERGE_ALL GROUP BY f2", false);
+        check("SELECT count(*), sum(f3), avg(f1) FROM MERGE_ALL", false);
+        check("SELECT count(*), max(f1) FROM MERGE_ALL WHERE f1 < 0", false);
+        check("SELECT f4, f2, count(*) FROM MERGE_ALL WHERE f1 > 20 GROUP BY f4, f2", false);
+
+        //ORDER BY、DISTINCT、LIMIT和OFFSET在合并后处理
+        check("SELECT f2, count(*) FROM MERGE_ALL GROUP BY f2 ORDER BY f2 DESC", true);
+        check("SELECT f4, sum(f1) FROM MERGE_ALL GROUP BY f4 ORDER BY 2 LIMIT 3", true);
+        check("SELECT f4, sum(f1) FROM MERGE_ALL GROUP BY f4 ORDER BY f4 LIMIT 4 OFFSET 3", true);
+        check("SELECT f4, avg(f1) FROM MERGE_ALL GROUP BY f4 ORDER BY avg(f1) DESC, f4 LIMIT 100 OFFSET 8", true);
+        check("SELECT DISTINCT count(*) FROM MERGE_ALL GROUP BY f4", false);
+        assertEquals(5, query("SELECT f4, count(*) FROM MERGE_ALL GROUP BY f4 LIMIT 5").size());
+    }
+
+    private static void check(String sql, boolean ordered) throws Exception {
+        Select select = (Select) session.prepare(sql, true);
+        assertRowsEqual(sql, read(select.query(0)), query(sql), ordered);
+    }
+
+    //合并时方差这类函数的计算顺序和直接查询时不同，double值只要求近似相等
+    static void assertRowsEqual(String sql, List<Value[]> expected, List<Value[]> actual, boolean ordered) {
+        if (!ordered) {
+            Collections.sort(expected, ROW_COMPARATOR);
+            Collections.sort(actual, ROW_COMPARATOR);
+        }
+        assertEquals(sql, expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Value[] e = expected.get(i);
+            Value[] a = actual.get(i);
+            assertEquals(sql, e.length, a.length);
+            for (int j = 0; j < e.length; j++) {
+                if (e[j].getType() == Value.DOUBLE && a[j].getType() == Value.DOUBLE) {
+                    double x = e[j].getDouble(), y = a[j].getDouble();
+                    if (Math.abs(x - y) > 1e-9 * Math.max(Math.abs(x), Math.abs(y)))
+                        assertEquals(sql, toString(e), toString(a));
+                } else if (!e[j].equals(a[j])) {
+                    assertEquals(sql, toString(e), toString(a));
+                }
+            }
+        }
+    }
+
+    static String toString(Value[] row) {
+        StringBuilder buff = new StringBuilder();
+        for (int i = 0; i < row.length; i++) {
+            if (i > 0)
+                buff.append(", ");
+            buff.append(row[i].getString()).append(':').append(row[i].getType());
+        }
+        return buff.toString();
+    }
+
+    static final Comparator<Value[]> ROW_COMPARATOR = new Comparator<Value[]>() {
+        @Override
+        public int compare(Value[] a, Value[] b) {
+            return MergedResultTest.toString(a).compareTo(MergedResultTest.toString(b));
+        }
+    };
+
+    //按P2PRouter的方式在每个节点上执行子查询，然后合并
+    private static List<Value[]> query(String sql) throws Exception {
+        Select select = (Select) session.prepare(sql, true);
+        String newSQL = select.getPlanSQL(true);
+        List<ResultInterface> results = New.arrayList(NODES);
+        for (int i = 0; i < NODES; i++) {
+            String subQuery = newSQL.replace("MERGE_ALL", "MERGE_P" + i);
+            results.add(session.prepare(subQuery, true).query(0));
+        }
+        Select newSelect = (Select) session.prepare(newSQL, true);
+        newSelect.setLocal(true);
+        return read(new MergedResult(results, newSelect, select));
+    }
+
+    static List<Value[]> read(ResultInterface result) {
+        ArrayList<Value[]> rows = new ArrayList<>();
+        while (result.next()) {
+            Value[] row = result.currentRow();
+            rows.add(Arrays.copyOf(row, result.getVisibleColumnCount()));
+        }
+        result.close();
+        return rows;
+    }
+}
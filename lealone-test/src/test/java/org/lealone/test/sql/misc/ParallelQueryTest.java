@@ -0,0 +1,169 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.sql.misc;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.lealone.command.dml.Select;
+import org.lealone.engine.Session;
+import org.lealone.jdbc.JdbcConnection;
+import org.lealone.value.Value;
+
+/**
+ * 大表上的分组和聚合查询由多个线程并行计算，结果要和PARALLEL_QUERY_THREADS=1时一样，
+ * 设置了分区过滤器时只统计过滤后的记录，多个查询同时并行计算时用的线程总数不超过可用处理器的个数。
+ */
+public class ParallelQueryTest {
+
+    //每个线程至少读8批(8192行)，超过16k行才会用多个线程
+    static final int ROWS = 40000;
+
+    static Connection conn;
+    static Connection serialConn;
+    static Session session;
+    static Session serialSession;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        conn = DriverManager.getConnection("jdbc:lealone:mem:embed:ParallelQueryTest;PARALLEL_QUERY_THREADS=4",
+                "sa", "");
+        serialConn = DriverManager.getConnection(
+                "jdbc:lealone:mem:embed:ParallelQueryTest2;PARALLEL_QUERY_THREADS=1", "sa", "");
+        session = (Session) ((JdbcConnection) conn).getSession();
+        serialSession = (Session) ((JdbcConnection) serialConn).getSession();
+        init(conn);
+        init(serialConn);
+    }
+
+    static void init(Connection conn) throws Exception {
+        Statement stmt = conn.createStatement();
+        stmt.executeUpdate("CREATE TABLE ParallelQueryTest(f1 int primary key, f2 int, f3 bigint)");
+        stmt.close();
+        PreparedStatement ps = conn.prepareStatement("INSERT INTO ParallelQueryTest VALUES(?, ?, ?)");
+        for (int i = 0; i < ROWS; i++) {
+            ps.setInt(1, i);
+            ps.setInt(2, i % 13);
+            if (i % 9 == 0)
+                ps.setNull(3, Types.BIGINT);
+            else
+                ps.setLong(3, i * 7L - 100000);
+            ps.executeUpdate();
+        }
+        ps.close();
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception {
+        conn.close();
+        serialConn.close();
+    }
+
+    @Test
+    public void run() throws Exception {
+        check("SELECT count(*), count(f3), sum(f3), min(f3), max(f3) FROM ParallelQueryTest", 1);
+        check("SELECT f2, count(*), sum(f3), avg(f1) FROM ParallelQueryTest GROUP BY f2", 13);
+        check("SELECT f2, count(*), max(f3 * 3) FROM ParallelQueryTest WHERE f3 > f1 GROUP BY f2", 13);
+        check("SELECT count(*), sum(f1) FROM ParallelQueryTest WHERE f3 IS NULL OR f2 < 3", 1);
+        testPartitionFilter();
+        testConcurrentQueries();
+    }
+
+    void check(String sql, int rowCount) throws Exception {
+        List<Value[]> expected = MergedResultTest.read(serialSession.prepare(sql, true).query(0));
+        List<Value[]> actual = MergedResultTest.read(session.prepare(sql, true).query(0));
+        assertEquals(rowCount, expected.size());
+        MergedResultTest.assertRowsEqual(sql, expected, actual, false);
+    }
+
+    //并行计算时不经过TableFilter.next()，设置了分区过滤器时要按单线程的方式计算
+    void testPartitionFilter() throws Exception {
+        String sql = "SELECT f2, count(*), sum(f3) FROM ParallelQueryTest GROUP BY f2";
+        Select select = (Select) session.prepare(sql, true);
+        Select serialSelect = (Select) serialSession.prepare(sql, true);
+        select.setPartitionFilter(PartitionFilterTest.EVEN);
+        serialSelect.setPartitionFilter(PartitionFilterTest.EVEN);
+        List<Value[]> expected = MergedResultTest.read(serialSelect.query(0));
+        List<Value[]> actual = MergedResultTest.read(select.query(0));
+        MergedResultTest.assertRowsEqual(sql, expected, actual, false);
+        int count = 0;
+        for (Value[] row : actual)
+            count += row[1].getInt();
+        assertEquals(ROWS / 2, count);
+
+        //清除过滤器后又可以并行计算
+        select.setPartitionFilter(null);
+        serialSelect.setPartitionFilter(null);
+        MergedResultTest.assertRowsEqual(sql, MergedResultTest.read(serialSelect.query(0)),
+                MergedResultTest.read(select.query(0)), false);
+    }
+
+    void testConcurrentQueries() throws Exception {
+        final String sql = "SELECT f2, count(*), sum(f3), min(f1) FROM ParallelQueryTest GROUP BY f2";
+        final List<Value[]> expected = MergedResultTest.read(serialSession.prepare(sql, true).query(0));
+        int count = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(count);
+        try {
+            ArrayList<Future<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        Connection c = DriverManager.getConnection(
+                                "jdbc:lealone:mem:embed:ParallelQueryTest;PARALLEL_QUERY_THREADS=4", "sa", "");
+                        try {
+                            Session s = (Session) ((JdbcConnection) c).getSession();
+                            //assertRowsEqual会排序，每个线程用自己的副本
+                            for (int j = 0; j < 5; j++)
+                                MergedResultTest.assertRowsEqual(sql, new ArrayList<>(expected),
+                                        MergedResultTest.read(s.prepare(sql, true).query(0)), false);
+                        } finally {
+                            c.close();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> f : futures)
+                f.get();
+        } finally {
+            executor.shutdown();
+        }
+        int threads = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet())
+            if (t.getName().startsWith("ParallelQuery:"))
+                threads++;
+        assertTrue(threads > 0);
+        assertTrue(threads <= Runtime.getRuntime().availableProcessors());
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.sql.misc;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.lealone.command.dml.Select;
+import org.lealone.command.router.PartitionFilter;
+import org.lealone.engine.Session;
+import org.lealone.jdbc.JdbcConnection;
+import org.lealone.value.Value;
+
+/**
+ * 同一个Select先后设置和清除分区过滤器，结果都要正确，清除后要恢复快速聚合、distinct查询和结果缓存。
+ */
+public class PartitionFilterTest {
+
+    static Connection conn;
+    static Session session;
+
+    //只接受f1是偶数的记录
+    static final PartitionFilter EVEN = new PartitionFilter() {
+        @Override
+        public boolean accept(Value partitionKey) {
+            return partitionKey.getInt() % 2 == 0;
+        }
+    };
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        conn = DriverManager.getConnection("jdbc:lealone:mem:embed:PartitionFilterTest", "sa", "");
+        session = (Session) ((JdbcConnection) conn).getSession();
+        Statement stmt = conn.createStatement();
+        stmt.executeUpdate("CREATE TABLE PartitionFilterTest(f1 int primary key, f2 int)");
+        stmt.executeUpdate("CREATE INDEX PartitionFilterTest_f2 ON PartitionFilterTest(f2)");
+        for (int i = 0; i < 100; i++)
+            stmt.executeUpdate("INSERT INTO PartitionFilterTest VALUES(" + i + ", " + (i % 10) + ")");
+        stmt.close();
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception {
+        conn.close();
+    }
+
+    @Test
+    public void run() throws Exception {
+        testQuickAggregateQuery();
+        testDistinctQuery();
+        testCache();
+    }
+
+    void testQuickAggregateQuery() throws Exception {
+        Select select = (Select) session.prepare("SELECT count(*) FROM PartitionFilterTest", true);
+        assertTrue(select.isQuickAggregateQuery());
+        assertEquals(100, query(select).get(0)[0].getInt());
+
+        select.setPartitionFilter(EVEN);
+        assertFalse(select.isQuickAggregateQuery());
+        assertEquals(50, query(select).get(0)[0].getInt());
+        select.setPartitionFilter(EVEN);
+        assertEquals(50, query(select).get(0)[0].getInt());
+
+        select.setPartitionFilter(null);
+        assertTrue(select.isQuickAggregateQuery());
+        assertEquals(100, query(select).get(0)[0].getInt());
+    }
+
+    void testDistinctQuery() throws Exception {
+        //f2是偶数的记录f1也是偶数
+        Select select = (Select) session.prepare("SELECT DISTINCT f2 FROM PartitionFilterTest", true);
+        assertEquals(10, query(select).size());
+
+        select.setPartitionFilter(EVEN);
+        List<Value[]> rows = query(select);
+        assertEquals(5, rows.size());
+        for (Value[] row : rows)
+            assertEquals(0, row[0].getInt() % 2);
+
+        select.setPartitionFilter(null);
+        assertEquals(10, query(select).size());
+    }
+
+    void testCache() throws Exception {
+        conn.createStatement().executeUpdate("SET OPTIMIZE_REUSE_RESULTS 1");
+        Select select = (Select) session.prepare("SELECT f1 FROM PartitionFilterTest WHERE f2 < 5", true);
+        assertEquals(50, query(select).size());
+
+        //过滤时不能用上一次没过滤的结果，也不能缓存过滤后的结果
+        select.setPartitionFilter(EVEN);
+        assertEquals(30, query(select).size());
+        select.setPartitionFilter(null);
+        assertEquals(50, query(select).size());
+        select.setPartitionFilter(EVEN);
+        assertEquals(30, query(select).size());
+        select.setPartitionFilter(null);
+        assertEquals(50, query(select).size());
+    }
+
+    private static List<Value[]> query(Select select) {
+        return MergedResultTest.read(select.query(0));
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.sql.misc;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.fail;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.lealone.api.ErrorCode;
+import org.lealone.engine.SysProperties;
+import org.lealone.test.sql.TestBase;
+
+public class PipelinedRequestTest extends TestBase {
+    @Test
+    public void run() throws Exception {
+        executeUpdate("DROP TABLE IF EXISTS PipelinedRequestTest");
+        executeUpdate("CREATE TABLE PipelinedRequestTest(f1 int primary key, f2 int)");
+        for (int i = 0; i < 100; i++) {
+            executeUpdate("INSERT INTO PipelinedRequestTest(f1, f2) VALUES(" + i + "," + (i * 2) + ")");
+        }
+        testReprepare();
+        testReprepareError();
+        testConcurrentRequests();
+    }
+
+    //让语句的id变旧，下一次执行时客户端会在执行请求前面再发一个prepare请求
+    private void makeStatementOld() throws Exception {
+        for (int i = 0; i <= SysProperties.SERVER_CACHED_OBJECTS; i++) {
+            ResultSet rs = stmt.executeQuery("SELECT 1");
+            rs.close();
+        }
+    }
+
+    void testReprepare() throws Exception {
+        PreparedStatement ps = conn.prepareStatement("SELECT f2 FROM PipelinedRequestTest WHERE f1 = ?");
+        ps.setInt(1, 10);
+        rs = ps.executeQuery();
+        rs.next();
+        assertEquals(20, rs.getInt(1));
+        rs.close();
+
+        makeStatementOld();
+        ps.setInt(1, 20);
+        rs = ps.executeQuery();
+        rs.next();
+        assertEquals(40, rs.getInt(1));
+        rs.close();
+
+        makeStatementOld();
+        ps.close();
+        ps = conn.prepareStatement("UPDATE PipelinedRequestTest SET f2 = f2 WHERE f1 < ?");
+        makeStatementOld();
+        ps.setInt(1, 10);
+        assertEquals(10, ps.executeUpdate());
+        ps.close();
+        rs = null;
+    }
+
+    void testReprepareError() throws Exception {
+        executeUpdate("CREATE TABLE IF NOT EXISTS PipelinedRequestTest2(f1 int)");
+        PreparedStatement ps = conn.prepareStatement("SELECT f1 FROM PipelinedRequestTest2");
+        PreparedStatement ps2 = conn.prepareStatement("DELETE FROM PipelinedRequestTest2");
+        executeUpdate("DROP TABLE PipelinedRequestTest2");
+        makeStatementOld();
+        //prepare的异常不能被丢掉，执行请求要抛出这个异常
+        try {
+            ps.executeQuery();
+            fail();
+        } catch (SQLException e) {
+            assertEquals(ErrorCode.TABLE_OR_VIEW_NOT_FOUND_1, e.getErrorCode());
+        }
+        try {
+            ps2.executeUpdate();
+            fail();
+        } catch (SQLException e) {
+            assertEquals(ErrorCode.TABLE_OR_VIEW_NOT_FOUND_1, e.getErrorCode());
+        }
+        ps.close();
+        ps2.close();
+
+        //连接还能继续使用
+        rs = stmt.executeQuery("SELECT count(*) FROM PipelinedRequestTest");
+        rs.next();
+        assertEquals(100, getIntValue(1, true));
+    }
+
+    //多个线程共用一个连接，每个请求都要收到自己的响应
+    void testConcurrentRequests() throws Exception {
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        PreparedStatement ps = conn
+                                .prepareStatement("SELECT f2 FROM PipelinedRequestTest WHERE f1 = ?");
+                        for (int i = offset; i < 100; i += 4) {
+                            ps.setInt(1, i);
+                            ResultSet rs = ps.executeQuery();
+                            rs.next();
+                            if (rs.getInt(1) != i * 2)
+                                throw new AssertionError("f1 = " + i + ": " + rs.getInt(1));
+                            rs.close();
+                        }
+                        ps.close();
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        assertNull(error.get());
+    }
+}
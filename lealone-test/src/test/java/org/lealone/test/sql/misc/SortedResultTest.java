@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.test.sql.misc;
+
+import static junit.framework.Assert.assertEquals;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.lealone.command.dml.Select;
+import org.lealone.command.router.SortedResult;
+import org.lealone.engine.Session;
+import org.lealone.jdbc.JdbcConnection;
+import org.lealone.result.ResultInterface;
+import org.lealone.util.New;
+import org.lealone.value.Value;
+
+/**
+ * 和MergedResultTest一样用多个表模拟多个节点，
+ * 用SortedResult归并各节点已排好序的结果，要和在包含所有记录的表上直接查询的结果一样。
+ */
+public class SortedResultTest {
+
+    static final int NODES = 4;
+
+    static Connection conn;
+    static Session session;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        conn = DriverManager.getConnection("jdbc:lealone:mem:embed:SortedResultTest", "sa", "");
+        session = (Session) ((JdbcConnection) conn).getSession();
+        Statement stmt = conn.createStatement();
+        stmt.executeUpdate("CREATE TABLE SORT_ALL(f1 int primary key, f2 int, f3 varchar)");
+        for (int i = 0; i < NODES; i++)
+            stmt.executeUpdate("CREATE TABLE SORT_P" + i + "(f1 int primary key, f2 int, f3 varchar)");
+        for (int i = 0; i < 500; i++) {
+            String f2 = i % 13 == 0 ? "NULL" : "" + (i * 7 % 50);
+            String values = "VALUES(" + i + ", " + f2 + ", 'v" + (i % 23) + "')";
+            stmt.executeUpdate("INSERT INTO SORT_ALL " + values);
+            //节点上的记录数不一样多，最后一个节点没有记录
+            int node = i % 10 < 6 ? 0 : (i % 10 < 9 ? 1 : 2);
+            stmt.executeUpdate("INSERT INTO SORT_P" + node + " " + values);
+        }
+        stmt.close();
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception {
+        conn.close();
+    }
+
+    @Test
+    public void run() throws Exception {
+        check("SELECT f1, f2 FROM SORT_ALL ORDER BY f1", 0);
+        check("SELECT f1, f2 FROM SORT_ALL ORDER BY f1 DESC", 0);
+        check("SELECT f2, f1 FROM SORT_ALL ORDER BY f2, f1", 0);
+        check("SELECT f2, f1 FROM SORT_ALL ORDER BY f2 DESC NULLS LAST, f1 DESC", 0);
+        check("SELECT f3, f1 FROM SORT_ALL WHERE f1 > 100 ORDER BY f3, f1", 0);
+        check("SELECT f3, f1 FROM SORT_ALL WHERE f1 < 0 ORDER BY f3, f1", 0);
+
+        //各节点只返回limit + offset行，offset在归并时处理
+        check("SELECT f2, f1 FROM SORT_ALL ORDER BY f2, f1 LIMIT 10", 0);
+        check("SELECT f2, f1 FROM SORT_ALL ORDER BY f2, f1 LIMIT 10 OFFSET 33", 0);
+        check("SELECT f1 FROM SORT_ALL ORDER BY f1 DESC LIMIT 5 OFFSET 490", 0);
+        check("SELECT f1 FROM SORT_ALL ORDER BY f1 LIMIT 20 OFFSET 1000", 0);
+        check("SELECT f2, f1 FROM SORT_ALL ORDER BY f2, f1", 17);
+        check("SELECT f2, f1 FROM SORT_ALL ORDER BY f2, f1 LIMIT 30 OFFSET 5", 12);
+        check("SELECT f2, f1 FROM SORT_ALL ORDER BY f2, f1 LIMIT 3 OFFSET 5", 12);
+    }
+
+    private static void check(String sql, int maxRows) throws Exception {
+        Select select = (Select) session.prepare(sql, true);
+        List<Value[]> expected = MergedResultTest.read(select.query(maxRows));
+        List<Value[]> actual = query(sql, maxRows);
+        MergedResultTest.assertRowsEqual(sql + " maxRows=" + maxRows, expected, actual, true);
+    }
+
+    //按P2PRouter的方式在每个节点上执行子查询，然后归并
+    private static List<Value[]> query(String sql, int maxRows) throws Exception {
+        Select select = (Select) session.prepare(sql, true);
+        String subQuery = select.getLimit() != null ? select.getPlanSQL(true) : select.getSQL();
+        int subQueryMaxRows = SortedResult.getSubQueryMaxRows(maxRows, session, select);
+        List<ResultInterface> results = New.arrayList(NODES);
+        for (int i = 0; i < NODES; i++) {
+            ResultInterface r = session.prepare(subQuery.replace("SORT_ALL", "SORT_P" + i), true).query(
+                    subQueryMaxRows);
+            assertEquals(true, subQueryMaxRows == 0 || r.getRowCount() <= subQueryMaxRows);
+            results.add(r);
+        }
+        return MergedResultTest.read(new SortedResult(maxRows, session, select, results));
+    }
+}
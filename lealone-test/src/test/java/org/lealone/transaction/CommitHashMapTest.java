@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.transaction;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class CommitHashMapTest {
+
+    @Test
+    public void run() {
+        testConflict();
+        testUndoPut();
+        testUndoPutAfterNewerCommit();
+        testEviction();
+    }
+
+    void testConflict() {
+        CommitHashMap map = new CommitHashMap(1000, 8);
+        Long[] old = map.checkAndPut(Arrays.asList("a", "b"), 1, 3);
+        assertNull(old[0]);
+        assertNull(old[1]);
+
+        //在a提交之前开始的事务修改了a，冲突
+        assertConflict(map, Arrays.asList("c", "a"), 2, 5);
+        //冲突时不能put任何一行
+        assertEquals(0, map.getLatestWriteForRow("c"));
+
+        //在a提交之后开始的事务不冲突
+        old = map.checkAndPut(Arrays.asList("c", "a"), 4, 7);
+        assertNull(old[0]);
+        assertEquals(3, old[1].longValue());
+        assertEquals(7, map.getLatestWriteForRow("a"));
+        assertEquals(3, map.getLatestWriteForRow("b"));
+    }
+
+    //提交失败的事务撤销自己的提交记录后，不能让以后的事务产生假的冲突，也不能丢掉之前的提交记录
+    void testUndoPut() {
+        CommitHashMap map = new CommitHashMap(1000, 8);
+        map.checkAndPut(Arrays.asList("a"), 1, 3);
+
+        //同一行在一个事务中可能被修改多次
+        List<String> rowKeys = Arrays.asList("a", "b", "a");
+        Long[] old = map.checkAndPut(rowKeys, 4, 9);
+        assertEquals(3, old[0].longValue());
+        assertNull(old[1]);
+        assertEquals(3, old[2].longValue());
+        map.undoPut(rowKeys, 9, old);
+
+        assertEquals(3, map.getLatestWriteForRow("a"));
+        assertEquals(0, map.getLatestWriteForRow("b"));
+        //开始时间在5到9之间的事务不再冲突
+        map.checkAndPut(Arrays.asList("a", "b"), 6, 11);
+        //但是开始时间在3之前的事务还是冲突
+        assertConflict(map, Arrays.asList("b"), 2, 13);
+    }
+
+    void testUndoPutAfterNewerCommit() {
+        CommitHashMap map = new CommitHashMap(1000, 8);
+        List<String> rowKeys = Arrays.asList("a", "b");
+        Long[] old = map.checkAndPut(rowKeys, 1, 3);
+        //在撤销之前另一个事务又提交了b
+        map.checkAndPut(Arrays.asList("b"), 4, 5);
+        map.undoPut(rowKeys, 3, old);
+        assertEquals(0, map.getLatestWriteForRow("a"));
+        assertEquals(5, map.getLatestWriteForRow("b"));
+    }
+
+    void testEviction() {
+        CommitHashMap map = new CommitHashMap(4, 1);
+        for (int i = 0; i < 10; i++)
+            map.checkAndPut(Arrays.asList("k" + i), i * 2 + 1, i * 2 + 2);
+        assertTrue(map.getLargestDeletedTimestamp() > 0);
+        try {
+            map.checkAndPut(Arrays.asList("x"), 1, 100);
+            fail();
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Too old"));
+        }
+    }
+
+    private static void assertConflict(CommitHashMap map, List<String> rowKeys, long start, long commit) {
+        try {
+            map.checkAndPut(rowKeys, start, commit);
+            fail();
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Write-write conflict"));
+        }
+    }
+}
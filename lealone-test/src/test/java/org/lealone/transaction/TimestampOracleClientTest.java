@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.transaction;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.lealone.engine.Session;
+
+/**
+ * 用一个不访问网络的TimestampOracleClient测试并发请求的合并。
+ */
+public class TimestampOracleClientTest {
+
+    private static class TestClient extends TimestampOracleClient {
+        final List<Thread> leaseThreads = new ArrayList<>();
+        long next = 1;
+
+        TestClient() {
+            super("localhost:0");
+        }
+
+        @Override
+        long lease(Session session, int count) {
+            try {
+                Thread.sleep(2); //让更多的请求排队
+            } catch (InterruptedException e) {
+            }
+            synchronized (this) {
+                leaseThreads.add(Thread.currentThread());
+                long first = next;
+                next += count;
+                return first;
+            }
+        }
+    }
+
+    @Test
+    public void run() throws Exception {
+        final TestClient client = new TestClient();
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final List<Long> odd = Collections.synchronizedList(new ArrayList<Long>());
+        final List<Long> even = Collections.synchronizedList(new ArrayList<Long>());
+        //每个线程只请求一次，一个线程连续做的远程调用都发生在它自己的请求里
+        Thread[] threads = new Thread[200];
+        for (int i = 0; i < threads.length; i++) {
+            final boolean isOdd = i % 3 != 0;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (isOdd)
+                            odd.add(client.next(null, true));
+                        else
+                            even.add(client.next(null, false));
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            });
+        }
+        for (Thread t : threads)
+            t.start();
+        for (Thread t : threads)
+            t.join();
+        assertNull(error.get());
+
+        ArrayList<Long> all = new ArrayList<>();
+        for (long ts : odd) {
+            assertEquals(1, ts & 1);
+            all.add(ts);
+        }
+        for (long ts : even) {
+            assertEquals(0, ts & 1);
+            all.add(ts);
+        }
+        Collections.sort(all);
+        assertEquals(threads.length, all.size());
+        for (int i = 1; i < all.size(); i++)
+            assertTrue(all.get(i - 1) < all.get(i));
+
+        //请求被合并了，而且同一个线程连续做的远程调用不超过MAX_LEASE_ROUNDS次
+        List<Thread> leaseThreads = client.leaseThreads;
+        assertTrue(leaseThreads.size() < threads.length);
+        int rounds = 1;
+        for (int i = 1; i < leaseThreads.size(); i++) {
+            rounds = leaseThreads.get(i) == leaseThreads.get(i - 1) ? rounds + 1 : 1;
+            assertTrue(rounds <= TimestampOracleClient.MAX_LEASE_ROUNDS);
+        }
+    }
+
+    @Test
+    public void testException() throws Exception {
+        TimestampOracleClient client = new TimestampOracleClient("localhost:0") {
+            @Override
+            long lease(Session session, int count) {
+                throw new RuntimeException("unavailable");
+            }
+        };
+        for (int i = 0; i < 2; i++) {
+            try {
+                client.next(null, true);
+                throw new AssertionError();
+            } catch (RuntimeException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("unavailable"));
+            }
+        }
+    }
+}
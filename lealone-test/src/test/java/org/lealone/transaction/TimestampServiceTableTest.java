@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.transaction;
+
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.lealone.mvstore.MVMap;
+import org.lealone.mvstore.MVStore;
+
+/**
+ * 多个线程并发分配时间戳，跨过多个批次后时间戳不能重复，也不能超过已经持久化的最大时间戳。
+ */
+public class TimestampServiceTableTest {
+
+    static final int THREADS = 4;
+    static final int COUNT = 80000;
+
+    @Test
+    public void run() throws Exception {
+        MVStore store = new MVStore.Builder().open();
+        TimestampServiceTable.init(store);
+        TimestampServiceTable.reset();
+
+        final long[][] timestamps = new long[THREADS][COUNT];
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final long[] a = timestamps[t];
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < COUNT; i++) {
+                            if (i % 1000 == 999) {
+                                //一次分配的一块时间戳只记录第一个
+                                a[i] = TimestampServiceTable.allocate(300);
+                            } else {
+                                a[i] = i % 2 == 0 ? TimestampServiceTable.nextOdd() : TimestampServiceTable.nextEven();
+                                if ((a[i] & 1) != (i % 2 == 0 ? 1 : 0))
+                                    throw new AssertionError("parity: " + a[i]);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            });
+        }
+        for (Thread t : threads)
+            t.start();
+        for (Thread t : threads)
+            t.join();
+        assertNull(error.get());
+
+        long[] all = new long[THREADS * COUNT];
+        for (int t = 0; t < THREADS; t++)
+            System.arraycopy(timestamps[t], 0, all, t * COUNT, COUNT);
+        Arrays.sort(all);
+        for (int i = 1; i < all.length; i++)
+            assertTrue(all[i - 1] < all[i]);
+        //分配的时间戳已经跨过了多个批次
+        long max = all[all.length - 1] + 300;
+        assertTrue(max > 300000);
+
+        MVMap<String, Long> map = store.openMap("timestampServiceTable", new MVMap.Builder<String, Long>());
+        assertTrue(map.get("k") >= max);
+
+        //所有批次都由同一个后台线程持久化
+        int allocators = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().equals("TimestampServiceTable allocator"))
+                allocators++;
+        }
+        assertTrue(allocators <= 1);
+        store.close();
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.transaction;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Test;
+import org.lealone.mvstore.MVStore;
+import org.lealone.transaction.local.DefaultTransactionEngine;
+
+/**
+ * 不访问其他节点，用一个记录验证请求的TransactionValidator测试消息的分批和出错时的重试。
+ */
+public class TransactionValidatorTest {
+
+    private static class TestValidator extends TransactionValidator {
+        final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+        volatile int failures;
+
+        @Override
+        List<String> validate(Properties info, String dbName, Set<String> localTransactionNames) {
+            requests.add(dbName + " " + info.getProperty("user") + " " + new TreeSet<>(localTransactionNames));
+            if (failures > 0) {
+                failures--;
+                throw new RuntimeException("node unavailable");
+            }
+            List<String> invalid = new ArrayList<>();
+            for (String name : localTransactionNames)
+                if (name.endsWith(":0"))
+                    invalid.add(name);
+            return invalid;
+        }
+    }
+
+    private static class TestEngine extends DefaultTransactionEngine {
+        final List<Integer> committed = Collections.synchronizedList(new ArrayList<Integer>());
+
+        TestEngine() {
+            super(new MVStore.Builder().open());
+        }
+
+        @Override
+        public void commitAfterValidate(int tid) {
+            committed.add(tid);
+        }
+    }
+
+    @Test
+    public void run() throws Exception {
+        testBatches();
+        testRetry();
+        testFailure();
+    }
+
+    //连接参数不同的消息分开验证
+    void testBatches() throws Exception {
+        TestValidator validator = new TestValidator();
+        TestEngine engine = new TestEngine();
+        Properties a = properties("a");
+        Properties b = properties("b");
+        //先把消息放入队列再启动线程，让它们在同一批被取出
+        validator.enqueue("db1", engine, 1, a, "h1:1:1,h2:1:1");
+        validator.enqueue("db1", engine, 2, b, "h1:1:2");
+        validator.enqueue("db1", engine, 3, properties("a"), "h2:1:3");
+        validator.enqueue("db2", engine, 4, a, "h1:1:4,h2:1:0");
+        validator.start();
+        waitFor(engine.committed, 3);
+        validator.close();
+
+        Collections.sort(validator.requests);
+        assertEquals("[db1 a [h1:1:1, h2:1:1, h2:1:3], db1 b [h1:1:2], db2 a [h1:1:4, h2:1:0]]",
+                validator.requests.toString());
+        Collections.sort(engine.committed);
+        assertEquals("[1, 2, 3]", engine.committed.toString());
+    }
+
+    //出错的一批消息重新放回队列
+    void testRetry() throws Exception {
+        TestValidator validator = new TestValidator();
+        TestEngine engine = new TestEngine();
+        validator.failures = 2;
+        validator.enqueue("db1", engine, 1, properties("a"), "h1:1:1");
+        validator.start();
+        waitFor(engine.committed, 1);
+        validator.close();
+        assertEquals(3, validator.requests.size());
+    }
+
+    //重试MAX_RETRIES次后放弃
+    void testFailure() throws Exception {
+        TestValidator validator = new TestValidator();
+        TestEngine engine = new TestEngine();
+        validator.failures = Integer.MAX_VALUE;
+        validator.enqueue("db1", engine, 1, properties("a"), "h1:1:1");
+        validator.start();
+        long end = System.currentTimeMillis() + 500;
+        while (validator.requests.size() <= TransactionValidator.MAX_RETRIES && System.currentTimeMillis() < end)
+            Thread.sleep(10);
+        Thread.sleep(100);
+        validator.close();
+        assertEquals(1 + TransactionValidator.MAX_RETRIES, validator.requests.size());
+        assertTrue(engine.committed.isEmpty());
+    }
+
+    private static Properties properties(String user) {
+        Properties p = new Properties();
+        p.setProperty("user", user);
+        p.setProperty("password", "");
+        return p;
+    }
+
+    private static void waitFor(List<Integer> committed, int size) throws Exception {
+        long end = System.currentTimeMillis() + 5000;
+        while (committed.size() < size && System.currentTimeMillis() < end)
+            Thread.sleep(10);
+        Thread.sleep(50);
+    }
+}
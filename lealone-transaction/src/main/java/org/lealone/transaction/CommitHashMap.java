@@ -17,108 +17,203 @@
  */
 package org.lealone.transaction;
 
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
 /**
- * This class stores the mapping between start a commit timestamps and between
- * modified row and commit timestamp.
- * 
- * Both mappings are respresented as a long->long mapping, each of them
- * implemented using a single long []
+ * This class stores the mapping between modified rows and their latest commit timestamp,
+ * it is used for the write-write conflict detection.
  * 
- * For a map of size N we create an array of size 2*N and store the keys on even
- * indexes and values on odd indexes.
+ * The map is split into stripes, each stripe has its own lock and holds at most size / stripes entries.
+ * The stripe of a row is chosen by the hash code of its key, the keys are compared with equals,
+ * so rows with the same hash code do not conflict.
  * 
- * Each time an entry is removed, we update the largestDeletedTimestamp if the
- * entry's commit timestamp is greater than this value.
+ * When an entry is evicted from a stripe, the largestDeletedTimestamp of the stripe
+ * is updated if the entry's commit timestamp is greater than this value.
+ * A transaction that started before this timestamp can not be checked against the evicted rows and is aborted.
  * 
- * Rationale: we want queries to be fast and touch as least memory regions as
- * possible
- * 
- * TODO: improve garbage collection, right now an entry is picked at random (by
- * hash) which could cause the eviction of a very recent timestamp
+ * Transactions that modified rows in different stripes can check and publish their rows in parallel.
  */
-
 public class CommitHashMap {
-    private final LongCache rowsCommitMapping;
-    private long largestDeletedTimestamp;
+    private final Stripe[] stripes;
+    private final int mask;
 
     /**
-     * Constructs a new, empty hashtable with the specified size and associativity
+     * Constructs a new, empty map with the specified size and number of stripes
      * 
      * @param size
-     *            the initial size of the hashtable.
-     * @param associativity
-     *            the associativity of the cache.
+     *            the maximum number of rows.
+     * @param concurrencyLevel
+     *            the number of stripes, rounded up to a power of two.
      * @throws IllegalArgumentException
-     *             if the size or associativity is less than zero.
+     *             if the size or concurrencyLevel is less than one.
      */
-    public CommitHashMap(int size, int associativity) {
-        if (size < 0) {
+    public CommitHashMap(int size, int concurrencyLevel) {
+        if (size < 1) {
             throw new IllegalArgumentException("Illegal size: " + size);
         }
-        if (associativity < 0) {
-            throw new IllegalArgumentException("Illegal associativity: " + associativity);
+        if (concurrencyLevel < 1) {
+            throw new IllegalArgumentException("Illegal concurrencyLevel: " + concurrencyLevel);
         }
-        this.rowsCommitMapping = new LongCache(size, associativity);
+        int stripeCount = Integer.highestOneBit(Math.min(concurrencyLevel, size) * 2 - 1);
+        int stripeSize = Math.max(1, size / stripeCount);
+        stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++)
+            stripes[i] = new Stripe(stripeSize);
+        mask = stripeCount - 1;
     }
 
-    public long getLatestWriteForRow(long hash) {
-        return rowsCommitMapping.get(hash);
+    public long getLatestWriteForRow(Object rowKey) {
+        Stripe stripe = stripes[index(rowKey)];
+        stripe.lock.lock();
+        try {
+            Long commitTimestamp = stripe.get(rowKey);
+            return commitTimestamp == null ? 0 : commitTimestamp;
+        } finally {
+            stripe.lock.unlock();
+        }
     }
 
-    public void putLatestWriteForRow(long hash, long commitTimestamp) {
-        long oldCommitTS = rowsCommitMapping.set(hash, commitTimestamp);
-        largestDeletedTimestamp = Math.max(oldCommitTS, largestDeletedTimestamp);
+    public void putLatestWriteForRow(Object rowKey, long commitTimestamp) {
+        Stripe stripe = stripes[index(rowKey)];
+        stripe.lock.lock();
+        try {
+            stripe.put(rowKey, commitTimestamp);
+        } finally {
+            stripe.lock.unlock();
+        }
     }
 
     public long getLargestDeletedTimestamp() {
+        long largestDeletedTimestamp = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                largestDeletedTimestamp = Math.max(largestDeletedTimestamp, stripe.largestDeletedTimestamp);
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
         return largestDeletedTimestamp;
     }
 
-    public static class LongCache {
-        private final long[] cache;
-        private final int associativity;
-        private final int mask;
+    /**
+     * Check the rows for write-write conflicts and publish the commit timestamp of the rows,
+     * both in one atomic step, so two transactions that modified the same row can not both pass the check.
+     * 
+     * The locks of the stripes are acquired in ascending order to avoid deadlocks.
+     * 
+     * @param rowKeys the keys of the modified rows
+     * @param startTimestamp the start timestamp of the transaction
+     * @param commitTimestamp the commit timestamp of the transaction
+     * @return the previous commit timestamps of the rows (null if a row was not in the map),
+     *         in the iteration order of rowKeys, to be passed to undoPut if the commit fails
+     * @throws RuntimeException if there is a conflict or the transaction is too old
+     */
+    public Long[] checkAndPut(Collection<?> rowKeys, long startTimestamp, long commitTimestamp) {
+        Long[] oldCommitTimestamps = new Long[rowKeys.size()];
+        if (rowKeys.isEmpty())
+            return oldCommitTimestamps;
 
-        public LongCache(int size, int associativity) {
-            this.cache = new long[2 * (size + associativity)];
-            this.associativity = associativity;
-            this.mask = size - 1;
+        int[] indexes = new int[rowKeys.size()];
+        int count = 0;
+        for (Object rowKey : rowKeys)
+            indexes[count++] = index(rowKey);
+        Arrays.sort(indexes);
+        //去掉重复的stripe
+        int distinct = 1;
+        for (int i = 1; i < count; i++) {
+            if (indexes[i] != indexes[distinct - 1])
+                indexes[distinct++] = indexes[i];
         }
 
-        public long set(long key, long value) {
-            final int index = index(key);
-            int oldestIndex = 0;
-            long oldestValue = Long.MAX_VALUE;
-            for (int i = 0; i < associativity; ++i) {
-                int currIndex = 2 * (index + i);
-                if (cache[currIndex] == key) {
-                    oldestValue = 0;
-                    oldestIndex = currIndex;
-                    break;
+        int locked = 0;
+        try {
+            for (; locked < distinct; locked++)
+                stripes[indexes[locked]].lock.lock();
+
+            int i = 0;
+            for (Object rowKey : rowKeys) {
+                Stripe stripe = stripes[index(rowKey)];
+                if (startTimestamp < stripe.largestDeletedTimestamp) {
+                    throw new RuntimeException("Too old startTimestamp: ST " + startTimestamp + " MAX "
+                            + stripe.largestDeletedTimestamp);
                 }
-                if (cache[currIndex + 1] <= oldestValue) {
-                    oldestValue = cache[currIndex + 1];
-                    oldestIndex = currIndex;
+                Long oldCommitTimestamp = stripe.get(rowKey);
+                if (oldCommitTimestamp != null && oldCommitTimestamp > startTimestamp) {
+                    throw new RuntimeException("Write-write conflict: oldCommitTimestamp " + oldCommitTimestamp
+                            + ", startTimestamp " + startTimestamp + ", rowKey " + rowKey);
                 }
+                oldCommitTimestamps[i++] = oldCommitTimestamp;
+            }
+
+            //只有所有的行都检测完后才能put提交记录
+            for (Object rowKey : rowKeys) {
+                stripes[index(rowKey)].put(rowKey, commitTimestamp);
             }
-            cache[oldestIndex] = key;
-            cache[oldestIndex + 1] = value;
-            return oldestValue;
+        } finally {
+            while (--locked >= 0)
+                stripes[indexes[locked]].lock.unlock();
         }
+        return oldCommitTimestamps;
+    }
 
-        public long get(long key) {
-            final int index = index(key);
-            for (int i = 0; i < associativity; ++i) {
-                int currIndex = 2 * (index + i);
-                if (cache[currIndex] == key) {
-                    return cache[currIndex + 1];
-                }
+    /**
+     * Undo a successful checkAndPut of a transaction that could not commit.
+     * A row keeps its entry if a later transaction has already put a newer commit timestamp.
+     * 
+     * @param rowKeys the keys passed to checkAndPut
+     * @param commitTimestamp the commit timestamp passed to checkAndPut
+     * @param oldCommitTimestamps the value returned by checkAndPut
+     */
+    public void undoPut(Collection<?> rowKeys, long commitTimestamp, Long[] oldCommitTimestamps) {
+        int i = 0;
+        for (Object rowKey : rowKeys) {
+            Long oldCommitTimestamp = oldCommitTimestamps[i++];
+            Stripe stripe = stripes[index(rowKey)];
+            stripe.lock.lock();
+            try {
+                Long current = stripe.get(rowKey);
+                if (current == null || current != commitTimestamp)
+                    continue;
+                if (oldCommitTimestamp == null)
+                    stripe.remove(rowKey);
+                else
+                    stripe.put(rowKey, oldCommitTimestamp);
+            } finally {
+                stripe.lock.unlock();
             }
-            return 0;
+        }
+    }
+
+    private int index(Object rowKey) {
+        int h = rowKey.hashCode();
+        h ^= (h >>> 16);
+        return h & mask;
+    }
+
+    private static class Stripe extends LinkedHashMap<Object, Long> {
+        private static final long serialVersionUID = 1L;
+
+        final ReentrantLock lock = new ReentrantLock();
+        final int capacity;
+        long largestDeletedTimestamp;
+
+        Stripe(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
         }
 
-        private int index(long hash) {
-            return (int) (Math.abs(hash) & mask);
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, Long> eldest) {
+            if (size() > capacity) {
+                largestDeletedTimestamp = Math.max(largestDeletedTimestamp, eldest.getValue());
+                return true;
+            }
+            return false;
         }
     }
 }
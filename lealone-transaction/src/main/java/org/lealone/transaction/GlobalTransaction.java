@@ -17,11 +17,16 @@
  */
 package org.lealone.transaction;
 
+import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 
+import org.lealone.dbobject.table.Table;
 import org.lealone.engine.Session;
 import org.lealone.message.DbException;
 import org.lealone.result.Row;
+import org.lealone.util.New;
+import org.lealone.value.Value;
+import org.lealone.value.ValueLong;
 
 public class GlobalTransaction extends TransactionBase {
     private static final CommitHashMap commitHashMap = new CommitHashMap(1000, 32);
@@ -38,9 +43,9 @@ public class GlobalTransaction extends TransactionBase {
 
     public long getNewTimestamp() {
         if (autoCommit)
-            return TimestampServiceTable.nextEven();
+            return TimestampServiceTable.nextEven(session);
         else
-            return TimestampServiceTable.nextOdd();
+            return TimestampServiceTable.nextOdd(session);
     }
 
     @Override
@@ -51,21 +56,27 @@ public class GlobalTransaction extends TransactionBase {
     @Override
     protected void commitLocal(String allLocalTransactionNames) {
         if (!autoCommit) {
+            List<RowKey> rowKeys = null;
+            Long[] oldCommitTimestamps = null;
             try {
                 //1. 获得提交时间戳
-                commitTimestamp = TimestampServiceTable.nextOdd();
+                commitTimestamp = TimestampServiceTable.nextOdd(session);
 
-                //2. 检测写写冲突
-                checkConflict();
+                //2. 检测写写冲突，同时缓存本次事务已提交的行，用于下一个事务的写写冲突检测
+                checkTimestamp();
+                if (undoRows != null && !undoRows.isEmpty()) {
+                    rowKeys = getRowKeys();
+                    oldCommitTimestamps = commitHashMap.checkAndPut(rowKeys, transactionId, getCommitTimestamp());
+                }
 
                 //3. 更新事务状态表
                 TransactionStatusTable.commit(this, allLocalTransactionNames);
 
-                //4.缓存本次事务已提交的行，用于下一个事务的写写冲突检测
-                cacheCommittedRows();
-
                 //TODO 考虑如何缓存事务id和提交时间戳? 难点是: 当前节点提交了，但是还不能完全确定全局事务正常提交
             } catch (Exception e) {
+                //事务没有提交成功，撤销第2步缓存的提交记录，否则以后修改这些行的事务会被误判为写写冲突
+                if (oldCommitTimestamps != null)
+                    commitHashMap.undoPut(rowKeys, getCommitTimestamp(), oldCommitTimestamps);
                 rollback();
                 throw DbException.convert(e);
             } finally {
@@ -74,36 +85,22 @@ public class GlobalTransaction extends TransactionBase {
         }
     }
 
-    private void checkConflict() {
-        synchronized (commitHashMap) {
-            if (transactionId < TimestampServiceTable.first()) {
-                //1. transactionId不可能小于region server启动时从TimestampServiceTable中获得的上一次的最大时间戳
-                throw DbException.throwInternalError("transactionId(" + transactionId + ") < firstTimestampService("
-                        + TimestampServiceTable.first() + ")");
-            } else if (!undoRows.isEmpty() && transactionId < commitHashMap.getLargestDeletedTimestamp()) {
-                //2. Too old and not read only
-                throw new RuntimeException("Too old startTimestamp: ST " + transactionId + " MAX "
-                        + commitHashMap.getLargestDeletedTimestamp());
-            } else {
-                //3. write-write冲突检测
-                for (Row row : undoRows) {
-                    long oldCommitTimestamp = commitHashMap.getLatestWriteForRow(row.hashCode());
-                    if (oldCommitTimestamp != 0 && oldCommitTimestamp > transactionId) {
-                        throw new RuntimeException("Write-write conflict: oldCommitTimestamp " + oldCommitTimestamp
-                                + ", startTimestamp " + transactionId + ", rowKey " + row.getRowKey());
-                    }
-                }
-            }
+    private void checkTimestamp() {
+        if (transactionId < TimestampServiceTable.first()) {
+            //1. transactionId不可能小于region server启动时从TimestampServiceTable中获得的上一次的最大时间戳
+            throw DbException.throwInternalError("transactionId(" + transactionId + ") < firstTimestampService("
+                    + TimestampServiceTable.first() + ")");
         }
     }
 
-    private void cacheCommittedRows() {
-        synchronized (commitHashMap) {
-            //不能把下面的代码放入第3步的for循环中，只有冲突检测完后才能put提交记录
-            for (Row row : undoRows) {
-                commitHashMap.putLatestWriteForRow(row.hashCode(), getCommitTimestamp());
-            }
+    //2. Too old and not read only
+    //3. write-write冲突检测，检测和put提交记录是一个原子操作，只锁住这些行所在的stripe
+    private List<RowKey> getRowKeys() {
+        List<RowKey> rowKeys = New.arrayList(undoRows.size());
+        for (Row row : undoRows) {
+            rowKeys.add(new RowKey(row));
         }
+        return rowKeys;
     }
 
     @Override
@@ -152,4 +149,37 @@ public class GlobalTransaction extends TransactionBase {
 
         super.endTransaction();
     }
+
+    /**
+     * 用表和行的主键(没有主键时用行的key)标识一行记录，不同的行即使hashCode相同也不会被当成冲突。
+     */
+    private static class RowKey {
+        private final Table table;
+        private final Value key;
+
+        RowKey(Row row) {
+            table = row.getTable();
+            key = row.getRowKey() != null ? row.getRowKey() : ValueLong.get(row.getKey());
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (table == null ? 0 : table.hashCode()) + key.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof RowKey))
+                return false;
+            RowKey other = (RowKey) obj;
+            return table == other.table && key.equals(other.key);
+        }
+
+        @Override
+        public String toString() {
+            return key.toString();
+        }
+    }
 }
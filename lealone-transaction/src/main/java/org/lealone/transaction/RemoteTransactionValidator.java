@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.transaction;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.lealone.command.router.FrontendSessionPool;
+import org.lealone.engine.AsyncCallback;
+import org.lealone.engine.Constants;
+import org.lealone.engine.FrontendSession;
+import org.lealone.message.DbException;
+import org.lealone.util.New;
+
+/**
+ * 批量验证其他节点上的本地事务是否已经提交。
+ *
+ * 先按节点(hostAndPort)把所有要验证的本地事务名分组，每个节点只发一个批量验证请求，
+ * 所有节点的请求都先异步发出，然后再统一等待结果，所以总的耗时只相当于一次网络往返。
+ *
+ * 本地事务一旦提交就不会再变成无效，所以验证成功的本地事务名会缓存起来，
+ * 缓存是一个有容量上限的LRU表；验证失败的事务以后还可能提交，所以不缓存。
+ */
+final class RemoteTransactionValidator {
+    private RemoteTransactionValidator() {
+    }
+
+    //已确认提交的本地事务名的缓存大小
+    private static final int CACHE_SIZE = Integer.valueOf(System.getProperty(Constants.PROJECT_NAME_PREFIX
+            + "transaction.validation.cache.size", Integer.toString(1 << 16)));
+
+    private static final Map<String, Boolean> committed = new LinkedHashMap<String, Boolean>(1024, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private static boolean isCommitted(String localTransactionName) {
+        synchronized (committed) {
+            return committed.get(localTransactionName) != null;
+        }
+    }
+
+    private static void setCommitted(String localTransactionName) {
+        synchronized (committed) {
+            committed.put(localTransactionName, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * 验证多个本地事务是否都已提交
+     * 
+     * @param info 连接其他节点时使用的连接参数
+     * @param dbName 数据库名
+     * @param localTransactionNames 本地事务名，格式是"host:port:tid"
+     * @return 没有提交的本地事务名，全部都已提交时返回空集合
+     */
+    static List<String> validate(Properties info, String dbName, Collection<String> localTransactionNames) {
+        //1. 过滤掉已确认提交的本地事务，剩下的按节点分组
+        Map<String, List<String>> hostAndPortMap = New.hashMap();
+        for (String name : localTransactionNames) {
+            if (isCommitted(name))
+                continue;
+            String hostAndPort = name.substring(0, name.lastIndexOf(':'));
+            List<String> names = hostAndPortMap.get(hostAndPort);
+            if (names == null) {
+                names = New.arrayList();
+                hostAndPortMap.put(hostAndPort, names);
+            }
+            if (!names.contains(name))
+                names.add(name);
+        }
+
+        List<String> invalid = New.arrayList();
+        if (hostAndPortMap.isEmpty())
+            return invalid;
+
+        //2. 给每个节点异步发送一个批量验证请求
+        int size = hostAndPortMap.size();
+        List<FrontendSession> sessions = new ArrayList<>(size);
+        List<String[]> requests = new ArrayList<>(size);
+        List<AsyncCallback<boolean[]>> callbacks = new ArrayList<>(size);
+        RuntimeException exception = null;
+        try {
+            for (Map.Entry<String, List<String>> e : hostAndPortMap.entrySet()) {
+                FrontendSession fs = FrontendSessionPool.getFrontendSession(info, TransactionStatusTable.createURL(dbName, e.getKey()));
+                sessions.add(fs);
+                String[] names = e.getValue().toArray(new String[0]);
+                callbacks.add(fs.validateTransactionsAsync(names));
+                requests.add(names);
+            }
+
+            //3. 等待所有节点的结果
+            for (int i = 0, callbackSize = callbacks.size(); i < callbackSize; i++) {
+                String[] names = requests.get(i);
+                boolean[] result = callbacks.get(i).get();
+                for (int j = 0; j < names.length; j++) {
+                    if (result[j])
+                        setCommitted(names[j]);
+                    else
+                        invalid.add(names[j]);
+                }
+            }
+        } catch (Exception e) {
+            exception = DbException.convert(e);
+        } finally {
+            for (FrontendSession fs : sessions)
+                FrontendSessionPool.release(fs);
+        }
+        if (exception != null)
+            throw exception;
+        return invalid;
+    }
+}
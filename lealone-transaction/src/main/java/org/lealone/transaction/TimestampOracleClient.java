@@ -0,0 +1,166 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lealone.transaction;
+
+import java.util.ArrayList;
+
+import org.lealone.command.router.FrontendSessionPool;
+import org.lealone.engine.FrontendSession;
+import org.lealone.engine.Session;
+import org.lealone.message.DbException;
+
+/**
+ * 从中心时间戳服务节点获取时间戳。
+ *
+ * 并发的请求会合并成一次远程调用: 第一个到达的线程负责发请求，在它等待响应期间到达的请求排队，
+ * 由它在下一次远程调用时一起获取，直到没有排队的请求为止。
+ * 一个线程最多连续做MAX_LEASE_ROUNDS次远程调用，之后把这个工作交给一个排队的线程，自己的请求早已完成，可以返回了。
+ * 每次获取的一批时间戳只分给当时在排队的请求，剩下的丢弃，不会留到以后再用，
+ * 所以一个节点分配出去的时间戳总是大于在此之前任何节点已经分配出去的时间戳。
+ */
+class TimestampOracleClient {
+
+    static final int MAX_LEASE_ROUNDS = 8;
+
+    private final String host;
+    private final String port;
+    private final ArrayList<Request> pending = new ArrayList<>();
+    private boolean leasing;
+
+    TimestampOracleClient(String hostAndPort) {
+        String[] a = hostAndPort.split(":");
+        host = a[0];
+        port = a[1];
+    }
+
+    long next(Session session, boolean odd) {
+        Request r = new Request(odd);
+        boolean leader;
+        synchronized (this) {
+            pending.add(r);
+            leader = !leasing;
+            leasing = true;
+        }
+        if (leader)
+            lease(session);
+        //被选为下一个负责远程调用的线程时，await返回false
+        while (!r.await())
+            lease(session);
+        return r.getResult();
+    }
+
+    private void lease(Session session) {
+        for (int round = 0;; round++) {
+            Request[] requests;
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    leasing = false;
+                    return;
+                }
+                if (round >= MAX_LEASE_ROUNDS) {
+                    //leasing仍然是true，由排在最前面的请求所在的线程接着做
+                    pending.get(0).takeOver();
+                    return;
+                }
+                requests = pending.toArray(new Request[pending.size()]);
+                pending.clear();
+            }
+            try {
+                //每个请求最多需要两个时间戳才能得到一个奇数或偶数
+                long next = lease(session, requests.length * 2);
+                for (Request r : requests) {
+                    if (((next & 1) == 1) != r.odd)
+                        next++;
+                    r.setResult(next++);
+                }
+            } catch (Throwable e) {
+                DbException ex = DbException.convert(e);
+                for (Request r : requests)
+                    r.setException(ex);
+            }
+        }
+    }
+
+    //测试时可以覆盖这个方法
+    long lease(Session session, int count) {
+        FrontendSession fs = null;
+        try {
+            fs = FrontendSessionPool.getFrontendSession(session.getOriginalProperties(),
+                    TransactionStatusTable.createURL(session, host, port));
+            return fs.leaseTimestamps(count);
+        } catch (Exception e) {
+            throw DbException.convert(e);
+        } finally {
+            FrontendSessionPool.release(fs);
+        }
+    }
+
+    private static class Request {
+        final boolean odd;
+        private boolean done;
+        private boolean leader;
+        private long result;
+        private DbException exception;
+
+        Request(boolean odd) {
+            this.odd = odd;
+        }
+
+        synchronized void setResult(long result) {
+            this.result = result;
+            done = true;
+            notifyAll();
+        }
+
+        synchronized void setException(DbException exception) {
+            this.exception = exception;
+            done = true;
+            notifyAll();
+        }
+
+        synchronized void takeOver() {
+            leader = true;
+            notifyAll();
+        }
+
+        //请求已经在排队，可能被选为下一个负责远程调用的线程，所以中断时不能直接退出
+        synchronized boolean await() {
+            boolean interrupted = false;
+            while (!done && !leader) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            if (!done) {
+                leader = false;
+                return false;
+            }
+            return true;
+        }
+
+        synchronized long getResult() {
+            if (exception != null)
+                throw exception;
+            return result;
+        }
+    }
+}
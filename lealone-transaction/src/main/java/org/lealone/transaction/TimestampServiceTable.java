@@ -17,12 +17,27 @@
  */
 package org.lealone.transaction;
 
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.lealone.engine.Constants;
+import org.lealone.engine.Session;
+import org.lealone.message.DbException;
 import org.lealone.mvstore.MVMap;
 import org.lealone.mvstore.MVStore;
 
+/**
+ * 分配事务用的时间戳。
+ *
+ * 时间戳按批持久化，分配出去的时间戳不会超过已经持久化的最大时间戳，这样节点重启后时间戳不会重复。
+ * 当前这一批剩下的时间戳少于一半时由后台线程持久化下一批，分配时间戳的线程只在后台线程来不及时才需要等待。
+ *
+ * 如果设置了transaction.timestamp.oracle，集群中的其他节点都从这个节点批量获取时间戳，
+ * 否则每个节点独立分配时间戳。
+ */
 public class TimestampServiceTable {
 
     private TimestampServiceTable() {
@@ -31,13 +46,55 @@ public class TimestampServiceTable {
     private static final long TIMESTAMP_BATCH = Long.valueOf(System.getProperty(Constants.PROJECT_NAME_PREFIX
             + "transaction.timestamp.batch", "100000"));
 
+    //剩下的时间戳少于这个数时开始在后台分配下一批
+    private static final long TIMESTAMP_PREFETCH_THRESHOLD = TIMESTAMP_BATCH / 2;
+
+    //作为中心时间戳服务的节点(host:port)
+    private static final String TIMESTAMP_ORACLE = System.getProperty(Constants.PROJECT_NAME_PREFIX
+            + "transaction.timestamp.oracle");
+
     private static final String KEY = "k".intern();
 
     private static long first;
     private static final AtomicLong last = new AtomicLong();
-    private static long maxTimestamp;
+    //已经持久化的最大时间戳
+    private static volatile long maxTimestamp;
+    //是否有后台线程正在持久化下一批
+    private static boolean allocating;
 
     private static MVMap<String, Long> map;
+    private static TimestampOracleClient oracleClient;
+
+    //所有批次都由同一个后台线程持久化，空闲时线程会退出
+    private static final ThreadPoolExecutor allocator = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "TimestampServiceTable allocator");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    static {
+        allocator.allowCoreThreadTimeOut(true);
+    }
+
+    private static final Runnable allocateTask = new Runnable() {
+        @Override
+        public void run() {
+            long newMaxTimestamp = maxTimestamp + TIMESTAMP_BATCH;
+            try {
+                updateLastMaxTimestamp(newMaxTimestamp);
+                maxTimestamp = newMaxTimestamp;
+            } finally {
+                synchronized (TimestampServiceTable.class) {
+                    allocating = false;
+                    TimestampServiceTable.class.notifyAll();
+                }
+            }
+        }
+    };
 
     public static synchronized void init(MVStore store) {
         if (map != null)
@@ -47,7 +104,13 @@ public class TimestampServiceTable {
 
         first = maxTimestamp = getLastMaxTimestamp();
         last.set(first);
-        addBatch();
+        addBatch(first + 1);
+
+        if (TIMESTAMP_ORACLE != null && !TIMESTAMP_ORACLE.equals(TransactionManager.getHostAndPort())) {
+            oracleClient = new TimestampOracleClient(TIMESTAMP_ORACLE);
+            //事务的时间戳来自中心节点，与本地的时间戳没有关系
+            first = 0;
+        }
     }
 
     private static void updateLastMaxTimestamp(long lastMaxTimestamp) {
@@ -61,63 +124,108 @@ public class TimestampServiceTable {
         return lastMaxTimestamp.longValue();
     }
 
-    private static void addBatch() {
-        maxTimestamp += TIMESTAMP_BATCH;
-        updateLastMaxTimestamp(maxTimestamp);
+    /**
+     * Persist a new batch so that the given timestamp can be handed out.
+     * The caller must hold the class lock and no background allocation may be running.
+     */
+    private static void addBatch(long required) {
+        long newMaxTimestamp = maxTimestamp + TIMESTAMP_BATCH;
+        if (newMaxTimestamp < required)
+            newMaxTimestamp = required + TIMESTAMP_BATCH;
+        updateLastMaxTimestamp(newMaxTimestamp);
+        maxTimestamp = newMaxTimestamp;
+    }
+
+    //后台线程来不及分配下一批时，由当前线程等待或自己分配
+    private static synchronized void waitForBatch(long required) {
+        while (allocating) {
+            try {
+                TimestampServiceTable.class.wait();
+            } catch (InterruptedException e) {
+                throw DbException.convert(e);
+            }
+        }
+        if (required > maxTimestamp)
+            addBatch(required);
+    }
+
+    private static void prefetch(long last) {
+        if (maxTimestamp - last >= TIMESTAMP_PREFETCH_THRESHOLD)
+            return;
+        synchronized (TimestampServiceTable.class) {
+            if (allocating || maxTimestamp - last >= TIMESTAMP_PREFETCH_THRESHOLD)
+                return;
+            allocating = true;
+        }
+        allocator.execute(allocateTask);
     }
 
     public synchronized static void reset() {
+        waitForBatch(0);
         first = maxTimestamp = 0;
         last.set(first);
         updateLastMaxTimestamp(0);
-        addBatch();
+        addBatch(first + 1);
     }
 
-    //事务用奇数版本号
-    public static long nextOdd() {
-        if (last.get() >= maxTimestamp) {
-            synchronized (TimestampServiceTable.class) {
-                addBatch();
+    private static long next(boolean odd) {
+        while (true) {
+            long oldLast = last.get();
+            long next = oldLast + 1;
+            if (((next & 1) == 1) != odd)
+                next++;
+            if (next > maxTimestamp) {
+                waitForBatch(next);
+                continue;
+            }
+            if (last.compareAndSet(oldLast, next)) {
+                prefetch(next);
+                return next;
             }
         }
+    }
 
-        long oldLast;
-        long last;
-        long delta;
-        do {
-            oldLast = TimestampServiceTable.last.get();
-            last = oldLast;
-            if (last % 2 == 0)
-                delta = 1;
-            else
-                delta = 2;
+    /**
+     * Allocate a block of consecutive timestamps, used by the nodes that get their timestamps from this node.
+     *
+     * @param count the number of timestamps
+     * @return the first timestamp of the block
+     */
+    public static long allocate(int count) {
+        while (true) {
+            long oldLast = last.get();
+            long end = oldLast + count;
+            if (end > maxTimestamp) {
+                waitForBatch(end);
+                continue;
+            }
+            if (last.compareAndSet(oldLast, end)) {
+                prefetch(end);
+                return oldLast + 1;
+            }
+        }
+    }
 
-            last += delta;
-        } while (!TimestampServiceTable.last.compareAndSet(oldLast, last));
-        return last;
+    //事务用奇数版本号
+    public static long nextOdd() {
+        return next(true);
     }
 
     //非事务用偶数版本号
     public static long nextEven() {
-        if (last.get() >= maxTimestamp) {
-            synchronized (TimestampServiceTable.class) {
-                addBatch();
-            }
-        }
+        return next(false);
+    }
+
+    public static long nextOdd(Session session) {
+        if (oracleClient != null)
+            return oracleClient.next(session, true);
+        return next(true);
+    }
 
-        long oldLast;
-        long last;
-        long delta;
-        do {
-            oldLast = TimestampServiceTable.last.get();
-            last = oldLast;
-            if (last % 2 == 0)
-                delta = 2;
-            else
-                delta = 1;
-            last += delta;
-        } while (!TimestampServiceTable.last.compareAndSet(oldLast, last));
-        return last;
+    public static long nextEven(Session session) {
+        if (oracleClient != null)
+            return oracleClient.next(session, false);
+        return next(false);
     }
 
     public static long first() {
@@ -17,13 +17,11 @@
  */
 package org.lealone.transaction;
 
+import java.util.List;
 import java.util.Map;
 
-import org.lealone.command.router.FrontendSessionPool;
 import org.lealone.engine.Constants;
-import org.lealone.engine.FrontendSession;
 import org.lealone.engine.Session;
-import org.lealone.message.DbException;
 import org.lealone.mvstore.MVMap;
 import org.lealone.mvstore.MVStore;
 import org.lealone.util.New;
@@ -93,16 +91,14 @@ public class TransactionStatusTable {
 
         commitTimestamp = (long) v[1];
         String[] allLocalTransactionNames = ((String) v[0]).split(",");
-        boolean isFullSuccessful = true;
-
+        List<String> names = New.arrayList(allLocalTransactionNames.length);
         for (String localTransactionName : allLocalTransactionNames) {
-            if (!oldTransactionName.equals(localTransactionName)) {
-                if (!validate(session, localTransactionName)) {
-                    isFullSuccessful = false;
-                    break;
-                }
-            }
+            if (!oldTransactionName.equals(localTransactionName))
+                names.add(localTransactionName);
         }
+        //所有节点的本地事务合并成每个节点一次批量验证请求，并行发出
+        boolean isFullSuccessful = RemoteTransactionValidator.validate(session.getOriginalProperties(),
+                session.getDatabase().getShortName(), names).isEmpty();
 
         //TODO 如果前一个事务没有结束，如何让它结束或是等它结束。
         if (isFullSuccessful) {
@@ -114,26 +110,15 @@ public class TransactionStatusTable {
         }
     }
 
-    public static boolean validate(Session session, String localTransactionName) {
-        String[] a = localTransactionName.split(":");
-
-        FrontendSession fs = null;
-        try {
-            fs = FrontendSessionPool
-                    .getFrontendSession(session.getOriginalProperties(), createURL(session, a[0], a[1]));
-            return fs.validateTransaction(localTransactionName);
-        } catch (Exception e) {
-            throw DbException.convert(e);
-        } finally {
-            FrontendSessionPool.release(fs);
-        }
+    static String createURL(Session session, String host, String port) {
+        return createURL(session.getDatabase().getShortName(), host + ":" + port);
     }
 
-    private static String createURL(Session session, String host, String port) {
+    static String createURL(String dbName, String hostAndPort) {
         StringBuilder url = new StringBuilder(100);
         url.append(Constants.URL_PREFIX).append(Constants.URL_TCP).append("//");
-        url.append(host).append(":").append(port);
-        url.append("/").append(session.getDatabase().getShortName());
+        url.append(hostAndPort);
+        url.append("/").append(dbName);
         return url.toString();
     }
 
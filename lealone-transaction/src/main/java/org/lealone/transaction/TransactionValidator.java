@@ -19,20 +19,26 @@ package org.lealone.transaction;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 
-import org.lealone.command.router.FrontendSessionPool;
-import org.lealone.engine.Constants;
-import org.lealone.engine.FrontendSession;
-import org.lealone.message.DbException;
+import org.lealone.message.TraceSystem;
 import org.lealone.transaction.local.DefaultTransactionEngine;
+import org.lealone.util.New;
 
 public class TransactionValidator extends Thread {
 
     private static final QueuedMessage CLOSE_SENTINEL = new QueuedMessage(null, null, 0, null, null);
 
+    private static final int MAX_BATCH_SIZE = 128;
+
+    //一批消息验证出错时最多重新放回队列的次数
+    static final int MAX_RETRIES = 3;
+
     private static final TransactionValidator INSTANCE = new TransactionValidator();
 
     public static TransactionValidator getInstance() {
@@ -56,45 +62,94 @@ public class TransactionValidator extends Thread {
     @Override
     public void run() {
         // keeping list (batch) size small for now; that way we don't have an unbounded array (that we never resize)
-        final List<QueuedMessage> drainedMessages = new ArrayList<>(128);
-        outer: while (true) {
-            if (backlog.drainTo(drainedMessages, drainedMessages.size()) == 0) {
+        final List<QueuedMessage> drainedMessages = new ArrayList<>(MAX_BATCH_SIZE);
+        while (true) {
+            if (backlog.drainTo(drainedMessages, MAX_BATCH_SIZE) == 0) {
                 try {
                     drainedMessages.add(backlog.take());
                 } catch (InterruptedException e) {
                     throw new AssertionError(e);
                 }
+                backlog.drainTo(drainedMessages, MAX_BATCH_SIZE - 1);
             }
 
-            for (QueuedMessage qm : drainedMessages) {
-                if (isStopped)
-                    break outer;
-                try {
-                    validateTransaction(qm);
-                } catch (Exception e) {
-                    //e.printStackTrace();
-                }
-            }
+            if (isStopped)
+                break;
+            validateTransactions(drainedMessages);
             drainedMessages.clear();
         }
     }
 
-    private void validateTransaction(QueuedMessage qm) {
-        String[] allLocalTransactionNames = qm.allLocalTransactionNames.split(",");
-        boolean isFullSuccessful = true;
+    /**
+     * 同一个数据库并且连接参数相同的消息合并起来验证，每个节点只发一次批量验证请求。
+     */
+    private void validateTransactions(List<QueuedMessage> messages) {
+        Map<BatchKey, List<QueuedMessage>> batches = New.hashMap();
+        for (QueuedMessage qm : messages) {
+            BatchKey key = new BatchKey(qm.dbName, qm.properties);
+            List<QueuedMessage> list = batches.get(key);
+            if (list == null) {
+                list = New.arrayList();
+                batches.put(key, list);
+            }
+            list.add(qm);
+        }
 
-        for (String localTransactionName : allLocalTransactionNames) {
-            if (!localTransactionName.startsWith(TransactionManager.getHostAndPort())) {
-                if (!validate(qm.dbName, qm.properties, localTransactionName)) {
-                    isFullSuccessful = false;
-                    break;
+        String localHostAndPort = TransactionManager.getHostAndPort();
+        for (Map.Entry<BatchKey, List<QueuedMessage>> e : batches.entrySet()) {
+            BatchKey key = e.getKey();
+            List<QueuedMessage> list = e.getValue();
+            Set<String> names = New.hashSet();
+            for (QueuedMessage qm : list) {
+                for (String localTransactionName : qm.allLocalTransactionNames.split(",")) {
+                    if (localHostAndPort == null || !localTransactionName.startsWith(localHostAndPort))
+                        names.add(localTransactionName);
                 }
             }
+
+            List<String> invalid;
+            try {
+                invalid = validate(key.properties, key.dbName, names);
+            } catch (Exception ex) {
+                retry(list, ex);
+                continue;
+            }
+
+            for (QueuedMessage qm : list) {
+                if (isFullSuccessful(qm, invalid))
+                    qm.transactionEngine.commitAfterValidate(qm.tid);
+            }
+        }
+    }
+
+    List<String> validate(Properties info, String dbName, Set<String> localTransactionNames) {
+        return RemoteTransactionValidator.validate(info, dbName, localTransactionNames);
+    }
+
+    /**
+     * 把验证出错的一批消息重新放回队列，重试MAX_RETRIES次后放弃，
+     * 放弃的事务和验证结果是无效时一样，保留它们的undo log。
+     */
+    private void retry(List<QueuedMessage> list, Exception ex) {
+        boolean failed = false;
+        for (QueuedMessage qm : list) {
+            if (qm.retries++ < MAX_RETRIES)
+                backlog.add(qm);
+            else
+                failed = true;
         }
+        if (failed)
+            TraceSystem.traceThrowable(ex);
+    }
 
-        if (isFullSuccessful) {
-            qm.transactionEngine.commitAfterValidate(qm.tid);
+    private static boolean isFullSuccessful(QueuedMessage qm, List<String> invalid) {
+        if (invalid.isEmpty())
+            return true;
+        for (String localTransactionName : qm.allLocalTransactionNames.split(",")) {
+            if (invalid.contains(localTransactionName))
+                return false;
         }
+        return true;
     }
 
     public void enqueue(String dbName, DefaultTransactionEngine transactionEngine, int tid, Properties properties,
@@ -112,6 +167,7 @@ public class TransactionValidator extends Thread {
         final int tid;
         final Properties properties;
         final String allLocalTransactionNames;
+        int retries;
 
         QueuedMessage(String dbName, DefaultTransactionEngine transactionEngine, int tid, Properties properties,
                 String allLocalTransactionNames) {
@@ -123,25 +179,26 @@ public class TransactionValidator extends Thread {
         }
     }
 
-    private static boolean validate(String dbName, Properties properties, String localTransactionName) {
-        String[] a = localTransactionName.split(":");
+    private static class BatchKey {
+        final String dbName;
+        final Properties properties;
 
-        FrontendSession fs = null;
-        try {
-            fs = FrontendSessionPool.getFrontendSession(properties, createURL(dbName, a[0], a[1]));
-            return fs.validateTransaction(localTransactionName);
-        } catch (Exception e) {
-            throw DbException.convert(e);
-        } finally {
-            FrontendSessionPool.release(fs);
+        BatchKey(String dbName, Properties properties) {
+            this.dbName = dbName;
+            this.properties = properties;
         }
-    }
 
-    private static String createURL(String dbName, String host, String port) {
-        StringBuilder url = new StringBuilder(100);
-        url.append(Constants.URL_PREFIX).append(Constants.URL_TCP).append("//");
-        url.append(host).append(":").append(port);
-        url.append("/").append(dbName);
-        return url.toString();
+        @Override
+        public int hashCode() {
+            return Objects.hash(dbName, properties);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof BatchKey))
+                return false;
+            BatchKey other = (BatchKey) obj;
+            return Objects.equals(dbName, other.dbName) && Objects.equals(properties, other.properties);
+        }
     }
 }
@@ -26,6 +26,7 @@ import org.lealone.command.dml.Merge;
 import org.lealone.command.dml.Select;
 import org.lealone.command.dml.TransactionCommand;
 import org.lealone.command.dml.Update;
+import org.lealone.command.router.PartitionFilter;
 import org.lealone.command.router.Router;
 import org.lealone.engine.Session;
 import org.lealone.message.DbException;
@@ -70,6 +71,11 @@ public class TransactionalRouter implements Router {
         return nestedRouter.executeSelect(select, maxRows, scrollable);
     }
 
+    @Override
+    public PartitionFilter createPartitionFilter(String partitionRanges) {
+        return nestedRouter.createPartitionFilter(partitionRanges);
+    }
+
     private void beginTransaction(Prepared p) {
         p.getSession().getTransaction();
     }
@@ -351,7 +351,8 @@ public class DefaultTransactionEngine implements TransactionEngine {
             removeUndoLog(t.getId(), maxLogId);
         }
 
-        endTransaction(t);
+        //只读事务没有要持久化的修改
+        endTransaction(t, maxLogId > 0);
     }
 
     public void commitAfterValidate(int tid) {
@@ -477,12 +478,25 @@ public class DefaultTransactionEngine implements TransactionEngine {
      * End this transaction
      *
      * @param t the transaction
+     * @param sync whether the changes have to be synced to disk if sync commit
+     *            is used (false for rollbacks and read-only transactions)
      */
-    synchronized void endTransaction(LocalTransaction t) {
-        if (t.getStatus() == LocalTransaction.STATUS_PREPARED) {
-            preparedTransactions.remove(t.getId());
+    void endTransaction(LocalTransaction t, boolean sync) {
+        synchronized (this) {
+            if (t.getStatus() == LocalTransaction.STATUS_PREPARED) {
+                preparedTransactions.remove(t.getId());
+            }
+            t.setStatus(LocalTransaction.STATUS_CLOSED);
+            if (!sync || !store.isSyncCommit()) {
+                commitIfNeeded();
+                return;
+            }
         }
-        t.setStatus(LocalTransaction.STATUS_CLOSED);
+        // 不能持有引擎的锁，这样并发提交的事务才能在MVStore中合并成一次写chunk和一次fsync(组提交)
+        store.commitAndSync();
+    }
+
+    private void commitIfNeeded() {
         if (store.getAutoCommitDelay() == 0) {
             store.commit();
             return;
@@ -261,7 +261,8 @@ public class LocalTransaction extends TransactionBase {
         try {
             checkNotClosed();
             transactionEngine.rollbackTo(this, logId, 0);
-            transactionEngine.endTransaction(this);
+            //回滚的修改不需要同步到磁盘，崩溃恢复时没有提交的事务也会被回滚
+            transactionEngine.endTransaction(this, false);
         } finally {
             endTransaction();
         }
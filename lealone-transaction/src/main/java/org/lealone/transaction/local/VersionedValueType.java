@@ -46,9 +46,11 @@ class VersionedValueType implements DataType {
     public void read(ByteBuffer buff, Object[] obj, int len, boolean key) {
         if (buff.get() == 0) {
             // fast path (no op ids or null entries)
+            Object[] values = new Object[len];
+            valueType.read(buff, values, len, false);
             for (int i = 0; i < len; i++) {
                 VersionedValue v = new VersionedValue();
-                v.value = valueType.read(buff);
+                v.value = values[i];
                 obj[i] = v;
             }
         } else {
@@ -80,10 +82,12 @@ class VersionedValueType implements DataType {
         }
         if (fastPath) {
             buff.put((byte) 0);
+            // the value type may store the values of the whole page together
+            Object[] values = new Object[len];
             for (int i = 0; i < len; i++) {
-                VersionedValue v = (VersionedValue) obj[i];
-                valueType.write(buff, v.value);
+                values[i] = ((VersionedValue) obj[i]).value;
             }
+            valueType.write(buff, values, len, false);
         } else {
             // slow path:
             // store op ids, and some entries may be null